@@ -0,0 +1,167 @@
+package mobileoda.notification.service.mobileoda.impl;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Adjusts the batch size of the push-notification and device-details writes from the observed batch
+ * latency and failures (AIMD): a full batch written within the target latency grows the size by a fixed
+ * step, a failed batch or one over the target latency shrinks it by a factor. The size stays within
+ * the configured bounds. Enabled with {@code notification.adaptive-batch.enabled=true}; when disabled
+ * the configured batch size of the DAO is used unchanged.
+ */
+@Component
+public class AdaptiveBatchSizer {
+    private Logger logger = LogManager.getLogger(AdaptiveBatchSizer.class);
+
+    /**
+     * Writes whose batch size is tracked separately.
+     */
+    public enum Writes {
+        NOTIFICATION, DEVICE
+    }
+
+    @Value("${notification.adaptive-batch.enabled:false}")
+    private boolean enabled;
+
+    @Value("${notification.adaptive-batch.min-size:50}")
+    private int minSize = 50;
+
+    @Value("${notification.adaptive-batch.max-size:2000}")
+    private int maxSize = 2000;
+
+    @Value("${notification.adaptive-batch.target-latency-ms:250}")
+    private long targetLatencyMs = 250;
+
+    @Value("${notification.adaptive-batch.increase-step:50}")
+    private int increaseStep = 50;
+
+    @Value("${notification.adaptive-batch.decrease-factor:0.5}")
+    private double decreaseFactor = 0.5;
+
+    private final Map<Writes, Controller> controllers = new EnumMap<>(Writes.class);
+
+    public AdaptiveBatchSizer() {
+        for (Writes writes : Writes.values()) {
+            controllers.put(writes, new Controller());
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Current batch size of a kind of write.
+     *
+     * @param writes     Writes whose batch size is requested
+     * @param configured Batch size configured on the DAO, the starting point of the controller
+     * @return int value of the batch size
+     */
+    public int getBatchSize(Writes writes, int configured) {
+        if (!enabled) {
+            return configured;
+        }
+        Controller controller = controllers.get(writes);
+        controller.lock.lock();
+        try {
+            if (controller.batchSize == 0) {
+                controller.batchSize = clamp(configured);
+            }
+            return controller.batchSize;
+        } finally {
+            controller.lock.unlock();
+        }
+    }
+
+    /**
+     * Feed the outcome of a batch write to the controller.
+     *
+     * @param writes       Writes the batch belongs to
+     * @param rows         int value of the rows in the batch
+     * @param elapsedNanos Duration of the batch write
+     * @param failed       true when the batch write failed and needed recovery
+     */
+    public void recordBatch(Writes writes, int rows, long elapsedNanos, boolean failed) {
+        if (!enabled || rows == 0) {
+            return;
+        }
+        Controller controller = controllers.get(writes);
+        long elapsedMs = TimeUnit.NANOSECONDS.toMillis(elapsedNanos);
+        controller.lock.lock();
+        try {
+            if (controller.batchSize == 0) {
+                return;
+            }
+            int previous = controller.batchSize;
+            if (failed || elapsedMs > targetLatencyMs) {
+                controller.batchSize = clamp((int) (previous * decreaseFactor));
+                controller.decreases++;
+            } else if (rows >= previous) {
+                // Only a full batch tells whether a larger one would still meet the target
+                controller.batchSize = clamp(previous + increaseStep);
+                controller.increases++;
+            }
+            if (controller.batchSize != previous && logger.isDebugEnabled()) {
+                logger.debug("{} batch size {} -> {} after {} rows in {} ms, failed: {}",
+                        writes, previous, controller.batchSize, rows, elapsedMs, failed);
+            }
+        } finally {
+            controller.lock.unlock();
+        }
+    }
+
+    /**
+     * Current batch size of a kind of write, for metrics.
+     *
+     * @param writes Writes whose batch size is requested
+     * @return int value of the batch size, 0 before the first batch
+     */
+    public int getCurrentBatchSize(Writes writes) {
+        Controller controller = controllers.get(writes);
+        controller.lock.lock();
+        try {
+            return controller.batchSize;
+        } finally {
+            controller.lock.unlock();
+        }
+    }
+
+    public long getIncreaseCount(Writes writes) {
+        Controller controller = controllers.get(writes);
+        controller.lock.lock();
+        try {
+            return controller.increases;
+        } finally {
+            controller.lock.unlock();
+        }
+    }
+
+    public long getDecreaseCount(Writes writes) {
+        Controller controller = controllers.get(writes);
+        controller.lock.lock();
+        try {
+            return controller.decreases;
+        } finally {
+            controller.lock.unlock();
+        }
+    }
+
+    private int clamp(int batchSize) {
+        return Math.max(minSize, Math.min(maxSize, batchSize));
+    }
+
+    private static final class Controller {
+        private final ReentrantLock lock = new ReentrantLock();
+        private int batchSize;
+        private long increases;
+        private long decreases;
+    }
+}
@@ -0,0 +1,167 @@
+package mobileoda.notification.service.mobileoda.impl;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+/**
+ * Bounded in-process queue drained by a pool of background writers. Accepted ingest jobs are
+ * acknowledged with an id right away; their outcome, including the failed uids, can be queried later.
+ * Queued jobs live only in memory, so the service does not use async mode while the notification
+ * journal is enabled.
+ */
+@Component
+public class AsyncNotificationIngestor {
+    private Logger logger = LogManager.getLogger(AsyncNotificationIngestor.class);
+
+    /**
+     * State of an acknowledged ingest job.
+     */
+    public enum IngestState {
+        QUEUED, RUNNING, COMPLETED, FAILED
+    }
+
+    @Value("${notification.async.writer-threads:4}")
+    private int writerThreads = 4;
+
+    @Value("${notification.async.queue-capacity:200}")
+    private int queueCapacity = 200;
+
+    @Value("${notification.async.status-retention:10000}")
+    private int statusRetention = 10000;
+
+    @Value("${notification.async.shutdown-timeout-seconds:30}")
+    private long shutdownTimeoutSeconds = 30;
+
+    private ThreadPoolExecutor writerPool;
+
+    private final ReentrantLock statusLock = new ReentrantLock();
+    private final Map<String, IngestStatus> statuses = new LinkedHashMap<String, IngestStatus>(256, 0.75f, false) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, IngestStatus> eldest) {
+            return size() > statusRetention;
+        }
+    };
+
+    @PostConstruct
+    public void start() {
+        AtomicInteger threadCount = new AtomicInteger();
+        writerPool = new ThreadPoolExecutor(writerThreads, writerThreads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "notification-writer-" + threadCount.incrementAndGet());
+                    thread.setDaemon(false);
+                    return thread;
+                },
+                new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    /**
+     * Queue an ingest job.
+     *
+     * @param job Supplier writing the notifications and returning the failed uids
+     * @return acknowledgement id, or null when the queue is full
+     */
+    public String submit(Supplier<List<Integer>> job) {
+        String acknowledgementId = UUID.randomUUID().toString();
+        IngestStatus status = new IngestStatus();
+        statusLock.lock();
+        try {
+            statuses.put(acknowledgementId, status);
+        } finally {
+            statusLock.unlock();
+        }
+        try {
+            writerPool.execute(() -> run(acknowledgementId, status, job));
+            return acknowledgementId;
+        } catch (RejectedExecutionException e) {
+            statusLock.lock();
+            try {
+                statuses.remove(acknowledgementId);
+            } finally {
+                statusLock.unlock();
+            }
+            logger.warn("Notification ingest queue is full ({} jobs), rejecting request", queueCapacity);
+            return null;
+        }
+    }
+
+    /**
+     * Get the status of an acknowledged ingest job.
+     *
+     * @param acknowledgementId String value contains acknowledgement-id
+     * @return Instance of IngestStatus, or null when the id is unknown or no longer retained
+     */
+    public IngestStatus getStatus(String acknowledgementId) {
+        statusLock.lock();
+        try {
+            return statuses.get(acknowledgementId);
+        } finally {
+            statusLock.unlock();
+        }
+    }
+
+    public int getQueueDepth() {
+        return writerPool.getQueue().size();
+    }
+
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        writerPool.shutdown();
+        if (!writerPool.awaitTermination(shutdownTimeoutSeconds, TimeUnit.SECONDS)) {
+            logger.error("Notification writers did not drain within {}s, {} jobs left in queue",
+                    shutdownTimeoutSeconds, writerPool.getQueue().size());
+        }
+    }
+
+    private void run(String acknowledgementId, IngestStatus status, Supplier<List<Integer>> job) {
+        status.state = IngestState.RUNNING;
+        try {
+            List<Integer> failedUids = job.get();
+            status.failedUidList = Collections.unmodifiableList(new ArrayList<>(failedUids));
+            status.state = IngestState.COMPLETED;
+        } catch (RuntimeException e) {
+            logger.error("Async notification ingest {} failed", acknowledgementId, e);
+            status.errorMessage = e.getMessage();
+            status.state = IngestState.FAILED;
+        }
+    }
+
+    /**
+     * Outcome of an acknowledged ingest job.
+     */
+    public static final class IngestStatus {
+        private volatile IngestState state = IngestState.QUEUED;
+        private volatile List<Integer> failedUidList = Collections.emptyList();
+        private volatile String errorMessage;
+
+        public IngestState getState() {
+            return state;
+        }
+
+        public List<Integer> getFailedUidList() {
+            return failedUidList;
+        }
+
+        public String getErrorMessage() {
+            return errorMessage;
+        }
+    }
+}
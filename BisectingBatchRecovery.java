@@ -0,0 +1,188 @@
+package mobileoda.notification.service.mobileoda.impl;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Function;
+
+/**
+ * Recovers a failed batch write by splitting it in half recursively and retrying each half as a
+ * batch, so k bad rows in a batch of n are isolated in O(k log n) writes instead of n single-row writes.
+ */
+@Component
+public class BisectingBatchRecovery {
+    private Logger logger = LogManager.getLogger(BisectingBatchRecovery.class);
+
+    static final int MAX_TRACKED_DEPTH = 32;
+
+    private final AtomicLongArray depthCounts = new AtomicLongArray(MAX_TRACKED_DEPTH + 1);
+
+    /**
+     * Writes used while recovering a batch.
+     *
+     * @param <T> Type of the rows
+     */
+    public interface BatchWriter<T> {
+        /**
+         * Write a batch.
+         *
+         * @param rows Instance of List
+         * @return Instance of List holding the rows that were written
+         */
+        List<T> writeBatch(List<T> rows);
+
+        /**
+         * Write a single row.
+         *
+         * @param row Row to be written
+         * @return true when the row was written
+         */
+        boolean writeOne(T row);
+
+        /**
+         * Key that matches a row returned by {@link #writeBatch} to the row passed in. Rows are matched
+         * by identity unless a write returns copies, e.g. the managed copies of a JPA merge.
+         *
+         * @param row Row passed to or returned by writeBatch
+         * @return Object compared with equals
+         */
+        default Object keyOf(T row) {
+            return new RowIdentity(row);
+        }
+    }
+
+    /**
+     * Recover the rows of a failed batch that were not written.
+     *
+     * @param unwritten Instance of List holding the rows still to be written
+     * @param writer    Instance of BatchWriter
+     * @param <T>       Type of the rows
+     * @return Set of the rows that could not be written, compared by identity
+     */
+    public <T> Set<T> recover(List<T> unwritten, BatchWriter<T> writer) {
+        Set<T> failed = Collections.newSetFromMap(new IdentityHashMap<>());
+        recover(unwritten, writer, 1, failed);
+        return failed;
+    }
+
+    private <T> void recover(List<T> rows, BatchWriter<T> writer, int depth, Set<T> failed) {
+        if (rows.isEmpty()) {
+            return;
+        }
+        depthCounts.incrementAndGet(Math.min(depth, MAX_TRACKED_DEPTH));
+        if (rows.size() == 1) {
+            T row = rows.get(0);
+            try {
+                if (!writer.writeOne(row)) {
+                    failed.add(row);
+                }
+            } catch (RuntimeException e) {
+                logger.error("Failed to write row at recovery depth {}", depth, e);
+                failed.add(row);
+            }
+            return;
+        }
+
+        int middle = rows.size() / 2;
+        writeHalf(rows.subList(0, middle), writer, depth, failed);
+        writeHalf(rows.subList(middle, rows.size()), writer, depth, failed);
+    }
+
+    private <T> void writeHalf(List<T> half, BatchWriter<T> writer, int depth, Set<T> failed) {
+        if (half.size() == 1) {
+            // A batch of one row would only be tried again by writeOne
+            recover(half, writer, depth + 1, failed);
+            return;
+        }
+        List<T> written = null;
+        try {
+            written = writer.writeBatch(half);
+            if (written != null && written.size() == half.size()) {
+                return;
+            }
+        } catch (RuntimeException e) {
+            logger.debug("Batch of {} rows failed at recovery depth {}", half.size(), depth, e);
+        }
+        recover(unwrittenRows(half, written, writer::keyOf), writer, depth + 1, failed);
+    }
+
+    /**
+     * Rows of a batch that a write did not return, matched by identity.
+     *
+     * @param rows    Instance of List holding the rows passed to the write
+     * @param written Instance of List holding the rows the write returned
+     * @param <T>     Type of the rows
+     * @return Instance of List holding the unwritten rows, in order
+     */
+    static <T> List<T> unwrittenRows(List<T> rows, List<T> written) {
+        return unwrittenRows(rows, written, RowIdentity::new);
+    }
+
+    /**
+     * Rows of a batch that a write did not return, matched by key.
+     *
+     * @param rows    Instance of List holding the rows passed to the write
+     * @param written Instance of List holding the rows the write returned
+     * @param keyOf   Function giving the key of a row
+     * @param <T>     Type of the rows
+     * @return Instance of List holding the unwritten rows, in order
+     */
+    static <T> List<T> unwrittenRows(List<T> rows, List<T> written, Function<T, Object> keyOf) {
+        if (written == null || written.isEmpty()) {
+            return new ArrayList<>(rows);
+        }
+        Set<Object> writtenKeys = new HashSet<>(written.size() * 2);
+        for (T row : written) {
+            writtenKeys.add(keyOf.apply(row));
+        }
+        List<T> unwritten = new ArrayList<>(rows.size());
+        for (T row : rows) {
+            if (!writtenKeys.contains(keyOf.apply(row))) {
+                unwritten.add(row);
+            }
+        }
+        return unwritten;
+    }
+
+    /**
+     * Number of times each recovery depth was reached; index 1 is the first split of a failed batch.
+     *
+     * @return long array indexed by depth, the last slot counts every deeper level
+     */
+    public long[] getDepthCounts() {
+        long[] counts = new long[depthCounts.length()];
+        for (int depth = 0; depth < counts.length; depth++) {
+            counts[depth] = depthCounts.get(depth);
+        }
+        return counts;
+    }
+
+    /**
+     * Key of a row compared by identity.
+     */
+    private static final class RowIdentity {
+        private final Object row;
+
+        private RowIdentity(Object row) {
+            this.row = row;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof RowIdentity && ((RowIdentity) other).row == row;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(row);
+        }
+    }
+}
@@ -0,0 +1,262 @@
+package mobileoda.notification.service.mobileoda.impl;
+
+import com.zaxxer.hikari.HikariDataSource;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.sql.DataSource;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+/**
+ * Shares the batch writers between contexts with deficit round-robin, so one context posting very large
+ * payloads cannot hold every connection while small contexts wait.
+ *
+ * <p>A batch needs one of {@code notification.fair-scheduler.slots} write slots (by default the maximum
+ * size of the connection pool). While slots are free batches run right away; otherwise they wait in a
+ * queue per context, and freed slots go round the contexts, each receiving a quantum of
+ * {@code notification.fair-scheduler.quantum-rows} times its weight in rows per round. Weights default to 1
+ * and are set with {@code notification.fair-scheduler.weights=CONTEXT_A:4,CONTEXT_B:2} or at runtime.
+ * Enabled with {@code notification.fair-scheduler.enabled=true}.
+ */
+@Component
+public class ContextFairScheduler {
+    private Logger logger = LogManager.getLogger(ContextFairScheduler.class);
+
+    @Autowired(required = false)
+    private DataSource dataSource;
+
+    @Autowired(required = false)
+    private NotificationMetrics notificationMetrics;
+
+    @Value("${notification.fair-scheduler.enabled:false}")
+    private boolean enabled;
+
+    @Value("${notification.fair-scheduler.slots:0}")
+    private int configuredSlots;
+
+    @Value("${notification.fair-scheduler.quantum-rows:500}")
+    private int quantumRows = 500;
+
+    @Value("${notification.fair-scheduler.weights:}")
+    private String configuredWeights = "";
+
+    private int slots = 1;
+    private int activeSlots;
+    private int waiting;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Map<String, ContextQueue> queues = new HashMap<>();
+    private final ArrayDeque<ContextQueue> round = new ArrayDeque<>();
+    private final Map<String, Integer> weights = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    public void start() {
+        for (String weight : StringUtils.split(StringUtils.defaultString(configuredWeights), ',')) {
+            String[] contextWeight = weight.trim().split(":");
+            if (contextWeight.length == 2) {
+                setWeight(contextWeight[0].trim(), Integer.parseInt(contextWeight[1].trim()));
+            } else {
+                logger.warn("Ignoring malformed fair scheduler weight '{}'", weight);
+            }
+        }
+        slots = configuredSlots;
+        if (slots <= 0) {
+            slots = primaryPoolSize();
+        }
+        if (enabled && notificationMetrics != null) {
+            notificationMetrics.bindSchedulerMeters(this);
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Set the weight of a context. A context with weight 2 receives twice the rows per round of a context with weight 1.
+     *
+     * @param context String value contains context-name
+     * @param weight  int value of the weight, at least 1
+     */
+    public void setWeight(String context, int weight) {
+        weights.put(context, Math.max(1, weight));
+    }
+
+    public int getWeight(String context) {
+        return weights.getOrDefault(context, 1);
+    }
+
+    /**
+     * Run a batch write once the context gets a write slot.
+     *
+     * @param context String value contains context-name
+     * @param rows    int value of the rows in the batch, its cost
+     * @param write   Supplier doing the batch write
+     * @param <T>     Type of the result
+     * @return result of the write
+     */
+    public <T> T run(String context, int rows, Supplier<T> write) {
+        if (!enabled) {
+            return write.get();
+        }
+        long startNanos = System.nanoTime();
+        acquire(context, Math.max(1, rows));
+        if (notificationMetrics != null) {
+            notificationMetrics.recordSchedulerWait(context, startNanos);
+        }
+        try {
+            return write.get();
+        } finally {
+            release();
+        }
+    }
+
+    private void acquire(String context, int cost) {
+        lock.lock();
+        try {
+            if (activeSlots < slots && waiting == 0) {
+                activeSlots++;
+                return;
+            }
+            ContextQueue queue = queues.computeIfAbsent(context, ContextQueue::new);
+            if (queue.tickets.isEmpty()) {
+                round.addLast(queue);
+            }
+            Ticket ticket = new Ticket(cost, lock.newCondition());
+            queue.tickets.addLast(ticket);
+            waiting++;
+            if (notificationMetrics != null) {
+                notificationMetrics.recordSchedulerQueueDepth(context, queue.tickets.size());
+            }
+            while (!ticket.granted) {
+                ticket.grantedCondition.awaitUninterruptibly();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void release() {
+        lock.lock();
+        try {
+            activeSlots--;
+            while (activeSlots < slots && waiting > 0) {
+                grantNext();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void grantNext() {
+        while (true) {
+            ContextQueue queue = round.peekFirst();
+            if (!queue.visited) {
+                queue.deficit += (long) quantumRows * getWeight(queue.context);
+                queue.visited = true;
+            }
+            Ticket ticket = queue.tickets.peekFirst();
+            if (queue.deficit >= ticket.cost) {
+                queue.deficit -= ticket.cost;
+                queue.tickets.pollFirst();
+                if (queue.tickets.isEmpty()) {
+                    // An idle context does not bank its unused quantum
+                    round.pollFirst();
+                    queue.deficit = 0;
+                    queue.visited = false;
+                    queues.remove(queue.context);
+                }
+                waiting--;
+                activeSlots++;
+                ticket.granted = true;
+                ticket.grantedCondition.signal();
+                return;
+            }
+            round.pollFirst();
+            queue.visited = false;
+            round.addLast(queue);
+        }
+    }
+
+    /**
+     * Batches of a context waiting for a write slot.
+     *
+     * @param context String value contains context-name
+     * @return int value of the waiting batches
+     */
+    public int getQueueDepth(String context) {
+        lock.lock();
+        try {
+            ContextQueue queue = queues.get(context);
+            return queue == null ? 0 : queue.tickets.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getWaiting() {
+        lock.lock();
+        try {
+            return waiting;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getActiveSlots() {
+        lock.lock();
+        try {
+            return activeSlots;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static final class ContextQueue {
+        private final String context;
+        private final ArrayDeque<Ticket> tickets = new ArrayDeque<>();
+        private long deficit;
+        private boolean visited;
+
+        private ContextQueue(String context) {
+            this.context = context;
+        }
+    }
+
+    private static final class Ticket {
+        private final int cost;
+        private final Condition grantedCondition;
+        private boolean granted;
+
+        private Ticket(int cost, Condition grantedCondition) {
+            this.cost = cost;
+            this.grantedCondition = grantedCondition;
+        }
+    }
+
+    /**
+     * Maximum pool size of the HikariDataSource behind the DataSource, which may be a routing wrapper.
+     */
+    private int primaryPoolSize() {
+        try {
+            if (dataSource != null && dataSource.isWrapperFor(HikariDataSource.class)) {
+                return dataSource.unwrap(HikariDataSource.class).getMaximumPoolSize();
+            }
+        } catch (SQLException e) {
+            logger.warn("Could not unwrap the DataSource", e);
+        }
+        return 10;
+    }
+}
@@ -0,0 +1,199 @@
+package mobileoda.notification.service.mobileoda.impl;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Token-bucket rate limiter per mobileContext, measured in requests and in notification rows.
+ *
+ * <p>Every context has a request bucket and a row bucket, refilled continuously at the configured rate up
+ * to the burst size. A request is admitted when both buckets hold enough tokens; a request with more rows
+ * than the row burst is admitted once the row bucket is full and leaves it in debt, so it is not rejected
+ * forever. A streamed request, whose rows are not known up front, takes its request token first and the
+ * tokens of its rows batch by batch with {@link #tryAcquireRows}. Limits must be positive.
+ * Defaults come from {@code notification.rate-limit.*}; per-context limits are set with
+ * {@code notification.rate-limit.limits=CTX_A:5:2000,CTX_B:20:50000} (requests/s:rows/s) or at runtime
+ * with {@link #setLimits}. Enabled with {@code notification.rate-limit.enabled=true}.
+ */
+@Component
+public class ContextRateLimiter {
+    private Logger logger = LogManager.getLogger(ContextRateLimiter.class);
+
+    @Value("${notification.rate-limit.enabled:false}")
+    private boolean enabled;
+
+    @Value("${notification.rate-limit.requests-per-second:20}")
+    private double requestsPerSecond = 20;
+
+    @Value("${notification.rate-limit.rows-per-second:20000}")
+    private double rowsPerSecond = 20000;
+
+    @Value("${notification.rate-limit.burst-seconds:5}")
+    private double burstSeconds = 5;
+
+    @Value("${notification.rate-limit.limits:}")
+    private String configuredLimits = "";
+
+    private final Map<String, Limits> limits = new ConcurrentHashMap<>();
+    private final Map<String, ContextBuckets> buckets = new ConcurrentHashMap<>();
+
+    private final AtomicLong admittedRequests = new AtomicLong();
+    private final AtomicLong throttledRequests = new AtomicLong();
+
+    @PostConstruct
+    public void start() {
+        if (!(requestsPerSecond > 0 && rowsPerSecond > 0)) {
+            throw new IllegalStateException("notification.rate-limit.requests-per-second and rows-per-second must be positive, got "
+                    + requestsPerSecond + " and " + rowsPerSecond);
+        }
+        for (String limit : StringUtils.split(StringUtils.defaultString(configuredLimits), ',')) {
+            String[] contextLimit = limit.trim().split(":");
+            try {
+                if (contextLimit.length != 3) {
+                    throw new IllegalArgumentException("expected CTX:requests/s:rows/s");
+                }
+                setLimits(contextLimit[0].trim(), Double.parseDouble(contextLimit[1].trim()), Double.parseDouble(contextLimit[2].trim()));
+            } catch (IllegalArgumentException e) {
+                logger.warn("Ignoring malformed rate limit '{}': {}", limit, e.getMessage());
+            }
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Set the limits of a context, effective for its next request.
+     *
+     * @param context           String value contains context-name
+     * @param requestsPerSecond double value of the admitted requests per second
+     * @param rowsPerSecond     double value of the admitted notification rows per second
+     * @throws IllegalArgumentException when a limit is not positive
+     */
+    public void setLimits(String context, double requestsPerSecond, double rowsPerSecond) {
+        if (!(requestsPerSecond > 0 && rowsPerSecond > 0)) {
+            throw new IllegalArgumentException("Rate limits must be positive, got " + requestsPerSecond + " requests/s, " + rowsPerSecond + " rows/s");
+        }
+        limits.put(context, new Limits(requestsPerSecond, rowsPerSecond));
+        logger.info("Rate limit of context {} set to {} requests/s, {} rows/s", context, requestsPerSecond, rowsPerSecond);
+    }
+
+    /**
+     * Drop the limits of a context, so the defaults apply again.
+     *
+     * @param context String value contains context-name
+     */
+    public void clearLimits(String context) {
+        limits.remove(context);
+    }
+
+    /**
+     * Take the tokens of a request.
+     *
+     * @param context String value contains context-name
+     * @param rows    int value of the notification rows of the request
+     * @return 0 when the request is admitted, otherwise the milliseconds after which it would be
+     */
+    public long tryAcquire(String context, int rows) {
+        if (!enabled) {
+            return 0;
+        }
+        long retryAfterMillis = acquire(context, 1, rows);
+        if (retryAfterMillis == 0) {
+            admittedRequests.incrementAndGet();
+        } else {
+            throttledRequests.incrementAndGet();
+        }
+        return retryAfterMillis;
+    }
+
+    /**
+     * Take the tokens of the next rows of an admitted request whose rows are read incrementally. When the
+     * row bucket is short the request is counted as throttled.
+     *
+     * @param context String value contains context-name
+     * @param rows    int value of the notification rows
+     * @return 0 when the rows are admitted, otherwise the milliseconds after which they would be
+     */
+    public long tryAcquireRows(String context, int rows) {
+        if (!enabled) {
+            return 0;
+        }
+        long retryAfterMillis = acquire(context, 0, rows);
+        if (retryAfterMillis != 0) {
+            throttledRequests.incrementAndGet();
+        }
+        return retryAfterMillis;
+    }
+
+    private long acquire(String context, int requests, int rows) {
+        Limits contextLimits = limits.getOrDefault(context, new Limits(requestsPerSecond, rowsPerSecond));
+        ContextBuckets contextBuckets = buckets.computeIfAbsent(context, key -> new ContextBuckets());
+        return contextBuckets.tryAcquire(contextLimits, requests, rows, burstSeconds, System.nanoTime());
+    }
+
+    public long getAdmittedRequests() {
+        return admittedRequests.get();
+    }
+
+    public long getThrottledRequests() {
+        return throttledRequests.get();
+    }
+
+    private static final class Limits {
+        private final double requestsPerSecond;
+        private final double rowsPerSecond;
+
+        private Limits(double requestsPerSecond, double rowsPerSecond) {
+            this.requestsPerSecond = requestsPerSecond;
+            this.rowsPerSecond = rowsPerSecond;
+        }
+    }
+
+    private static final class ContextBuckets {
+        private final ReentrantLock lock = new ReentrantLock();
+        private double requestTokens = Double.NaN;
+        private double rowTokens = Double.NaN;
+        private long refilledAt;
+
+        private long tryAcquire(Limits contextLimits, int requests, int rows, double burstSeconds, long now) {
+            double requestBurst = Math.max(1, contextLimits.requestsPerSecond * burstSeconds);
+            double rowBurst = Math.max(1, contextLimits.rowsPerSecond * burstSeconds);
+            lock.lock();
+            try {
+                if (Double.isNaN(requestTokens)) {
+                    requestTokens = requestBurst;
+                    rowTokens = rowBurst;
+                } else {
+                    double elapsedSeconds = (now - refilledAt) / (double) TimeUnit.SECONDS.toNanos(1);
+                    requestTokens = Math.min(requestBurst, requestTokens + elapsedSeconds * contextLimits.requestsPerSecond);
+                    rowTokens = Math.min(rowBurst, rowTokens + elapsedSeconds * contextLimits.rowsPerSecond);
+                }
+                refilledAt = now;
+
+                double rowsNeeded = Math.min(rows, rowBurst);
+                if (requestTokens >= requests && rowTokens >= rowsNeeded) {
+                    requestTokens -= requests;
+                    rowTokens -= rows;
+                    return 0;
+                }
+                double requestWaitSeconds = requestTokens >= requests ? 0 : (requests - requestTokens) / contextLimits.requestsPerSecond;
+                double rowWaitSeconds = rowTokens >= rowsNeeded ? 0 : (rowsNeeded - rowTokens) / contextLimits.rowsPerSecond;
+                return Math.max(1, (long) Math.ceil(Math.max(requestWaitSeconds, rowWaitSeconds) * 1000));
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package mobileoda.notification.dao.shard;
+
+import org.springframework.jdbc.datasource.AbstractDataSource;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.function.Supplier;
+
+/**
+ * DataSource handing out connections of the shard the current thread routes to, see
+ * {@link ContextShardRouter#callInContext}, and of the primary DataSource otherwise. Inside
+ * {@link ReadReplicaRouter#callOnReplica} the connections come from the shard's read replica. Unwrapping
+ * reaches the primary, e.g. its HikariDataSource.
+ */
+public class ContextRoutingDataSource extends AbstractDataSource {
+    private final DataSource primary;
+    private final Supplier<ContextShardRouter> routerSupplier;
+    private final Supplier<ReadReplicaRouter> replicaRouterSupplier;
+    private volatile ContextShardRouter router;
+    private volatile ReadReplicaRouter replicaRouter;
+
+    /**
+     * @param primary        Instance of DataSource of the application
+     * @param routerSupplier Supplier of the ContextShardRouter, resolved on first use
+     */
+    public ContextRoutingDataSource(DataSource primary, Supplier<ContextShardRouter> routerSupplier) {
+        this(primary, routerSupplier, () -> null);
+    }
+
+    /**
+     * @param primary               Instance of DataSource of the application
+     * @param routerSupplier        Supplier of the ContextShardRouter, resolved on first use
+     * @param replicaRouterSupplier Supplier of the ReadReplicaRouter, resolved on first use, may supply null
+     */
+    public ContextRoutingDataSource(DataSource primary, Supplier<ContextShardRouter> routerSupplier,
+                                    Supplier<ReadReplicaRouter> replicaRouterSupplier) {
+        this.primary = primary;
+        this.routerSupplier = routerSupplier;
+        this.replicaRouterSupplier = replicaRouterSupplier;
+    }
+
+    public DataSource getPrimary() {
+        return primary;
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        return determineDataSource().getConnection();
+    }
+
+    @Override
+    public Connection getConnection(String username, String password) throws SQLException {
+        return determineDataSource().getConnection(username, password);
+    }
+
+    private DataSource determineDataSource() {
+        ReadReplicaRouter readReplicaRouter = replicaRouter;
+        if (readReplicaRouter == null) {
+            readReplicaRouter = replicaRouterSupplier.get();
+            replicaRouter = readReplicaRouter;
+        }
+        DataSource replica = readReplicaRouter == null ? null : readReplicaRouter.getCurrentReplica();
+        if (replica != null) {
+            return replica;
+        }
+        ContextShardRouter shardRouter = router;
+        if (shardRouter == null) {
+            shardRouter = routerSupplier.get();
+            router = shardRouter;
+        }
+        String shard = shardRouter.getCurrentShard();
+        return shard == null ? primary : shardRouter.getDataSource(shard);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> T unwrap(Class<T> iface) throws SQLException {
+        if (iface.isInstance(this)) {
+            return (T) this;
+        }
+        return primary.unwrap(iface);
+    }
+
+    @Override
+    public boolean isWrapperFor(Class<?> iface) throws SQLException {
+        return iface.isInstance(this) || primary.isWrapperFor(iface);
+    }
+}
@@ -0,0 +1,549 @@
+package mobileoda.notification.dao.impl;
+
+import mobileoda.notification.dao.shard.ContextShardRouter;
+import mobileoda.notification.dispatch.PushDispatcher;
+import mobileoda.notification.model.DeviceDetails;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Moves the pushnotificationdata and devicedetails rows of one context to another shard while the
+ * context keeps receiving notifications.
+ *
+ * <ol>
+ *     <li>Backfill: the rows of the context are copied from the source shard in chunks of
+ *     {@code notification.sharding.move.chunk-size}, while writes still go to the source. The devices copied
+ *     are kept on the target as the base of the device merge.</li>
+ *     <li>Cutover: the context is assigned to the target shard. Routing pauses only for the assignment
+ *     itself; nothing is copied inside the pause.</li>
+ *     <li>Catch-up: once every live instance has switched to the new assignment, see
+ *     {@link ContextShardRouter#awaitAcknowledged}, the rows written to the source since the backfill are
+ *     copied, and devices changed on the source since the backfill are upserted unless they changed on the
+ *     target as well.</li>
+ *     <li>Optionally the rows copied are deleted from the source, once the push dispatch of the source
+ *     has passed them.</li>
+ * </ol>
+ *
+ * Notification rows are tracked by source id in {@value #COPIED_TABLE} on the target, written in the same
+ * transaction as the copies, so a row that commits late with a lower id is still copied, a row is never
+ * copied twice, and only copied rows are ever deleted. The copies get new ids on the target, listed in
+ * {@link PushDispatcher#MOVED_ROWS_TABLE} in the same transaction, so only the source pushes them to devices. The move itself is recorded in {@value #MOVE_TABLE}
+ * on the primary until it completes: a move that failed, e.g. because an instance did not switch in time,
+ * is resumed by moving the context to the same shard again. Requires the devicedetails unique key on
+ * (uid, context).
+ */
+@Component
+public class ContextShardMover {
+    private Logger logger = LogManager.getLogger(ContextShardMover.class);
+
+    static final String MOVE_TABLE = "notification_context_move";
+    static final String COPIED_TABLE = "notification_context_move_copied";
+    static final String BASE_DEVICE_TABLE = "notification_context_move_device";
+    private static final String SELECT_NOTIFICATION_IDS = "SELECT id FROM pushnotificationdata WHERE context = ?";
+    private static final String SELECT_NOTIFICATIONS = "SELECT id, uid, context, message_count, message_type, created_ts_utc,"
+            + " practice_ip, host_name, tomcat_path FROM pushnotificationdata WHERE id IN ";
+
+    @Autowired
+    private ContextShardRouter contextShardRouter;
+
+    @Value("${notification.sharding.move.chunk-size:1000}")
+    private int chunkSize = 1000;
+
+    @Value("${notification.sharding.move.ack-timeout-ms:120000}")
+    private long ackTimeoutMs = 120000;
+
+    /**
+     * Move a context to a shard. When some live instance does not switch to the new assignment in time
+     * the move fails after the assignment, leaving every row on the source; moving the context to the same
+     * shard again resumes the catch-up and the delete.
+     *
+     * @param context      String value contains context-name
+     * @param targetShard  String value contains shard-name
+     * @param deleteSource boolean, delete the rows from the source shard once moved
+     * @return long value of the pushnotificationdata rows copied
+     * @throws IllegalStateException when an unfinished move of the context to another shard exists
+     */
+    public long move(String context, String targetShard, boolean deleteSource) {
+        createMoveTable();
+        String[] pendingMove = readMove(context);
+        String assignedShard = contextShardRouter.shardOf(context);
+        String sourceShard;
+        if (pendingMove != null) {
+            if (!pendingMove[1].equals(targetShard)) {
+                throw new IllegalStateException("Context " + context + " has an unfinished move from shard " + pendingMove[0]
+                        + " to shard " + pendingMove[1] + ", move it to " + pendingMove[1] + " first");
+            }
+            sourceShard = pendingMove[0];
+        } else if (assignedShard.equals(targetShard)) {
+            return 0;
+        } else {
+            sourceShard = assignedShard;
+            saveMove(context, sourceShard, targetShard);
+        }
+        DataSource source = contextShardRouter.getDataSource(sourceShard);
+        DataSource target = contextShardRouter.getDataSource(targetShard);
+        createTargetTables(target);
+        Set<Long> copiedIds = readCopiedIds(context, target);
+
+        long version;
+        if (assignedShard.equals(targetShard)) {
+            logger.info("Resuming the move of context {} from shard {} to shard {}, {} rows copied before", context,
+                    sourceShard, targetShard, copiedIds.size());
+            contextShardRouter.refreshAssignments();
+            version = contextShardRouter.getAppliedVersion();
+        } else {
+            logger.info("Moving context {} from shard {} to shard {}", context, sourceShard, targetShard);
+            copyNotifications(context, source, target, copiedIds);
+            copyDeviceDetails(context, source, target);
+            // A second pass shortens the catch-up; routing pauses only for the assignment itself
+            copyNotifications(context, source, target, copiedIds);
+            version = contextShardRouter.assign(context, targetShard, () -> {
+            });
+        }
+
+        // Instances still routing by older assignments write to the source until they switch
+        contextShardRouter.awaitAcknowledged(version, ackTimeoutMs);
+        copyNotifications(context, source, target, copiedIds);
+        Set<Integer> mergedUids = mergeDeviceDetails(context, source, target);
+
+        if (deleteSource) {
+            awaitDispatched(context, sourceShard, source, copiedIds);
+            deleteContext(context, source, copiedIds, mergedUids);
+        }
+        completeMove(context, target);
+        logger.info("Moved context {} to shard {}: {} notification rows", context, targetShard, copiedIds.size());
+        return copiedIds.size();
+    }
+
+    private void createMoveTable() {
+        try (Connection connection = contextShardRouter.getDataSource(ContextShardRouter.PRIMARY).getConnection();
+             Statement statement = connection.createStatement()) {
+            statement.execute("CREATE TABLE IF NOT EXISTS " + MOVE_TABLE
+                    + " (context VARCHAR(64) NOT NULL PRIMARY KEY, source_shard VARCHAR(64) NOT NULL, target_shard VARCHAR(64) NOT NULL)");
+        } catch (SQLException e) {
+            throw new IllegalStateException("Failed to create " + MOVE_TABLE, e);
+        }
+    }
+
+    private void createTargetTables(DataSource target) {
+        try (Connection connection = target.getConnection();
+             Statement statement = connection.createStatement()) {
+            PushDispatcher.createTables(connection);
+            statement.execute("CREATE TABLE IF NOT EXISTS " + COPIED_TABLE
+                    + " (context VARCHAR(64) NOT NULL, source_id BIGINT NOT NULL, PRIMARY KEY (context, source_id))");
+            statement.execute("CREATE TABLE IF NOT EXISTS " + BASE_DEVICE_TABLE + " (uid INT NOT NULL, context VARCHAR(64) NOT NULL,"
+                    + " device_platform VARCHAR(32), device_token VARCHAR(256), PRIMARY KEY (context, uid))");
+        } catch (SQLException e) {
+            throw new IllegalStateException("Failed to create the context move tables", e);
+        }
+    }
+
+    /**
+     * Unfinished move of a context.
+     *
+     * @return String array of source and target shard, null when the context has no unfinished move
+     */
+    private String[] readMove(String context) {
+        try (Connection connection = contextShardRouter.getDataSource(ContextShardRouter.PRIMARY).getConnection();
+             PreparedStatement select = connection.prepareStatement("SELECT source_shard, target_shard FROM " + MOVE_TABLE + " WHERE context = ?")) {
+            select.setString(1, context);
+            try (ResultSet resultSet = select.executeQuery()) {
+                return resultSet.next() ? new String[]{resultSet.getString(1), resultSet.getString(2)} : null;
+            }
+        } catch (SQLException e) {
+            throw new IllegalStateException("Failed to read " + MOVE_TABLE, e);
+        }
+    }
+
+    private void saveMove(String context, String sourceShard, String targetShard) {
+        try (Connection connection = contextShardRouter.getDataSource(ContextShardRouter.PRIMARY).getConnection();
+             PreparedStatement insert = connection.prepareStatement("INSERT INTO " + MOVE_TABLE + " (context, source_shard, target_shard) VALUES (?, ?, ?)")) {
+            insert.setString(1, context);
+            insert.setString(2, sourceShard);
+            insert.setString(3, targetShard);
+            insert.executeUpdate();
+        } catch (SQLException e) {
+            throw new IllegalStateException("Failed to record the move of context " + context, e);
+        }
+    }
+
+    /**
+     * Drop the bookkeeping of a finished move: the copied ids and base devices on the target, then the move.
+     */
+    private void completeMove(String context, DataSource target) {
+        try (Connection targetConnection = target.getConnection();
+             Connection primaryConnection = contextShardRouter.getDataSource(ContextShardRouter.PRIMARY).getConnection()) {
+            for (String table : new String[]{COPIED_TABLE, BASE_DEVICE_TABLE}) {
+                try (PreparedStatement delete = targetConnection.prepareStatement("DELETE FROM " + table + " WHERE context = ?")) {
+                    delete.setString(1, context);
+                    delete.executeUpdate();
+                }
+            }
+            try (PreparedStatement delete = primaryConnection.prepareStatement("DELETE FROM " + MOVE_TABLE + " WHERE context = ?")) {
+                delete.setString(1, context);
+                delete.executeUpdate();
+            }
+        } catch (SQLException e) {
+            throw new IllegalStateException("Failed to complete the move of context " + context, e);
+        }
+    }
+
+    private Set<Long> readCopiedIds(String context, DataSource target) {
+        Set<Long> copiedIds = new HashSet<>();
+        try (Connection connection = target.getConnection();
+             PreparedStatement select = connection.prepareStatement("SELECT source_id FROM " + COPIED_TABLE + " WHERE context = ?")) {
+            select.setString(1, context);
+            try (ResultSet resultSet = select.executeQuery()) {
+                while (resultSet.next()) {
+                    copiedIds.add(resultSet.getLong(1));
+                }
+            }
+        } catch (SQLException e) {
+            throw new IllegalStateException("Failed to read " + COPIED_TABLE, e);
+        }
+        return copiedIds;
+    }
+
+    /**
+     * Copy the notification rows of a context that are not copied yet. Each chunk, its source ids and the
+     * target ids to leave to the push dispatch of the source are committed together on the target.
+     *
+     * @param copiedIds Set of the source ids copied so far, extended by the rows copied now
+     */
+    private void copyNotifications(String context, DataSource source, DataSource target, Set<Long> copiedIds) {
+        try (Connection sourceConnection = source.getConnection();
+             Connection targetConnection = target.getConnection()) {
+            List<Long> missingIds = new ArrayList<>();
+            try (PreparedStatement select = sourceConnection.prepareStatement(SELECT_NOTIFICATION_IDS)) {
+                select.setString(1, context);
+                try (ResultSet resultSet = select.executeQuery()) {
+                    while (resultSet.next()) {
+                        if (!copiedIds.contains(resultSet.getLong(1))) {
+                            missingIds.add(resultSet.getLong(1));
+                        }
+                    }
+                }
+            }
+            for (int from = 0; from < missingIds.size(); from += chunkSize) {
+                List<Long> chunk = missingIds.subList(from, Math.min(from + chunkSize, missingIds.size()));
+                List<Object[]> rows = new ArrayList<>(chunk.size());
+                List<Long> rowIds = new ArrayList<>(chunk.size());
+                try (PreparedStatement select = sourceConnection.prepareStatement(SELECT_NOTIFICATIONS + placeholders(chunk.size()))) {
+                    for (int i = 0; i < chunk.size(); i++) {
+                        select.setLong(i + 1, chunk.get(i));
+                    }
+                    try (ResultSet resultSet = select.executeQuery()) {
+                        while (resultSet.next()) {
+                            rowIds.add(resultSet.getLong(1));
+                            Object[] row = new Object[8];
+                            for (int column = 0; column < row.length; column++) {
+                                row[column] = resultSet.getObject(column + 2);
+                            }
+                            rows.add(row);
+                        }
+                    }
+                }
+                if (!rows.isEmpty()) {
+                    inTransaction(targetConnection, () -> {
+                        insertMovedRows(targetConnection, insertNotifications(targetConnection, rows));
+                        insertCopiedIds(targetConnection, context, rowIds);
+                    });
+                    copiedIds.addAll(rowIds);
+                }
+            }
+        } catch (SQLException e) {
+            throw new IllegalStateException("Failed to copy pushnotificationdata of context " + context, e);
+        }
+    }
+
+    /**
+     * @return List of the ids the rows got on the target
+     */
+    private List<Long> insertNotifications(Connection connection, List<Object[]> rows) throws SQLException {
+        StringBuilder sql = new StringBuilder(JdbcNotificationDataDao.INSERT_PREFIX);
+        for (int row = 0; row < rows.size(); row++) {
+            sql.append(row == 0 ? "" : ",").append(JdbcNotificationDataDao.ROW_PLACEHOLDER);
+        }
+        try (PreparedStatement insert = connection.prepareStatement(sql.toString(), Statement.RETURN_GENERATED_KEYS)) {
+            int index = 1;
+            for (Object[] row : rows) {
+                for (Object value : row) {
+                    insert.setObject(index++, value);
+                }
+            }
+            insert.executeUpdate();
+            List<Long> ids = new ArrayList<>(rows.size());
+            try (ResultSet generatedKeys = insert.getGeneratedKeys()) {
+                while (generatedKeys.next()) {
+                    ids.add(generatedKeys.getLong(1));
+                }
+            }
+            if (ids.size() != rows.size()) {
+                throw new SQLException("Got " + ids.size() + " generated ids for " + rows.size() + " copied pushnotificationdata rows");
+            }
+            return ids;
+        }
+    }
+
+    private void insertMovedRows(Connection connection, List<Long> ids) throws SQLException {
+        StringBuilder sql = new StringBuilder("INSERT INTO " + PushDispatcher.MOVED_ROWS_TABLE + " (id) VALUES ");
+        for (int i = 0; i < ids.size(); i++) {
+            sql.append(i == 0 ? "(?)" : ", (?)");
+        }
+        try (PreparedStatement insert = connection.prepareStatement(sql.toString())) {
+            for (int i = 0; i < ids.size(); i++) {
+                insert.setLong(i + 1, ids.get(i));
+            }
+            insert.executeUpdate();
+        }
+    }
+
+    private void insertCopiedIds(Connection connection, String context, List<Long> ids) throws SQLException {
+        StringBuilder sql = new StringBuilder("INSERT INTO " + COPIED_TABLE + " (context, source_id) VALUES ");
+        for (int i = 0; i < ids.size(); i++) {
+            sql.append(i == 0 ? "(?, ?)" : ", (?, ?)");
+        }
+        try (PreparedStatement insert = connection.prepareStatement(sql.toString())) {
+            int index = 1;
+            for (Long id : ids) {
+                insert.setString(index++, context);
+                insert.setLong(index++, id);
+            }
+            insert.executeUpdate();
+        }
+    }
+
+    /**
+     * Upsert every device of a context from the source into the target, and keep the copies as the base
+     * of {@link #mergeDeviceDetails}.
+     */
+    private void copyDeviceDetails(String context, DataSource source, DataSource target) {
+        try (Connection sourceConnection = source.getConnection();
+             Connection targetConnection = target.getConnection()) {
+            List<DeviceDetails> devices = new ArrayList<>(readDevices(sourceConnection, "devicedetails", context).values());
+            try (PreparedStatement delete = targetConnection.prepareStatement("DELETE FROM " + BASE_DEVICE_TABLE + " WHERE context = ?")) {
+                delete.setString(1, context);
+                delete.executeUpdate();
+            }
+            for (int from = 0; from < devices.size(); from += chunkSize) {
+                List<DeviceDetails> chunk = devices.subList(from, Math.min(from + chunkSize, devices.size()));
+                inTransaction(targetConnection, () -> {
+                    upsertDevices(targetConnection, "devicedetails", chunk);
+                    upsertDevices(targetConnection, BASE_DEVICE_TABLE, chunk);
+                });
+            }
+        } catch (SQLException e) {
+            throw new IllegalStateException("Failed to copy devicedetails of context " + context, e);
+        }
+    }
+
+    /**
+     * Upsert the devices instances changed on the source since the backfill. A device changed on the
+     * target as well keeps its target row, written by an instance already routing to the target.
+     *
+     * @return Set of the uids of every device on the source
+     */
+    private Set<Integer> mergeDeviceDetails(String context, DataSource source, DataSource target) {
+        try (Connection sourceConnection = source.getConnection();
+             Connection targetConnection = target.getConnection()) {
+            Map<Integer, DeviceDetails> sourceDevices = readDevices(sourceConnection, "devicedetails", context);
+            Map<Integer, DeviceDetails> targetDevices = readDevices(targetConnection, "devicedetails", context);
+            Map<Integer, DeviceDetails> baseDevices = readDevices(targetConnection, BASE_DEVICE_TABLE, context);
+            List<DeviceDetails> changed = new ArrayList<>();
+            int conflicts = 0;
+            for (DeviceDetails sourceDevice : sourceDevices.values()) {
+                DeviceDetails baseDevice = baseDevices.get(sourceDevice.getUid());
+                if (baseDevice != null && sameDevice(sourceDevice, baseDevice)) {
+                    continue;
+                }
+                DeviceDetails targetDevice = targetDevices.get(sourceDevice.getUid());
+                boolean changedOnTarget = baseDevice == null
+                        ? targetDevice != null
+                        : targetDevice != null && !sameDevice(targetDevice, baseDevice);
+                if (changedOnTarget) {
+                    conflicts++;
+                } else {
+                    changed.add(sourceDevice);
+                }
+            }
+            upsertDevices(targetConnection, "devicedetails", changed);
+            logger.info("Context {}: {} devices changed on the source after the backfill, {} kept as changed on the target",
+                    context, changed.size() + conflicts, conflicts);
+            return sourceDevices.keySet();
+        } catch (SQLException e) {
+            throw new IllegalStateException("Failed to merge devicedetails of context " + context, e);
+        }
+    }
+
+    private static boolean sameDevice(DeviceDetails device, DeviceDetails other) {
+        return Objects.equals(device.getDevicePlatform(), other.getDevicePlatform())
+                && Objects.equals(device.getDeviceToken(), other.getDeviceToken());
+    }
+
+    private Map<Integer, DeviceDetails> readDevices(Connection connection, String table, String context) throws SQLException {
+        Map<Integer, DeviceDetails> devices = new LinkedHashMap<>();
+        try (PreparedStatement select = connection.prepareStatement("SELECT uid, context, device_platform, device_token FROM " + table
+                + " WHERE context = ? AND uid > ? ORDER BY uid")) {
+            select.setMaxRows(chunkSize);
+            int lastUid = Integer.MIN_VALUE;
+            while (true) {
+                select.setString(1, context);
+                select.setInt(2, lastUid);
+                boolean more = false;
+                try (ResultSet resultSet = select.executeQuery()) {
+                    while (resultSet.next()) {
+                        more = true;
+                        lastUid = resultSet.getInt(1);
+                        DeviceDetails deviceDetails = new DeviceDetails();
+                        deviceDetails.setUid(lastUid);
+                        deviceDetails.setContext(resultSet.getString(2));
+                        deviceDetails.setDevicePlatform(resultSet.getString(3));
+                        deviceDetails.setDeviceToken(resultSet.getString(4));
+                        devices.put(lastUid, deviceDetails);
+                    }
+                }
+                if (!more) {
+                    return devices;
+                }
+            }
+        }
+    }
+
+    private void upsertDevices(Connection connection, String table, List<DeviceDetails> devices) throws SQLException {
+        if (devices.isEmpty()) {
+            return;
+        }
+        JdbcDeviceDetailsDao.Dialect dialect = JdbcDeviceDetailsDao.Dialect.of(connection.getMetaData().getDatabaseProductName());
+        for (int from = 0; from < devices.size(); from += chunkSize) {
+            List<DeviceDetails> chunk = devices.subList(from, Math.min(from + chunkSize, devices.size()));
+            try (PreparedStatement upsert = connection.prepareStatement(dialect.upsertSql(table, chunk.size()))) {
+                int index = 1;
+                for (DeviceDetails deviceDetails : chunk) {
+                    upsert.setInt(index++, deviceDetails.getUid());
+                    upsert.setString(index++, deviceDetails.getContext());
+                    upsert.setString(index++, deviceDetails.getDevicePlatform());
+                    upsert.setString(index++, deviceDetails.getDeviceToken());
+                }
+                upsert.executeUpdate();
+            }
+        }
+    }
+
+    /**
+     * Wait until the push dispatch watermark of the source has passed the copied rows, which only the source
+     * dispatches. A source never dispatched has no watermark and nothing to wait for.
+     *
+     * @throws IllegalStateException when the watermark does not pass them within the ack timeout; moving
+     * the context to the same shard again resumes the delete
+     */
+    private void awaitDispatched(String context, String sourceShard, DataSource source, Set<Long> copiedIds) {
+        if (copiedIds.isEmpty()) {
+            return;
+        }
+        long lastCopiedId = Collections.max(copiedIds);
+        long deadline = System.currentTimeMillis() + ackTimeoutMs;
+        try (Connection connection = source.getConnection()) {
+            PushDispatcher.createTables(connection);
+            try (PreparedStatement select = connection.prepareStatement("SELECT dispatched_id FROM " + PushDispatcher.WATERMARK_TABLE + " WHERE shard = ?")) {
+                select.setString(1, sourceShard);
+                while (true) {
+                    try (ResultSet resultSet = select.executeQuery()) {
+                        if (!resultSet.next() || resultSet.getLong(1) >= lastCopiedId) {
+                            return;
+                        }
+                    }
+                    if (System.currentTimeMillis() >= deadline) {
+                        throw new IllegalStateException("Push dispatch of shard " + sourceShard + " has not passed the rows of context "
+                                + context + " within " + ackTimeoutMs + " ms, they are kept on the source");
+                    }
+                    Thread.sleep(100);
+                }
+            }
+        } catch (SQLException e) {
+            throw new IllegalStateException("Failed to read the push dispatch watermark of shard " + sourceShard, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted waiting for the push dispatch of shard " + sourceShard, e);
+        }
+    }
+
+    /**
+     * Delete the copied notification rows and the merged devices of a context from the source.
+     */
+    private void deleteContext(String context, DataSource source, Set<Long> copiedIds, Set<Integer> mergedUids) {
+        try (Connection connection = source.getConnection()) {
+            int notifications = deleteChunked(connection, "DELETE FROM pushnotificationdata WHERE context = ? AND id IN ", context, new ArrayList<>(copiedIds));
+            int devices = deleteChunked(connection, "DELETE FROM devicedetails WHERE context = ? AND uid IN ", context, new ArrayList<>(mergedUids));
+            logger.info("Deleted {} notification and {} device rows of context {} from the source shard", notifications, devices, context);
+        } catch (SQLException e) {
+            throw new IllegalStateException("Failed to delete the rows of context " + context + " from the source shard", e);
+        }
+    }
+
+    private int deleteChunked(Connection connection, String sqlPrefix, String context, List<? extends Number> keys) throws SQLException {
+        int deleted = 0;
+        for (int from = 0; from < keys.size(); from += chunkSize) {
+            List<? extends Number> chunk = keys.subList(from, Math.min(from + chunkSize, keys.size()));
+            try (PreparedStatement delete = connection.prepareStatement(sqlPrefix + placeholders(chunk.size()))) {
+                delete.setString(1, context);
+                for (int i = 0; i < chunk.size(); i++) {
+                    delete.setLong(i + 2, chunk.get(i).longValue());
+                }
+                deleted += delete.executeUpdate();
+            }
+        }
+        return deleted;
+    }
+
+    private interface SqlWork {
+        void run() throws SQLException;
+    }
+
+    private static void inTransaction(Connection connection, SqlWork work) throws SQLException {
+        boolean autoCommit = connection.getAutoCommit();
+        connection.setAutoCommit(false);
+        try {
+            work.run();
+            connection.commit();
+        } catch (SQLException | RuntimeException e) {
+            connection.rollback();
+            throw e;
+        } finally {
+            connection.setAutoCommit(autoCommit);
+        }
+    }
+
+    private static String placeholders(int count) {
+        StringBuilder sql = new StringBuilder(count * 2 + 2).append('(');
+        for (int i = 0; i < count; i++) {
+            sql.append(i == 0 ? "?" : ",?");
+        }
+        return sql.append(')').toString();
+    }
+
+    void setContextShardRouter(ContextShardRouter contextShardRouter) {
+        this.contextShardRouter = contextShardRouter;
+    }
+
+    void setAckTimeoutMs(long ackTimeoutMs) {
+        this.ackTimeoutMs = ackTimeoutMs;
+    }
+}
@@ -0,0 +1,344 @@
+package mobileoda.notification.dao.impl;
+
+import mobileoda.notification.dao.shard.ContextRoutingDataSource;
+import mobileoda.notification.dao.shard.ContextShardRouter;
+import mobileoda.notification.dispatch.PushDispatcher;
+import mobileoda.notification.model.DeviceDetails;
+import mobileoda.notification.model.PushNotificationData;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.core.env.MapPropertySource;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Moves contexts between shards on embedded H2 databases with ContextShardMover.
+ *
+ * <ul>
+ *     <li>Move under writes: one context moves while a writer keeps inserting its notifications through
+ *     the routing DataSource and a peer instance that refreshes its assignments slowly keeps writing
+ *     notifications and device tokens. The first move times out waiting for the peer and the rerun
+ *     resumes it; every row and the latest device tokens must end up on the target only.</li>
+ *     <li>No re-delivery: a stub PushDispatcher runs during a move, and every notification must be
+ *     delivered once, none again from its copy on the target.</li>
+ * </ul>
+ */
+public class ContextShardMoverHarness {
+
+    public static void main(String[] args) throws Exception {
+        boolean passed = moveUnderWritesCheck();
+        passed &= noRedeliveryCheck();
+        if (!passed) {
+            System.exit(1);
+        }
+    }
+
+    private static boolean moveUnderWritesCheck() throws Exception {
+        DataSource primary = h2("move_primary");
+        AnnotationConfigApplicationContext routerContext = start(shardingProperties("move", 200L), primary, ContextShardRouter.class);
+        ContextShardRouter router = routerContext.getBean(ContextShardRouter.class);
+        ContextRoutingDataSource routingDataSource = new ContextRoutingDataSource(primary, () -> router);
+        createShardTables(router);
+
+        JdbcNotificationDataDao notificationDataDao = new JdbcNotificationDataDao();
+        notificationDataDao.setDataSource(routingDataSource);
+        JdbcDeviceDetailsDao deviceDetailsDao = new JdbcDeviceDetailsDao();
+        deviceDetailsDao.setDataSource(routingDataSource);
+
+        AnnotationConfigApplicationContext peerContext = start(shardingProperties("move", 5000L), primary, ContextShardRouter.class);
+        ContextShardRouter peer = peerContext.getBean(ContextShardRouter.class);
+        ContextRoutingDataSource peerDataSource = new ContextRoutingDataSource(primary, () -> peer);
+        JdbcNotificationDataDao peerNotificationDataDao = new JdbcNotificationDataDao();
+        peerNotificationDataDao.setDataSource(peerDataSource);
+        JdbcDeviceDetailsDao peerDeviceDetailsDao = new JdbcDeviceDetailsDao();
+        peerDeviceDetailsDao.setDataSource(peerDataSource);
+
+        String[] contexts = {"CLINIC_A", "CLINIC_B", "CLINIC_C", "CLINIC_D", "CLINIC_E", "CLINIC_F"};
+        for (String context : contexts) {
+            System.out.printf("%s -> %s%n", context, router.shardOf(context));
+        }
+        String moving = contexts[0];
+        String from = router.shardOf(moving);
+        String to = ContextShardRouter.PRIMARY.equals(from) ? "shard1" : ContextShardRouter.PRIMARY;
+
+        AtomicBoolean writing = new AtomicBoolean(true);
+        AtomicInteger written = new AtomicInteger();
+        ExecutorService writer = Executors.newSingleThreadExecutor();
+        Future<?> writes = writer.submit(() -> {
+            int uid = 0;
+            while (writing.get() || uid < 20000) {
+                List<PushNotificationData> batch = new ArrayList<>();
+                List<DeviceDetails> devices = new ArrayList<>();
+                for (int row = 0; row < 50; row++, uid++) {
+                    PushNotificationData pushNotificationData = new PushNotificationData();
+                    pushNotificationData.setUid(uid);
+                    pushNotificationData.setContext(moving);
+                    pushNotificationData.setMessageCount(1);
+                    pushNotificationData.setMessageType("APPOINTMENT");
+                    batch.add(pushNotificationData);
+                    DeviceDetails deviceDetails = new DeviceDetails();
+                    deviceDetails.setUid(uid % 5000);
+                    deviceDetails.setContext(moving);
+                    deviceDetails.setDevicePlatform("Android");
+                    deviceDetails.setDeviceToken("token_" + uid);
+                    devices.add(deviceDetails);
+                }
+                router.callInContext(moving, () -> {
+                    written.addAndGet(notificationDataDao.savePushNotificationDataBatch(batch).size());
+                    return deviceDetailsDao.saveDeviceDetailsBatch(devices);
+                });
+            }
+        });
+
+        AtomicInteger peerWritten = new AtomicInteger();
+        AtomicInteger peerToken = new AtomicInteger();
+        ExecutorService peerWriter = Executors.newSingleThreadExecutor();
+        Future<?> peerWrites = peerWriter.submit(() -> {
+            int uid = 100000;
+            while (writing.get()) {
+                List<PushNotificationData> batch = new ArrayList<>();
+                for (int row = 0; row < 10; row++, uid++) {
+                    PushNotificationData pushNotificationData = new PushNotificationData();
+                    pushNotificationData.setUid(uid);
+                    pushNotificationData.setContext(moving);
+                    pushNotificationData.setMessageCount(1);
+                    pushNotificationData.setMessageType("REFILL");
+                    batch.add(pushNotificationData);
+                }
+                DeviceDetails deviceDetails = new DeviceDetails();
+                deviceDetails.setUid(9000);
+                deviceDetails.setContext(moving);
+                deviceDetails.setDevicePlatform("iOS");
+                deviceDetails.setDeviceToken("peer_token_" + peerToken.incrementAndGet());
+                peer.callInContext(moving, () -> {
+                    peerWritten.addAndGet(peerNotificationDataDao.savePushNotificationDataBatch(batch).size());
+                    return peerDeviceDetailsDao.saveDeviceDetails(deviceDetails);
+                });
+                Thread.sleep(5);
+            }
+            return null;
+        });
+
+        ContextShardMover mover = new ContextShardMover();
+        mover.setContextShardRouter(router);
+        Thread.sleep(200);
+        long startNanos = System.nanoTime();
+        // The peer refreshes every 5000 ms, so the first move fails after the cutover and the rerun resumes it
+        mover.setAckTimeoutMs(100L);
+        try {
+            mover.move(moving, to, true);
+            System.out.println("Context move check FAILED: the move did not time out");
+            return false;
+        } catch (IllegalStateException e) {
+            System.out.printf("First move of %s stopped after the cutover: %s%n", moving, e.getMessage());
+        }
+        Thread.sleep(300);
+        mover.setAckTimeoutMs(120000L);
+        long copied = mover.move(moving, to, true);
+        long moveMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+        writing.set(false);
+        writes.get();
+        peerWrites.get();
+        writer.shutdown();
+        peerWriter.shutdown();
+        peerContext.close();
+
+        int expectedRows = written.get() + peerWritten.get();
+        long sourceRows = count(router.getDataSource(from), "pushnotificationdata", moving);
+        long targetRows = count(router.getDataSource(to), "pushnotificationdata", moving);
+        String peerDeviceToken = router.callInContext(moving, () -> deviceDetailsDao.findByUidAndContext(9000, moving).getDeviceToken());
+        System.out.printf("Moved %s from %s to %s in %d ms, %d rows copied while %d rows were written, %d of them by the peer%n",
+                moving, from, to, moveMillis, copied, expectedRows, peerWritten.get());
+        System.out.printf("%s rows: %s %d, %s %d (expected %d on %s); devices on %s: %d, latest token of uid 0: %s, peer device: %s (expected peer_token_%d)%n",
+                moving, from, sourceRows, to, targetRows, expectedRows, to, to, count(router.getDataSource(to), "devicedetails", moving),
+                router.callInContext(moving, () -> deviceDetailsDao.findByUidAndContext(0, moving).getDeviceToken()),
+                peerDeviceToken, peerToken.get());
+        long bookkeepingRows = count(primary, ContextShardMover.MOVE_TABLE, moving) + count(router.getDataSource(to), ContextShardMover.COPIED_TABLE, moving)
+                + count(router.getDataSource(to), ContextShardMover.BASE_DEVICE_TABLE, moving);
+        boolean passed = sourceRows == 0 && targetRows == expectedRows && ("peer_token_" + peerToken.get()).equals(peerDeviceToken)
+                && bookkeepingRows == 0;
+        routerContext.close();
+        System.out.println(passed ? "Context move check passed" : "Context move check FAILED");
+        return passed;
+    }
+
+    private static boolean noRedeliveryCheck() throws Exception {
+        DataSource primary = h2("redelivery_primary");
+        Map<String, Object> properties = shardingProperties("redelivery", 200L);
+        AnnotationConfigApplicationContext routerContext = start(properties, primary, ContextShardRouter.class);
+        ContextShardRouter router = routerContext.getBean(ContextShardRouter.class);
+        createShardTables(router);
+
+        // Started once the tables exist; the stub senders deliver every message on the first attempt
+        properties.put("notification.dispatch.enabled", "true");
+        properties.put("notification.dispatch.sender", "stub");
+        properties.put("notification.dispatch.poll-interval-ms", "20");
+        properties.put("notification.dispatch.settle-ms", "100");
+        properties.put("notification.dispatch.stub.latency-ms", "1");
+        properties.put("notification.dispatch.stub.retry-rate", "0");
+        properties.put("notification.dispatch.stub.reject-rate", "0");
+        AnnotationConfigApplicationContext dispatcherContext = new AnnotationConfigApplicationContext();
+        dispatcherContext.setParent(routerContext);
+        dispatcherContext.getEnvironment().getPropertySources().addFirst(new MapPropertySource("harness", properties));
+        dispatcherContext.register(PushDispatcher.class);
+        dispatcherContext.refresh();
+        PushDispatcher dispatcher = dispatcherContext.getBean(PushDispatcher.class);
+        // Rows written before the dispatcher first polls a shard are never dispatched
+        long deadline = System.currentTimeMillis() + 10000;
+        for (String shard : router.getShardNames()) {
+            while (countAll(router.getDataSource(shard), PushDispatcher.WATERMARK_TABLE) == 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+        }
+
+        ContextRoutingDataSource routingDataSource = new ContextRoutingDataSource(primary, () -> router);
+        JdbcNotificationDataDao notificationDataDao = new JdbcNotificationDataDao();
+        notificationDataDao.setDataSource(routingDataSource);
+        JdbcDeviceDetailsDao deviceDetailsDao = new JdbcDeviceDetailsDao();
+        deviceDetailsDao.setDataSource(routingDataSource);
+        String moving = "CLINIC_A";
+        String from = router.shardOf(moving);
+        String to = ContextShardRouter.PRIMARY.equals(from) ? "shard1" : ContextShardRouter.PRIMARY;
+        List<DeviceDetails> devices = new ArrayList<>();
+        for (int uid = 0; uid < 1000; uid++) {
+            DeviceDetails deviceDetails = new DeviceDetails();
+            deviceDetails.setUid(uid);
+            deviceDetails.setContext(moving);
+            deviceDetails.setDevicePlatform(uid % 2 == 0 ? "Android" : "iOS");
+            deviceDetails.setDeviceToken("token_" + uid);
+            devices.add(deviceDetails);
+        }
+        router.callInContext(moving, () -> deviceDetailsDao.saveDeviceDetailsBatch(devices));
+
+        AtomicBoolean writing = new AtomicBoolean(true);
+        AtomicInteger written = new AtomicInteger();
+        ExecutorService writer = Executors.newSingleThreadExecutor();
+        Future<?> writes = writer.submit(() -> {
+            int uid = 0;
+            while (writing.get() || uid < 5000) {
+                List<PushNotificationData> batch = new ArrayList<>();
+                for (int row = 0; row < 50; row++, uid++) {
+                    PushNotificationData pushNotificationData = new PushNotificationData();
+                    pushNotificationData.setUid(uid % 1000);
+                    pushNotificationData.setContext(moving);
+                    pushNotificationData.setMessageCount(1);
+                    pushNotificationData.setMessageType("APPOINTMENT");
+                    batch.add(pushNotificationData);
+                }
+                written.addAndGet(router.callInContext(moving, () -> notificationDataDao.savePushNotificationDataBatch(batch).size()));
+                Thread.sleep(2);
+            }
+            return null;
+        });
+
+        ContextShardMover mover = new ContextShardMover();
+        mover.setContextShardRouter(router);
+        Thread.sleep(200);
+        long copied = mover.move(moving, to, true);
+        writing.set(false);
+        writes.get();
+        writer.shutdown();
+
+        deadline = System.currentTimeMillis() + 60000;
+        while (dispatcher.getDelivered() < written.get() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        // Time for any copy on the target to be dispatched again
+        Thread.sleep(1000);
+        long delivered = dispatcher.getDelivered();
+        long failed = dispatcher.getRejected() + dispatcher.getExhausted() + dispatcher.getDropped() + dispatcher.getUnroutable();
+        dispatcherContext.close();
+        routerContext.close();
+
+        System.out.printf("Moved %s from %s to %s with dispatch running: %d rows copied, %d written, %d delivered, %d failed%n",
+                moving, from, to, copied, written.get(), delivered, failed);
+        boolean passed = copied > 0 && delivered == written.get() && failed == 0;
+        System.out.println(passed
+                ? "No re-delivery check passed: every notification was pushed once across the move"
+                : "No re-delivery check FAILED");
+        return passed;
+    }
+
+    /**
+     * Spring context with the primary DataSource and the given components, configured from the properties.
+     */
+    private static AnnotationConfigApplicationContext start(Map<String, Object> properties, DataSource primary, Class<?>... components) {
+        AnnotationConfigApplicationContext context = new AnnotationConfigApplicationContext();
+        context.getEnvironment().getPropertySources().addFirst(new MapPropertySource("harness", properties));
+        context.registerBean(DataSource.class, () -> primary);
+        context.register(components);
+        context.refresh();
+        return context;
+    }
+
+    /**
+     * Sharding over the primary and two shards on H2 databases named after the check.
+     */
+    private static Map<String, Object> shardingProperties(String database, long refreshMs) {
+        Map<String, Object> properties = new HashMap<>();
+        properties.put("notification.sharding.enabled", "true");
+        properties.put("notification.sharding.shards", "primary,shard1,shard2");
+        properties.put("notification.sharding.refresh-ms", String.valueOf(refreshMs));
+        properties.put("notification.sharding.shard1.url", url(database + "_shard1"));
+        properties.put("notification.sharding.shard2.url", url(database + "_shard2"));
+        return properties;
+    }
+
+    private static void createShardTables(ContextShardRouter router) throws SQLException {
+        for (String shard : router.getShardNames()) {
+            try (Connection connection = router.getDataSource(shard).getConnection(); Statement statement = connection.createStatement()) {
+                statement.execute("CREATE TABLE pushnotificationdata (id BIGINT AUTO_INCREMENT PRIMARY KEY, uid INT, context VARCHAR(64),"
+                        + " message_count INT, message_type VARCHAR(64), created_ts_utc VARCHAR(32), practice_ip VARCHAR(64),"
+                        + " host_name VARCHAR(128), tomcat_path VARCHAR(256))");
+                statement.execute("CREATE TABLE devicedetails (uid INT, context VARCHAR(64), device_platform VARCHAR(32),"
+                        + " device_token VARCHAR(256), PRIMARY KEY (uid, context))");
+            }
+        }
+    }
+
+    private static DataSource h2(String name) {
+        org.h2.jdbcx.JdbcDataSource dataSource = new org.h2.jdbcx.JdbcDataSource();
+        dataSource.setURL(url(name));
+        return dataSource;
+    }
+
+    private static String url(String name) {
+        return "jdbc:h2:mem:" + name + ";DB_CLOSE_DELAY=-1";
+    }
+
+    private static long countAll(DataSource dataSource, String table) throws SQLException {
+        try (Connection connection = dataSource.getConnection(); Statement statement = connection.createStatement();
+             ResultSet resultSet = statement.executeQuery("SELECT COUNT(*) FROM " + table)) {
+            resultSet.next();
+            return resultSet.getLong(1);
+        } catch (SQLException e) {
+            // Not created until the dispatcher first polls the shard
+            return 0;
+        }
+    }
+
+    private static long count(DataSource dataSource, String table, String context) throws SQLException {
+        try (Connection connection = dataSource.getConnection();
+             PreparedStatement statement = connection.prepareStatement("SELECT COUNT(*) FROM " + table + " WHERE context = ?")) {
+            statement.setString(1, context);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                resultSet.next();
+                return resultSet.getLong(1);
+            }
+        }
+    }
+}
@@ -0,0 +1,538 @@
+package mobileoda.notification.dao.shard;
+
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.sql.DataSource;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
+
+/**
+ * Maps every mobileContext to the shard holding its pushnotificationdata and devicedetails rows.
+ *
+ * <p>Shards are listed in {@code notification.sharding.shards}; {@value #PRIMARY} is the application's
+ * DataSource, every other shard gets its own connection pool from {@code notification.sharding.<shard>.url},
+ * {@code .username}, {@code .password} and {@code .maximum-pool-size}. A context is placed on the shard
+ * assigned to it in the notification_context_shard table on the primary, or else on its position on a
+ * consistent-hash ring of the shards, so adding a shard only moves the contexts the new shard takes over.
+ *
+ * <p>Work done inside {@link #callInContext} runs against the context's shard through
+ * ContextRoutingDataSource, which applies to the JDBC DAOs and the JPA repositories alike. Assignments are
+ * re-read every {@code notification.sharding.refresh-ms}, so a move made on one instance reaches the others.
+ * Every assignment bumps a version; each instance records the version it routes by in
+ * notification_context_shard_instance, so a move can wait until every live instance has switched, see
+ * {@link #awaitAcknowledged}. An instance that has not refreshed within {@code notification.sharding.lease-ms}
+ * refuses to route rather than write with assignments that may be stale.
+ * Enabled with {@code notification.sharding.enabled=true}.
+ */
+@Component
+public class ContextShardRouter {
+    private Logger logger = LogManager.getLogger(ContextShardRouter.class);
+
+    public static final String PRIMARY = "primary";
+
+    private static final String MAPPING_TABLE = "notification_context_shard";
+    private static final String VERSION_TABLE = "notification_context_shard_version";
+    private static final String INSTANCE_TABLE = "notification_context_shard_instance";
+
+    @Value("${notification.sharding.enabled:false}")
+    private boolean enabled;
+
+    @Value("${notification.sharding.shards:primary}")
+    private String configuredShards = PRIMARY;
+
+    @Value("${notification.sharding.virtual-nodes:128}")
+    private int virtualNodes = 128;
+
+    @Value("${notification.sharding.refresh-ms:10000}")
+    private long refreshMs = 10000;
+
+    @Value("${notification.sharding.lease-ms:30000}")
+    private long leaseMs = 30000;
+
+    @Autowired
+    @Lazy
+    private DataSource dataSource;
+
+    @Autowired(required = false)
+    private Environment environment;
+
+    private final Map<String, DataSource> shards = new LinkedHashMap<>();
+    private final TreeMap<Long, String> ring = new TreeMap<>();
+    private final Map<String, String> assignments = new ConcurrentHashMap<>();
+    private final Map<String, String> placements = new ConcurrentHashMap<>();
+
+    /** Batches route under the read lock; a move flips a context under the write lock. */
+    private final ReentrantReadWriteLock routingFence = new ReentrantReadWriteLock();
+    private final ThreadLocal<String> currentShard = new ThreadLocal<>();
+    private final String instanceId = UUID.randomUUID().toString();
+    private volatile long appliedVersion;
+    private volatile long lastRefreshMs;
+    private ScheduledExecutorService refresher;
+
+    @PostConstruct
+    public void start() {
+        if (!enabled) {
+            return;
+        }
+        if (shards.isEmpty()) {
+            for (String shard : StringUtils.split(configuredShards, ',')) {
+                shard = shard.trim();
+                addShard(shard, PRIMARY.equals(shard) ? null : createPool(shard));
+            }
+        }
+        createTables();
+        refreshAssignments();
+        refresher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "context-shard-refresh");
+            thread.setDaemon(true);
+            return thread;
+        });
+        refresher.scheduleWithFixedDelay(this::refreshQuietly, refreshMs, refreshMs, TimeUnit.MILLISECONDS);
+        logger.info("Routing notification writes over shards {}", shards.keySet());
+    }
+
+    private DataSource createPool(String shard) {
+        String prefix = "notification.sharding." + shard + ".";
+        HikariConfig config = new HikariConfig();
+        config.setPoolName("notification-" + shard);
+        config.setJdbcUrl(environment.getRequiredProperty(prefix + "url"));
+        config.setUsername(environment.getProperty(prefix + "username"));
+        config.setPassword(environment.getProperty(prefix + "password"));
+        config.setMaximumPoolSize(environment.getProperty(prefix + "maximum-pool-size", Integer.class, 10));
+        return new HikariDataSource(config);
+    }
+
+    /**
+     * Add a shard to the ring; shards added before {@link #start} replace the configured ones.
+     *
+     * @param shard      String value contains shard-name
+     * @param dataSource Instance of DataSource of the shard, null for {@value #PRIMARY}
+     */
+    public void addShard(String shard, DataSource dataSource) {
+        shards.put(shard, dataSource);
+        for (int node = 0; node < virtualNodes; node++) {
+            ring.put(hash(shard + '#' + node), shard);
+        }
+        placements.clear();
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public List<String> getShardNames() {
+        return enabled ? new ArrayList<>(shards.keySet()) : Collections.singletonList(PRIMARY);
+    }
+
+    /**
+     * Shard of a context: its assignment, or else its place on the hash ring.
+     *
+     * @param context String value contains context-name
+     * @return String value contains shard-name
+     */
+    public String shardOf(String context) {
+        if (!enabled) {
+            return PRIMARY;
+        }
+        String shard = assignments.get(context);
+        if (shard != null) {
+            return shard;
+        }
+        return placements.computeIfAbsent(context, key -> {
+            Map.Entry<Long, String> node = ring.ceilingEntry(hash(key));
+            return node != null ? node.getValue() : ring.firstEntry().getValue();
+        });
+    }
+
+    /**
+     * DataSource of a shard, bypassing the routing.
+     *
+     * @param shard String value contains shard-name
+     * @return Instance of DataSource
+     */
+    public DataSource getDataSource(String shard) {
+        if (PRIMARY.equals(shard)) {
+            try {
+                return dataSource.isWrapperFor(ContextRoutingDataSource.class)
+                        ? dataSource.unwrap(ContextRoutingDataSource.class).getPrimary()
+                        : dataSource;
+            } catch (SQLException e) {
+                throw new IllegalStateException("Failed to unwrap the primary DataSource", e);
+            }
+        }
+        DataSource shardDataSource = shards.get(shard);
+        if (shardDataSource == null) {
+            throw new IllegalArgumentException("Unknown shard " + shard);
+        }
+        return shardDataSource;
+    }
+
+    /**
+     * Shard the current thread routes to, null for {@value #PRIMARY}.
+     *
+     * @return String value contains shard-name
+     */
+    String getCurrentShard() {
+        return currentShard.get();
+    }
+
+    /**
+     * Run work against the shard of a context. The context cannot move while the work runs.
+     *
+     * @param context String value contains context-name
+     * @param work    Supplier doing the database work
+     * @param <T>     Type of the result
+     * @return result of the work
+     */
+    public <T> T callInContext(String context, Supplier<T> work) {
+        if (!enabled) {
+            return work.get();
+        }
+        return callFenced(() -> callOnShard(shardOf(context), work));
+    }
+
+    /**
+     * Run work that routes several contexts, e.g. a group commit; no context moves while the work runs.
+     *
+     * @param work Supplier doing the routing and the database work
+     * @param <T>  Type of the result
+     * @return result of the work
+     */
+    public <T> T callFenced(Supplier<T> work) {
+        if (!enabled) {
+            return work.get();
+        }
+        checkLease();
+        routingFence.readLock().lock();
+        try {
+            return work.get();
+        } finally {
+            routingFence.readLock().unlock();
+        }
+    }
+
+    /**
+     * Refuse to route with assignments older than the lease: a move may have completed without this
+     * instance, and its writes would land on the old shard after the move deleted it.
+     */
+    private void checkLease() {
+        if (System.currentTimeMillis() - lastRefreshMs <= leaseMs) {
+            return;
+        }
+        try {
+            refreshAssignments();
+        } catch (RuntimeException e) {
+            throw new IllegalStateException("Context shard assignments are older than " + leaseMs + " ms, refusing to route", e);
+        }
+    }
+
+    /**
+     * Run work against a shard.
+     *
+     * @param shard String value contains shard-name
+     * @param work  Supplier doing the database work
+     * @param <T>   Type of the result
+     * @return result of the work
+     */
+    public <T> T callOnShard(String shard, Supplier<T> work) {
+        String previous = currentShard.get();
+        currentShard.set(PRIMARY.equals(shard) ? null : shard);
+        try {
+            return work.get();
+        } finally {
+            if (previous == null) {
+                currentShard.remove();
+            } else {
+                currentShard.set(previous);
+            }
+        }
+    }
+
+    /**
+     * Assign a context to a shard. Runs while no batch is routing; the cutover work, e.g. copying the
+     * rows written since a backfill, runs inside the same pause.
+     *
+     * @param context String value contains context-name
+     * @param shard   String value contains shard-name
+     * @param cutover Runnable run before the assignment takes effect
+     * @return long value of the assignment version, see {@link #awaitAcknowledged}
+     */
+    public long assign(String context, String shard, Runnable cutover) {
+        if (!shards.containsKey(shard)) {
+            throw new IllegalArgumentException("Unknown shard " + shard);
+        }
+        long version;
+        routingFence.writeLock().lock();
+        try {
+            cutover.run();
+            version = saveAssignment(context, shard);
+            assignments.put(context, shard);
+            appliedVersion = Math.max(appliedVersion, version);
+            logger.info("Context {} assigned to shard {}, assignment version {}", context, shard, version);
+        } finally {
+            routingFence.writeLock().unlock();
+        }
+        acknowledge();
+        return version;
+    }
+
+    /**
+     * Wait until every live instance routes by an assignment version, i.e. none writes to the shard a
+     * context was moved away from any more. Instances that have not refreshed within two leases do not
+     * count: they refuse to route once their lease ends, and a batch they started before is given one more
+     * lease to finish. Assumes the instances' clocks agree to well within a lease.
+     *
+     * @param version   long value of the assignment version
+     * @param timeoutMs long value of the longest wait in milliseconds
+     * @throws IllegalStateException when some live instance has not switched within the timeout
+     */
+    public void awaitAcknowledged(long version, long timeoutMs) {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (true) {
+            List<String> behind = instancesBehind(version);
+            if (behind.isEmpty()) {
+                return;
+            }
+            if (System.currentTimeMillis() > deadline) {
+                throw new IllegalStateException("Instances " + behind + " did not switch to assignment version " + version);
+            }
+            try {
+                Thread.sleep(Math.min(refreshMs, 200));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted waiting for assignment version " + version, e);
+            }
+        }
+    }
+
+    private List<String> instancesBehind(long version) {
+        List<String> behind = new ArrayList<>();
+        try (Connection connection = getDataSource(PRIMARY).getConnection();
+             PreparedStatement select = connection.prepareStatement(
+                     "SELECT instance_id FROM " + INSTANCE_TABLE + " WHERE version < ? AND seen_ms > ?")) {
+            select.setLong(1, version);
+            select.setLong(2, System.currentTimeMillis() - 2 * leaseMs);
+            try (ResultSet resultSet = select.executeQuery()) {
+                while (resultSet.next()) {
+                    behind.add(resultSet.getString(1));
+                }
+            }
+        } catch (SQLException e) {
+            throw new IllegalStateException("Failed to read " + INSTANCE_TABLE, e);
+        }
+        return behind;
+    }
+
+    /**
+     * Assignment version this instance routes by.
+     *
+     * @return long value of the assignment version
+     */
+    public long getAppliedVersion() {
+        return appliedVersion;
+    }
+
+    public long getRefreshMs() {
+        return refreshMs;
+    }
+
+    public long getLeaseMs() {
+        return leaseMs;
+    }
+
+    void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    void setDataSource(DataSource dataSource) {
+        this.dataSource = dataSource;
+    }
+
+    private void createTables() {
+        try (Connection connection = getDataSource(PRIMARY).getConnection();
+             Statement statement = connection.createStatement()) {
+            statement.execute("CREATE TABLE IF NOT EXISTS " + MAPPING_TABLE
+                    + " (context VARCHAR(64) NOT NULL PRIMARY KEY, shard VARCHAR(64) NOT NULL)");
+            statement.execute("CREATE TABLE IF NOT EXISTS " + VERSION_TABLE + " (id INT NOT NULL PRIMARY KEY, version BIGINT NOT NULL)");
+            statement.execute("CREATE TABLE IF NOT EXISTS " + INSTANCE_TABLE
+                    + " (instance_id VARCHAR(64) NOT NULL PRIMARY KEY, version BIGINT NOT NULL, seen_ms BIGINT NOT NULL)");
+            try (ResultSet resultSet = statement.executeQuery("SELECT COUNT(*) FROM " + VERSION_TABLE)) {
+                resultSet.next();
+                if (resultSet.getInt(1) == 0) {
+                    statement.executeUpdate("INSERT INTO " + VERSION_TABLE + " (id, version) VALUES (1, 0)");
+                }
+            }
+        } catch (SQLException e) {
+            // Another instance may have created the version row first
+            logger.warn("Preparing the context shard tables failed", e);
+        }
+    }
+
+    private long saveAssignment(String context, String shard) {
+        try (Connection connection = getDataSource(PRIMARY).getConnection()) {
+            boolean autoCommit = connection.getAutoCommit();
+            connection.setAutoCommit(false);
+            try (PreparedStatement delete = connection.prepareStatement("DELETE FROM " + MAPPING_TABLE + " WHERE context = ?");
+                 PreparedStatement insert = connection.prepareStatement("INSERT INTO " + MAPPING_TABLE + " (context, shard) VALUES (?, ?)");
+                 Statement version = connection.createStatement()) {
+                delete.setString(1, context);
+                delete.executeUpdate();
+                insert.setString(1, context);
+                insert.setString(2, shard);
+                insert.executeUpdate();
+                version.executeUpdate("UPDATE " + VERSION_TABLE + " SET version = version + 1 WHERE id = 1");
+                long assignmentVersion;
+                try (ResultSet resultSet = version.executeQuery("SELECT version FROM " + VERSION_TABLE + " WHERE id = 1")) {
+                    resultSet.next();
+                    assignmentVersion = resultSet.getLong(1);
+                }
+                connection.commit();
+                return assignmentVersion;
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(autoCommit);
+            }
+        } catch (SQLException e) {
+            throw new IllegalStateException("Failed to assign context " + context + " to shard " + shard, e);
+        }
+    }
+
+    /**
+     * Re-read the assignments, picking up moves made by other instances.
+     */
+    public void refreshAssignments() {
+        long refreshStartMs = System.currentTimeMillis();
+        Map<String, String> loaded = new LinkedHashMap<>();
+        long version;
+        try (Connection connection = getDataSource(PRIMARY).getConnection();
+             Statement statement = connection.createStatement()) {
+            // The version is read first, so the assignments read next are at least that recent
+            try (ResultSet resultSet = statement.executeQuery("SELECT version FROM " + VERSION_TABLE + " WHERE id = 1")) {
+                version = resultSet.next() ? resultSet.getLong(1) : 0;
+            }
+            try (ResultSet resultSet = statement.executeQuery("SELECT context, shard FROM " + MAPPING_TABLE)) {
+                while (resultSet.next()) {
+                    loaded.put(resultSet.getString(1), resultSet.getString(2));
+                }
+            }
+        } catch (SQLException e) {
+            throw new IllegalStateException("Failed to load " + MAPPING_TABLE, e);
+        }
+        if (!loaded.equals(assignments)) {
+            // The write lock waits for batches routed by the old assignments to finish
+            routingFence.writeLock().lock();
+            try {
+                assignments.keySet().retainAll(loaded.keySet());
+                assignments.putAll(loaded);
+            } finally {
+                routingFence.writeLock().unlock();
+            }
+        }
+        appliedVersion = Math.max(appliedVersion, version);
+        lastRefreshMs = refreshStartMs;
+        acknowledge();
+    }
+
+    /**
+     * Record the assignment version this instance routes by.
+     */
+    private void acknowledge() {
+        long now = System.currentTimeMillis();
+        try (Connection connection = getDataSource(PRIMARY).getConnection();
+             PreparedStatement update = connection.prepareStatement(
+                     "UPDATE " + INSTANCE_TABLE + " SET version = ?, seen_ms = ? WHERE instance_id = ?")) {
+            update.setLong(1, appliedVersion);
+            update.setLong(2, now);
+            update.setString(3, instanceId);
+            if (update.executeUpdate() == 0) {
+                try (PreparedStatement insert = connection.prepareStatement(
+                        "INSERT INTO " + INSTANCE_TABLE + " (instance_id, version, seen_ms) VALUES (?, ?, ?)")) {
+                    insert.setString(1, instanceId);
+                    insert.setLong(2, appliedVersion);
+                    insert.setLong(3, now);
+                    insert.executeUpdate();
+                }
+            }
+            try (PreparedStatement delete = connection.prepareStatement("DELETE FROM " + INSTANCE_TABLE + " WHERE seen_ms < ?")) {
+                // Instances gone for long are forgotten
+                delete.setLong(1, now - 10 * leaseMs);
+                delete.executeUpdate();
+            }
+        } catch (SQLException e) {
+            throw new IllegalStateException("Failed to record the assignment version of this instance", e);
+        }
+    }
+
+    private void refreshQuietly() {
+        try {
+            refreshAssignments();
+        } catch (RuntimeException e) {
+            logger.error("Refreshing context shard assignments failed", e);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (refresher != null) {
+            refresher.shutdownNow();
+            // A stopped instance writes no more, moves need not wait for it
+            try (Connection connection = getDataSource(PRIMARY).getConnection();
+                 PreparedStatement delete = connection.prepareStatement("DELETE FROM " + INSTANCE_TABLE + " WHERE instance_id = ?")) {
+                delete.setString(1, instanceId);
+                delete.executeUpdate();
+            } catch (SQLException | RuntimeException e) {
+                logger.warn("Failed to remove this instance from {}", INSTANCE_TABLE, e);
+            }
+        }
+        for (DataSource shardDataSource : shards.values()) {
+            if (shardDataSource instanceof HikariDataSource) {
+                ((HikariDataSource) shardDataSource).close();
+            }
+        }
+    }
+
+    private static long hash(String value) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(value.getBytes(StandardCharsets.UTF_8));
+            long hash = 0;
+            for (int i = 0; i < 8; i++) {
+                hash = hash << 8 | (digest[i] & 0xff);
+            }
+            return hash;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,478 @@
+package mobileoda.notification.service.mobileoda.impl;
+
+import mobileoda.notification.dao.DeviceDetailsDao;
+import mobileoda.notification.dao.shard.ContextShardRouter;
+import mobileoda.notification.model.DeviceDetails;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.dao.TransientDataAccessException;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.sql.SQLNonTransientConnectionException;
+import java.sql.SQLRecoverableException;
+import java.sql.SQLTransientException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded write-behind registry of device details keyed by (context, uid).
+ *
+ * <p>A registration that repeats a pending change, or the platform and token written within the last
+ * cache-ttl-ms, is skipped; after that it is written again, so a change made by another instance is
+ * not masked for long. Changes are coalesced, so repeated registrations of a uid within a flush
+ * interval collapse to the last value, and are written to DeviceDetailsDao in batches by a background
+ * flusher. A failed batch is recovered by bisection; rows the database rejects are dropped and counted,
+ * while a batch that fails because the database is unavailable stays pending. Least recently used
+ * entries are evicted; an evicted entry with an unwritten change is still flushed. At most
+ * max-evicted-dirty such entries are held; beyond that a registration of a new device is refused, never
+ * waited for, and the caller writes it directly. Enabled with {@code notification.device-registry.enabled=true}.
+ */
+@Component
+public class DeviceDetailsRegistry {
+    private Logger logger = LogManager.getLogger(DeviceDetailsRegistry.class);
+
+    @Autowired
+    private DeviceDetailsDao deviceDetailsDao;
+
+    @Autowired
+    private ContextShardRouter contextShardRouter;
+
+    @Autowired
+    private BisectingBatchRecovery batchRecovery;
+
+    @Value("${notification.device-registry.enabled:false}")
+    private boolean enabled;
+
+    @Value("${notification.device-registry.max-entries:200000}")
+    private int maxEntries = 200000;
+
+    @Value("${notification.device-registry.flush-interval-ms:500}")
+    private long flushIntervalMs = 500;
+
+    @Value("${notification.device-registry.flush-batch-size:500}")
+    private int flushBatchSize = 500;
+
+    @Value("${notification.device-registry.cache-ttl-ms:300000}")
+    private long cacheTtlMs = 300000;
+
+    @Value("${notification.device-registry.max-evicted-dirty:20000}")
+    private int maxEvictedDirty = 20000;
+
+    @Value("${notification.dao.device-write-mode:merge}")
+    private String deviceWriteMode = "merge";
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Map<DeviceKey, DeviceEntry> entries = new LinkedHashMap<DeviceKey, DeviceEntry>(1024, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<DeviceKey, DeviceEntry> eldest) {
+            if (size() <= maxEntries) {
+                return false;
+            }
+            if (eldest.getValue().dirty) {
+                evictedDirty.put(eldest.getKey(), eldest.getValue());
+            }
+            return true;
+        }
+    };
+    private final Map<DeviceKey, DeviceEntry> evictedDirty = new LinkedHashMap<>();
+    private int dirtyCount;
+
+    private final AtomicLong registrations = new AtomicLong();
+    private final AtomicLong skippedWrites = new AtomicLong();
+    private final AtomicLong writtenDevices = new AtomicLong();
+    private final AtomicLong droppedDevices = new AtomicLong();
+    private final AtomicLong refusedDevices = new AtomicLong();
+
+    private ScheduledExecutorService flusher;
+
+    @PostConstruct
+    public void start() {
+        if (!enabled) {
+            return;
+        }
+        flusher = Executors.newSingleThreadScheduledExecutor(runnable -> new Thread(runnable, "device-registry-flusher"));
+        flusher.scheduleWithFixedDelay(this::flushQuietly, flushIntervalMs, flushIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Register the platform and token of a device. Nothing is written when they are unchanged. Never
+     * blocks: when too many evicted changes are unwritten a new device is refused, and has no pending
+     * change the caller's own write could overtake.
+     *
+     * @param context        String value contains context-name
+     * @param uid            int value of the uid
+     * @param devicePlatform String value contains device-platform
+     * @param deviceToken    String value contains device-token
+     * @return true when registered, false when refused and the caller has to write the device itself
+     */
+    public boolean register(String context, int uid, String devicePlatform, String deviceToken) {
+        registrations.incrementAndGet();
+        boolean flushNow;
+        boolean refused;
+        lock.lock();
+        try {
+            DeviceKey key = new DeviceKey(context, uid);
+            DeviceEntry entry = entries.get(key);
+            if (entry == null) {
+                entry = evictedDirty.remove(key);
+                if (entry != null) {
+                    // Taking an evicted entry back evicts at most one, the evicted changes do not grow
+                    entries.put(key, entry);
+                }
+            }
+            if (entry == null && evictedDirty.size() >= maxEvictedDirty) {
+                refusedDevices.incrementAndGet();
+                flushNow = true;
+            } else {
+                if (entry == null) {
+                    entry = new DeviceEntry();
+                    entries.put(key, entry);
+                } else if (Objects.equals(entry.devicePlatform, devicePlatform) && Objects.equals(entry.deviceToken, deviceToken)
+                        && (entry.dirty || System.currentTimeMillis() - entry.writtenMs < cacheTtlMs)) {
+                    skippedWrites.incrementAndGet();
+                    return true;
+                }
+                entry.devicePlatform = devicePlatform;
+                entry.deviceToken = deviceToken;
+                entry.version++;
+                if (!entry.dirty) {
+                    entry.dirty = true;
+                    dirtyCount++;
+                }
+                flushNow = dirtyCount >= flushBatchSize;
+            }
+            refused = entry == null;
+        } finally {
+            lock.unlock();
+        }
+        if (flushNow && flusher != null) {
+            flusher.execute(this::flushQuietly);
+        }
+        return !refused;
+    }
+
+    /**
+     * Write every pending change to DeviceDetailsDao on the shard of its context. Changes that fail to
+     * write stay pending while the database is unavailable; a row the database rejects is dropped and
+     * forgotten, so the next registration of the device writes it again.
+     */
+    public void flush() {
+        Map<DeviceKey, PendingWrite> pending = new LinkedHashMap<>();
+        lock.lock();
+        try {
+            for (Map.Entry<DeviceKey, DeviceEntry> entry : evictedDirty.entrySet()) {
+                pending.put(entry.getKey(), new PendingWrite(entry.getValue()));
+            }
+            for (Map.Entry<DeviceKey, DeviceEntry> entry : entries.entrySet()) {
+                if (entry.getValue().dirty) {
+                    pending.put(entry.getKey(), new PendingWrite(entry.getValue()));
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (pending.isEmpty()) {
+            return;
+        }
+
+        Map<String, List<DeviceKey>> keysByContext = new HashMap<>();
+        for (DeviceKey key : pending.keySet()) {
+            keysByContext.computeIfAbsent(key.context, context -> new ArrayList<>()).add(key);
+        }
+        for (Map.Entry<String, List<DeviceKey>> contextKeys : keysByContext.entrySet()) {
+            List<DeviceKey> keys = contextKeys.getValue();
+            for (int from = 0; from < keys.size(); from += flushBatchSize) {
+                List<DeviceKey> chunk = keys.subList(from, Math.min(from + flushBatchSize, keys.size()));
+                try {
+                    // Lookup and write go to the shard of the context, and the context cannot move meanwhile
+                    contextShardRouter.callInContext(contextKeys.getKey(), () -> {
+                        writeChunk(contextKeys.getKey(), chunk, pending);
+                        return null;
+                    });
+                } catch (RuntimeException e) {
+                    logger.error("Device registry flush of context {} failed, changes stay pending", contextKeys.getKey(), e);
+                }
+            }
+        }
+    }
+
+    private void writeChunk(String context, List<DeviceKey> keys, Map<DeviceKey, PendingWrite> pending) {
+        Map<Integer, DeviceDetails> existing = new HashMap<>();
+        if (!"upsert".equals(deviceWriteMode)) {
+            // The merge path needs the persisted rows, otherwise every change would insert a duplicate
+            List<Integer> uids = new ArrayList<>(keys.size());
+            for (DeviceKey key : keys) {
+                uids.add(key.uid);
+            }
+            for (DeviceDetails deviceDetails : deviceDetailsDao.findByUidsAndContext(uids, context)) {
+                existing.put(deviceDetails.getUid(), deviceDetails);
+            }
+        }
+
+        List<DeviceDetails> lstDeviceDetails = new ArrayList<>(keys.size());
+        for (DeviceKey key : keys) {
+            PendingWrite write = pending.get(key);
+            DeviceDetails deviceDetails = existing.get(key.uid);
+            if (deviceDetails == null) {
+                deviceDetails = new DeviceDetails();
+                deviceDetails.setUid(key.uid);
+                deviceDetails.setContext(context);
+            }
+            deviceDetails.setDevicePlatform(write.devicePlatform);
+            deviceDetails.setDeviceToken(write.deviceToken);
+            lstDeviceDetails.add(deviceDetails);
+        }
+        Set<DeviceDetails> failedDevices = saveChunk(context, lstDeviceDetails);
+        writtenDevices.addAndGet(lstDeviceDetails.size() - failedDevices.size());
+        Set<DeviceKey> droppedKeys = new HashSet<>();
+        for (int row = 0; row < lstDeviceDetails.size(); row++) {
+            if (failedDevices.contains(lstDeviceDetails.get(row))) {
+                logger.error("Dropping device details that failed to write: {} of context {}", keys.get(row).uid, context);
+                droppedKeys.add(keys.get(row));
+            }
+        }
+        droppedDevices.addAndGet(droppedKeys.size());
+
+        long writtenMs = System.currentTimeMillis();
+        lock.lock();
+        try {
+            for (DeviceKey key : keys) {
+                PendingWrite write = pending.get(key);
+                if (droppedKeys.contains(key)) {
+                    // Forget a rejected device, so registering it again writes it again instead of skipping it
+                    if (write.entry.version == write.version) {
+                        if (write.entry.dirty) {
+                            write.entry.dirty = false;
+                            dirtyCount--;
+                        }
+                        entries.remove(key, write.entry);
+                        evictedDirty.remove(key, write.entry);
+                    }
+                    continue;
+                }
+                write.entry.writtenMs = writtenMs;
+                // A change registered while this chunk was written stays pending for the next flush
+                if (write.entry.version == write.version && write.entry.dirty) {
+                    write.entry.dirty = false;
+                    dirtyCount--;
+                }
+                if (!write.entry.dirty) {
+                    evictedDirty.remove(key, write.entry);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Write a chunk, recovering a failed batch by bisection.
+     *
+     * @return Set of the rows the database rejected
+     * @throws IllegalStateException when the database was unavailable, the whole chunk stays pending
+     */
+    private Set<DeviceDetails> saveChunk(String context, List<DeviceDetails> lstDeviceDetails) {
+        AtomicBoolean unavailable = new AtomicBoolean();
+        Set<DeviceDetails> failedDevices;
+        try {
+            List<DeviceDetails> saved = deviceDetailsDao.saveDeviceDetailsBatch(lstDeviceDetails);
+            if (saved != null && saved.size() == lstDeviceDetails.size()) {
+                return Collections.emptySet();
+            }
+            failedDevices = batchRecovery.recover(BisectingBatchRecovery.unwrittenRows(lstDeviceDetails, saved, DeviceKey::of), deviceDetailsWriter(unavailable));
+        } catch (RuntimeException e) {
+            if (isUnavailable(e)) {
+                throw new IllegalStateException("Database unavailable for device details of context " + context, e);
+            }
+            logger.error("Batch device details save failed, recovering by bisection", e);
+            failedDevices = batchRecovery.recover(lstDeviceDetails, deviceDetailsWriter(unavailable));
+        }
+        if (unavailable.get()) {
+            // Rows written before the database went away are written again, devicedetails writes are idempotent
+            throw new IllegalStateException("Database became unavailable while recovering device details of context " + context);
+        }
+        return failedDevices;
+    }
+
+    private BisectingBatchRecovery.BatchWriter<DeviceDetails> deviceDetailsWriter(AtomicBoolean unavailable) {
+        return new BisectingBatchRecovery.BatchWriter<DeviceDetails>() {
+            @Override
+            public List<DeviceDetails> writeBatch(List<DeviceDetails> rows) {
+                try {
+                    return deviceDetailsDao.saveDeviceDetailsBatch(rows);
+                } catch (RuntimeException e) {
+                    unavailable.compareAndSet(false, isUnavailable(e));
+                    throw e;
+                }
+            }
+
+            @Override
+            public boolean writeOne(DeviceDetails row) {
+                try {
+                    return deviceDetailsDao.saveDeviceDetails(row) != null;
+                } catch (RuntimeException e) {
+                    unavailable.compareAndSet(false, isUnavailable(e));
+                    throw e;
+                }
+            }
+
+            @Override
+            public Object keyOf(DeviceDetails row) {
+                return DeviceKey.of(row);
+            }
+        };
+    }
+
+    /**
+     * Whether a failed write says nothing about its rows: no connection, a timeout or a transient error.
+     * Anything else, e.g. a constraint or data error, is taken as the database rejecting the rows.
+     */
+    static boolean isUnavailable(Throwable failure) {
+        for (Throwable cause = failure; cause != null; cause = cause.getCause()) {
+            if (cause instanceof TransientDataAccessException || cause instanceof DataAccessResourceFailureException
+                    || cause instanceof SQLTransientException || cause instanceof SQLRecoverableException
+                    || cause instanceof SQLNonTransientConnectionException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (RuntimeException e) {
+            logger.error("Device registry flush failed, changes stay pending", e);
+        }
+    }
+
+    public long getRegistrations() {
+        return registrations.get();
+    }
+
+    public long getSkippedWrites() {
+        return skippedWrites.get();
+    }
+
+    public long getWrittenDevices() {
+        return writtenDevices.get();
+    }
+
+    public long getDroppedDevices() {
+        return droppedDevices.get();
+    }
+
+    public long getRefusedDevices() {
+        return refusedDevices.get();
+    }
+
+    /**
+     * Share of registrations that needed no write, either unchanged or coalesced with a later change.
+     *
+     * @return double value between 0 and 1
+     */
+    public double getSkippedWriteRatio() {
+        long total = registrations.get();
+        return total == 0 ? 0 : 1 - (double) writtenDevices.get() / total;
+    }
+
+    public int getPendingCount() {
+        lock.lock();
+        try {
+            return dirtyCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        if (flusher == null) {
+            return;
+        }
+        flusher.shutdown();
+        flusher.awaitTermination(10, TimeUnit.SECONDS);
+        flushQuietly();
+        if (getPendingCount() > 0) {
+            logger.error("{} device details changes could not be written on shutdown", getPendingCount());
+        }
+    }
+
+    static final class DeviceKey {
+        private final String context;
+        private final int uid;
+
+        private DeviceKey(String context, int uid) {
+            this.context = context;
+            this.uid = uid;
+        }
+
+        /**
+         * Key of a device row, e.g. to match the copies a JPA merge returns to the rows passed in.
+         */
+        static DeviceKey of(DeviceDetails deviceDetails) {
+            return new DeviceKey(deviceDetails.getContext(), deviceDetails.getUid());
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (this == other) {
+                return true;
+            }
+            if (!(other instanceof DeviceKey)) {
+                return false;
+            }
+            DeviceKey key = (DeviceKey) other;
+            return uid == key.uid && context.equals(key.context);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * context.hashCode() + uid;
+        }
+    }
+
+    private static final class DeviceEntry {
+        private String devicePlatform;
+        private String deviceToken;
+        private long version;
+        private long writtenMs;
+        private boolean dirty;
+    }
+
+    private static final class PendingWrite {
+        private final DeviceEntry entry;
+        private final long version;
+        private final String devicePlatform;
+        private final String deviceToken;
+
+        private PendingWrite(DeviceEntry entry) {
+            this.entry = entry;
+            this.version = entry.version;
+            this.devicePlatform = entry.devicePlatform;
+            this.deviceToken = entry.deviceToken;
+        }
+    }
+}
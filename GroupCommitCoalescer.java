@@ -0,0 +1,186 @@
+package mobileoda.notification.service.mobileoda.impl;
+
+import mobileoda.notification.dao.NotificationBatchBuffer;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Group commit of small batches across concurrent requests.
+ *
+ * <p>A batch of fewer than {@code notification.group-commit.max-batch-rows} rows joins the open group
+ * instead of being written on its own. The first batch of a group leads it: its thread waits until the
+ * group holds {@code notification.group-commit.max-rows} rows or {@code notification.group-commit.max-wait-ms}
+ * passed, then writes the whole group as one database batch. Every caller stays blocked until the group is
+ * written and gets the failed uids of its own rows, so the request keeps its synchronous response. A
+ * caller never returns before the leader is done with the group, because the leader still binds the
+ * caller's buffer until then; the leader completes the group's result however its write ends, and a
+ * group whose write fails in any way, errors included, fails every caller of the group.
+ * Enabled with {@code notification.group-commit.enabled=true}.
+ */
+@Component
+public class GroupCommitCoalescer {
+    /** Context tag of the meters of group writes, which span contexts. */
+    static final String GROUP_CONTEXT = "group";
+
+    /**
+     * Writes a group of batches.
+     */
+    public interface GroupWriter {
+        /**
+         * @param buffers Instance of List holding the batches of the group
+         * @return Instance of List holding the failed uids of every batch, in the order of the batches
+         */
+        List<List<Integer>> write(List<NotificationBatchBuffer> buffers);
+    }
+
+    @Value("${notification.group-commit.enabled:false}")
+    private boolean enabled;
+
+    @Value("${notification.group-commit.max-rows:500}")
+    private int maxRows = 500;
+
+    @Value("${notification.group-commit.max-wait-ms:5}")
+    private long maxWaitMs = 5;
+
+    @Value("${notification.group-commit.max-batch-rows:50}")
+    private int maxBatchRows = 50;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private Group openGroup;
+
+    private final AtomicLong groups = new AtomicLong();
+    private final AtomicLong groupedBatches = new AtomicLong();
+    private final AtomicLong groupedRows = new AtomicLong();
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Whether a batch is small enough to join a group.
+     *
+     * @param rows int value of the rows of the batch
+     * @return boolean
+     */
+    public boolean accepts(int rows) {
+        return enabled && rows < maxBatchRows;
+    }
+
+    /**
+     * Add a batch to the open group and wait until the group is written. The buffer must stay
+     * untouched until this returns.
+     *
+     * @param buffer Instance of NotificationBatchBuffer
+     * @param writer Instance of GroupWriter, used when this batch leads its group
+     * @return Instance of List holding the failed uids of the batch
+     */
+    public List<Integer> submit(NotificationBatchBuffer buffer, GroupWriter writer) {
+        Group group;
+        int index;
+        boolean leader = false;
+        lock.lock();
+        try {
+            if (openGroup == null) {
+                openGroup = new Group(lock.newCondition());
+                leader = true;
+            }
+            group = openGroup;
+            index = group.buffers.size();
+            group.buffers.add(buffer);
+            group.rows += buffer.size();
+            if (group.rows >= maxRows) {
+                close(group);
+            }
+            if (leader) {
+                awaitGroup(group);
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (leader) {
+            write(group, writer);
+        }
+        // join() waits through interrupts: the leader may still be binding this caller's buffer
+        try {
+            return group.result.join().get(index);
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof RuntimeException ? (RuntimeException) cause : new IllegalStateException("Group commit failed", cause);
+        }
+    }
+
+    private void awaitGroup(Group group) {
+        long remainingNanos = TimeUnit.MILLISECONDS.toNanos(maxWaitMs);
+        try {
+            while (openGroup == group && remainingNanos > 0) {
+                remainingNanos = group.full.awaitNanos(remainingNanos);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        close(group);
+    }
+
+    private void close(Group group) {
+        if (openGroup == group) {
+            openGroup = null;
+            group.full.signal();
+        }
+    }
+
+    private void write(Group group, GroupWriter writer) {
+        groups.incrementAndGet();
+        groupedBatches.addAndGet(group.buffers.size());
+        groupedRows.addAndGet(group.rows);
+        try {
+            group.result.complete(writer.write(group.buffers));
+        } catch (RuntimeException e) {
+            group.result.completeExceptionally(e);
+        } finally {
+            // An Error thrown by the writer propagates in the leader; the other callers must not wait for it
+            if (!group.result.isDone()) {
+                group.result.completeExceptionally(new IllegalStateException("Group commit write failed"));
+            }
+        }
+    }
+
+    public long getGroups() {
+        return groups.get();
+    }
+
+    public long getGroupedBatches() {
+        return groupedBatches.get();
+    }
+
+    public long getGroupedRows() {
+        return groupedRows.get();
+    }
+
+    void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    void setMaxWaitMs(long maxWaitMs) {
+        this.maxWaitMs = maxWaitMs;
+    }
+
+    private static final class Group {
+        private final Condition full;
+        private final List<NotificationBatchBuffer> buffers = new ArrayList<>();
+        private final CompletableFuture<List<List<Integer>>> result = new CompletableFuture<>();
+        private int rows;
+
+        private Group(Condition full) {
+            this.full = full;
+        }
+    }
+}
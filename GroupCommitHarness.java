@@ -0,0 +1,176 @@
+package mobileoda.notification.service.mobileoda.impl;
+
+import mobileoda.notification.dao.NotificationBatchBuffer;
+import mobileoda.notification.model.NotificationData;
+import mobileoda.notification.model.NotificationRequest;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs concurrent posts through GroupCommitCoalescer.
+ *
+ * <ul>
+ *     <li>Throughput: {@code callers} threads each post {@code posts} batches of {@code rows} rows, with
+ *     and without group commit, to a writer with 10 connections and a commit cost of 2 ms plus 10 us per
+ *     row in which every uid divisible by 97 fails; every caller must get exactly the failed uids of its
+ *     own rows.</li>
+ *     <li>Leader error: a writer throwing an Error fails each of 8 callers of the group, either with the
+ *     error or with an IllegalStateException, and blocks none of them.</li>
+ * </ul>
+ *
+ * Arguments: [callers] [posts per caller] [rows per post], by default 64, 200 and 5.
+ */
+public class GroupCommitHarness {
+
+    public static void main(String[] args) throws Exception {
+        int callers = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+        int posts = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        int rows = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+        boolean throughputPassed = throughputCheck(callers, posts, rows);
+        boolean leaderErrorPassed = leaderErrorCheck();
+        if (!throughputPassed || !leaderErrorPassed) {
+            System.exit(1);
+        }
+    }
+
+    private static boolean throughputCheck(int callers, int posts, int rows) throws InterruptedException {
+        boolean passed = true;
+        for (boolean groupCommit : new boolean[]{false, true}) {
+            GroupCommitCoalescer coalescer = new GroupCommitCoalescer();
+            coalescer.setEnabled(groupCommit);
+
+            Semaphore connections = new Semaphore(10);
+            AtomicLong commits = new AtomicLong();
+            AtomicLong mismatches = new AtomicLong();
+            GroupCommitCoalescer.GroupWriter writer = buffers -> {
+                // 10 connections, 2 ms commit plus 10 us per row; every uid divisible by 97 fails
+                connections.acquireUninterruptibly();
+                commits.incrementAndGet();
+                int groupRows = 0;
+                List<List<Integer>> failedUids = new ArrayList<>(buffers.size());
+                for (NotificationBatchBuffer buffer : buffers) {
+                    List<Integer> failed = new ArrayList<>();
+                    for (int row = 0; row < buffer.size(); row++) {
+                        if (buffer.getUid(row) % 97 == 0) {
+                            failed.add(buffer.getUid(row));
+                        }
+                    }
+                    failedUids.add(failed);
+                    groupRows += buffer.size();
+                }
+                sleepNanos(TimeUnit.MILLISECONDS.toNanos(2) + TimeUnit.MICROSECONDS.toNanos(10) * groupRows);
+                connections.release();
+                return failedUids;
+            };
+
+            ExecutorService executor = Executors.newFixedThreadPool(callers);
+            CountDownLatch done = new CountDownLatch(callers);
+            long start = System.nanoTime();
+            for (int caller = 0; caller < callers; caller++) {
+                int callerId = caller;
+                executor.execute(() -> {
+                    NotificationRequest request = new NotificationRequest();
+                    for (int post = 0; post < posts; post++) {
+                        NotificationBatchBuffer buffer = NotificationBatchBuffer.acquire(rows, "CTX" + callerId, request);
+                        List<Integer> expected = new ArrayList<>();
+                        for (int row = 0; row < rows; row++) {
+                            int uid = (callerId * posts + post) * rows + row;
+                            NotificationData notificationData = new NotificationData();
+                            notificationData.setUid(String.valueOf(uid));
+                            notificationData.setMessageCount("1");
+                            buffer.add(notificationData);
+                            if (uid % 97 == 0) {
+                                expected.add(uid);
+                            }
+                        }
+                        List<Integer> failed = coalescer.accepts(buffer.size())
+                                ? coalescer.submit(buffer, writer)
+                                : writer.write(Collections.singletonList(buffer)).get(0);
+                        if (!failed.equals(expected)) {
+                            mismatches.incrementAndGet();
+                        }
+                        buffer.release();
+                    }
+                    done.countDown();
+                });
+            }
+            done.await();
+            double seconds = (System.nanoTime() - start) / 1e9;
+            executor.shutdown();
+            System.out.printf("Group commit %-5s: %d posts of %d rows in %.2f s, %.0f posts/s, %d commits, %d wrong failed-uid lists%n",
+                    groupCommit, callers * posts, rows, seconds, callers * posts / seconds, commits.get(), mismatches.get());
+            passed = passed && mismatches.get() == 0;
+        }
+        if (!passed) {
+            System.out.println("Group commit throughput check FAILED: callers got failed uids of other rows");
+        }
+        return passed;
+    }
+
+    private static boolean leaderErrorCheck() throws Exception {
+        GroupCommitCoalescer coalescer = new GroupCommitCoalescer();
+        coalescer.setEnabled(true);
+        coalescer.setMaxWaitMs(200L);
+        GroupCommitCoalescer.GroupWriter writer = buffers -> {
+            throw new StackOverflowError("writer error");
+        };
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<String>> outcomes = new ArrayList<>();
+        for (int caller = 0; caller < 8; caller++) {
+            int callerId = caller;
+            outcomes.add(executor.submit(() -> {
+                NotificationBatchBuffer buffer = NotificationBatchBuffer.acquire(1, "CTX" + callerId, new NotificationRequest());
+                NotificationData notificationData = new NotificationData();
+                notificationData.setUid(String.valueOf(callerId));
+                notificationData.setMessageCount("1");
+                buffer.add(notificationData);
+                try {
+                    coalescer.submit(buffer, writer);
+                    return "returned";
+                } catch (IllegalStateException e) {
+                    return "failed";
+                } catch (StackOverflowError e) {
+                    return "error";
+                } finally {
+                    buffer.release();
+                }
+            }));
+        }
+        int failed = 0;
+        int errors = 0;
+        for (Future<String> outcome : outcomes) {
+            String result = outcome.get(10, TimeUnit.SECONDS);
+            failed += "failed".equals(result) ? 1 : 0;
+            errors += "error".equals(result) ? 1 : 0;
+        }
+        executor.shutdown();
+        System.out.printf("Leader error: %d callers saw the error, %d callers failed, none blocked%n", errors, failed);
+        boolean passed = errors > 0 && errors + failed == outcomes.size();
+        if (!passed) {
+            System.out.println("Group commit leader error check FAILED");
+        }
+        return passed;
+    }
+
+    private static void sleepNanos(long nanos) {
+        long deadline = System.nanoTime() + nanos;
+        while (System.nanoTime() < deadline) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(deadline - System.nanoTime());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package mobileoda.config;
+
+import mobileoda.notification.mapper.NotificationWireFormat;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletException;
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.Enumeration;
+
+/**
+ * Decompresses gzip request bodies, so controllers and message converters read the plain document.
+ * The Content-Encoding header is hidden from the wrapped request, as the body is no longer encoded.
+ * A body inflating to more than the configured number of bytes is refused with 413, whatever the
+ * handler made of the failed read.
+ */
+public class GzipRequestFilter extends OncePerRequestFilter {
+    private static final String CONTENT_ENCODING = "Content-Encoding";
+
+    private final long maxInflatedBytes;
+
+    /**
+     * @param maxInflatedBytes long value of the largest decompressed body accepted
+     */
+    public GzipRequestFilter(long maxInflatedBytes) {
+        this.maxInflatedBytes = maxInflatedBytes;
+    }
+
+    @Override
+    protected boolean shouldNotFilter(HttpServletRequest request) {
+        String contentEncoding = request.getHeader(CONTENT_ENCODING);
+        return contentEncoding == null
+                || !(NotificationWireFormat.CONTENT_ENCODING_GZIP.equalsIgnoreCase(contentEncoding.trim())
+                || "x-gzip".equalsIgnoreCase(contentEncoding.trim()));
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain filterChain) throws ServletException, IOException {
+        GzipRequestWrapper wrapper = new GzipRequestWrapper(request, maxInflatedBytes);
+        try {
+            filterChain.doFilter(wrapper, response);
+        } catch (IOException | ServletException | RuntimeException e) {
+            if (!wrapper.limitExceeded) {
+                throw e;
+            }
+        }
+        if (wrapper.limitExceeded && !response.isCommitted()) {
+            response.reset();
+            response.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, "Decompressed request body exceeds " + maxInflatedBytes + " bytes");
+        }
+    }
+
+    private static final class GzipRequestWrapper extends HttpServletRequestWrapper {
+        private final long maxInflatedBytes;
+        private ServletInputStream inputStream;
+        private volatile boolean limitExceeded;
+
+        private GzipRequestWrapper(HttpServletRequest request, long maxInflatedBytes) {
+            super(request);
+            this.maxInflatedBytes = maxInflatedBytes;
+        }
+
+        @Override
+        public ServletInputStream getInputStream() throws IOException {
+            if (inputStream == null) {
+                ServletInputStream compressed = super.getInputStream();
+                InputStream decompressed = new LimitedInputStream(NotificationWireFormat.decompress(compressed, getRequest().getHeader(CONTENT_ENCODING)));
+                inputStream = new ServletInputStream() {
+                    @Override
+                    public int read() throws IOException {
+                        return decompressed.read();
+                    }
+
+                    @Override
+                    public int read(byte[] buffer, int offset, int length) throws IOException {
+                        return decompressed.read(buffer, offset, length);
+                    }
+
+                    @Override
+                    public boolean isFinished() {
+                        return compressed.isFinished();
+                    }
+
+                    @Override
+                    public boolean isReady() {
+                        return compressed.isReady();
+                    }
+
+                    @Override
+                    public void setReadListener(ReadListener readListener) {
+                        compressed.setReadListener(readListener);
+                    }
+
+                    @Override
+                    public void close() throws IOException {
+                        decompressed.close();
+                    }
+                };
+            }
+            return inputStream;
+        }
+
+        /**
+         * Counts the decompressed bytes and fails the read that passes the limit.
+         */
+        private final class LimitedInputStream extends FilterInputStream {
+            private long count;
+
+            private LimitedInputStream(InputStream in) {
+                super(in);
+            }
+
+            @Override
+            public int read() throws IOException {
+                int value = super.read();
+                if (value >= 0) {
+                    count(1);
+                }
+                return value;
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int length) throws IOException {
+                int read = super.read(buffer, offset, length);
+                if (read > 0) {
+                    count(read);
+                }
+                return read;
+            }
+
+            @Override
+            public long skip(long n) throws IOException {
+                long skipped = super.skip(n);
+                count(skipped);
+                return skipped;
+            }
+
+            private void count(long bytes) throws IOException {
+                count += bytes;
+                if (count > maxInflatedBytes) {
+                    limitExceeded = true;
+                    throw new IOException("Decompressed request body exceeds " + maxInflatedBytes + " bytes");
+                }
+            }
+        }
+
+        @Override
+        public int getContentLength() {
+            return -1;
+        }
+
+        @Override
+        public long getContentLengthLong() {
+            return -1;
+        }
+
+        @Override
+        public String getHeader(String name) {
+            return CONTENT_ENCODING.equalsIgnoreCase(name) ? null : super.getHeader(name);
+        }
+
+        @Override
+        public Enumeration<String> getHeaders(String name) {
+            return CONTENT_ENCODING.equalsIgnoreCase(name) ? Collections.emptyEnumeration() : super.getHeaders(name);
+        }
+    }
+}
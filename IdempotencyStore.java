@@ -0,0 +1,231 @@
+package mobileoda.notification.service.mobileoda.impl;
+
+import mobileoda.notification.model.NotificationData;
+import mobileoda.notification.model.NotificationRequest;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ * Answers retried requests from the result of the original instead of inserting the payload again.
+ *
+ * <p>A request is identified by its client supplied idempotency key, or else by a SHA-256 hash of its
+ * context, host and notification rows. The results of completed requests are kept in a store bounded to
+ * {@code notification.idempotency.max-entries}, least recently used first out: for
+ * {@code notification.idempotency.ttl-seconds} under a client key, but only for
+ * {@code notification.idempotency.content-hash-ttl-seconds} under a content hash. Two genuinely separate
+ * posts of identical rows have the same hash, so that window is kept to the client's retry horizon; with
+ * 0 only a duplicate arriving while the original still runs is answered. Such a duplicate waits for the
+ * result of the original, up to {@code notification.idempotency.wait-timeout-ms}. Only results accepted
+ * by the caller are kept; a failed request can be retried. Enabled with
+ * {@code notification.idempotency.enabled=true}.
+ */
+@Component
+public class IdempotencyStore {
+    private Logger logger = LogManager.getLogger(IdempotencyStore.class);
+
+    private static final char FIELD_SEPARATOR = '\u001f';
+    private static final char ROW_SEPARATOR = '\u001e';
+    private static final String CONTENT_HASH_PREFIX = "sha256:";
+
+    @Value("${notification.idempotency.enabled:false}")
+    private boolean enabled;
+
+    @Value("${notification.idempotency.max-entries:10000}")
+    private int maxEntries = 10000;
+
+    @Value("${notification.idempotency.ttl-seconds:900}")
+    private long ttlSeconds = 900;
+
+    @Value("${notification.idempotency.content-hash-ttl-seconds:30}")
+    private long contentHashTtlSeconds = 30;
+
+    @Value("${notification.idempotency.wait-timeout-ms:30000}")
+    private long waitTimeoutMs = 30000;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Map<String, Entry<?>> entries = new LinkedHashMap<String, Entry<?>>(256, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry<?>> eldest) {
+            // A running original is never evicted, or its duplicates would run again
+            return size() > maxEntries && eldest.getValue().result.isDone();
+        }
+    };
+
+    private final AtomicLong replayedRequests = new AtomicLong();
+    private final AtomicLong joinedRequests = new AtomicLong();
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Fingerprint of a request: its idempotency key when the client supplied one, otherwise a hash of
+     * its context, host and notification rows.
+     *
+     * @param notificationRequest Instance of NotificationRequest
+     * @return String value of the fingerprint
+     */
+    public String fingerprint(NotificationRequest notificationRequest) {
+        String context = notificationRequest.getMobileContext();
+        if (StringUtils.isNotBlank(notificationRequest.getIdempotencyKey())) {
+            return context + ':' + notificationRequest.getIdempotencyKey().trim();
+        }
+        MessageDigest digest = sha256();
+        update(digest, context);
+        update(digest, notificationRequest.getHostAddress());
+        update(digest, notificationRequest.getHostName());
+        update(digest, notificationRequest.getTomcatHome());
+        List<NotificationData> lstNotificationData = notificationRequest.getNotificationData();
+        if (lstNotificationData != null) {
+            for (NotificationData notificationData : lstNotificationData) {
+                digest.update((byte) ROW_SEPARATOR);
+                update(digest, notificationData.getUid());
+                update(digest, notificationData.getMessageCount());
+                update(digest, notificationData.getMessageType());
+                update(digest, notificationData.getDeviceToken());
+                update(digest, notificationData.getDevicePlatform());
+                update(digest, notificationData.getMessage());
+            }
+        }
+        return CONTENT_HASH_PREFIX + context + ':' + Base64.getUrlEncoder().withoutPadding().encodeToString(digest.digest());
+    }
+
+    /**
+     * Run a request once per fingerprint. A replay gets the kept result; a duplicate of a running
+     * request waits for the result of the original.
+     *
+     * @param fingerprint String value of the request fingerprint
+     * @param work        Supplier running the request
+     * @param keep        Predicate telling whether a result may be replayed
+     * @param <T>         Type of the result
+     * @return result of the request, or null when a duplicate timed out waiting for the original
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T execute(String fingerprint, Supplier<T> work, Predicate<T> keep) {
+        long now = System.nanoTime();
+        Entry<T> entry;
+        boolean original = false;
+        lock.lock();
+        try {
+            entry = (Entry<T>) entries.get(fingerprint);
+            if (entry == null || entry.isExpired(now)) {
+                entry = new Entry<>();
+                entries.put(fingerprint, entry);
+                original = true;
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (!original) {
+            return awaitOriginal(fingerprint, entry);
+        }
+
+        try {
+            T result = work.get();
+            if (keep.test(result)) {
+                long keptSeconds = fingerprint.startsWith(CONTENT_HASH_PREFIX) ? contentHashTtlSeconds : ttlSeconds;
+                entry.expiresAt = System.nanoTime() + TimeUnit.SECONDS.toNanos(keptSeconds);
+            } else {
+                remove(fingerprint, entry);
+            }
+            // Waiting duplicates get the result either way; only a kept one is replayed later
+            entry.result.complete(result);
+            return result;
+        } catch (RuntimeException e) {
+            remove(fingerprint, entry);
+            entry.result.completeExceptionally(e);
+            throw e;
+        }
+    }
+
+    private <T> T awaitOriginal(String fingerprint, Entry<T> entry) {
+        if (entry.result.isDone()) {
+            replayedRequests.incrementAndGet();
+        } else {
+            joinedRequests.incrementAndGet();
+        }
+        try {
+            T result = entry.result.get(waitTimeoutMs, TimeUnit.MILLISECONDS);
+            logger.info("Answered duplicate request {} from the result of the original", fingerprint);
+            return result;
+        } catch (TimeoutException e) {
+            logger.warn("Duplicate request {} timed out waiting for the original", fingerprint);
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof RuntimeException ? (RuntimeException) cause : new IllegalStateException(cause);
+        }
+    }
+
+    private void remove(String fingerprint, Entry<?> entry) {
+        lock.lock();
+        try {
+            entries.remove(fingerprint, entry);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getReplayedRequests() {
+        return replayedRequests.get();
+    }
+
+    public long getJoinedRequests() {
+        return joinedRequests.get();
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return entries.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static void update(MessageDigest digest, String value) {
+        if (value != null) {
+            digest.update(value.getBytes(StandardCharsets.UTF_8));
+        }
+        digest.update((byte) FIELD_SEPARATOR);
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static final class Entry<T> {
+        private final CompletableFuture<T> result = new CompletableFuture<>();
+        private volatile long expiresAt = Long.MAX_VALUE;
+
+        private boolean isExpired(long now) {
+            return result.isDone() && expiresAt - now < 0;
+        }
+    }
+}
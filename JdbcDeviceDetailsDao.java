@@ -0,0 +1,224 @@
+package mobileoda.notification.dao.impl;
+
+import mobileoda.notification.dao.DeviceDetailsDao;
+import mobileoda.notification.model.DeviceDetails;
+import mobileoda.util.CollectionUtil;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Primary;
+import org.springframework.jdbc.datasource.DataSourceUtils;
+import org.springframework.stereotype.Repository;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * DeviceDetailsDao writing devicedetails with a single dialect specific upsert per chunk,
+ * keyed on (uid, context), so registering a device never needs a read before the write.
+ * Enabled with {@code notification.dao.device-write-mode=upsert}; requires a unique key on (uid, context).
+ */
+@Repository
+@Primary
+@ConditionalOnProperty(name = "notification.dao.device-write-mode", havingValue = "upsert")
+public class JdbcDeviceDetailsDao implements DeviceDetailsDao {
+    private Logger logger = LogManager.getLogger(JdbcDeviceDetailsDao.class);
+
+    private static final String COLUMNS = "uid, context, device_platform, device_token";
+    private static final String ROW_PLACEHOLDER = "(?,?,?,?)";
+    private static final String SELECT_SQL = "SELECT " + COLUMNS + " FROM devicedetails WHERE context = ? AND uid IN ";
+
+    enum Dialect {
+        MYSQL("INSERT INTO devicedetails (" + COLUMNS + ") VALUES ",
+                " ON DUPLICATE KEY UPDATE device_platform = VALUES(device_platform), device_token = VALUES(device_token)"),
+        POSTGRES("INSERT INTO devicedetails (" + COLUMNS + ") VALUES ",
+                " ON CONFLICT (uid, context) DO UPDATE SET device_platform = EXCLUDED.device_platform, device_token = EXCLUDED.device_token"),
+        H2("MERGE INTO devicedetails (" + COLUMNS + ") KEY (uid, context) VALUES ", "");
+
+        private final String prefix;
+        private final String suffix;
+
+        Dialect(String prefix, String suffix) {
+            this.prefix = prefix;
+            this.suffix = suffix;
+        }
+
+        String upsertSql(int rows) {
+            return upsertSql("devicedetails", rows);
+        }
+
+        /**
+         * Upsert into a table with the devicedetails columns and a unique key on (uid, context).
+         */
+        String upsertSql(String table, int rows) {
+            String tablePrefix = prefix.replace(" devicedetails ", " " + table + " ");
+            StringBuilder sql = new StringBuilder(tablePrefix.length() + suffix.length() + rows * (ROW_PLACEHOLDER.length() + 1));
+            sql.append(tablePrefix);
+            for (int row = 0; row < rows; row++) {
+                if (row > 0) {
+                    sql.append(',');
+                }
+                sql.append(ROW_PLACEHOLDER);
+            }
+            return sql.append(suffix).toString();
+        }
+
+        static Dialect of(String databaseProductName) {
+            String name = databaseProductName.toLowerCase(Locale.ROOT);
+            if (name.contains("mysql") || name.contains("mariadb")) {
+                return MYSQL;
+            } else if (name.contains("postgres")) {
+                return POSTGRES;
+            } else if (name.contains("h2")) {
+                return H2;
+            }
+            throw new IllegalStateException("No devicedetails upsert statement for database " + databaseProductName);
+        }
+    }
+
+    @Autowired
+    private DataSource dataSource;
+
+    @Value("${notification.jdbc.rows-per-statement:100}")
+    private int rowsPerStatement = 100;
+
+    private volatile Dialect dialect;
+
+    void setDataSource(DataSource dataSource) {
+        this.dataSource = dataSource;
+    }
+
+    @Override
+    public DeviceDetails findByUidAndContext(int uid, String context) {
+        List<DeviceDetails> lstDeviceDetails = findByUidsAndContext(CollectionUtil.getListFromSingleObject(uid), context);
+        return lstDeviceDetails.isEmpty() ? new DeviceDetails() : lstDeviceDetails.get(0);
+    }
+
+    @Override
+    public List<DeviceDetails> findByUidsAndContext(List<Integer> uids, String context) {
+        List<DeviceDetails> lstDeviceDetails = new ArrayList<>(uids.size());
+        if (uids.isEmpty()) {
+            return lstDeviceDetails;
+        }
+        StringBuilder sql = new StringBuilder(SELECT_SQL).append('(');
+        for (int i = 0; i < uids.size(); i++) {
+            sql.append(i == 0 ? "?" : ",?");
+        }
+        sql.append(')');
+
+        Connection connection = DataSourceUtils.getConnection(dataSource);
+        try (PreparedStatement statement = connection.prepareStatement(sql.toString())) {
+            statement.setString(1, context);
+            for (int i = 0; i < uids.size(); i++) {
+                statement.setInt(i + 2, uids.get(i));
+            }
+            try (ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    DeviceDetails deviceDetails = new DeviceDetails();
+                    deviceDetails.setUid(resultSet.getInt(1));
+                    deviceDetails.setContext(resultSet.getString(2));
+                    deviceDetails.setDevicePlatform(resultSet.getString(3));
+                    deviceDetails.setDeviceToken(resultSet.getString(4));
+                    lstDeviceDetails.add(deviceDetails);
+                }
+            }
+        } catch (SQLException e) {
+            throw new IllegalStateException("Failed to load devicedetails for context " + context, e);
+        } finally {
+            DataSourceUtils.releaseConnection(connection, dataSource);
+        }
+        return lstDeviceDetails;
+    }
+
+    @Override
+    public DeviceDetails saveDeviceDetails(DeviceDetails deviceDetails) {
+        saveDeviceDetailsBatch(CollectionUtil.getListFromSingleObject(deviceDetails));
+        return deviceDetails;
+    }
+
+    /**
+     * Upsert a batch of device details. Repeated (uid, context) keys are collapsed to their last
+     * value first, since a single upsert statement may not touch the same row twice.
+     *
+     * @param lstDeviceDetails Instance of List
+     * @return Instance of List holding the rows that were written
+     */
+    @Override
+    public List<DeviceDetails> saveDeviceDetailsBatch(List<DeviceDetails> lstDeviceDetails) {
+        Map<String, DeviceDetails> latestByKey = new LinkedHashMap<>(lstDeviceDetails.size() * 2);
+        for (DeviceDetails deviceDetails : lstDeviceDetails) {
+            String key = deviceDetails.getContext() + '\u0000' + deviceDetails.getUid();
+            latestByKey.remove(key);
+            latestByKey.put(key, deviceDetails);
+        }
+        List<DeviceDetails> rows = new ArrayList<>(latestByKey.values());
+
+        Connection connection = DataSourceUtils.getConnection(dataSource);
+        try {
+            Dialect upsertDialect = resolveDialect(connection);
+            PreparedStatement fullStatement = null;
+            try {
+                for (int from = 0; from < rows.size(); from += rowsPerStatement) {
+                    int to = Math.min(from + rowsPerStatement, rows.size());
+                    PreparedStatement statement;
+                    if (to - from == rowsPerStatement) {
+                        if (fullStatement == null) {
+                            fullStatement = connection.prepareStatement(upsertDialect.upsertSql(rowsPerStatement));
+                        }
+                        statement = fullStatement;
+                    } else {
+                        statement = connection.prepareStatement(upsertDialect.upsertSql(to - from));
+                    }
+                    try {
+                        bindRows(statement, rows, from, to);
+                        statement.executeUpdate();
+                    } finally {
+                        if (statement != fullStatement) {
+                            statement.close();
+                        }
+                    }
+                }
+            } finally {
+                if (fullStatement != null) {
+                    fullStatement.close();
+                }
+            }
+        } catch (SQLException e) {
+            throw new IllegalStateException("Failed to upsert devicedetails batch", e);
+        } finally {
+            DataSourceUtils.releaseConnection(connection, dataSource);
+        }
+        return lstDeviceDetails;
+    }
+
+    private void bindRows(PreparedStatement statement, List<DeviceDetails> rows, int from, int to) throws SQLException {
+        int index = 1;
+        for (int row = from; row < to; row++) {
+            DeviceDetails deviceDetails = rows.get(row);
+            statement.setInt(index++, deviceDetails.getUid());
+            statement.setString(index++, deviceDetails.getContext());
+            statement.setString(index++, deviceDetails.getDevicePlatform());
+            statement.setString(index++, deviceDetails.getDeviceToken());
+        }
+    }
+
+    private Dialect resolveDialect(Connection connection) throws SQLException {
+        Dialect resolved = dialect;
+        if (resolved == null) {
+            resolved = Dialect.of(connection.getMetaData().getDatabaseProductName());
+            dialect = resolved;
+            logger.info("Using {} upsert statement for devicedetails", resolved);
+        }
+        return resolved;
+    }
+}
@@ -0,0 +1,203 @@
+package mobileoda.notification.dao.impl;
+
+import mobileoda.notification.dao.NotificationBatchBuffer;
+import mobileoda.notification.dao.NotificationBatchWriter;
+import mobileoda.notification.dao.NotificationDataDao;
+import mobileoda.notification.model.PushNotificationData;
+import mobileoda.util.CollectionUtil;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Primary;
+import org.springframework.jdbc.datasource.DataSourceUtils;
+import org.springframework.stereotype.Repository;
+
+import javax.sql.DataSource;
+import java.lang.reflect.Field;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * NotificationDataDao writing pushnotificationdata rows with multi-row
+ * {@code INSERT ... VALUES (...),(...)} statements instead of JPA saveAll.
+ * Enabled with {@code notification.dao.insert-mode=jdbc}.
+ *
+ * <p>Every statement is executed on its own, so a failing statement only loses its own rows:
+ * the returned list holds exactly the rows that were written and the caller retries the rest.
+ */
+@Repository
+@Primary
+@ConditionalOnProperty(name = "notification.dao.insert-mode", havingValue = "jdbc")
+public class JdbcNotificationDataDao implements NotificationDataDao, NotificationBatchWriter {
+    private Logger logger = LogManager.getLogger(JdbcNotificationDataDao.class);
+
+    static final String INSERT_PREFIX = "INSERT INTO pushnotificationdata "
+            + "(uid, context, message_count, message_type, created_ts_utc, practice_ip, host_name, tomcat_path) VALUES ";
+    static final String ROW_PLACEHOLDER = "(?,?,?,?,?,?,?,?)";
+    private static final String[] COLUMN_FIELDS = {
+            "uid", "context", "messageCount", "messageType", "createdTsUTC", "practiceIp", "hostName", "tomcatPath"
+    };
+    private static final Field[] FIELDS = resolveFields();
+
+    @Autowired
+    private DataSource dataSource;
+
+    @Value("${notification.jdbc.batch-size:1000}")
+    private int batchSize = 1000;
+
+    @Value("${notification.jdbc.rows-per-statement:100}")
+    private int rowsPerStatement = 100;
+
+    void setDataSource(DataSource dataSource) {
+        this.dataSource = dataSource;
+    }
+
+    @Override
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    @Override
+    public PushNotificationData savePushNotificationData(PushNotificationData pushNotificationData) {
+        List<PushNotificationData> saved = savePushNotificationDataBatch(CollectionUtil.getListFromSingleObject(pushNotificationData));
+        return saved.isEmpty() ? null : pushNotificationData;
+    }
+
+    @Override
+    public List<PushNotificationData> savePushNotificationDataBatch(List<PushNotificationData> lstPushNotificationData) {
+        BitSet written = insertRows(lstPushNotificationData.size(), (statement, index, row) -> {
+            PushNotificationData pushNotificationData = lstPushNotificationData.get(row);
+            for (Field field : FIELDS) {
+                statement.setObject(index++, readField(field, pushNotificationData));
+            }
+            return index;
+        });
+        List<PushNotificationData> saved = new ArrayList<>(written.cardinality());
+        for (int row = written.nextSetBit(0); row >= 0; row = written.nextSetBit(row + 1)) {
+            saved.add(lstPushNotificationData.get(row));
+        }
+        return saved;
+    }
+
+    /**
+     * Save a batch buffer, binding its columns directly.
+     *
+     * @param buffer Instance of NotificationBatchBuffer
+     * @return BitSet of the row indexes that were written
+     */
+    @Override
+    public BitSet saveNotificationBatch(NotificationBatchBuffer buffer) {
+        return insertRows(buffer.size(), (statement, index, row) -> {
+            statement.setInt(index++, buffer.getUid(row));
+            statement.setString(index++, buffer.getContext());
+            statement.setInt(index++, buffer.getMessageCount(row));
+            statement.setString(index++, buffer.getMessageType(row));
+            statement.setString(index++, buffer.getCreatedTsUTC());
+            statement.setString(index++, buffer.getPracticeIp());
+            statement.setString(index++, buffer.getHostName());
+            statement.setString(index++, buffer.getTomcatPath());
+            return index;
+        });
+    }
+
+    /**
+     * Binds the columns of one row, starting at a parameter index.
+     */
+    private interface RowBinder {
+        int bind(PreparedStatement statement, int index, int row) throws SQLException;
+    }
+
+    private BitSet insertRows(int size, RowBinder rowBinder) {
+        BitSet written = new BitSet(size);
+        Connection connection = DataSourceUtils.getConnection(dataSource);
+        PreparedStatement fullStatement = null;
+        try {
+            for (int from = 0; from < size; from += rowsPerStatement) {
+                int to = Math.min(from + rowsPerStatement, size);
+                int rows = to - from;
+                PreparedStatement statement;
+                if (rows == rowsPerStatement) {
+                    if (fullStatement == null) {
+                        fullStatement = connection.prepareStatement(buildInsertSql(rowsPerStatement));
+                    }
+                    statement = fullStatement;
+                } else {
+                    statement = connection.prepareStatement(buildInsertSql(rows));
+                }
+                try {
+                    int index = 1;
+                    for (int row = from; row < to; row++) {
+                        index = rowBinder.bind(statement, index, row);
+                    }
+                    statement.executeUpdate();
+                    written.set(from, to);
+                } catch (SQLException e) {
+                    logger.error("Multi-row insert of {} pushnotificationdata rows failed", rows, e);
+                } finally {
+                    if (statement != fullStatement) {
+                        closeQuietly(statement);
+                    }
+                }
+            }
+        } catch (SQLException e) {
+            logger.error("Failed to prepare pushnotificationdata insert", e);
+        } finally {
+            closeQuietly(fullStatement);
+            DataSourceUtils.releaseConnection(connection, dataSource);
+        }
+        return written;
+    }
+
+    static String buildInsertSql(int rows) {
+        StringBuilder sql = new StringBuilder(INSERT_PREFIX.length() + rows * (ROW_PLACEHOLDER.length() + 1));
+        sql.append(INSERT_PREFIX);
+        for (int row = 0; row < rows; row++) {
+            if (row > 0) {
+                sql.append(',');
+            }
+            sql.append(ROW_PLACEHOLDER);
+        }
+        return sql.toString();
+    }
+
+    private static Object readField(Field field, PushNotificationData pushNotificationData) {
+        try {
+            return field.get(pushNotificationData);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException("Cannot read PushNotificationData." + field.getName(), e);
+        }
+    }
+
+    /**
+     * PushNotificationData exposes setters only, so the column values are read through
+     * field handles resolved once per class load.
+     */
+    private static Field[] resolveFields() {
+        Field[] fields = new Field[COLUMN_FIELDS.length];
+        for (int i = 0; i < COLUMN_FIELDS.length; i++) {
+            try {
+                fields[i] = PushNotificationData.class.getDeclaredField(COLUMN_FIELDS[i]);
+                fields[i].setAccessible(true);
+            } catch (NoSuchFieldException e) {
+                throw new IllegalStateException("PushNotificationData has no field " + COLUMN_FIELDS[i], e);
+            }
+        }
+        return fields;
+    }
+
+    private void closeQuietly(PreparedStatement statement) {
+        if (statement != null) {
+            try {
+                statement.close();
+            } catch (SQLException e) {
+                logger.warn("Failed to close statement", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package mobileoda.notification.dao.impl;
+
+import mobileoda.notification.dao.NotificationBatchBuffer;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Repository;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.sql.Statement;
+import java.util.BitSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Writes the pushnotificationdata rows of a replayed journal record in one transaction with the
+ * sequence of the record, kept per journal in notification_journal_applied. A record replayed again
+ * after a crash between its commit and its journal checkpoint finds its sequence applied and is skipped.
+ *
+ * <p>A statement the database rejects is rolled back to a savepoint and its rows are bisected, so only
+ * the rejected rows are lost and the rest of the record still commits with its sequence. Works on the
+ * DataSource the calling thread routes to; callers route to the shard of the context first.
+ */
+@Repository
+public class JdbcNotificationJournalDao {
+    private Logger logger = LogManager.getLogger(JdbcNotificationJournalDao.class);
+
+    static final String APPLIED_TABLE = "notification_journal_applied";
+    private static final int ROWS_PER_STATEMENT = 100;
+
+    @Autowired
+    private DataSource dataSource;
+
+    private final Set<String> preparedDatabases = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Write the rows of a journal record unless its sequence was applied before.
+     *
+     * @param journalId String value identifying the journal
+     * @param sequence  long value of the sequence of the record in the journal
+     * @param buffer    Instance of NotificationBatchBuffer holding the rows of the record
+     * @return BitSet of the row indexes that were written, or null when the record was applied before
+     */
+    public BitSet applyNotificationBatch(String journalId, long sequence, NotificationBatchBuffer buffer) {
+        try (Connection connection = dataSource.getConnection()) {
+            createTable(connection);
+            boolean autoCommit = connection.getAutoCommit();
+            connection.setAutoCommit(false);
+            try {
+                if (appliedSequence(connection, journalId) >= sequence) {
+                    connection.rollback();
+                    return null;
+                }
+                BitSet written = new BitSet(buffer.size());
+                insertRows(connection, buffer, 0, buffer.size(), written);
+                markApplied(connection, journalId, sequence);
+                connection.commit();
+                return written;
+            } catch (SQLException | RuntimeException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(autoCommit);
+            }
+        } catch (SQLException e) {
+            throw new IllegalStateException("Failed to apply record " + sequence + " of notification journal " + journalId, e);
+        }
+    }
+
+    void setDataSource(DataSource dataSource) {
+        this.dataSource = dataSource;
+    }
+
+    private void createTable(Connection connection) throws SQLException {
+        String url = connection.getMetaData().getURL();
+        if (preparedDatabases.contains(url)) {
+            return;
+        }
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("CREATE TABLE IF NOT EXISTS " + APPLIED_TABLE
+                    + " (journal_id VARCHAR(64) NOT NULL PRIMARY KEY, applied_sequence BIGINT NOT NULL)");
+        }
+        preparedDatabases.add(url);
+    }
+
+    private long appliedSequence(Connection connection, String journalId) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement("SELECT applied_sequence FROM " + APPLIED_TABLE + " WHERE journal_id = ?")) {
+            statement.setString(1, journalId);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                return resultSet.next() ? resultSet.getLong(1) : 0;
+            }
+        }
+    }
+
+    private void markApplied(Connection connection, String journalId, long sequence) throws SQLException {
+        try (PreparedStatement update = connection.prepareStatement("UPDATE " + APPLIED_TABLE + " SET applied_sequence = ? WHERE journal_id = ?")) {
+            update.setLong(1, sequence);
+            update.setString(2, journalId);
+            if (update.executeUpdate() > 0) {
+                return;
+            }
+        }
+        try (PreparedStatement insert = connection.prepareStatement("INSERT INTO " + APPLIED_TABLE + " (journal_id, applied_sequence) VALUES (?, ?)")) {
+            insert.setString(1, journalId);
+            insert.setLong(2, sequence);
+            insert.executeUpdate();
+        }
+    }
+
+    /**
+     * Insert rows [from, to) of the buffer, bisecting around the rows the database rejects.
+     */
+    private void insertRows(Connection connection, NotificationBatchBuffer buffer, int from, int to, BitSet written) throws SQLException {
+        Savepoint savepoint = connection.setSavepoint();
+        try {
+            for (int start = from; start < to; start += ROWS_PER_STATEMENT) {
+                insertStatement(connection, buffer, start, Math.min(start + ROWS_PER_STATEMENT, to));
+            }
+        } catch (SQLException e) {
+            connection.rollback(savepoint);
+            if (to - from == 1) {
+                logger.error("Journal replay rejected the pushnotificationdata row of uid {}", buffer.getUid(from), e);
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            insertRows(connection, buffer, from, middle, written);
+            insertRows(connection, buffer, middle, to, written);
+            return;
+        }
+        connection.releaseSavepoint(savepoint);
+        written.set(from, to);
+    }
+
+    private void insertStatement(Connection connection, NotificationBatchBuffer buffer, int from, int to) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(JdbcNotificationDataDao.buildInsertSql(to - from))) {
+            int index = 1;
+            for (int row = from; row < to; row++) {
+                statement.setInt(index++, buffer.getUid(row));
+                statement.setString(index++, buffer.getContext());
+                statement.setInt(index++, buffer.getMessageCount(row));
+                statement.setString(index++, buffer.getMessageType(row));
+                statement.setString(index++, buffer.getCreatedTsUTC());
+                statement.setString(index++, buffer.getPracticeIp());
+                statement.setString(index++, buffer.getHostName());
+                statement.setString(index++, buffer.getTomcatPath());
+            }
+            statement.executeUpdate();
+        }
+    }
+}
@@ -0,0 +1,364 @@
+package mobileoda.notification.service.mobileoda.impl;
+
+import mobileoda.notification.dao.NotificationBatchBuffer;
+import mobileoda.notification.journal.NotificationJournalHandler;
+import mobileoda.notification.journal.NotificationJournalRecord;
+import mobileoda.notification.journal.NotificationJournalReplayOutcome;
+import mobileoda.notification.journal.NotificationJournalReplayer;
+import mobileoda.notification.model.NotificationData;
+import mobileoda.notification.model.NotificationRequest;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Folds notification rows with the same (context, uid, messageType) into one row before they are
+ * persisted. The newest row is kept; its messageCount is the sum of the folded rows with
+ * {@code notification.aggregation.policy=sum}, or its own with {@code replace}.
+ *
+ * <p>Rows are folded within a request. With {@code notification.aggregation.window-ms} above 0 rows are
+ * also held for that window and folded with the rows of later requests, then written through
+ * NotificationJournalHandler. Enabled with {@code notification.aggregation.enabled=true}.
+ *
+ * <p>Held rows live only in memory, yet their request is answered as written: a crash or kill loses up
+ * to one window of rows. A flush that fails because the database is unavailable puts its rows back
+ * for the next window; rows the database rejects are logged and dropped. The window is therefore
+ * refused while the journal ({@code notification.journal.enabled=true}) is on, so that enabling
+ * aggregation never gives up the journal's durability; rows are then only folded within a request.
+ */
+@Component
+public class NotificationAggregator {
+    private Logger logger = LogManager.getLogger(NotificationAggregator.class);
+
+    static final String POLICY_SUM = "sum";
+    static final String POLICY_REPLACE = "replace";
+
+    @Autowired(required = false)
+    @Lazy
+    private NotificationJournalHandler notificationJournalHandler;
+
+    @Autowired(required = false)
+    private NotificationJournalReplayer notificationJournalReplayer;
+
+    @Value("${notification.aggregation.enabled:false}")
+    private boolean enabled;
+
+    @Value("${notification.aggregation.policy:sum}")
+    private String policy = POLICY_SUM;
+
+    @Value("${notification.aggregation.window-ms:0}")
+    private long windowMs;
+
+    @Value("${notification.aggregation.max-pending:100000}")
+    private int maxPending = 100000;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Map<AggregationKey, PendingRow> pending = new LinkedHashMap<>();
+
+    private final AtomicLong receivedRows = new AtomicLong();
+    private final AtomicLong foldedRows = new AtomicLong();
+    private final AtomicLong requeuedRows = new AtomicLong();
+
+    private ScheduledExecutorService flusher;
+
+    @PostConstruct
+    public void start() {
+        if (enabled && windowMs > 0 && isJournaled()) {
+            logger.warn("notification.aggregation.window-ms is ignored while the notification journal is enabled");
+        }
+        if (!isWindowEnabled()) {
+            return;
+        }
+        long flushIntervalMs = Math.max(1, windowMs / 2);
+        flusher = Executors.newSingleThreadScheduledExecutor(runnable -> new Thread(runnable, "notification-aggregation-flusher"));
+        flusher.scheduleWithFixedDelay(() -> flushQuietly(false), flushIntervalMs, flushIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public boolean isWindowEnabled() {
+        return enabled && windowMs > 0 && notificationJournalHandler != null && !isJournaled();
+    }
+
+    private boolean isJournaled() {
+        return notificationJournalReplayer != null && notificationJournalReplayer.isEnabled();
+    }
+
+    /**
+     * Fold the rows of a request with the same (uid, messageType).
+     *
+     * @param mobileContextRequest String value contains context-name
+     * @param lstNotificationData  Instance of List
+     * @return Instance of List holding one row per (uid, messageType), in order of first appearance
+     */
+    public List<NotificationData> aggregate(String mobileContextRequest, List<NotificationData> lstNotificationData) {
+        receivedRows.addAndGet(lstNotificationData.size());
+        Map<AggregationKey, NotificationData> rows = new LinkedHashMap<>(lstNotificationData.size() * 2);
+        Map<String, Integer> foldsByUid = new LinkedHashMap<>();
+        for (NotificationData notificationData : lstNotificationData) {
+            AggregationKey key = new AggregationKey(mobileContextRequest, notificationData);
+            NotificationData existing = rows.get(key);
+            if (existing == null) {
+                rows.put(key, notificationData);
+            } else {
+                rows.put(key, fold(existing, notificationData));
+                foldsByUid.merge(notificationData.getUid(), 1, Integer::sum);
+            }
+        }
+        reportFolds(mobileContextRequest, foldsByUid);
+        if (foldsByUid.isEmpty()) {
+            return lstNotificationData;
+        }
+        return new ArrayList<>(rows.values());
+    }
+
+    /**
+     * Hold the rows of a request for the aggregation window.
+     *
+     * @param mobileContextRequest String value contains context-name
+     * @param notificationRequest  Instance of NotificationRequest
+     * @param lstNotificationData  Instance of List
+     * @return true when the rows are held, false when the window is full and they must be written directly
+     * @throws NumberFormatException when a row does not parse; no row of the request is held then
+     */
+    public boolean hold(String mobileContextRequest, NotificationRequest notificationRequest, List<NotificationData> lstNotificationData) {
+        // A row failing halfway through would leave the rows before it held, and the client's retry of the
+        // request would add them a second time
+        for (NotificationData notificationData : lstNotificationData) {
+            NotificationBatchBuffer.validate(notificationData);
+        }
+        long now = System.currentTimeMillis();
+        Map<String, Integer> foldsByUid = new LinkedHashMap<>();
+        lock.lock();
+        try {
+            if (pending.size() + lstNotificationData.size() > maxPending) {
+                return false;
+            }
+            receivedRows.addAndGet(lstNotificationData.size());
+            for (NotificationData notificationData : lstNotificationData) {
+                AggregationKey key = new AggregationKey(mobileContextRequest, notificationData);
+                PendingRow pendingRow = pending.get(key);
+                if (pendingRow == null) {
+                    pending.put(key, new PendingRow(notificationData, notificationRequest, now));
+                } else {
+                    pendingRow.notificationData = fold(pendingRow.notificationData, notificationData);
+                    pendingRow.notificationRequest = notificationRequest;
+                    foldsByUid.merge(notificationData.getUid(), 1, Integer::sum);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        reportFolds(mobileContextRequest, foldsByUid);
+        return true;
+    }
+
+    /**
+     * Write the held rows whose window has elapsed, or every held row.
+     *
+     * @param all true to write every held row regardless of its window
+     */
+    public void flush(boolean all) {
+        long dueBefore = System.currentTimeMillis() - windowMs;
+        Map<List<String>, List<PendingRow>> rowsByRequest = new LinkedHashMap<>();
+        lock.lock();
+        try {
+            Iterator<PendingRow> iterator = pending.values().iterator();
+            while (iterator.hasNext()) {
+                PendingRow pendingRow = iterator.next();
+                // Rows are held in order of arrival, so the first row still in its window ends the scan
+                if (!all && pendingRow.firstSeenMs > dueBefore) {
+                    break;
+                }
+                iterator.remove();
+                rowsByRequest.computeIfAbsent(pendingRow.requestKey(), key -> new ArrayList<>()).add(pendingRow);
+            }
+        } finally {
+            lock.unlock();
+        }
+        for (List<PendingRow> rows : rowsByRequest.values()) {
+            List<NotificationData> lstNotificationData = new ArrayList<>(rows.size());
+            for (PendingRow pendingRow : rows) {
+                lstNotificationData.add(pendingRow.notificationData);
+            }
+            NotificationRequest notificationRequest = rows.get(rows.size() - 1).notificationRequest;
+            NotificationJournalReplayOutcome outcome;
+            try {
+                outcome = notificationJournalHandler.replayJournalRecord(
+                        new NotificationJournalRecord(notificationRequest.getMobileContext(), notificationRequest, lstNotificationData));
+            } catch (RuntimeException e) {
+                // Outages come back in the outcome; an exception is about the rows and would recur
+                logger.error("Failed to save aggregated notification data of context {}, dropping {} rows",
+                        notificationRequest.getMobileContext(), rows.size(), e);
+                continue;
+            }
+            if (outcome.isUnavailable()) {
+                logger.error("Failed to save aggregated notification data of context {}, holding it for the next window",
+                        notificationRequest.getMobileContext());
+                requeue(rows);
+            } else if (!outcome.getFailedUids().isEmpty()) {
+                logger.error("Failed to save aggregated notification data of context {} for uids {}",
+                        notificationRequest.getMobileContext(), outcome.getFailedUids());
+            }
+        }
+    }
+
+    /**
+     * Hold rows of a failed flush again, folded under any row of the same key that arrived since.
+     */
+    private void requeue(List<PendingRow> rows) {
+        long now = System.currentTimeMillis();
+        lock.lock();
+        try {
+            for (PendingRow row : rows) {
+                AggregationKey key = new AggregationKey(row.notificationRequest.getMobileContext(), row.notificationData);
+                PendingRow newer = pending.get(key);
+                if (newer == null) {
+                    pending.put(key, new PendingRow(row.notificationData, row.notificationRequest, now));
+                } else {
+                    newer.notificationData = fold(row.notificationData, newer.notificationData);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        requeuedRows.addAndGet(rows.size());
+    }
+
+    private void flushQuietly(boolean all) {
+        try {
+            flush(all);
+        } catch (RuntimeException e) {
+            logger.error("Notification aggregation flush failed", e);
+        }
+    }
+
+    private NotificationData fold(NotificationData older, NotificationData newer) {
+        NotificationData folded = new NotificationData();
+        folded.setUid(newer.getUid());
+        folded.setMessageType(newer.getMessageType());
+        folded.setDeviceToken(newer.getDeviceToken());
+        folded.setDevicePlatform(newer.getDevicePlatform());
+        folded.setMessage(newer.getMessage());
+        if (POLICY_REPLACE.equals(policy)) {
+            folded.setMessageCount(newer.getMessageCount());
+        } else {
+            folded.setMessageCount(String.valueOf(Integer.parseInt(older.getMessageCount()) + Integer.parseInt(newer.getMessageCount())));
+        }
+        return folded;
+    }
+
+    private void reportFolds(String mobileContextRequest, Map<String, Integer> foldsByUid) {
+        if (foldsByUid.isEmpty()) {
+            return;
+        }
+        int folds = 0;
+        for (Integer count : foldsByUid.values()) {
+            folds += count;
+        }
+        foldedRows.addAndGet(folds);
+        logger.info("Folded {} notification rows of context {}, folded rows per uid: {}", folds, mobileContextRequest, foldsByUid);
+    }
+
+    public long getReceivedRows() {
+        return receivedRows.get();
+    }
+
+    public long getFoldedRows() {
+        return foldedRows.get();
+    }
+
+    public long getRequeuedRows() {
+        return requeuedRows.get();
+    }
+
+    public int getPendingCount() {
+        lock.lock();
+        try {
+            return pending.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        if (flusher == null) {
+            return;
+        }
+        flusher.shutdown();
+        flusher.awaitTermination(10, TimeUnit.SECONDS);
+        flushQuietly(true);
+    }
+
+    private static final class AggregationKey {
+        private final String context;
+        private final String uid;
+        private final String messageType;
+
+        private AggregationKey(String context, NotificationData notificationData) {
+            this.context = context;
+            this.uid = StringUtils.trim(notificationData.getUid());
+            this.messageType = notificationData.getMessageType();
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (this == other) {
+                return true;
+            }
+            if (!(other instanceof AggregationKey)) {
+                return false;
+            }
+            AggregationKey key = (AggregationKey) other;
+            return Objects.equals(context, key.context) && Objects.equals(uid, key.uid)
+                    && Objects.equals(messageType, key.messageType);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(context, uid, messageType);
+        }
+    }
+
+    private static final class PendingRow {
+        private NotificationData notificationData;
+        private NotificationRequest notificationRequest;
+        private final long firstSeenMs;
+
+        private PendingRow(NotificationData notificationData, NotificationRequest notificationRequest, long firstSeenMs) {
+            this.notificationData = notificationData;
+            this.notificationRequest = notificationRequest;
+            this.firstSeenMs = firstSeenMs;
+        }
+
+        private List<String> requestKey() {
+            List<String> requestKey = new ArrayList<>(4);
+            requestKey.add(notificationRequest.getMobileContext());
+            requestKey.add(notificationRequest.getHostAddress());
+            requestKey.add(notificationRequest.getHostName());
+            requestKey.add(notificationRequest.getTomcatHome());
+            return requestKey;
+        }
+    }
+}
@@ -0,0 +1,208 @@
+package mobileoda.notification.dao;
+
+import mobileoda.notification.model.NotificationData;
+import mobileoda.notification.model.NotificationRequest;
+import mobileoda.notification.model.PushNotificationData;
+import org.apache.commons.lang3.StringUtils;
+
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Reusable, columnar buffer for one batch of notification rows. Uids and message counts are parsed once
+ * into {@code int[]}, message types and platforms are interned, the creation timestamp is computed once
+ * per batch and the request level host fields are held once instead of being copied into every row.
+ * Buffers are pooled; {@link #acquire} and {@link #release} bracket their use.
+ */
+public final class NotificationBatchBuffer {
+    private static final DateTimeFormatter CREATED_TS_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+    private static final int POOL_SIZE = 64;
+    private static final int MAX_INTERNED_VALUES = 256;
+    private static final ArrayBlockingQueue<NotificationBatchBuffer> POOL = new ArrayBlockingQueue<>(POOL_SIZE);
+
+    private int[] uids;
+    private int[] messageCounts;
+    private String[] messageTypes;
+    private String[] devicePlatforms;
+    private String[] deviceTokens;
+    private int size;
+    private int capacity;
+
+    private String context;
+    private String practiceIp;
+    private String hostName;
+    private String tomcatPath;
+    private String createdTsUTC;
+
+    private final Map<String, String> internedValues = new HashMap<>();
+
+    private NotificationBatchBuffer(int capacity) {
+        allocate(capacity);
+    }
+
+    /**
+     * Take a buffer from the pool, or create one, for the batches of a request.
+     *
+     * @param capacity            Maximum number of rows of a batch
+     * @param context             String value contains context-name
+     * @param notificationRequest Instance of NotificationRequest
+     * @return Instance of NotificationBatchBuffer
+     */
+    public static NotificationBatchBuffer acquire(int capacity, String context, NotificationRequest notificationRequest) {
+        NotificationBatchBuffer buffer = POOL.poll();
+        if (buffer == null) {
+            buffer = new NotificationBatchBuffer(capacity);
+        } else if (buffer.uids.length < capacity) {
+            buffer.allocate(capacity);
+        }
+        buffer.capacity = capacity;
+        buffer.context = context;
+        buffer.practiceIp = StringUtils.trimToEmpty(notificationRequest.getHostAddress());
+        buffer.hostName = StringUtils.trimToEmpty(notificationRequest.getHostName());
+        buffer.tomcatPath = StringUtils.trimToEmpty(notificationRequest.getTomcatHome());
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Return the buffer to the pool.
+     */
+    public void release() {
+        clear();
+        context = null;
+        POOL.offer(this);
+    }
+
+    private void allocate(int capacity) {
+        uids = new int[capacity];
+        messageCounts = new int[capacity];
+        messageTypes = new String[capacity];
+        devicePlatforms = new String[capacity];
+        deviceTokens = new String[capacity];
+    }
+
+    /**
+     * Add a row, parsing its uid and message count once.
+     *
+     * @param notificationData Instance of NotificationData
+     */
+    public void add(NotificationData notificationData) {
+        if (size == 0) {
+            createdTsUTC = LocalDateTime.now(ZoneOffset.UTC).format(CREATED_TS_FORMAT);
+        }
+        uids[size] = Integer.parseInt(notificationData.getUid());
+        messageCounts[size] = Integer.parseInt(notificationData.getMessageCount());
+        messageTypes[size] = intern(notificationData.getMessageType());
+        devicePlatforms[size] = intern(notificationData.getDevicePlatform());
+        deviceTokens[size] = notificationData.getDeviceToken();
+        size++;
+    }
+
+    /**
+     * Parse the uid and message count of a row the way {@link #add} does, without adding it.
+     *
+     * @param notificationData Instance of NotificationData
+     * @throws NumberFormatException when the uid or the message count is not a number
+     */
+    public static void validate(NotificationData notificationData) {
+        Integer.parseInt(notificationData.getUid());
+        Integer.parseInt(notificationData.getMessageCount());
+    }
+
+    public void clear() {
+        Arrays.fill(messageTypes, 0, size, null);
+        Arrays.fill(devicePlatforms, 0, size, null);
+        Arrays.fill(deviceTokens, 0, size, null);
+        size = 0;
+    }
+
+    public boolean isFull() {
+        return size == capacity;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int getUid(int row) {
+        return uids[row];
+    }
+
+    public int getMessageCount(int row) {
+        return messageCounts[row];
+    }
+
+    public String getMessageType(int row) {
+        return messageTypes[row];
+    }
+
+    public String getDevicePlatform(int row) {
+        return devicePlatforms[row];
+    }
+
+    public String getDeviceToken(int row) {
+        return deviceTokens[row];
+    }
+
+    public String getContext() {
+        return context;
+    }
+
+    public String getPracticeIp() {
+        return practiceIp;
+    }
+
+    public String getHostName() {
+        return hostName;
+    }
+
+    public String getTomcatPath() {
+        return tomcatPath;
+    }
+
+    public String getCreatedTsUTC() {
+        return createdTsUTC;
+    }
+
+    /**
+     * Build the entity of a row for the JPA write path.
+     *
+     * @param row index of the row
+     * @return Object of PushNotificationData
+     */
+    public PushNotificationData toPushNotificationData(int row) {
+        PushNotificationData pushNotificationData = new PushNotificationData();
+        pushNotificationData.setUid(uids[row]);
+        pushNotificationData.setContext(context);
+        pushNotificationData.setMessageCount(messageCounts[row]);
+        pushNotificationData.setMessageType(messageTypes[row]);
+        pushNotificationData.setCreatedTsUTC(createdTsUTC);
+        pushNotificationData.setPracticeIp(practiceIp);
+        pushNotificationData.setHostName(hostName);
+        pushNotificationData.setTomcatPath(tomcatPath);
+        return pushNotificationData;
+    }
+
+    private String intern(String value) {
+        if (value == null) {
+            return null;
+        }
+        String interned = internedValues.get(value);
+        if (interned != null) {
+            return interned;
+        }
+        if (internedValues.size() < MAX_INTERNED_VALUES) {
+            internedValues.put(value, value);
+        }
+        return value;
+    }
+}
@@ -0,0 +1,111 @@
+package mobileoda.notification.dao;
+
+import mobileoda.notification.model.DeviceDetails;
+import mobileoda.notification.model.NotificationData;
+import mobileoda.notification.model.NotificationRequest;
+import mobileoda.notification.model.PushNotificationData;
+import org.apache.commons.lang3.StringUtils;
+
+import java.lang.management.ManagementFactory;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Reports the bytes allocated per row when {@code rows} request rows are turned into batches of 1000: as
+ * the PushNotificationData, DeviceDetails and uid lists built per row before NotificationBatchBuffer, as a
+ * pooled NotificationBatchBuffer bound over JDBC, and as the buffer plus the JPA entities built from it.
+ * Argument: [rows], by default 100000; the per-thread allocation counter needs a HotSpot JVM.
+ */
+public class NotificationBatchBufferHarness {
+
+    public static void main(String[] args) {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+        int batchSize = 1000;
+        List<NotificationData> lstNotificationData = new ArrayList<>(rows);
+        String[] platforms = {"iOS", "Android"};
+        for (int i = 0; i < rows; i++) {
+            NotificationData notificationData = new NotificationData();
+            notificationData.setUid(String.valueOf(1000 + i % 5000));
+            notificationData.setMessageCount(String.valueOf(1 + i % 5));
+            notificationData.setMessageType(new String("APPOINTMENT"));
+            notificationData.setDevicePlatform(new String(platforms[i % 2]));
+            notificationData.setDeviceToken("fcm_token_" + i);
+            lstNotificationData.add(notificationData);
+        }
+        NotificationRequest notificationRequest = new NotificationRequest();
+        notificationRequest.setHostAddress("192.168.1.100");
+        notificationRequest.setHostName("clinic-server-prod-01");
+        notificationRequest.setTomcatHome("/usr/local/tomcat9");
+
+        for (int warmup = 0; warmup < 5; warmup++) {
+            perRowObjectLists(lstNotificationData, notificationRequest, batchSize);
+            columnarBuffer(lstNotificationData, notificationRequest, batchSize, false);
+        }
+        long perRow = allocatedBytes(() -> perRowObjectLists(lstNotificationData, notificationRequest, batchSize));
+        long columnar = allocatedBytes(() -> columnarBuffer(lstNotificationData, notificationRequest, batchSize, false));
+        long columnarWithEntities = allocatedBytes(() -> columnarBuffer(lstNotificationData, notificationRequest, batchSize, true));
+        System.out.println("Rows: " + rows + ", batch size: " + batchSize);
+        System.out.printf("Per-row object lists:            %8.1f bytes/row%n", (double) perRow / rows);
+        System.out.printf("Columnar buffer (JDBC binding):  %8.1f bytes/row%n", (double) columnar / rows);
+        System.out.printf("Columnar buffer + JPA entities:  %8.1f bytes/row%n", (double) columnarWithEntities / rows);
+    }
+
+    private static void perRowObjectLists(List<NotificationData> lstNotificationData, NotificationRequest notificationRequest, int batchSize) {
+        List<PushNotificationData> pushNotificationDataList = new ArrayList<>(batchSize);
+        List<DeviceDetails> deviceDetailsList = new ArrayList<>(batchSize);
+        List<Integer> uidList = new ArrayList<>(batchSize);
+        for (NotificationData notificationData : lstNotificationData) {
+            PushNotificationData pushNotificationData = new PushNotificationData();
+            pushNotificationData.setUid(Integer.parseInt(notificationData.getUid()));
+            pushNotificationData.setContext("CTX");
+            pushNotificationData.setMessageCount(Integer.parseInt(notificationData.getMessageCount()));
+            pushNotificationData.setMessageType(notificationData.getMessageType());
+            pushNotificationData.setCreatedTsUTC(new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date()));
+            pushNotificationData.setPracticeIp(StringUtils.trimToEmpty(notificationRequest.getHostAddress()));
+            pushNotificationData.setHostName(StringUtils.trimToEmpty(notificationRequest.getHostName()));
+            pushNotificationData.setTomcatPath(StringUtils.trimToEmpty(notificationRequest.getTomcatHome()));
+            pushNotificationDataList.add(pushNotificationData);
+
+            DeviceDetails deviceDetails = new DeviceDetails();
+            deviceDetails.setUid(Integer.parseInt(notificationData.getUid()));
+            deviceDetails.setContext("CTX");
+            deviceDetails.setDevicePlatform(notificationData.getDevicePlatform());
+            deviceDetails.setDeviceToken(notificationData.getDeviceToken());
+            deviceDetailsList.add(deviceDetails);
+            uidList.add(Integer.parseInt(notificationData.getUid()));
+
+            if (pushNotificationDataList.size() >= batchSize) {
+                pushNotificationDataList.clear();
+                deviceDetailsList.clear();
+                uidList.clear();
+            }
+        }
+    }
+
+    private static void columnarBuffer(List<NotificationData> lstNotificationData, NotificationRequest notificationRequest, int batchSize, boolean withEntities) {
+        NotificationBatchBuffer buffer = NotificationBatchBuffer.acquire(batchSize, "CTX", notificationRequest);
+        for (NotificationData notificationData : lstNotificationData) {
+            buffer.add(notificationData);
+            if (buffer.isFull()) {
+                if (withEntities) {
+                    List<PushNotificationData> pushNotificationDataList = new ArrayList<>(buffer.size());
+                    for (int row = 0; row < buffer.size(); row++) {
+                        pushNotificationDataList.add(buffer.toPushNotificationData(row));
+                    }
+                }
+                buffer.clear();
+            }
+        }
+        buffer.release();
+    }
+
+    private static long allocatedBytes(Runnable runnable) {
+        com.sun.management.ThreadMXBean threadMXBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        long before = threadMXBean.getThreadAllocatedBytes(threadId);
+        runnable.run();
+        return threadMXBean.getThreadAllocatedBytes(threadId) - before;
+    }
+}
@@ -0,0 +1,17 @@
+package mobileoda.notification.dao;
+
+import java.util.BitSet;
+
+/**
+ * Implemented by a NotificationDataDao that binds a NotificationBatchBuffer directly, without
+ * building a PushNotificationData entity per row.
+ */
+public interface NotificationBatchWriter {
+    /**
+     * Save the rows of a batch buffer.
+     *
+     * @param buffer Instance of NotificationBatchBuffer
+     * @return BitSet of the row indexes that were written
+     */
+    BitSet saveNotificationBatch(NotificationBatchBuffer buffer);
+}
@@ -0,0 +1,240 @@
+package mobileoda.notification.service.mobileoda.impl;
+
+import mobileoda.notification.dao.DeviceDetailsDao;
+import mobileoda.notification.dao.NotificationDataDao;
+import mobileoda.notification.model.DeviceDetails;
+import mobileoda.notification.model.NotificationData;
+import mobileoda.notification.model.NotificationRequest;
+import mobileoda.notification.model.PushNotificationData;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JMH benchmarks of NotificationServiceImpl.insertNotificationDetails.
+ *
+ * <ul>
+ *     <li>{@link #inMemory}: against in-memory DAO stubs, with payload size, batch size and failure rate
+ *     as parameters. Rows whose uid falls in the failure rate make their batch fail, which exercises the
+ *     batch-failure recovery path.</li>
+ *     <li>{@link #embeddedH2}: against the real DAOs on an embedded H2 database.</li>
+ * </ul>
+ *
+ * Run with {@code -prof gc} to report allocation per operation next to ops/sec, e.g.
+ * {@code java -jar benchmarks.jar NotificationIngestBenchmark -prof gc}.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class NotificationIngestBenchmark {
+    private static final String CONTEXT = "BENCH_CLINIC";
+
+    @State(Scope.Benchmark)
+    public static class InMemoryState {
+        @Param({"100", "5000", "50000"})
+        public int payloadSize;
+
+        @Param({"50", "500", "1000"})
+        public int batchSize;
+
+        /** Failing rows per thousand. */
+        @Param({"0", "1", "10"})
+        public int failurePermille;
+
+        private NotificationServiceImpl service;
+        private Method insertNotificationDetails;
+        private List<NotificationData> lstNotificationData;
+        private NotificationRequest notificationRequest;
+
+        @Setup(Level.Trial)
+        public void setUp() throws Exception {
+            service = NotificationServiceImpl.standalone(new InMemoryNotificationDataDao(batchSize, failurePermille), new InMemoryDeviceDetailsDao());
+            insertNotificationDetails = insertNotificationDetailsMethod();
+            lstNotificationData = notificationData(payloadSize);
+            notificationRequest = notificationRequest();
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class EmbeddedH2State {
+        @Param({"100", "5000"})
+        public int payloadSize;
+
+        @Param({"jpa", "jdbc"})
+        public String insertMode;
+
+        @Param({"500"})
+        public int batchSize;
+
+        private ConfigurableApplicationContext context;
+        private NotificationServiceImpl service;
+        private Method insertNotificationDetails;
+        private List<NotificationData> lstNotificationData;
+        private NotificationRequest notificationRequest;
+
+        @Setup(Level.Trial)
+        public void setUp() throws Exception {
+            context = new SpringApplicationBuilder(NotificationServiceImpl.TestConfig.class)
+                    .properties(
+                            "spring.datasource.url=jdbc:h2:mem:notification_bench;DB_CLOSE_DELAY=-1",
+                            "spring.datasource.driver-class-name=org.h2.Driver",
+                            "spring.jpa.hibernate.ddl-auto=create",
+                            "spring.jpa.properties.hibernate.jdbc.batch_size=" + batchSize,
+                            "notification.dao.insert-mode=" + insertMode,
+                            "notification.jdbc.batch-size=" + batchSize,
+                            "logging.level.root=WARN")
+                    .run();
+            service = NotificationServiceImpl.fromContext(context);
+            insertNotificationDetails = insertNotificationDetailsMethod();
+            lstNotificationData = notificationData(payloadSize);
+            notificationRequest = notificationRequest();
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            context.close();
+        }
+    }
+
+    @Benchmark
+    public Object inMemory(InMemoryState state) throws Exception {
+        return state.insertNotificationDetails.invoke(state.service, state.lstNotificationData, CONTEXT, state.notificationRequest);
+    }
+
+    @Benchmark
+    public Object embeddedH2(EmbeddedH2State state) throws Exception {
+        return state.insertNotificationDetails.invoke(state.service, state.lstNotificationData, CONTEXT, state.notificationRequest);
+    }
+
+    /**
+     * NotificationDataDao keeping nothing. A batch holding a failing row throws, and a failing row
+     * saved on its own returns null, like the JPA DAO does.
+     */
+    static final class InMemoryNotificationDataDao implements NotificationDataDao {
+        private static final Field UID_FIELD = uidField();
+
+        private final int batchSize;
+        private final int failurePermille;
+
+        InMemoryNotificationDataDao(int batchSize, int failurePermille) {
+            this.batchSize = batchSize;
+            this.failurePermille = failurePermille;
+        }
+
+        @Override
+        public int getBatchSize() {
+            return batchSize;
+        }
+
+        @Override
+        public PushNotificationData savePushNotificationData(PushNotificationData pushNotificationData) {
+            return isFailing(pushNotificationData) ? null : pushNotificationData;
+        }
+
+        @Override
+        public List<PushNotificationData> savePushNotificationDataBatch(List<PushNotificationData> lstPushNotificationData) {
+            for (PushNotificationData pushNotificationData : lstPushNotificationData) {
+                if (isFailing(pushNotificationData)) {
+                    throw new IllegalStateException("Simulated batch failure");
+                }
+            }
+            return lstPushNotificationData;
+        }
+
+        private boolean isFailing(PushNotificationData pushNotificationData) {
+            try {
+                return ((Integer) UID_FIELD.get(pushNotificationData)) % 1000 < failurePermille;
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        private static Field uidField() {
+            try {
+                Field field = PushNotificationData.class.getDeclaredField("uid");
+                field.setAccessible(true);
+                return field;
+            } catch (NoSuchFieldException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    /**
+     * DeviceDetailsDao without persisted devices that accepts every write.
+     */
+    static final class InMemoryDeviceDetailsDao implements DeviceDetailsDao {
+        @Override
+        public DeviceDetails findByUidAndContext(int uid, String context) {
+            return new DeviceDetails();
+        }
+
+        @Override
+        public List<DeviceDetails> findByUidsAndContext(List<Integer> uids, String context) {
+            return new ArrayList<>();
+        }
+
+        @Override
+        public DeviceDetails saveDeviceDetails(DeviceDetails deviceDetails) {
+            return deviceDetails;
+        }
+
+        @Override
+        public List<DeviceDetails> saveDeviceDetailsBatch(List<DeviceDetails> lstDeviceDetails) {
+            return lstDeviceDetails;
+        }
+    }
+
+    private static List<NotificationData> notificationData(int count) {
+        String[] messageTypes = {"APPOINTMENT", "LAB_RESULT", "PRESCRIPTION", "MESSAGE", "REMINDER"};
+        String[] platforms = {"iOS", "Android"};
+        List<NotificationData> lstNotificationData = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            NotificationData notificationData = new NotificationData();
+            notificationData.setUid(String.valueOf(100000 + i));
+            notificationData.setMessageCount(String.valueOf(1 + i % 5));
+            notificationData.setMessageType(messageTypes[i % messageTypes.length]);
+            notificationData.setDeviceToken("fcm_token_" + Integer.toHexString(i * 0x9E3779B9));
+            notificationData.setDevicePlatform(platforms[i % platforms.length]);
+            notificationData.setMessage("Benchmark notification " + i);
+            lstNotificationData.add(notificationData);
+        }
+        return lstNotificationData;
+    }
+
+    private static NotificationRequest notificationRequest() {
+        NotificationRequest notificationRequest = new NotificationRequest();
+        notificationRequest.setMobileContext(CONTEXT);
+        notificationRequest.setHostName("bench-host");
+        notificationRequest.setHostAddress("127.0.0.1");
+        notificationRequest.setTomcatHome("/opt/tomcat");
+        return notificationRequest;
+    }
+
+    private static Method insertNotificationDetailsMethod() throws NoSuchMethodException {
+        Method method = NotificationServiceImpl.class.getDeclaredMethod("insertNotificationDetails",
+                List.class, String.class, NotificationRequest.class);
+        method.setAccessible(true);
+        return method;
+    }
+}
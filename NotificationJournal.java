@@ -0,0 +1,447 @@
+package mobileoda.notification.journal;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of memory-mapped, fixed size segment files.
+ *
+ * <p>Each record is {@code [int length][int crc32][long sequence][payload]}. A record that does not fit
+ * the rest of the current segment rotates to a new segment. Appends are made durable with group fsync:
+ * concurrent callers of {@link #awaitDurable(long)} share one {@code force()} of the segment.
+ * On open, a record torn by a crash (bad length, crc or sequence) ends the journal and is zeroed.
+ */
+public class NotificationJournal implements Closeable {
+    private static final Logger logger = LogManager.getLogger(NotificationJournal.class);
+
+    static final int HEADER_SIZE = 16;
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String CHECKPOINT_FILE = "checkpoint";
+    private static final String JOURNAL_ID_FILE = "journal-id";
+
+    private final Path directory;
+    private final int segmentSize;
+    private String journalId;
+
+    private final ReentrantLock appendLock = new ReentrantLock();
+    private long currentSegmentIndex;
+    private FileChannel currentChannel;
+    private MappedByteBuffer currentSegment;
+    private long nextSequence;
+
+    private final ReentrantLock syncLock = new ReentrantLock();
+    private final Condition syncDone = syncLock.newCondition();
+    private volatile long appendedSequence;
+    private volatile long durableSequence;
+    private boolean syncing;
+
+    private NotificationJournal(Path directory, int segmentSize) {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+    }
+
+    /**
+     * Open a journal directory, recovering the position after the last complete record.
+     *
+     * @param directory   Path of the journal directory
+     * @param segmentSize Size of a segment file in bytes
+     * @return Instance of NotificationJournal
+     * @throws IOException when the directory cannot be read or written
+     */
+    public static NotificationJournal open(Path directory, int segmentSize) throws IOException {
+        Files.createDirectories(directory);
+        NotificationJournal journal = new NotificationJournal(directory, segmentSize);
+        journal.recover();
+        journal.loadJournalId();
+        return journal;
+    }
+
+    private void recover() throws IOException {
+        List<Long> segments = listSegments();
+        long lastSequence = 0;
+        if (segments.isEmpty()) {
+            openSegment(0, 0);
+        } else {
+            for (int i = 0; i < segments.size(); i++) {
+                long segmentIndex = segments.get(i);
+                boolean last = i == segments.size() - 1;
+                try (FileChannel channel = FileChannel.open(segmentPath(segmentIndex), StandardOpenOption.READ)) {
+                    ByteBuffer segment = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                    int offset = 0;
+                    while (true) {
+                        long sequence = validRecordSequence(segment, offset, lastSequence == 0 ? 0 : lastSequence + 1);
+                        if (sequence < 0) {
+                            break;
+                        }
+                        lastSequence = sequence;
+                        offset += HEADER_SIZE + segment.getInt(offset);
+                    }
+                    if (last) {
+                        openSegment(segmentIndex, offset);
+                        zeroTail(offset);
+                    }
+                }
+            }
+        }
+        // Replayed segments may all be gone: never hand out a sequence at or below the checkpoint again
+        lastSequence = Math.max(lastSequence, readCheckpoint());
+        nextSequence = lastSequence + 1;
+        appendedSequence = lastSequence;
+        durableSequence = lastSequence;
+        logger.info("Notification journal {} opened at sequence {}", directory, lastSequence);
+    }
+
+    /**
+     * Sequence of the complete record at an offset, or -1 when the offset holds no complete record.
+     * An expected sequence of 0 accepts any sequence, for the first record of the journal.
+     */
+    static long validRecordSequence(ByteBuffer segment, int offset, long expectedSequence) {
+        if (offset + HEADER_SIZE > segment.limit()) {
+            return -1;
+        }
+        int length = segment.getInt(offset);
+        if (length <= 0 || offset + HEADER_SIZE + length > segment.limit()) {
+            return -1;
+        }
+        long sequence = segment.getLong(offset + 8);
+        if (sequence <= 0 || (expectedSequence > 0 && sequence != expectedSequence)) {
+            return -1;
+        }
+        return crc(segment, offset + HEADER_SIZE, length) == segment.getInt(offset + 4) ? sequence : -1;
+    }
+
+    private static int crc(ByteBuffer segment, int offset, int length) {
+        CRC32 crc32 = new CRC32();
+        ByteBuffer payload = segment.duplicate();
+        payload.limit(offset + length).position(offset);
+        crc32.update(payload);
+        return (int) crc32.getValue();
+    }
+
+    /**
+     * Append a record. The record is not durable before {@link #awaitDurable(long)} returns for its sequence.
+     *
+     * @param payload byte array of the record
+     * @return sequence of the record
+     */
+    public long append(byte[] payload) {
+        if (payload.length == 0 || HEADER_SIZE + payload.length > segmentSize) {
+            throw new IllegalArgumentException("Journal record of " + payload.length + " bytes does not fit a segment of " + segmentSize);
+        }
+        appendLock.lock();
+        try {
+            if (currentSegment.remaining() < HEADER_SIZE + payload.length) {
+                rotate();
+            }
+            CRC32 crc32 = new CRC32();
+            crc32.update(payload, 0, payload.length);
+            long sequence = nextSequence++;
+            int offset = currentSegment.position();
+            // The length is written last, so a crash mid-record never leaves a record that looks complete
+            currentSegment.position(offset + 4);
+            currentSegment.putInt((int) crc32.getValue());
+            currentSegment.putLong(sequence);
+            currentSegment.put(payload);
+            currentSegment.putInt(offset, payload.length);
+            appendedSequence = sequence;
+            return sequence;
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    /**
+     * Wait until a record is on disk. Callers arriving while a force is running wait for it and
+     * then share the next one.
+     *
+     * @param sequence sequence of the record
+     */
+    public void awaitDurable(long sequence) {
+        while (true) {
+            // A lock and condition rather than a monitor, so a virtual thread waiting here does not pin its carrier
+            syncLock.lock();
+            try {
+                while (syncing && durableSequence < sequence) {
+                    try {
+                        syncDone.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IllegalStateException("Interrupted while waiting for journal sync", e);
+                    }
+                }
+                if (durableSequence >= sequence) {
+                    return;
+                }
+                syncing = true;
+            } finally {
+                syncLock.unlock();
+            }
+            try {
+                MappedByteBuffer segment;
+                long target;
+                appendLock.lock();
+                try {
+                    segment = currentSegment;
+                    target = appendedSequence;
+                } finally {
+                    appendLock.unlock();
+                }
+                segment.force();
+                syncLock.lock();
+                try {
+                    durableSequence = Math.max(durableSequence, target);
+                } finally {
+                    syncLock.unlock();
+                }
+            } finally {
+                syncLock.lock();
+                try {
+                    syncing = false;
+                    syncDone.signalAll();
+                } finally {
+                    syncLock.unlock();
+                }
+            }
+        }
+    }
+
+    public long getDurableSequence() {
+        return durableSequence;
+    }
+
+    private void rotate() {
+        try {
+            currentSegment.force();
+            currentChannel.close();
+            openSegment(currentSegmentIndex + 1, 0);
+            logger.info("Notification journal rotated to segment {}", currentSegmentIndex);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to rotate notification journal", e);
+        }
+    }
+
+    private void openSegment(long segmentIndex, int position) throws IOException {
+        currentChannel = FileChannel.open(segmentPath(segmentIndex),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        currentSegment = currentChannel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        currentSegment.position(position);
+        currentSegmentIndex = segmentIndex;
+    }
+
+    /**
+     * Zero whatever a torn append left behind the last complete record of the recovered segment.
+     */
+    private void zeroTail(int position) {
+        byte[] zeros = new byte[8192];
+        ByteBuffer tail = currentSegment.duplicate();
+        tail.position(position);
+        while (tail.hasRemaining()) {
+            tail.put(zeros, 0, Math.min(zeros.length, tail.remaining()));
+        }
+        currentSegment.force();
+    }
+
+    /**
+     * Open a reader positioned at the first record with a sequence above a checkpoint.
+     *
+     * @param checkpoint sequence of the last record already replayed
+     * @return Instance of Reader
+     */
+    public Reader openReader(long checkpoint) {
+        return new Reader(checkpoint);
+    }
+
+    /**
+     * Delete every segment before a segment index.
+     *
+     * @param segmentIndex index of the oldest segment to keep
+     */
+    public void deleteSegmentsBefore(long segmentIndex) {
+        try {
+            for (long index : listSegments()) {
+                if (index < segmentIndex) {
+                    Files.deleteIfExists(segmentPath(index));
+                }
+            }
+        } catch (IOException e) {
+            logger.warn("Failed to delete replayed journal segments", e);
+        }
+    }
+
+    /**
+     * Identity of the journal directory, created with it. Sequences are only unique within one journal,
+     * so the database tells the records of the journals of several instances apart by it.
+     *
+     * @return String value of the journal id
+     */
+    public String getJournalId() {
+        return journalId;
+    }
+
+    private void loadJournalId() throws IOException {
+        Path journalIdFile = directory.resolve(JOURNAL_ID_FILE);
+        if (!Files.exists(journalIdFile)) {
+            Path temp = directory.resolve(JOURNAL_ID_FILE + ".tmp");
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                channel.write(ByteBuffer.wrap(UUID.randomUUID().toString().getBytes(StandardCharsets.US_ASCII)));
+                channel.force(true);
+            }
+            Files.move(temp, journalIdFile, StandardCopyOption.ATOMIC_MOVE);
+        }
+        journalId = new String(Files.readAllBytes(journalIdFile), StandardCharsets.US_ASCII).trim();
+    }
+
+    public long readCheckpoint() throws IOException {
+        Path checkpoint = directory.resolve(CHECKPOINT_FILE);
+        if (!Files.exists(checkpoint)) {
+            return 0;
+        }
+        return Long.parseLong(new String(Files.readAllBytes(checkpoint), StandardCharsets.US_ASCII).trim());
+    }
+
+    public void writeCheckpoint(long sequence) throws IOException {
+        Path temp = directory.resolve(CHECKPOINT_FILE + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            channel.write(ByteBuffer.wrap(Long.toString(sequence).getBytes(StandardCharsets.US_ASCII)));
+            channel.force(true);
+        }
+        Files.move(temp, directory.resolve(CHECKPOINT_FILE), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private List<Long> listSegments() throws IOException {
+        List<Long> segments = new ArrayList<>();
+        try (Stream<Path> files = Files.list(directory)) {
+            files.map(path -> path.getFileName().toString())
+                    .filter(name -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX))
+                    .forEach(name -> segments.add(Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()))));
+        }
+        Collections.sort(segments);
+        return segments;
+    }
+
+    private Path segmentPath(long segmentIndex) {
+        return directory.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, segmentIndex, SEGMENT_SUFFIX));
+    }
+
+    @Override
+    public void close() throws IOException {
+        appendLock.lock();
+        try {
+            currentSegment.force();
+            currentChannel.close();
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    /**
+     * Reads durable records in sequence order, following segment rotation.
+     */
+    public final class Reader implements Closeable {
+        private long segmentIndex = -1;
+        private ByteBuffer segment;
+        private FileChannel channel;
+        private int offset;
+        private long lastSequence;
+
+        private Reader(long checkpoint) {
+            this.lastSequence = checkpoint;
+        }
+
+        /**
+         * Read the next durable record.
+         *
+         * @return payload of the record, or null when no further record is durable yet
+         * @throws IOException when a segment cannot be read
+         */
+        public byte[] next() throws IOException {
+            while (durableSequence > lastSequence) {
+                if (segment == null && !openSegment(firstSegment())) {
+                    return null;
+                }
+                if (offset + HEADER_SIZE > segment.limit() || segment.getInt(offset) <= 0) {
+                    // End of this segment: the next record was rotated into the following one
+                    if (!openSegment(segmentIndex + 1)) {
+                        return null;
+                    }
+                    continue;
+                }
+                int length = segment.getInt(offset);
+                if (segment.getLong(offset + 8) <= lastSequence) {
+                    // Replayed before the checkpoint
+                    offset += HEADER_SIZE + length;
+                    continue;
+                }
+                long sequence = validRecordSequence(segment, offset, lastSequence + 1);
+                if (sequence < 0) {
+                    throw new IOException("Corrupt journal record in segment " + segmentIndex + " at offset " + offset);
+                }
+                byte[] payload = new byte[length];
+                ByteBuffer record = segment.duplicate();
+                record.position(offset + HEADER_SIZE);
+                record.get(payload);
+                offset += HEADER_SIZE + length;
+                lastSequence = sequence;
+                return payload;
+            }
+            return null;
+        }
+
+        public long getLastSequence() {
+            return lastSequence;
+        }
+
+        public long getSegmentIndex() {
+            return segmentIndex;
+        }
+
+        private long firstSegment() throws IOException {
+            List<Long> segments = listSegments();
+            return segments.isEmpty() ? 0 : segments.get(0);
+        }
+
+        private boolean openSegment(long index) throws IOException {
+            Path path = segmentPath(index);
+            if (!Files.exists(path)) {
+                return false;
+            }
+            close();
+            channel = FileChannel.open(path, StandardOpenOption.READ);
+            segment = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            segmentIndex = index;
+            offset = 0;
+            return true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (channel != null) {
+                channel.close();
+                channel = null;
+            }
+        }
+    }
+}
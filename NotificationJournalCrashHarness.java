@@ -0,0 +1,355 @@
+package mobileoda.notification.journal;
+
+import mobileoda.notification.model.NotificationData;
+import mobileoda.notification.model.NotificationRequest;
+import mobileoda.notification.service.mobileoda.impl.NotificationAggregator;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.core.env.MapPropertySource;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+/**
+ * Crashes the notification journal and its replayer at the points where records could be lost or written
+ * twice.
+ *
+ * <ul>
+ *     <li>Writer crash: forks a JVM that appends and replays records, kills it with SIGKILL while it is
+ *     appending, then checks that the reopened journal holds every acknowledged record, and that replay
+ *     resumes right after the last checkpoint with no record lost or repeated.</li>
+ *     <li>Replayer crash: kills the replay thread between the database write of a record and its
+ *     checkpoint, restarts the replayer and checks that the record is replayed, found applied and skipped,
+ *     so every row is written exactly once.</li>
+ *     <li>Replay during an outage with aggregation on: a record whose rows fold into fewer rows fails as a
+ *     whole, and NotificationJournalReplayer must keep retrying it instead of checkpointing it as partly
+ *     written.</li>
+ *     <li>Poison records: a record the handler throws on and a record whose every row the database
+ *     rejects are dead-lettered once each, and the records after them are still replayed.</li>
+ * </ul>
+ */
+public class NotificationJournalCrashHarness {
+    private static final String WRITER = "writer";
+    private static final String DURABLE = "durable ";
+    private static final String CHECKPOINT = "checkpoint ";
+    private static final int SEGMENT_SIZE = 4096;
+    private static final int ACKNOWLEDGED_BEFORE_KILL = 2000;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length == 2 && WRITER.equals(args[0])) {
+            runWriter(Paths.get(args[1]));
+            return;
+        }
+        boolean writerPassed = writerCrashTest();
+        boolean replayerPassed = replayerCrashTest();
+        boolean outagePassed = aggregatedOutageTest();
+        boolean poisonPassed = poisonRecordTest();
+        if (!writerPassed || !replayerPassed || !outagePassed || !poisonPassed) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Child process: appends records as fast as it can and replays them on a second thread, reporting
+     * every durable sequence and every checkpoint on stdout, until it is killed.
+     */
+    private static void runWriter(Path directory) throws IOException {
+        NotificationJournal journal = NotificationJournal.open(directory, SEGMENT_SIZE);
+        Thread replayer = new Thread(() -> {
+            try (NotificationJournal.Reader reader = journal.openReader(journal.readCheckpoint())) {
+                while (true) {
+                    if (reader.next() == null) {
+                        Thread.sleep(1);
+                        continue;
+                    }
+                    journal.writeCheckpoint(reader.getLastSequence());
+                    report(CHECKPOINT + reader.getLastSequence());
+                }
+            } catch (IOException | InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+        }, "crash-harness-replayer");
+        replayer.setDaemon(true);
+        replayer.start();
+        for (int i = 1; ; i++) {
+            long sequence = journal.append(testPayload(i));
+            journal.awaitDurable(sequence);
+            report(DURABLE + sequence);
+        }
+    }
+
+    private static synchronized void report(String line) {
+        System.out.println(line);
+        System.out.flush();
+    }
+
+    private static boolean writerCrashTest() throws IOException, InterruptedException {
+        Path testDirectory = Files.createTempDirectory("notification-journal");
+        System.out.println("Notification journal writer crash test in " + testDirectory);
+        Process writer = new ProcessBuilder(Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+                "-cp", System.getProperty("java.class.path"), NotificationJournalCrashHarness.class.getName(),
+                WRITER, testDirectory.toString())
+                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                .start();
+
+        long acknowledged = 0;
+        long checkpointed = 0;
+        try (BufferedReader output = new BufferedReader(new InputStreamReader(writer.getInputStream(), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = output.readLine()) != null) {
+                if (line.startsWith(DURABLE)) {
+                    acknowledged = Long.parseLong(line.substring(DURABLE.length()));
+                } else if (line.startsWith(CHECKPOINT)) {
+                    checkpointed = Long.parseLong(line.substring(CHECKPOINT.length()));
+                }
+                if (acknowledged >= ACKNOWLEDGED_BEFORE_KILL && checkpointed > 0) {
+                    // destroyForcibly sends SIGKILL on Unix: no shutdown hook, no unmap, no final force
+                    writer.destroyForcibly();
+                    break;
+                }
+            }
+        }
+        if (!writer.waitFor(10, TimeUnit.SECONDS) || acknowledged < ACKNOWLEDGED_BEFORE_KILL) {
+            System.out.println("Journal writer crash test FAILED: writer acknowledged " + acknowledged + " records");
+            writer.destroyForcibly();
+            return false;
+        }
+
+        NotificationJournal recovered = NotificationJournal.open(testDirectory, SEGMENT_SIZE);
+        long checkpoint = recovered.readCheckpoint();
+        long expected = checkpoint + 1;
+        boolean passed = checkpoint >= checkpointed;
+        try (NotificationJournal.Reader reader = recovered.openReader(checkpoint)) {
+            byte[] payload;
+            while (passed && (payload = reader.next()) != null) {
+                passed = reader.getLastSequence() == expected
+                        && new String(payload, StandardCharsets.UTF_8).equals(new String(testPayload((int) expected), StandardCharsets.UTF_8));
+                expected++;
+            }
+        }
+        long lastRecovered = expected - 1;
+        passed = passed && lastRecovered >= acknowledged;
+        // The journal keeps appending after the torn tail
+        long appended = recovered.append(testPayload((int) lastRecovered + 1));
+        recovered.awaitDurable(appended);
+        passed = passed && appended == lastRecovered + 1;
+        recovered.close();
+
+        System.out.println("Killed after " + acknowledged + " acknowledged records, checkpoint " + checkpointed
+                + "; recovered checkpoint " + checkpoint + ", replayed up to " + lastRecovered);
+        System.out.println(passed
+                ? "Journal writer crash test passed: no acknowledged record lost, no record replayed twice"
+                : "Journal writer crash test FAILED");
+        return passed;
+    }
+
+    private static boolean replayerCrashTest() throws Exception {
+        Path testDirectory = Files.createTempDirectory("notification-journal-replayer");
+        int recordCount = 50;
+        long crashAfterWriting = 30;
+
+        // The database commits the rows of a record together with its sequence, as JdbcNotificationJournalDao does
+        List<String> database = new ArrayList<>();
+        Map<String, Long> appliedSequences = new HashMap<>();
+        AtomicBoolean crashed = new AtomicBoolean();
+        NotificationJournalHandler handler = (journalId, sequence, record) -> {
+            synchronized (database) {
+                if (appliedSequences.getOrDefault(journalId, 0L) < sequence) {
+                    database.add(record.getNotificationData().get(0).getUid());
+                    appliedSequences.put(journalId, sequence);
+                }
+            }
+            if (sequence == crashAfterWriting && crashed.compareAndSet(false, true)) {
+                // The process dies after the commit, before the checkpoint
+                throw new ReplayerCrash();
+            }
+            return new NotificationJournalReplayOutcome(1, new ArrayList<>());
+        };
+
+        Thread.UncaughtExceptionHandler uncaughtExceptionHandler = Thread.getDefaultUncaughtExceptionHandler();
+        Thread.setDefaultUncaughtExceptionHandler((thread, e) -> { });
+        NotificationJournalReplayer replayer = replayer(handler, testDirectory);
+        NotificationRequest notificationRequest = new NotificationRequest();
+        notificationRequest.setMobileContext("CLINIC_A");
+        for (int i = 1; i <= recordCount; i++) {
+            NotificationData notificationData = new NotificationData();
+            notificationData.setUid(String.valueOf(i));
+            notificationData.setMessageCount("1");
+            replayer.append(Collections.singletonList(
+                    new NotificationJournalRecord("CLINIC_A", notificationRequest, Collections.singletonList(notificationData))));
+        }
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!crashed.get() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        replayer.stop();
+        Thread.setDefaultUncaughtExceptionHandler(uncaughtExceptionHandler);
+
+        NotificationJournalReplayer restarted = replayer(handler, testDirectory);
+        deadline = System.currentTimeMillis() + 5000;
+        while (restarted.getReplayedRecords() < recordCount - crashAfterWriting + 1 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        restarted.stop();
+
+        long checkpoint;
+        try (NotificationJournal journal = NotificationJournal.open(testDirectory, 1024 * 1024)) {
+            checkpoint = journal.readCheckpoint();
+        }
+        boolean passed = crashed.get() && checkpoint == recordCount && database.size() == recordCount;
+        for (int i = 1; passed && i <= recordCount; i++) {
+            passed = Collections.frequency(database, String.valueOf(i)) == 1;
+        }
+        System.out.println("Replayer crash: " + database.size() + " rows written for " + recordCount + " records, checkpoint " + checkpoint);
+        System.out.println(passed
+                ? "Replayer crash test passed: the record in flight was replayed and skipped, every row written once"
+                : "Replayer crash test FAILED");
+        return passed;
+    }
+
+    private static boolean aggregatedOutageTest() throws Exception {
+        Path testDirectory = Files.createTempDirectory("notification-journal-outage");
+        // Folding on and no hold window, so rows only fold within a request
+        AnnotationConfigApplicationContext aggregatorContext = new AnnotationConfigApplicationContext();
+        aggregatorContext.getEnvironment().getPropertySources().addFirst(new MapPropertySource("harness",
+                Collections.singletonMap("notification.aggregation.enabled", "true")));
+        aggregatorContext.register(NotificationAggregator.class);
+        aggregatorContext.refresh();
+        NotificationAggregator aggregator = aggregatorContext.getBean(NotificationAggregator.class);
+
+        // Ten rows of three uids and two message types fold into five rows
+        List<NotificationData> lstNotificationData = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            NotificationData notificationData = new NotificationData();
+            notificationData.setUid(String.valueOf(i % 3));
+            notificationData.setMessageType(i % 3 == 0 ? "alert" : i % 2 == 0 ? "alert" : "reminder");
+            notificationData.setMessageCount("1");
+            lstNotificationData.add(notificationData);
+        }
+        NotificationRequest notificationRequest = new NotificationRequest();
+        notificationRequest.setMobileContext("CLINIC_A");
+
+        int outageAttempts = 3;
+        AtomicInteger attempts = new AtomicInteger();
+        List<NotificationData> database = Collections.synchronizedList(new ArrayList<>());
+        NotificationJournalHandler handler = (journalId, sequence, record) -> {
+            List<NotificationData> rows = aggregator.aggregate(record.getContext(), record.getNotificationData());
+            if (attempts.incrementAndGet() <= outageAttempts) {
+                // Database unavailable: every folded row fails, fewer failed uids than raw rows
+                List<Integer> lstFailedUid = new ArrayList<>();
+                for (NotificationData row : rows) {
+                    lstFailedUid.add(Integer.parseInt(row.getUid()));
+                }
+                return new NotificationJournalReplayOutcome(rows.size(), lstFailedUid, true);
+            }
+            database.addAll(rows);
+            return new NotificationJournalReplayOutcome(rows.size(), new ArrayList<>());
+        };
+
+        NotificationJournalReplayer replayer = replayer(handler, testDirectory);
+        replayer.append(Collections.singletonList(new NotificationJournalRecord("CLINIC_A", notificationRequest, lstNotificationData)));
+        long deadline = System.currentTimeMillis() + 5000;
+        while (replayer.getReplayedRecords() < 1 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        replayer.stop();
+        aggregatorContext.close();
+
+        long checkpoint;
+        try (NotificationJournal journal = NotificationJournal.open(testDirectory, 1024 * 1024)) {
+            checkpoint = journal.readCheckpoint();
+        }
+        boolean passed = attempts.get() == outageAttempts + 1 && database.size() == 5 && checkpoint == 1;
+        System.out.println("Outage replay: " + attempts.get() + " attempts, " + database.size() + " folded rows written, checkpoint " + checkpoint);
+        System.out.println(passed
+                ? "Aggregated outage test passed: the folded record was retried until written"
+                : "Aggregated outage test FAILED");
+        return passed;
+    }
+
+    private static boolean poisonRecordTest() throws Exception {
+        Path testDirectory = Files.createTempDirectory("notification-journal-poison");
+        AtomicInteger attempts = new AtomicInteger();
+        List<String> database = Collections.synchronizedList(new ArrayList<>());
+        NotificationJournalHandler handler = (journalId, sequence, record) -> {
+            attempts.incrementAndGet();
+            NotificationData notificationData = record.getNotificationData().get(0);
+            if ("rejected".equals(notificationData.getMessageType())) {
+                // Database reachable, the row violates a constraint
+                return new NotificationJournalReplayOutcome(1, Collections.singletonList(Integer.parseInt(notificationData.getUid())));
+            }
+            Integer.parseInt(notificationData.getUid());
+            database.add(notificationData.getUid());
+            return new NotificationJournalReplayOutcome(1, new ArrayList<>());
+        };
+
+        NotificationJournalReplayer replayer = replayer(handler, testDirectory);
+        NotificationRequest notificationRequest = new NotificationRequest();
+        notificationRequest.setMobileContext("CLINIC_A");
+        String[][] rows = {{"1", "alert"}, {"not-a-uid", "alert"}, {"2", "rejected"}, {"3", "alert"}};
+        for (String[] row : rows) {
+            NotificationData notificationData = new NotificationData();
+            notificationData.setUid(row[0]);
+            notificationData.setMessageType(row[1]);
+            notificationData.setMessageCount("1");
+            replayer.append(Collections.singletonList(
+                    new NotificationJournalRecord("CLINIC_A", notificationRequest, Collections.singletonList(notificationData))));
+        }
+        long deadline = System.currentTimeMillis() + 5000;
+        while (replayer.getReplayedRecords() < rows.length && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        replayer.stop();
+
+        long deadLettered;
+        try (Stream<Path> files = Files.list(testDirectory.resolve("dead-letter"))) {
+            deadLettered = files.count();
+        }
+        boolean passed = attempts.get() == rows.length && database.equals(Arrays.asList("1", "3"))
+                && replayer.getDeadLetteredRecords() == 2 && deadLettered == 2;
+        System.out.println("Poison replay: " + attempts.get() + " attempts, written " + database + ", " + deadLettered + " records dead-lettered");
+        System.out.println(passed
+                ? "Poison record test passed: bad records were dead-lettered without holding up the rest"
+                : "Poison record test FAILED");
+        return passed;
+    }
+
+    private static NotificationJournalReplayer replayer(NotificationJournalHandler handler, Path directory) throws IOException {
+        NotificationJournalReplayer replayer = new NotificationJournalReplayer();
+        replayer.setNotificationJournalHandler(handler);
+        replayer.setEnabled(true);
+        replayer.setDirectory(directory.toString());
+        replayer.setSegmentSizeMb(1);
+        replayer.setRetryBackoffMs(10L);
+        replayer.start();
+        return replayer;
+    }
+
+    /**
+     * Kills the replay thread between the database write of a record and its checkpoint.
+     */
+    private static final class ReplayerCrash extends Error {
+    }
+
+    private static byte[] testPayload(int i) {
+        StringBuilder payload = new StringBuilder("record-").append(i).append('-');
+        while (payload.length() < 60 + i % 50) {
+            payload.append((char) ('a' + payload.length() % 26));
+        }
+        return payload.toString().getBytes(StandardCharsets.UTF_8);
+    }
+}
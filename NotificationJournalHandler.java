@@ -0,0 +1,32 @@
+package mobileoda.notification.journal;
+
+/**
+ * Writes a journaled batch of notification data into the database.
+ */
+public interface NotificationJournalHandler {
+    /**
+     * Replay a journal record. The rows must be written in the same transaction that records the
+     * sequence as applied for the journal, and a record whose sequence was applied before must be
+     * skipped: the replayer replays the record in flight again after a crash between its write and
+     * its checkpoint.
+     *
+     * @param journalId String value identifying the journal, or null for a batch that was never journaled
+     * @param sequence  long value of the sequence of the record in the journal
+     * @param record    Instance of NotificationJournalRecord
+     * @return Instance of NotificationJournalReplayOutcome telling how many rows were attempted, which failed
+     * and whether the database was unavailable
+     * @throws RuntimeException when the record itself cannot be written, e.g. a row that does not parse;
+     * outages are reported in the outcome, not thrown
+     */
+    NotificationJournalReplayOutcome replayJournalRecord(String journalId, long sequence, NotificationJournalRecord record);
+
+    /**
+     * Write a batch that was never journaled, such as the rows held by aggregation.
+     *
+     * @param record Instance of NotificationJournalRecord
+     * @return Instance of NotificationJournalReplayOutcome
+     */
+    default NotificationJournalReplayOutcome replayJournalRecord(NotificationJournalRecord record) {
+        return replayJournalRecord(null, 0, record);
+    }
+}
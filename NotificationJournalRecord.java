@@ -0,0 +1,129 @@
+package mobileoda.notification.journal;
+
+import mobileoda.notification.model.NotificationData;
+import mobileoda.notification.model.NotificationRequest;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One accepted batch of notification data as written to the journal: the context, the request level
+ * host fields and the rows of the batch.
+ */
+public class NotificationJournalRecord {
+    private static final int NULL_LENGTH = -1;
+
+    private final String context;
+    private final String hostAddress;
+    private final String hostName;
+    private final String tomcatHome;
+    private final List<NotificationData> lstNotificationData;
+
+    public NotificationJournalRecord(String context, NotificationRequest notificationRequest, List<NotificationData> lstNotificationData) {
+        this(context, notificationRequest.getHostAddress(), notificationRequest.getHostName(), notificationRequest.getTomcatHome(), lstNotificationData);
+    }
+
+    NotificationJournalRecord(String context, String hostAddress, String hostName, String tomcatHome, List<NotificationData> lstNotificationData) {
+        this.context = context;
+        this.hostAddress = hostAddress;
+        this.hostName = hostName;
+        this.tomcatHome = tomcatHome;
+        this.lstNotificationData = lstNotificationData;
+    }
+
+    public String getContext() {
+        return context;
+    }
+
+    public List<NotificationData> getNotificationData() {
+        return lstNotificationData;
+    }
+
+    /**
+     * Rebuild the request fields the insert path reads.
+     *
+     * @return Instance of NotificationRequest
+     */
+    public NotificationRequest toNotificationRequest() {
+        NotificationRequest notificationRequest = new NotificationRequest();
+        notificationRequest.setMobileContext(context);
+        notificationRequest.setHostAddress(hostAddress);
+        notificationRequest.setHostName(hostName);
+        notificationRequest.setTomcatHome(tomcatHome);
+        notificationRequest.setNotificationData(lstNotificationData);
+        return notificationRequest;
+    }
+
+    public byte[] encode() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128 + lstNotificationData.size() * 96);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            writeString(out, context);
+            writeString(out, hostAddress);
+            writeString(out, hostName);
+            writeString(out, tomcatHome);
+            out.writeInt(lstNotificationData.size());
+            for (NotificationData notificationData : lstNotificationData) {
+                writeString(out, notificationData.getUid());
+                writeString(out, notificationData.getMessageCount());
+                writeString(out, notificationData.getMessageType());
+                writeString(out, notificationData.getDeviceToken());
+                writeString(out, notificationData.getDevicePlatform());
+                writeString(out, notificationData.getMessage());
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    public static NotificationJournalRecord decode(byte[] payload) {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload))) {
+            String context = readString(in);
+            String hostAddress = readString(in);
+            String hostName = readString(in);
+            String tomcatHome = readString(in);
+            int rows = in.readInt();
+            List<NotificationData> lstNotificationData = new ArrayList<>(rows);
+            for (int row = 0; row < rows; row++) {
+                NotificationData notificationData = new NotificationData();
+                notificationData.setUid(readString(in));
+                notificationData.setMessageCount(readString(in));
+                notificationData.setMessageType(readString(in));
+                notificationData.setDeviceToken(readString(in));
+                notificationData.setDevicePlatform(readString(in));
+                notificationData.setMessage(readString(in));
+                lstNotificationData.add(notificationData);
+            }
+            return new NotificationJournalRecord(context, hostAddress, hostName, tomcatHome, lstNotificationData);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(NULL_LENGTH);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length == NULL_LENGTH) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,51 @@
+package mobileoda.notification.journal;
+
+import java.util.List;
+
+/**
+ * Outcome of writing a journaled batch: how many rows were attempted, after aggregation folded the
+ * batch, the uids of the rows that could not be written, and whether they failed because the database
+ * was unavailable.
+ */
+public final class NotificationJournalReplayOutcome {
+    private final int attemptedRows;
+    private final List<Integer> failedUids;
+    private final boolean unavailable;
+
+    public NotificationJournalReplayOutcome(int attemptedRows, List<Integer> failedUids) {
+        this(attemptedRows, failedUids, false);
+    }
+
+    public NotificationJournalReplayOutcome(int attemptedRows, List<Integer> failedUids, boolean unavailable) {
+        this.attemptedRows = attemptedRows;
+        this.failedUids = failedUids;
+        this.unavailable = unavailable;
+    }
+
+    public int getAttemptedRows() {
+        return attemptedRows;
+    }
+
+    public List<Integer> getFailedUids() {
+        return failedUids;
+    }
+
+    /**
+     * Whether no row of the batch was written.
+     *
+     * @return true when every attempted row failed
+     */
+    public boolean isNothingWritten() {
+        return attemptedRows > 0 && failedUids.size() >= attemptedRows;
+    }
+
+    /**
+     * Whether the batch failed because the database was unavailable, so the same batch can succeed
+     * later. A batch that failed while the database was reachable was rejected and will fail again.
+     *
+     * @return true when the batch should be retried
+     */
+    public boolean isUnavailable() {
+        return unavailable;
+    }
+}
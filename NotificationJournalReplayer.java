@@ -0,0 +1,314 @@
+package mobileoda.notification.journal;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Write-ahead journal for accepted notification batches. Batches are appended and fsynced before the
+ * request is answered, then a background thread replays them into the DAOs in order and checkpoints
+ * every replayed record, so a restart resumes after the last checkpoint.
+ *
+ * <p>A record that fails because the database is unavailable is retried with capped backoff until it is
+ * written; the checkpoint never passes it. A record that can never be written, because it does not
+ * decode or parse or the database rejects every row of it, is copied to the {@code dead-letter}
+ * directory of the journal and checkpointed, so it does not hold up the records after it.
+ *
+ * <p>A crash after the rows of a record are written but before its checkpoint replays that record again
+ * on restart. The handler gets the journal id and the sequence of every record and commits the sequence
+ * with the rows, so it skips the record the second time and every row is written exactly once. Enabled
+ * with {@code notification.journal.enabled=true}.
+ */
+@Component
+public class NotificationJournalReplayer {
+    private static final String DEAD_LETTER_DIRECTORY = "dead-letter";
+
+    private Logger logger = LogManager.getLogger(NotificationJournalReplayer.class);
+
+    @Autowired
+    @Lazy
+    private NotificationJournalHandler notificationJournalHandler;
+
+    @Value("${notification.journal.enabled:false}")
+    private boolean enabled;
+
+    @Value("${notification.journal.directory:notification-journal}")
+    private String directory = "notification-journal";
+
+    @Value("${notification.journal.segment-size-mb:64}")
+    private int segmentSizeMb = 64;
+
+    /** Retries past this many attempts are logged as errors, the record is still retried. */
+    @Value("${notification.journal.alert-after-attempts:10}")
+    private int alertAfterAttempts = 10;
+
+    @Value("${notification.journal.retry-backoff-ms:500}")
+    private long retryBackoffMs = 500;
+
+    private NotificationJournal journal;
+    private Thread replayThread;
+    private volatile boolean running;
+    private final Object replayMonitor = new Object();
+
+    private final AtomicLong appendedRecords = new AtomicLong();
+    private final AtomicLong replayedRecords = new AtomicLong();
+    private final AtomicLong replayedRows = new AtomicLong();
+    private final AtomicLong replayRetries = new AtomicLong();
+    private final AtomicLong deadLetteredRecords = new AtomicLong();
+    private final AtomicLong replayNanos = new AtomicLong();
+    private volatile long lastReplayedSequence;
+
+    @PostConstruct
+    public void start() throws IOException {
+        if (!enabled) {
+            return;
+        }
+        journal = NotificationJournal.open(Paths.get(directory), segmentSizeMb * 1024 * 1024);
+        lastReplayedSequence = journal.readCheckpoint();
+        running = true;
+        replayThread = new Thread(this::replayLoop, "notification-journal-replay");
+        replayThread.start();
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Append batches to the journal and wait until they are on disk. All batches share one fsync.
+     * Appending stops at the first batch that cannot be journaled. The batches appended before it are
+     * replayed even when the fsync fails, so the caller must write only the batches after them itself.
+     *
+     * @param records Instance of List
+     * @return int value of the number of batches appended, counted from the first
+     */
+    public int append(List<NotificationJournalRecord> records) {
+        int appended = 0;
+        long lastSequence = 0;
+        try {
+            for (NotificationJournalRecord record : records) {
+                lastSequence = journal.append(record.encode());
+                appended++;
+            }
+        } catch (RuntimeException e) {
+            logger.error("Failed to journal {} of {} notification batches", records.size() - appended, records.size(), e);
+        }
+        if (appended == 0) {
+            return 0;
+        }
+        try {
+            journal.awaitDurable(lastSequence);
+        } catch (RuntimeException e) {
+            logger.error("Journal sync failed, {} appended notification batches are replayed but may not survive a crash", appended, e);
+        }
+        appendedRecords.addAndGet(appended);
+        synchronized (replayMonitor) {
+            replayMonitor.notifyAll();
+        }
+        return appended;
+    }
+
+    private void replayLoop() {
+        while (running) {
+            try {
+                replayFromCheckpoint();
+                return;
+            } catch (IOException | RuntimeException e) {
+                // Never let the replay thread die: reread from the checkpoint after a pause
+                logger.error("Notification journal replay failed, resuming from the checkpoint", e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            try {
+                TimeUnit.MILLISECONDS.sleep(retryBackoffMs);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private void replayFromCheckpoint() throws IOException, InterruptedException {
+        try (NotificationJournal.Reader reader = journal.openReader(journal.readCheckpoint())) {
+            while (running) {
+                byte[] payload = reader.next();
+                if (payload == null) {
+                    synchronized (replayMonitor) {
+                        replayMonitor.wait(1000);
+                    }
+                    continue;
+                }
+                NotificationJournalRecord record;
+                try {
+                    record = NotificationJournalRecord.decode(payload);
+                } catch (RuntimeException e) {
+                    logger.error("Journal record {} does not decode", reader.getLastSequence(), e);
+                    record = null;
+                }
+                long start = System.nanoTime();
+                if (record == null) {
+                    deadLetter(reader.getLastSequence(), payload);
+                } else if (!replay(record, reader.getLastSequence(), payload)) {
+                    // Stopped while waiting for the database: resume from the checkpoint on restart
+                    return;
+                }
+                replayNanos.addAndGet(System.nanoTime() - start);
+                journal.writeCheckpoint(reader.getLastSequence());
+                lastReplayedSequence = reader.getLastSequence();
+                journal.deleteSegmentsBefore(reader.getSegmentIndex());
+                replayedRecords.incrementAndGet();
+                if (record != null) {
+                    replayedRows.addAndGet(record.getNotificationData().size());
+                }
+            }
+        }
+    }
+
+    /**
+     * Replay one record, retrying with capped backoff for as long as the database is unavailable. A
+     * record the handler throws on, or whose every row the database rejects, is dead-lettered.
+     *
+     * @return false only when stopped before the record was written or dead-lettered
+     */
+    private boolean replay(NotificationJournalRecord record, long sequence, byte[] payload) throws InterruptedException {
+        long backoff = retryBackoffMs;
+        for (int attempt = 1; running; attempt++) {
+            NotificationJournalReplayOutcome outcome;
+            try {
+                outcome = notificationJournalHandler.replayJournalRecord(journal.getJournalId(), sequence, record);
+            } catch (RuntimeException e) {
+                // Outages come back in the outcome; an exception is about the record and would recur
+                logger.error("Journal replay for context {} failed on record {}", record.getContext(), sequence, e);
+                deadLetter(sequence, payload);
+                return true;
+            }
+            if (!outcome.isUnavailable()) {
+                // Compared against the rows attempted, not the rows of the record: aggregation may have folded them
+                if (outcome.isNothingWritten()) {
+                    logger.error("Journal replay for context {} rejected every row of record {}", record.getContext(), sequence);
+                    deadLetter(sequence, payload);
+                } else if (!outcome.getFailedUids().isEmpty()) {
+                    logger.error("Journal replay for context {} failed for uids {}", record.getContext(), outcome.getFailedUids());
+                }
+                return true;
+            }
+            logRetry(record, attempt);
+            replayRetries.incrementAndGet();
+            TimeUnit.MILLISECONDS.sleep(backoff);
+            backoff = Math.min(backoff * 2, TimeUnit.SECONDS.toMillis(30));
+        }
+        return false;
+    }
+
+    private void logRetry(NotificationJournalRecord record, int attempt) {
+        if (attempt >= alertAfterAttempts) {
+            logger.error("Journal replay for context {} still failing after {} attempts, retrying", record.getContext(), attempt);
+        } else {
+            logger.warn("Journal replay for context {} failed, attempt {}", record.getContext(), attempt);
+        }
+    }
+
+    /**
+     * Keep a record that can never be written next to the journal, so the checkpoint can pass it.
+     */
+    private void deadLetter(long sequence, byte[] payload) {
+        Path deadLetterDirectory = Paths.get(directory, DEAD_LETTER_DIRECTORY);
+        try {
+            Files.createDirectories(deadLetterDirectory);
+            Files.write(deadLetterDirectory.resolve("record-" + sequence), payload,
+                    StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE, StandardOpenOption.SYNC);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to dead-letter journal record " + sequence, e);
+        }
+        deadLetteredRecords.incrementAndGet();
+    }
+
+    public long getAppendedRecords() {
+        return appendedRecords.get();
+    }
+
+    public long getReplayedRecords() {
+        return replayedRecords.get();
+    }
+
+    public long getReplayedRows() {
+        return replayedRows.get();
+    }
+
+    public long getReplayRetries() {
+        return replayRetries.get();
+    }
+
+    public long getDeadLetteredRecords() {
+        return deadLetteredRecords.get();
+    }
+
+    /**
+     * Replay throughput in rows per second of time spent replaying.
+     *
+     * @return double value of rows per second
+     */
+    public double getReplayRowsPerSecond() {
+        long nanos = replayNanos.get();
+        return nanos == 0 ? 0 : replayedRows.get() * 1e9 / nanos;
+    }
+
+    /**
+     * Number of durable journal records not replayed yet.
+     *
+     * @return long value of the replay lag
+     */
+    public long getReplayLag() {
+        return journal == null ? 0 : journal.getDurableSequence() - lastReplayedSequence;
+    }
+
+    void setNotificationJournalHandler(NotificationJournalHandler notificationJournalHandler) {
+        this.notificationJournalHandler = notificationJournalHandler;
+    }
+
+    void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    void setDirectory(String directory) {
+        this.directory = directory;
+    }
+
+    void setSegmentSizeMb(int segmentSizeMb) {
+        this.segmentSizeMb = segmentSizeMb;
+    }
+
+    void setRetryBackoffMs(long retryBackoffMs) {
+        this.retryBackoffMs = retryBackoffMs;
+    }
+
+    @PreDestroy
+    public void stop() throws IOException, InterruptedException {
+        if (!running) {
+            return;
+        }
+        running = false;
+        synchronized (replayMonitor) {
+            replayMonitor.notifyAll();
+        }
+        replayThread.interrupt();
+        replayThread.join(TimeUnit.SECONDS.toMillis(10));
+        journal.close();
+    }
+}
@@ -0,0 +1,308 @@
+package mobileoda.notification.service.mobileoda.impl;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import mobileoda.notification.dao.shard.ReadReplicaRouter;
+import mobileoda.notification.dispatch.PushDispatcher;
+import mobileoda.notification.journal.NotificationJournalReplayer;
+import mobileoda.registration.cache.RedirectionCache;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Micrometer meters of the push-notification ingest path, exported through the Spring Boot actuator.
+ *
+ * <p>Percentile histograms are published only on meters tagged by stage at most; per-context data is
+ * kept in plain counters and timers carrying a {@code context} tag. To bound cardinality only the first
+ * {@code notification.metrics.max-tagged-contexts} contexts seen get their own tag value; later ones
+ * are reported as {@value #OTHER_CONTEXT}. Meters are built once and cached, not looked up per call.
+ */
+@Component
+public class NotificationMetrics {
+    static final String OTHER_CONTEXT = "other";
+    private static final char KEY_SEPARATOR = '\u0000';
+
+    public static final String STAGE_TOTAL = "total";
+    public static final String STAGE_REDIRECTION = "redirection";
+    public static final String STAGE_DEVICE_LOOKUP = "device_lookup";
+    public static final String STAGE_NOTIFICATION_BATCH = "notification_batch";
+    public static final String STAGE_NOTIFICATION_RECOVERY = "notification_recovery";
+    public static final String STAGE_DEVICE_BATCH = "device_batch";
+    public static final String STAGE_DEVICE_RECOVERY = "device_recovery";
+    public static final String STAGE_GROUP_COMMIT = "group_commit";
+
+    private final MeterRegistry meterRegistry;
+
+    @Autowired(required = false)
+    private RedirectionCache redirectionCache;
+
+    @Autowired(required = false)
+    private BisectingBatchRecovery batchRecovery;
+
+    @Autowired(required = false)
+    private DeviceDetailsRegistry deviceDetailsRegistry;
+
+    @Autowired(required = false)
+    private AsyncNotificationIngestor asyncNotificationIngestor;
+
+    @Autowired(required = false)
+    private NotificationJournalReplayer notificationJournalReplayer;
+
+    @Autowired(required = false)
+    private AdaptiveBatchSizer adaptiveBatchSizer;
+
+    @Autowired(required = false)
+    private NotificationAggregator notificationAggregator;
+
+    @Autowired(required = false)
+    private VirtualThreadExecution virtualThreadExecution;
+
+    @Autowired(required = false)
+    private ContextRateLimiter contextRateLimiter;
+
+    @Autowired(required = false)
+    private IdempotencyStore idempotencyStore;
+
+    @Autowired(required = false)
+    private PushDispatcher pushDispatcher;
+
+    @Autowired(required = false)
+    private GroupCommitCoalescer groupCommitCoalescer;
+
+    @Autowired(required = false)
+    private ReadReplicaRouter readReplicaRouter;
+
+    @Value("${notification.metrics.max-tagged-contexts:200}")
+    private int maxTaggedContexts = 200;
+
+    private final Set<String> taggedContexts = ConcurrentHashMap.newKeySet();
+
+    private final DistributionSummary requestRows;
+    private final DistributionSummary batchSize;
+    private final Timer schedulerWait;
+    private final Map<String, Timer> stageTimers = new ConcurrentHashMap<>();
+    private final Map<String, Timer> contextStageTimers = new ConcurrentHashMap<>();
+    private final Map<String, Timer> contextSchedulerWaits = new ConcurrentHashMap<>();
+    private final Map<String, DistributionSummary> contextSchedulerQueueDepths = new ConcurrentHashMap<>();
+    private final Map<String, Counter> contextRequestRows = new ConcurrentHashMap<>();
+    private final Map<String, Counter> contextBatchRows = new ConcurrentHashMap<>();
+    private final Map<String, Counter> contextFailedUids = new ConcurrentHashMap<>();
+    private final Map<String, Counter> fallbacks = new ConcurrentHashMap<>();
+
+    public NotificationMetrics(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+        this.requestRows = DistributionSummary.builder("notification.ingest.request.rows")
+                .publishPercentileHistogram()
+                .register(meterRegistry);
+        this.batchSize = DistributionSummary.builder("notification.ingest.batch.size")
+                .publishPercentileHistogram()
+                .register(meterRegistry);
+        this.schedulerWait = Timer.builder("notification.scheduler.wait")
+                .publishPercentileHistogram()
+                .register(meterRegistry);
+    }
+
+    @PostConstruct
+    public void bindComponentMeters() {
+        if (redirectionCache != null) {
+            FunctionCounter.builder("notification.redirection.cache.hits", redirectionCache, RedirectionCache::getHitCount).register(meterRegistry);
+            FunctionCounter.builder("notification.redirection.cache.misses", redirectionCache, RedirectionCache::getMissCount).register(meterRegistry);
+            FunctionCounter.builder("notification.redirection.cache.evictions", redirectionCache, RedirectionCache::getEvictionCount).register(meterRegistry);
+            FunctionCounter.builder("notification.redirection.cache.token.reloads.limited", redirectionCache, RedirectionCache::getLimitedReloadCount).register(meterRegistry);
+        }
+        if (batchRecovery != null) {
+            for (int depth = 1; depth <= BisectingBatchRecovery.MAX_TRACKED_DEPTH; depth++) {
+                int recoveryDepth = depth;
+                FunctionCounter.builder("notification.recovery.depth", batchRecovery, recovery -> recovery.getDepthCounts()[recoveryDepth])
+                        .tag("depth", String.valueOf(recoveryDepth))
+                        .register(meterRegistry);
+            }
+        }
+        if (deviceDetailsRegistry != null) {
+            Gauge.builder("notification.device.registry.skipped.ratio", deviceDetailsRegistry, DeviceDetailsRegistry::getSkippedWriteRatio).register(meterRegistry);
+            Gauge.builder("notification.device.registry.pending", deviceDetailsRegistry, DeviceDetailsRegistry::getPendingCount).register(meterRegistry);
+            FunctionCounter.builder("notification.device.registry.dropped", deviceDetailsRegistry, DeviceDetailsRegistry::getDroppedDevices).register(meterRegistry);
+            FunctionCounter.builder("notification.device.registry.refused", deviceDetailsRegistry, DeviceDetailsRegistry::getRefusedDevices).register(meterRegistry);
+        }
+        if (asyncNotificationIngestor != null) {
+            Gauge.builder("notification.async.queue.depth", asyncNotificationIngestor, AsyncNotificationIngestor::getQueueDepth).register(meterRegistry);
+        }
+        if (notificationJournalReplayer != null) {
+            Gauge.builder("notification.journal.replay.lag", notificationJournalReplayer, NotificationJournalReplayer::getReplayLag).register(meterRegistry);
+            Gauge.builder("notification.journal.replay.rows.per.second", notificationJournalReplayer, NotificationJournalReplayer::getReplayRowsPerSecond).register(meterRegistry);
+        }
+        if (notificationAggregator != null) {
+            FunctionCounter.builder("notification.aggregation.folded.rows", notificationAggregator, NotificationAggregator::getFoldedRows).register(meterRegistry);
+            FunctionCounter.builder("notification.aggregation.requeued.rows", notificationAggregator, NotificationAggregator::getRequeuedRows).register(meterRegistry);
+            Gauge.builder("notification.aggregation.pending", notificationAggregator, NotificationAggregator::getPendingCount).register(meterRegistry);
+        }
+        if (virtualThreadExecution != null && virtualThreadExecution.isVirtual()) {
+            Gauge.builder("notification.execution.permits.available", virtualThreadExecution, VirtualThreadExecution::getAvailablePermits).register(meterRegistry);
+            Gauge.builder("notification.execution.permits.queued", virtualThreadExecution, VirtualThreadExecution::getQueuedForPermit).register(meterRegistry);
+            FunctionCounter.builder("notification.execution.permits.wait", virtualThreadExecution, execution -> execution.getPermitWaitNanos() / 1e9)
+                    .baseUnit("seconds")
+                    .register(meterRegistry);
+        }
+        if (contextRateLimiter != null) {
+            FunctionCounter.builder("notification.rate.limit.admitted", contextRateLimiter, ContextRateLimiter::getAdmittedRequests).register(meterRegistry);
+            FunctionCounter.builder("notification.rate.limit.throttled", contextRateLimiter, ContextRateLimiter::getThrottledRequests).register(meterRegistry);
+        }
+        if (idempotencyStore != null) {
+            FunctionCounter.builder("notification.idempotency.replayed", idempotencyStore, IdempotencyStore::getReplayedRequests).register(meterRegistry);
+            FunctionCounter.builder("notification.idempotency.joined", idempotencyStore, IdempotencyStore::getJoinedRequests).register(meterRegistry);
+            Gauge.builder("notification.idempotency.entries", idempotencyStore, IdempotencyStore::size).register(meterRegistry);
+        }
+        if (pushDispatcher != null && pushDispatcher.isEnabled()) {
+            FunctionCounter.builder("notification.dispatch.delivered", pushDispatcher, PushDispatcher::getDelivered).register(meterRegistry);
+            FunctionCounter.builder("notification.dispatch.rejected", pushDispatcher, PushDispatcher::getRejected).register(meterRegistry);
+            FunctionCounter.builder("notification.dispatch.retried", pushDispatcher, PushDispatcher::getRetried).register(meterRegistry);
+            FunctionCounter.builder("notification.dispatch.exhausted", pushDispatcher, PushDispatcher::getExhausted).register(meterRegistry);
+            FunctionCounter.builder("notification.dispatch.dropped", pushDispatcher, PushDispatcher::getDropped).register(meterRegistry);
+            FunctionCounter.builder("notification.dispatch.unroutable", pushDispatcher, PushDispatcher::getUnroutable).register(meterRegistry);
+            FunctionCounter.builder("notification.dispatch.batches", pushDispatcher, PushDispatcher::getBatches).register(meterRegistry);
+            Gauge.builder("notification.dispatch.queue.depth", pushDispatcher, PushDispatcher::getQueueDepth).register(meterRegistry);
+            Gauge.builder("notification.dispatch.outstanding", pushDispatcher, PushDispatcher::getOutstanding).register(meterRegistry);
+            Gauge.builder("notification.dispatch.in.flight", pushDispatcher, PushDispatcher::getInFlight).register(meterRegistry);
+        }
+        if (groupCommitCoalescer != null && groupCommitCoalescer.isEnabled()) {
+            FunctionCounter.builder("notification.group.commit.groups", groupCommitCoalescer, GroupCommitCoalescer::getGroups).register(meterRegistry);
+            FunctionCounter.builder("notification.group.commit.batches", groupCommitCoalescer, GroupCommitCoalescer::getGroupedBatches).register(meterRegistry);
+            FunctionCounter.builder("notification.group.commit.rows", groupCommitCoalescer, GroupCommitCoalescer::getGroupedRows).register(meterRegistry);
+        }
+        if (readReplicaRouter != null && readReplicaRouter.isEnabled()) {
+            FunctionCounter.builder("notification.replica.reads", readReplicaRouter, ReadReplicaRouter::getReplicaReads).register(meterRegistry);
+            for (ReadReplicaRouter.PrimaryReason reason : ReadReplicaRouter.PrimaryReason.values()) {
+                FunctionCounter.builder("notification.replica.primary.reads", readReplicaRouter, router -> router.getPrimaryReads(reason))
+                        .tag("reason", reason.tag())
+                        .register(meterRegistry);
+            }
+            Gauge.builder("notification.replica.read.share", readReplicaRouter, ReadReplicaRouter::getReplicaReadShare).register(meterRegistry);
+            for (String shard : readReplicaRouter.getShardNames()) {
+                Gauge.builder("notification.replica.lag.ms", readReplicaRouter, router -> router.getLagMs(shard))
+                        .tag("shard", shard)
+                        .register(meterRegistry);
+            }
+        }
+        if (adaptiveBatchSizer != null) {
+            for (AdaptiveBatchSizer.Writes writes : AdaptiveBatchSizer.Writes.values()) {
+                String writesTag = writes.name().toLowerCase();
+                Gauge.builder("notification.batch.size.current", adaptiveBatchSizer, sizer -> sizer.getCurrentBatchSize(writes))
+                        .tag("writes", writesTag)
+                        .register(meterRegistry);
+                FunctionCounter.builder("notification.batch.size.decreases", adaptiveBatchSizer, sizer -> sizer.getDecreaseCount(writes))
+                        .tag("writes", writesTag)
+                        .register(meterRegistry);
+            }
+        }
+    }
+
+    /**
+     * Record the latency of an ingest stage.
+     *
+     * @param stage      String value contains stage-name
+     * @param context    String value contains context-name
+     * @param startNanos System.nanoTime() at the start of the stage
+     */
+    public void recordStage(String stage, String context, long startNanos) {
+        long elapsedNanos = System.nanoTime() - startNanos;
+        stageTimers.computeIfAbsent(stage, key -> Timer.builder("notification.ingest.stage")
+                .tag("stage", key)
+                .publishPercentileHistogram()
+                .register(meterRegistry))
+                .record(elapsedNanos, TimeUnit.NANOSECONDS);
+        String contextTag = contextTag(context);
+        contextStageTimers.computeIfAbsent(stage + KEY_SEPARATOR + contextTag, key -> Timer.builder("notification.ingest.context.stage")
+                .tag("stage", stage)
+                .tag("context", contextTag)
+                .register(meterRegistry))
+                .record(elapsedNanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void recordRequestRows(String context, int rows) {
+        requestRows.record(rows);
+        contextCounter(contextRequestRows, "notification.ingest.context.request.rows", context).increment(rows);
+    }
+
+    public void recordBatch(String context, int rows) {
+        batchSize.record(rows);
+        contextCounter(contextBatchRows, "notification.ingest.context.batch.rows", context).increment(rows);
+    }
+
+    /**
+     * Count an activation of the batch-failure recovery.
+     *
+     * @param stage   String value contains the stage that fell back
+     * @param context String value contains context-name
+     */
+    public void recordFallback(String stage, String context) {
+        String contextTag = contextTag(context);
+        fallbacks.computeIfAbsent(stage + KEY_SEPARATOR + contextTag, key -> Counter.builder("notification.ingest.fallback")
+                .tag("stage", stage)
+                .tag("context", contextTag)
+                .register(meterRegistry))
+                .increment();
+    }
+
+    public void recordFailedUids(String context, int failedUids) {
+        if (failedUids > 0) {
+            contextCounter(contextFailedUids, "notification.ingest.failed.uids", context).increment(failedUids);
+        }
+    }
+
+    /**
+     * Record how long a batch waited for a write slot of the fair scheduler.
+     *
+     * @param context    String value contains context-name
+     * @param startNanos System.nanoTime() when the batch started waiting
+     */
+    public void recordSchedulerWait(String context, long startNanos) {
+        long elapsedNanos = System.nanoTime() - startNanos;
+        schedulerWait.record(elapsedNanos, TimeUnit.NANOSECONDS);
+        contextSchedulerWaits.computeIfAbsent(contextTag(context), contextTag -> Timer.builder("notification.scheduler.context.wait")
+                .tag("context", contextTag)
+                .register(meterRegistry))
+                .record(elapsedNanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void recordSchedulerQueueDepth(String context, int depth) {
+        contextSchedulerQueueDepths.computeIfAbsent(contextTag(context), contextTag -> DistributionSummary.builder("notification.scheduler.queue.depth")
+                .tag("context", contextTag)
+                .register(meterRegistry))
+                .record(depth);
+    }
+
+    private Counter contextCounter(Map<String, Counter> counters, String name, String context) {
+        return counters.computeIfAbsent(contextTag(context), contextTag -> Counter.builder(name)
+                .tag("context", contextTag)
+                .register(meterRegistry));
+    }
+
+    void bindSchedulerMeters(ContextFairScheduler contextFairScheduler) {
+        Gauge.builder("notification.scheduler.waiting", contextFairScheduler, ContextFairScheduler::getWaiting).register(meterRegistry);
+        Gauge.builder("notification.scheduler.active", contextFairScheduler, ContextFairScheduler::getActiveSlots).register(meterRegistry);
+    }
+
+    String contextTag(String context) {
+        if (context == null) {
+            return OTHER_CONTEXT;
+        }
+        if (taggedContexts.contains(context)) {
+            return context;
+        }
+        if (taggedContexts.size() < maxTaggedContexts && taggedContexts.add(context)) {
+            return context;
+        }
+        return OTHER_CONTEXT;
+    }
+}
@@ -0,0 +1,146 @@
+package mobileoda.notification.mapper;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import mobileoda.notification.model.NotificationData;
+import mobileoda.notification.model.NotificationRequest;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads a NotificationRequestDto document incrementally with the Jackson streaming parser, as JSON or
+ * CBOR depending on the JsonFactory, see {@link NotificationWireFormat}.
+ * The request fields are read first; notificationData elements are then read one at a time, so a
+ * payload is never bound into memory as a whole. The request may be wrapped in a {@code data} envelope.
+ *
+ * <p>The request fields must precede the notificationData array, as they are validated before any row is read.
+ */
+public class NotificationRequestStreamParser implements Closeable {
+    private static final String DATA_ENVELOPE = "data";
+    private static final String NOTIFICATION_DATA = "notificationData";
+
+    private final JsonParser parser;
+    private boolean inNotificationData;
+
+    public NotificationRequestStreamParser(JsonFactory jsonFactory, InputStream requestBody) throws IOException {
+        this.parser = jsonFactory.createParser(requestBody);
+    }
+
+    /**
+     * Read the request fields up to the start of the notificationData array.
+     *
+     * @return Instance of NotificationRequest without notification data
+     * @throws IOException when the body is not a valid request document
+     */
+    public NotificationRequest readHeader() throws IOException {
+        NotificationRequest notificationRequest = new NotificationRequest();
+        expect(parser.nextToken(), JsonToken.START_OBJECT);
+        boolean inEnvelope = false;
+        JsonToken token;
+        while ((token = parser.nextToken()) != null && token != JsonToken.END_OBJECT) {
+            String fieldName = parser.getCurrentName();
+            token = parser.nextToken();
+            if (!inEnvelope && DATA_ENVELOPE.equals(fieldName) && token == JsonToken.START_OBJECT) {
+                inEnvelope = true;
+                continue;
+            }
+            switch (fieldName) {
+                case "commAuthToken":
+                    notificationRequest.setCommAuthToken(scalarText(token));
+                    break;
+                case "mobileContext":
+                    notificationRequest.setMobileContext(scalarText(token));
+                    break;
+                case "hostName":
+                    notificationRequest.setHostName(scalarText(token));
+                    break;
+                case "hostAddress":
+                    notificationRequest.setHostAddress(scalarText(token));
+                    break;
+                case "tomcatHome":
+                    notificationRequest.setTomcatHome(scalarText(token));
+                    break;
+                case NOTIFICATION_DATA:
+                    if (token == JsonToken.START_ARRAY) {
+                        inNotificationData = true;
+                        return notificationRequest;
+                    }
+                    break;
+                default:
+                    parser.skipChildren();
+            }
+        }
+        return notificationRequest;
+    }
+
+    /**
+     * Read the next notificationData element.
+     *
+     * @return Instance of NotificationData, or null when the array has ended
+     * @throws IOException when an element is not a valid notification data object
+     */
+    public NotificationData nextNotificationData() throws IOException {
+        if (!inNotificationData) {
+            return null;
+        }
+        JsonToken token = parser.nextToken();
+        if (token == JsonToken.END_ARRAY) {
+            inNotificationData = false;
+            return null;
+        }
+        expect(token, JsonToken.START_OBJECT);
+        NotificationData notificationData = new NotificationData();
+        while ((token = parser.nextToken()) != JsonToken.END_OBJECT) {
+            String fieldName = parser.getCurrentName();
+            token = parser.nextToken();
+            switch (fieldName) {
+                case "uid":
+                    notificationData.setUid(scalarText(token));
+                    break;
+                case "messageCount":
+                    notificationData.setMessageCount(scalarText(token));
+                    break;
+                case "messageType":
+                    notificationData.setMessageType(scalarText(token));
+                    break;
+                case "deviceToken":
+                    notificationData.setDeviceToken(scalarText(token));
+                    break;
+                case "devicePlatform":
+                    notificationData.setDevicePlatform(scalarText(token));
+                    break;
+                case "message":
+                    notificationData.setMessage(scalarText(token));
+                    break;
+                default:
+                    parser.skipChildren();
+            }
+        }
+        return notificationData;
+    }
+
+    private String scalarText(JsonToken token) throws IOException {
+        if (token == JsonToken.VALUE_NULL) {
+            return null;
+        }
+        if (!token.isScalarValue()) {
+            throw new JsonParseException(parser, "Expected a scalar value for " + parser.getCurrentName());
+        }
+        return parser.getText();
+    }
+
+    private void expect(JsonToken actual, JsonToken expected) throws JsonParseException {
+        if (actual != expected) {
+            throw new JsonParseException(parser, "Expected " + expected + " but found " + actual);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        parser.close();
+    }
+}
@@ -1,5 +1,7 @@
 hupackage mobileoda.notification.service.mobileoda.impl;
 
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import mobileoda.config.DataSourceConfig;
 import mobileoda.core.constant.ResultCodeConstant;
 import mobileoda.core.constant.Status;
@@ -8,12 +10,22 @@ import mobileoda.core.model.impl.ErrorResponse;
 import mobileoda.core.model.impl.Request;
 import mobileoda.core.model.impl.SuccessResponse;
 import mobileoda.notification.dao.DeviceDetailsDao;
+import mobileoda.notification.dao.NotificationBatchBuffer;
+import mobileoda.notification.dao.NotificationBatchWriter;
 import mobileoda.notification.dao.NotificationDataDao;
+import mobileoda.notification.dao.impl.JdbcNotificationJournalDao;
+import mobileoda.notification.dao.shard.ContextShardRouter;
 import mobileoda.notification.dto.NotificationRequestDto;
 import mobileoda.notification.dto.NotificationResponseDto;
 import mobileoda.notification.exception.NotificationServiceException;
+import mobileoda.notification.journal.NotificationJournalHandler;
+import mobileoda.notification.journal.NotificationJournalRecord;
+import mobileoda.notification.journal.NotificationJournalReplayOutcome;
+import mobileoda.notification.journal.NotificationJournalReplayer;
 import mobileoda.notification.mapper.NotificationRequestMapper;
+import mobileoda.notification.mapper.NotificationRequestStreamParser;
 import mobileoda.notification.mapper.NotificationResponseMapper;
+import mobileoda.notification.mapper.NotificationWireFormat;
 import mobileoda.notification.model.DeviceDetails;
 import mobileoda.notification.model.NotificationData;
 import mobileoda.notification.model.NotificationDataResponse;
@@ -24,17 +36,19 @@ import mobileoda.notification.model.PushNotificationData;
 import mobileoda.notification.repository.DeviceDetailsRepository;
 import mobileoda.notification.repository.NotificationDataRepository;
 import mobileoda.notification.service.api.NotificationService;
-import mobileoda.registration.dao.RedirectionDao;
+import mobileoda.registration.cache.RedirectionCache;
 import mobileoda.registration.model.Redirection;
 import mobileoda.util.CollectionUtil;
-import mobileoda.util.DateUtil;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.boot.autoconfigure.domain.EntityScan;
+import org.springframework.context.ApplicationContext;
 import org.springframework.context.ConfigurableApplicationContext;
 import org.springframework.context.annotation.ComponentScan;
 import org.springframework.context.annotation.Lazy;
@@ -42,29 +56,110 @@ import org.springframework.data.jpa.repository.config.EnableJpaRepositories;
 import org.springframework.stereotype.Service;
 import org.springframework.validation.annotation.Validated;
 
+import javax.annotation.PostConstruct;
 import javax.validation.Valid;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.sql.Connection;
+import java.sql.SQLException;
 import java.lang.reflect.Field;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Date;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipException;
 
 @Service
 @Lazy
 @Validated
-public class NotificationServiceImpl implements NotificationService {
+public class NotificationServiceImpl implements NotificationService, NotificationJournalHandler {
     private Logger logger = LogManager.getLogger(NotificationServiceImpl.class);
 
+    private static final int DEVICE_LOOKUP_CHUNK_SIZE = 500;
+    private static final String DEVICE_WRITE_MODE_UPSERT = "upsert";
+    private static final String INGEST_MODE_ASYNC = "async";
+    private static final int DATABASE_PROBE_TIMEOUT_SECONDS = 5;
+
     @Autowired
     private NotificationDataDao notificationDataDao;
 
     @Autowired
-    private RedirectionDao redirectionDao;
+    private RedirectionCache redirectionCache;
 
     @Autowired
     private DeviceDetailsDao deviceDetailsDao;
 
+    @Autowired
+    private BisectingBatchRecovery batchRecovery;
+
+    @Autowired
+    private AsyncNotificationIngestor asyncNotificationIngestor;
+
+    @Autowired
+    private ParallelBatchExecutor parallelBatchExecutor;
+
+    @Autowired
+    private NotificationJournalReplayer notificationJournalReplayer;
+
+    @Autowired
+    private JdbcNotificationJournalDao notificationJournalDao;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Autowired
+    private DeviceDetailsRegistry deviceDetailsRegistry;
+
+    @Autowired
+    private NotificationMetrics notificationMetrics;
+
+    @Autowired
+    private AdaptiveBatchSizer adaptiveBatchSizer;
+
+    @Autowired
+    private NotificationAggregator notificationAggregator;
+
+    @Autowired
+    private VirtualThreadExecution virtualThreadExecution;
+
+    @Autowired
+    private ContextFairScheduler contextFairScheduler;
+
+    @Autowired
+    private ContextRateLimiter contextRateLimiter;
+
+    @Autowired
+    private IdempotencyStore idempotencyStore;
+
+    @Autowired
+    private GroupCommitCoalescer groupCommitCoalescer;
+
+    @Autowired
+    private ContextShardRouter contextShardRouter;
+
+    @Value("${notification.ingest.mode:sync}")
+    private String ingestMode = "sync";
+
+    @Value("${notification.dao.device-write-mode:merge}")
+    private String deviceWriteMode = "merge";
+
+    @PostConstruct
+    public void start() {
+        if (INGEST_MODE_ASYNC.equals(ingestMode) && isJournaled()) {
+            // Async mode would acknowledge rows held only in memory; journaled requests are written in the background already
+            logger.warn("notification.ingest.mode=async is ignored while the notification journal is enabled");
+        }
+    }
+
     @Override
     public Response<NotificationResponseDto> savePushNotificationData(Request<NotificationRequestDto> request) {
         try {
@@ -92,38 +187,403 @@ public class NotificationServiceImpl implements NotificationService {
      */
     private NotificationResponse savePushNotificationData(NotificationRequest notificationRequest) throws NotificationServiceException {
         NotificationResponse notificationResponse = new NotificationResponse();
+        NotificationDataResponse validationFailedResponse = validateNotificationRequest(notificationRequest);
+        if (validationFailedResponse != null) {
+            notificationResponse.setNotificationDataResponse(validationFailedResponse);
+            return notificationResponse;
+        }
+        return processIdempotentRequest(notificationRequest);
+    }
+
+    /**
+     * Process a validated request once per idempotency fingerprint when the idempotency store is enabled.
+     *
+     * @param notificationRequest Instance of NotificationRequest
+     * @return Instance of NotificationResponse
+     */
+    private NotificationResponse processIdempotentRequest(NotificationRequest notificationRequest) {
+        NotificationResponse notificationResponse = new NotificationResponse();
+        if (!idempotencyStore.isEnabled()) {
+            return processNotificationRequest(notificationRequest);
+        }
+
+        // A retried request is answered from the result of the original instead of being inserted again
+        NotificationResponse idempotentResponse = idempotencyStore.execute(idempotencyStore.fingerprint(notificationRequest),
+                () -> processNotificationRequest(notificationRequest), this::isSuccessfulResponse);
+        if (idempotentResponse == null) {
+            notificationResponse.setNotificationDataResponse(prepareNotificationFailedResponse("Busy"));
+            return notificationResponse;
+        }
+        return idempotentResponse;
+    }
+
+    /**
+     * Process a validated request: rate limit it, then write, queue or journal its notification data.
+     *
+     * @param notificationRequest Instance of NotificationRequest
+     * @return Instance of NotificationResponse
+     */
+    private NotificationResponse processNotificationRequest(NotificationRequest notificationRequest) {
+        long startNanos = System.nanoTime();
+        NotificationResponse notificationResponse = new NotificationResponse();
+        String mobileContextRequest = notificationRequest.getMobileContext();
+        List<NotificationData> lstNotificationData = notificationRequest.getNotificationData();
+        NotificationDataResponse throttledResponse = throttleNotificationRequest(mobileContextRequest,
+                lstNotificationData == null ? 0 : lstNotificationData.size());
+        if (throttledResponse != null) {
+            notificationResponse.setNotificationDataResponse(throttledResponse);
+            return notificationResponse;
+        }
+        if (CollectionUtil.isListNonEmpty(lstNotificationData)) {
+            notificationMetrics.recordRequestRows(mobileContextRequest, lstNotificationData.size());
+        }
+        if (CollectionUtil.isListNonEmpty(lstNotificationData) && notificationAggregator.isWindowEnabled()
+                && notificationAggregator.hold(mobileContextRequest, notificationRequest, lstNotificationData)) {
+            // Held rows are written once the aggregation window elapses
+            notificationResponse.setNotificationDataResponse(prepareNotificationSuccessResponse(new ArrayList<>()));
+        } else if (CollectionUtil.isListNonEmpty(lstNotificationData) && isAsyncIngest()) {
+            notificationResponse.setNotificationDataResponse(submitNotificationDetails(lstNotificationData, mobileContextRequest, notificationRequest));
+        } else if (CollectionUtil.isListNonEmpty(lstNotificationData)) {
+            List<Integer> lstFailedUid = writeNotificationDetails(lstNotificationData, mobileContextRequest, notificationRequest);
+            notificationResponse.setNotificationDataResponse(prepareNotificationSuccessResponse(lstFailedUid));
+        } else {
+            notificationResponse.setNotificationDataResponse(prepareNotificationFailedResponse("NoDataAvailable"));
+        }
+        notificationMetrics.recordStage(NotificationMetrics.STAGE_TOTAL, mobileContextRequest, startNanos);
+        return notificationResponse;
+    }
+
+    /**
+     * Whether requests are queued for the background writers. Async mode is refused while the journal is
+     * enabled, since its queue holds acknowledged rows only in memory.
+     *
+     * @return boolean
+     */
+    private boolean isAsyncIngest() {
+        return INGEST_MODE_ASYNC.equals(ingestMode) && !isJournaled();
+    }
+
+    private boolean isJournaled() {
+        return notificationJournalReplayer != null && notificationJournalReplayer.isEnabled();
+    }
+
+    /**
+     * Journal notification details when the journal is enabled, otherwise insert them.
+     *
+     * @param lstNotificationData  Instance of List
+     * @param mobileContextRequest String value contains context-name
+     * @param notificationRequest  Instance of NotificationRequest
+     * @return Instance of List holding the failed uids
+     */
+    private List<Integer> writeNotificationDetails(List<NotificationData> lstNotificationData, String mobileContextRequest, NotificationRequest notificationRequest) {
+        if (isJournaled()) {
+            return journalNotificationDetails(lstNotificationData, mobileContextRequest, notificationRequest);
+        }
+        return insertNotificationDetails(lstNotificationData, mobileContextRequest, notificationRequest);
+    }
+
+    /**
+     * Save push-notification data read incrementally from a JSON request body. The request fields are
+     * validated before any row is read, and rows are written in batches as they are parsed, so memory
+     * is bounded by the batch size rather than the payload size. Each batch goes through the aggregation
+     * window and the journal like a buffered request. With the idempotency store enabled or in async
+     * ingest mode the whole request is read first and processed as a buffered request, since its
+     * fingerprint covers every row and async mode acknowledges the request as a whole. Rows take rate
+     * limit tokens batch by batch; a stream that runs out stops with "Throttled".
+     *
+     * @param requestBody InputStream of a NotificationRequestDto JSON document
+     * @return Instance of NotificationResponseDto
+     * @throws NotificationServiceException NotificationServiceException
+     */
+    public NotificationResponseDto savePushNotificationData(InputStream requestBody) throws NotificationServiceException {
+        return savePushNotificationData(requestBody, NotificationWireFormat.JSON.getMediaType(), null);
+    }
+
+    /**
+     * Save push-notification data read incrementally from a request body in any supported wire format,
+     * e.g. gzip compressed CBOR.
+     *
+     * @param requestBody     InputStream of a NotificationRequestDto document
+     * @param contentType     String value of the Content-Type header
+     * @param contentEncoding String value of the Content-Encoding header
+     * @return Instance of NotificationResponseDto
+     * @throws NotificationServiceException NotificationServiceException
+     */
+    public NotificationResponseDto savePushNotificationData(InputStream requestBody, String contentType, String contentEncoding) throws NotificationServiceException {
+        NotificationResponse notificationResponse = new NotificationResponse();
+        NotificationWireFormat wireFormat = NotificationWireFormat.forContentType(contentType);
+        InputStream decodedBody;
+        try {
+            decodedBody = wireFormat == null ? null : NotificationWireFormat.decompress(requestBody, contentEncoding);
+        } catch (IOException e) {
+            logger.error("Invalid compressed notification request", e);
+            decodedBody = null;
+        }
+        if (decodedBody == null) {
+            logger.error("Unsupported notification request body: Content-Type {}, Content-Encoding {}", contentType, contentEncoding);
+            notificationResponse.setNotificationDataResponse(prepareNotificationFailedResponse("UnsupportedMediaType"));
+            return NotificationResponseMapper.mapper.mappingToNotificationResponseDto(notificationResponse);
+        }
+        try (NotificationRequestStreamParser parser = new NotificationRequestStreamParser(wireFormat.getJsonFactory(objectMapper.getFactory()), decodedBody)) {
+            NotificationRequest notificationRequest = parser.readHeader();
+            NotificationDataResponse validationFailedResponse = validateNotificationRequest(notificationRequest);
+            if (validationFailedResponse != null) {
+                notificationResponse.setNotificationDataResponse(validationFailedResponse);
+                return NotificationResponseMapper.mapper.mappingToNotificationResponseDto(notificationResponse);
+            }
+            if (idempotencyStore.isEnabled() || isAsyncIngest()) {
+                List<NotificationData> lstNotificationData = new ArrayList<>();
+                NotificationData notificationData;
+                while ((notificationData = parser.nextNotificationData()) != null) {
+                    lstNotificationData.add(notificationData);
+                }
+                notificationRequest.setNotificationData(lstNotificationData);
+                return NotificationResponseMapper.mapper.mappingToNotificationResponseDto(processIdempotentRequest(notificationRequest));
+            }
+            // The row count of a streamed request is unknown up front; its rows take tokens batch by batch
+            NotificationDataResponse throttledResponse = throttleNotificationRequest(notificationRequest.getMobileContext(), 0);
+            if (throttledResponse != null) {
+                notificationResponse.setNotificationDataResponse(throttledResponse);
+                return NotificationResponseMapper.mapper.mappingToNotificationResponseDto(notificationResponse);
+            }
+
+            long startNanos = System.nanoTime();
+            String mobileContextRequest = notificationRequest.getMobileContext();
+            int batchSize = getNotificationBatchSize();
+            List<Integer> lstFailedUid = new ArrayList<>();
+            List<NotificationData> batch = new ArrayList<>(batchSize);
+            int rows = 0;
+            NotificationData notificationData;
+            while (throttledResponse == null && (notificationData = parser.nextNotificationData()) != null) {
+                batch.add(notificationData);
+                if (batch.size() >= batchSize) {
+                    throttledResponse = throttleStreamedBatch(mobileContextRequest, batch.size(), rows);
+                    if (throttledResponse == null) {
+                        rows += batch.size();
+                        lstFailedUid.addAll(writeStreamedBatch(batch, mobileContextRequest, notificationRequest));
+                        batch = new ArrayList<>(batchSize);
+                    }
+                }
+            }
+            if (throttledResponse == null && !batch.isEmpty()) {
+                throttledResponse = throttleStreamedBatch(mobileContextRequest, batch.size(), rows);
+                if (throttledResponse == null) {
+                    rows += batch.size();
+                    lstFailedUid.addAll(writeStreamedBatch(batch, mobileContextRequest, notificationRequest));
+                }
+            }
+            if (rows > 0) {
+                notificationMetrics.recordRequestRows(mobileContextRequest, rows);
+            }
+            if (throttledResponse != null) {
+                notificationResponse.setNotificationDataResponse(throttledResponse);
+            } else {
+                notificationResponse.setNotificationDataResponse(rows > 0
+                        ? prepareNotificationSuccessResponse(lstFailedUid)
+                        : prepareNotificationFailedResponse("NoDataAvailable"));
+            }
+            notificationMetrics.recordStage(NotificationMetrics.STAGE_TOTAL, mobileContextRequest, startNanos);
+        } catch (JsonProcessingException | ZipException e) {
+            logger.error("Invalid streamed notification request", e);
+            notificationResponse.setNotificationDataResponse(prepareNotificationFailedResponse("InvalidRequest"));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to read notification request body", e);
+        }
+        return NotificationResponseMapper.mapper.mappingToNotificationResponseDto(notificationResponse);
+    }
+
+    /**
+     * Write a batch of a streamed request: hold it in the aggregation window, or journal or insert it.
+     * The batch is handed over, not copied, so the caller starts a new list for the next one.
+     *
+     * @param batch                Instance of List holding the parsed rows
+     * @param mobileContextRequest String value contains context-name
+     * @param notificationRequest  Instance of NotificationRequest
+     * @return Instance of List holding the failed uids
+     */
+    private List<Integer> writeStreamedBatch(List<NotificationData> batch, String mobileContextRequest, NotificationRequest notificationRequest) {
+        if (notificationAggregator.isWindowEnabled() && notificationAggregator.hold(mobileContextRequest, notificationRequest, batch)) {
+            return new ArrayList<>();
+        }
+        return writeNotificationDetails(batch, mobileContextRequest, notificationRequest);
+    }
+
+    /**
+     * Validate the comm auth token and context of a request.
+     *
+     * @param notificationRequest Instance of NotificationRequest
+     * @return Instance of NotificationDataResponse when the request is rejected, otherwise null
+     */
+    private NotificationDataResponse validateNotificationRequest(NotificationRequest notificationRequest) {
         String commAuthTokenRequest = notificationRequest.getCommAuthToken();
         if (StringUtils.isBlank(commAuthTokenRequest)) {
-            notificationResponse.setNotificationDataResponse(prepareNotificationFailedResponse("NoCommAuthToken"));
-            return notificationResponse;
+            return prepareNotificationFailedResponse("NoCommAuthToken");
         }
 
         String mobileContextRequest = notificationRequest.getMobileContext();
         if (StringUtils.isBlank(mobileContextRequest)) {
-            notificationResponse.setNotificationDataResponse(prepareNotificationFailedResponse("InvalidRequest"));
-            return notificationResponse;
+            return prepareNotificationFailedResponse("InvalidRequest");
         }
 
-        Redirection contextDetails = redirectionDao.findByContext(mobileContextRequest);
+        long startNanos = System.nanoTime();
+        Redirection contextDetails = redirectionCache.findByContext(mobileContextRequest);
         if (StringUtils.isBlank(contextDetails.getContext())) {
-            notificationResponse.setNotificationDataResponse(prepareNotificationFailedResponse("NoContextAvailable"));
-        } else {
-            String commAuthTokenDB = contextDetails.getToken();
-
-            // Validate comm auth token
-            if (commAuthTokenRequest.equals(commAuthTokenDB)) {
-                List<NotificationData> lstNotificationData = notificationRequest.getNotificationData();
-                if (CollectionUtil.isListNonEmpty(lstNotificationData)) {
-                    List<Integer> lstFailedUid = insertNotificationDetails(lstNotificationData, mobileContextRequest, notificationRequest);
-                    notificationResponse.setNotificationDataResponse(prepareNotificationSuccessResponse(lstFailedUid));
+            return prepareNotificationFailedResponse("NoContextAvailable");
+        }
+
+        // Validate comm auth token
+        boolean validToken = redirectionCache.isValidToken(mobileContextRequest, contextDetails, commAuthTokenRequest);
+        notificationMetrics.recordStage(NotificationMetrics.STAGE_REDIRECTION, mobileContextRequest, startNanos);
+        if (!validToken) {
+            return prepareNotificationFailedResponse("InvalidCommAuthToken");
+        }
+        return null;
+    }
+
+    /**
+     * Queue notification details for the background writers and acknowledge them right away.
+     *
+     * @param lstNotificationData  Instance of List
+     * @param mobileContextRequest String value contains context-name
+     * @param notificationRequest  Instance of NotificationRequest
+     * @return Instance of NotificationDataResponse carrying the acknowledgement-id, or failed with "Busy"
+     */
+    private NotificationDataResponse submitNotificationDetails(List<NotificationData> lstNotificationData, String mobileContextRequest, NotificationRequest notificationRequest) {
+        String acknowledgementId = asyncNotificationIngestor.submit(
+                () -> insertNotificationDetails(lstNotificationData, mobileContextRequest, notificationRequest));
+        if (acknowledgementId == null) {
+            return prepareNotificationFailedResponse("Busy");
+        }
+        NotificationDataResponse response = prepareNotificationSuccessResponse(new ArrayList<>());
+        response.getResponse().setAcknowledgementId(acknowledgementId);
+        return response;
+    }
+
+    /**
+     * Get the status of notification details accepted in async ingest mode.
+     *
+     * @param acknowledgementId String value contains acknowledgement-id
+     * @return Instance of IngestStatus, or null when the id is unknown
+     */
+    public AsyncNotificationIngestor.IngestStatus getAsyncIngestStatus(String acknowledgementId) {
+        return asyncNotificationIngestor.getStatus(acknowledgementId);
+    }
+
+    /**
+     * Append notification details to the write-ahead journal in batches; the journal replayer writes
+     * them to the database. Falls back to a direct insert of the batches the journal could not take.
+     *
+     * @param lstNotificationData  Instance of List
+     * @param mobileContextRequest String value contains context-name
+     * @param notificationRequest  Instance of NotificationRequest
+     * @return Instance of List holding the failed uids, empty once the batches are journaled
+     */
+    private List<Integer> journalNotificationDetails(List<NotificationData> lstNotificationData, String mobileContextRequest, NotificationRequest notificationRequest) {
+        // A row that does not parse fails the request here, as it would on a direct insert, instead of
+        // failing in replay after the request was acknowledged
+        for (NotificationData notificationData : lstNotificationData) {
+            NotificationBatchBuffer.validate(notificationData);
+        }
+        int batchSize = getNotificationBatchSize();
+        List<NotificationJournalRecord> records = new ArrayList<>(lstNotificationData.size() / batchSize + 1);
+        for (int from = 0; from < lstNotificationData.size(); from += batchSize) {
+            List<NotificationData> batch = new ArrayList<>(lstNotificationData.subList(from, Math.min(from + batchSize, lstNotificationData.size())));
+            records.add(new NotificationJournalRecord(mobileContextRequest, notificationRequest, batch));
+        }
+        int appended = notificationJournalReplayer.append(records);
+        if (appended == records.size()) {
+            return new ArrayList<>();
+        }
+        // Journaled batches are replayed whatever happens, so only the rest is inserted here
+        logger.error("Inserting {} of {} notification batches directly", records.size() - appended, records.size());
+        return insertNotificationDetails(lstNotificationData.subList(appended * batchSize, lstNotificationData.size()),
+                mobileContextRequest, notificationRequest);
+    }
+
+    @Override
+    public NotificationJournalReplayOutcome replayJournalRecord(String journalId, long sequence, NotificationJournalRecord record) {
+        List<NotificationData> lstNotificationData = aggregateNotificationDetails(record.getNotificationData(), record.getContext());
+        List<Integer> lstFailedUid;
+        try {
+            lstFailedUid = journalId == null
+                    ? insertAggregatedNotificationDetails(lstNotificationData, record.getContext(), record.toNotificationRequest())
+                    : applyJournalRecord(journalId, sequence, lstNotificationData, record.getContext(), record.toNotificationRequest());
+        } catch (RuntimeException e) {
+            if (!DeviceDetailsRegistry.isUnavailable(e) && isDatabaseReachable(record.getContext())) {
+                throw e;
+            }
+            logger.warn("Database unavailable while writing notification data of context {}", record.getContext(), e);
+            return new NotificationJournalReplayOutcome(lstNotificationData.size(), new ArrayList<>(), true);
+        }
+        NotificationJournalReplayOutcome outcome = new NotificationJournalReplayOutcome(lstNotificationData.size(), lstFailedUid);
+        // The write path turns outages into failed uids: a batch with no row written is retried only when
+        // the database cannot be reached, otherwise the database rejected its rows
+        if (outcome.isNothingWritten() && !isDatabaseReachable(record.getContext())) {
+            return new NotificationJournalReplayOutcome(lstNotificationData.size(), lstFailedUid, true);
+        }
+        return outcome;
+    }
+
+    /**
+     * Write the rows of a journal record in one transaction with its sequence on the shard of its context,
+     * then its devices. The rows of a record applied before a crash are skipped instead of written twice;
+     * the devices are written again, which only repeats their upsert.
+     *
+     * @param journalId            String value identifying the journal
+     * @param sequence             long value of the sequence of the record in the journal
+     * @param lstNotificationData  Instance of List holding the rows of the record, already folded by aggregation
+     * @param mobileContextRequest String value contains context-name
+     * @param notificationRequest  Instance of NotificationRequest
+     * @return Instance of List holding one uid per row that could not be written
+     */
+    private List<Integer> applyJournalRecord(String journalId, long sequence, List<NotificationData> lstNotificationData,
+                                             String mobileContextRequest, NotificationRequest notificationRequest) {
+        List<Integer> lstFailedUid = new ArrayList<>();
+        NotificationBatchBuffer buffer = NotificationBatchBuffer.acquire(Math.max(1, lstNotificationData.size()), mobileContextRequest, notificationRequest);
+        try {
+            for (NotificationData notificationData : lstNotificationData) {
+                buffer.add(notificationData);
+            }
+            contextShardRouter.callInContext(mobileContextRequest, () -> {
+                notificationMetrics.recordBatch(mobileContextRequest, buffer.size());
+                BitSet written = notificationJournalDao.applyNotificationBatch(journalId, sequence, buffer);
+                if (written == null) {
+                    logger.info("Notification rows of journal record {} of context {} were written before, skipping them", sequence, mobileContextRequest);
                 } else {
-                    notificationResponse.setNotificationDataResponse(prepareNotificationFailedResponse("NoDataAvailable"));
+                    for (int row = written.nextClearBit(0); row < buffer.size(); row = written.nextClearBit(row + 1)) {
+                        lstFailedUid.add(buffer.getUid(row));
+                    }
+                    notificationMetrics.recordFailedUids(mobileContextRequest, lstFailedUid.size());
                 }
-            } else {
-                notificationResponse.setNotificationDataResponse(prepareNotificationFailedResponse("InvalidCommAuthToken"));
-            }
+                processDeviceDetailsBatch(mobileContextRequest, deviceDetailsRegistry.isEnabled()
+                        ? registerDeviceDetails(buffer)
+                        : prepareDeviceDetails(buffer));
+                return null;
+            });
+        } finally {
+            buffer.release();
+        }
+        return lstFailedUid;
+    }
+
+    /**
+     * Whether a connection to the shard of a context can be opened and validated.
+     *
+     * @param mobileContextRequest String value contains context-name
+     * @return boolean
+     */
+    private boolean isDatabaseReachable(String mobileContextRequest) {
+        try {
+            return contextShardRouter.callInContext(mobileContextRequest, () -> {
+                try (Connection connection = contextShardRouter.getDataSource(contextShardRouter.shardOf(mobileContextRequest)).getConnection()) {
+                    return connection.isValid(DATABASE_PROBE_TIMEOUT_SECONDS);
+                } catch (SQLException e) {
+                    return false;
+                }
+            });
+        } catch (RuntimeException e) {
+            return false;
         }
-        return notificationResponse;
     }
 
     /**
@@ -135,66 +595,329 @@ public class NotificationServiceImpl implements NotificationService {
      * @return Instance of List
      */
     private List<Integer> insertNotificationDetails(List<NotificationData> lstNotificationData, String mobileContextRequest, NotificationRequest notificationRequest) {
-        List<Integer> lstFailedUid = new ArrayList<>();
-        int batchSize = notificationDataDao.getBatchSize();
+        return insertAggregatedNotificationDetails(aggregateNotificationDetails(lstNotificationData, mobileContextRequest),
+                mobileContextRequest, notificationRequest);
+    }
 
-        List<PushNotificationData> pushNotificationDataList = new ArrayList<>(batchSize);
-        List<DeviceDetails> deviceDetailsList = new ArrayList<>(batchSize);
-        List<Integer> uidList = new ArrayList<>(batchSize);
+    /**
+     * Insert notification details that were already folded by aggregation, in parallel lanes when enabled.
+     *
+     * @param lstNotificationData  Instance of List
+     * @param mobileContextRequest String value contains context-name
+     * @param notificationRequest  Instance of NotificationRequest
+     * @return Instance of List holding one uid per row that could not be written
+     */
+    private List<Integer> insertAggregatedNotificationDetails(List<NotificationData> lstNotificationData, String mobileContextRequest,
+                                                             NotificationRequest notificationRequest) {
+        if (parallelBatchExecutor != null && parallelBatchExecutor.getLanes() > 1
+                && lstNotificationData.size() > getNotificationBatchSize()) {
+            return parallelBatchExecutor.execute(
+                    parallelBatchExecutor.partitionByUid(lstNotificationData, notificationData -> Integer.parseInt(notificationData.getUid())),
+                    lane -> insertNotificationBatches(lane, mobileContextRequest, notificationRequest));
+        }
+        return insertNotificationBatches(lstNotificationData, mobileContextRequest, notificationRequest);
+    }
 
-        for (NotificationData notificationData : lstNotificationData) {
-            pushNotificationDataList.add(preparePushNotificationData(mobileContextRequest, notificationData, notificationRequest));
-            deviceDetailsList.add(prepareDeviceDetails(mobileContextRequest, notificationData));
-            uidList.add(Integer.parseInt(notificationData.getUid()));
+    /**
+     * Fold rows with the same (uid, messageType) into one row when aggregation is enabled.
+     *
+     * @param lstNotificationData  Instance of List
+     * @param mobileContextRequest String value contains context-name
+     * @return Instance of List
+     */
+    private List<NotificationData> aggregateNotificationDetails(List<NotificationData> lstNotificationData, String mobileContextRequest) {
+        if (!notificationAggregator.isEnabled()) {
+            return lstNotificationData;
+        }
+        return notificationAggregator.aggregate(mobileContextRequest, lstNotificationData);
+    }
 
-            if (pushNotificationDataList.size() >= batchSize) {
-                processBatch(pushNotificationDataList, deviceDetailsList, uidList, lstFailedUid);
-                pushNotificationDataList.clear();
-                deviceDetailsList.clear();
-                uidList.clear();
+    /**
+     * Insert notification details batch by batch on the calling thread.
+     *
+     * @param lstNotificationData  Instance of List
+     * @param mobileContextRequest String value contains context-name
+     * @param notificationRequest  Instance of NotificationRequest
+     * @return Instance of List
+     */
+    private List<Integer> insertNotificationBatches(List<NotificationData> lstNotificationData, String mobileContextRequest, NotificationRequest notificationRequest) {
+        List<Integer> lstFailedUid = new ArrayList<>();
+        NotificationBatchBuffer buffer = NotificationBatchBuffer.acquire(getNotificationBatchSize(), mobileContextRequest, notificationRequest);
+        try {
+            for (NotificationData notificationData : lstNotificationData) {
+                buffer.add(notificationData);
+                if (buffer.isFull()) {
+                    processBatch(buffer, lstFailedUid);
+                    buffer.clear();
+                }
             }
-        }
-        if (!pushNotificationDataList.isEmpty()) {
-            processBatch(pushNotificationDataList, deviceDetailsList, uidList, lstFailedUid);
+            if (!buffer.isEmpty()) {
+                processBatch(buffer, lstFailedUid);
+            }
+        } finally {
+            buffer.release();
         }
         return lstFailedUid;
     }
 
+    /**
+     * Load the existing device details of every uid in the batch with chunked IN queries,
+     * instead of one findByUidAndContext query per notification. The queries decide between insert and
+     * update of the devices, so they run on the primary of the shard, never on a read replica: a device
+     * read as missing from a lagging replica would be inserted again.
+     *
+     * @param buffer Instance of NotificationBatchBuffer
+     * @return Instance of Map keyed by uid
+     */
+    private Map<Integer, DeviceDetails> loadDeviceDetails(NotificationBatchBuffer buffer) {
+        long startNanos = System.nanoTime();
+        Set<Integer> uids = new LinkedHashSet<>();
+        for (int row = 0; row < buffer.size(); row++) {
+            uids.add(buffer.getUid(row));
+        }
+
+        Map<Integer, DeviceDetails> deviceDetailsByUid = new HashMap<>(uids.size() * 2);
+        List<Integer> chunk = new ArrayList<>(DEVICE_LOOKUP_CHUNK_SIZE);
+        for (Integer uid : uids) {
+            chunk.add(uid);
+            if (chunk.size() >= DEVICE_LOOKUP_CHUNK_SIZE) {
+                putDeviceDetails(deviceDetailsByUid, findDeviceDetails(chunk, buffer.getContext()));
+                chunk.clear();
+            }
+        }
+        if (!chunk.isEmpty()) {
+            putDeviceDetails(deviceDetailsByUid, findDeviceDetails(chunk, buffer.getContext()));
+        }
+        notificationMetrics.recordStage(NotificationMetrics.STAGE_DEVICE_LOOKUP, buffer.getContext(), startNanos);
+        return deviceDetailsByUid;
+    }
+
+    private List<DeviceDetails> findDeviceDetails(List<Integer> uids, String context) {
+        return deviceDetailsDao.findByUidsAndContext(uids, context);
+    }
+
+    private void putDeviceDetails(Map<Integer, DeviceDetails> deviceDetailsByUid, List<DeviceDetails> lstDeviceDetails) {
+        if (CollectionUtil.isListNonEmpty(lstDeviceDetails)) {
+            for (DeviceDetails deviceDetails : lstDeviceDetails) {
+                deviceDetailsByUid.put(deviceDetails.getUid(), deviceDetails);
+            }
+        }
+    }
+
     /**
      * Process a batch of notification data and device details.
-     * @param pushNotificationDataList List of PushNotificationData to be saved
-     * @param deviceDetailsList List of DeviceDetails to be saved
-     * @param uidList List of UIDs for error handling
+     * @param buffer Instance of NotificationBatchBuffer holding the rows of the batch
      * @param lstFailedUid List to collect failed UIDs
      */
-    private void processBatch(List<PushNotificationData> pushNotificationDataList,
-                              List<DeviceDetails> deviceDetailsList,
-                              List<Integer> uidList,
-                              List<Integer> lstFailedUid) {
-        // Process push notifications
-        processNotificationBatch(pushNotificationDataList, uidList, lstFailedUid);
+    private void processBatch(NotificationBatchBuffer buffer, List<Integer> lstFailedUid) {
+        // Small batches of concurrent requests are written together as one group
+        if (groupCommitCoalescer.accepts(buffer.size())) {
+            lstFailedUid.addAll(groupCommitCoalescer.submit(buffer, this::writeNotificationGroup));
+            return;
+        }
+        // Batches wait for a write slot in their context's queue, then, on virtual threads, for a connection permit,
+        // and write to the shard of their context
+        contextFairScheduler.run(buffer.getContext(), buffer.size(),
+                () -> virtualThreadExecution.withConnectionPermit(() -> contextShardRouter.callInContext(buffer.getContext(), () -> {
+                    writeBatch(buffer, lstFailedUid);
+                    return null;
+                })));
+    }
+
+    private void writeBatch(NotificationBatchBuffer buffer, List<Integer> lstFailedUid) {
+        notificationMetrics.recordBatch(buffer.getContext(), buffer.size());
+
+        // Process push notifications; the push dispatcher picks the written rows up from the table
+        processNotificationBatch(buffer, lstFailedUid);
 
         // Process device details
-        processDeviceDetailsBatch(deviceDetailsList);
+        processDeviceDetailsBatch(buffer.getContext(), deviceDetailsRegistry.isEnabled()
+                ? registerDeviceDetails(buffer)
+                : prepareDeviceDetails(buffer));
+    }
+
+    /**
+     * Register the devices of a batch with the device registry.
+     * @param buffer Instance of NotificationBatchBuffer holding the rows of the batch
+     * @return Instance of List holding the devices the registry refused, to be written directly
+     */
+    private List<DeviceDetails> registerDeviceDetails(NotificationBatchBuffer buffer) {
+        BitSet refusedRows = new BitSet(buffer.size());
+        for (int row = 0; row < buffer.size(); row++) {
+            if (!deviceDetailsRegistry.register(buffer.getContext(), buffer.getUid(row), buffer.getDevicePlatform(row), buffer.getDeviceToken(row))) {
+                refusedRows.set(row);
+            }
+        }
+        if (refusedRows.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<DeviceDetails> deviceDetails = prepareDeviceDetails(buffer);
+        List<DeviceDetails> refusedDeviceDetails = new ArrayList<>(refusedRows.cardinality());
+        for (int row = refusedRows.nextSetBit(0); row >= 0; row = refusedRows.nextSetBit(row + 1)) {
+            refusedDeviceDetails.add(deviceDetails.get(row));
+        }
+        return refusedDeviceDetails;
     }
 
-    private void processNotificationBatch(List<PushNotificationData> notifications, List<Integer> uidList, List<Integer> lstFailedUid) {
+    /**
+     * Write the batches of a group commit as one notification batch and one device details batch per
+     * context shard.
+     * @param buffers Instance of List holding the batches of the group, of any contexts
+     * @return Instance of List holding the failed uids of every batch
+     */
+    private List<List<Integer>> writeNotificationGroup(List<NotificationBatchBuffer> buffers) {
+        return virtualThreadExecution.withConnectionPermit(() -> contextShardRouter.callFenced(() -> {
+            if (!contextShardRouter.isEnabled()) {
+                return writeNotificationGroupOnShard(buffers);
+            }
+            // A group holds contexts of several shards; each shard gets one batch of its own contexts
+            Map<String, List<Integer>> indexesByShard = new LinkedHashMap<>();
+            for (int index = 0; index < buffers.size(); index++) {
+                indexesByShard.computeIfAbsent(contextShardRouter.shardOf(buffers.get(index).getContext()), shard -> new ArrayList<>()).add(index);
+            }
+            List<List<Integer>> failedUids = new ArrayList<>(Collections.nCopies(buffers.size(), null));
+            for (Map.Entry<String, List<Integer>> shardIndexes : indexesByShard.entrySet()) {
+                List<NotificationBatchBuffer> shardBuffers = new ArrayList<>(shardIndexes.getValue().size());
+                for (Integer index : shardIndexes.getValue()) {
+                    shardBuffers.add(buffers.get(index));
+                }
+                List<List<Integer>> shardFailedUids = contextShardRouter.callOnShard(shardIndexes.getKey(), () -> writeNotificationGroupOnShard(shardBuffers));
+                for (int i = 0; i < shardBuffers.size(); i++) {
+                    failedUids.set(shardIndexes.getValue().get(i), shardFailedUids.get(i));
+                }
+            }
+            return failedUids;
+        }));
+    }
+
+    /**
+     * Write the batches of a group commit, all of one shard, to the shard the current thread routes to.
+     * @param buffers Instance of List holding the batches, of contexts of one shard
+     * @return Instance of List holding the failed uids of every batch
+     */
+    private List<List<Integer>> writeNotificationGroupOnShard(List<NotificationBatchBuffer> buffers) {
+        long startNanos = System.nanoTime();
+        List<PushNotificationData> notifications = new ArrayList<>();
+        for (NotificationBatchBuffer buffer : buffers) {
+            notificationMetrics.recordBatch(buffer.getContext(), buffer.size());
+            for (int row = 0; row < buffer.size(); row++) {
+                notifications.add(buffer.toPushNotificationData(row));
+            }
+        }
+        List<PushNotificationData> unwritten;
         try {
             List<PushNotificationData> saved = notificationDataDao.savePushNotificationDataBatch(notifications);
-            if (saved.size() == notifications.size()) {
+            unwritten = saved.size() == notifications.size()
+                    ? new ArrayList<>()
+                    : BisectingBatchRecovery.unwrittenRows(notifications, saved);
+        } catch (RuntimeException e) {
+            logger.error("Group batch save failed", e);
+            unwritten = notifications;
+        }
+        notificationMetrics.recordStage(NotificationMetrics.STAGE_GROUP_COMMIT, GroupCommitCoalescer.GROUP_CONTEXT, startNanos);
+        adaptiveBatchSizer.recordBatch(AdaptiveBatchSizer.Writes.NOTIFICATION, notifications.size(), System.nanoTime() - startNanos, !unwritten.isEmpty());
+
+        Set<PushNotificationData> failedNotifications = new HashSet<>();
+        if (!unwritten.isEmpty()) {
+            logger.info("Recovering {} rows of a group batch by bisection", unwritten.size());
+            notificationMetrics.recordFallback(NotificationMetrics.STAGE_GROUP_COMMIT, GroupCommitCoalescer.GROUP_CONTEXT);
+            failedNotifications = recoverNotifications(unwritten);
+        }
+
+        List<List<Integer>> failedUids = new ArrayList<>(buffers.size());
+        List<DeviceDetails> deviceDetails = new ArrayList<>(notifications.size());
+        int notification = 0;
+        for (NotificationBatchBuffer buffer : buffers) {
+            List<Integer> lstFailedUid = new ArrayList<>();
+            for (int row = 0; row < buffer.size(); row++, notification++) {
+                if (failedNotifications.contains(notifications.get(notification))) {
+                    lstFailedUid.add(buffer.getUid(row));
+                }
+            }
+            notificationMetrics.recordFailedUids(buffer.getContext(), lstFailedUid.size());
+            deviceDetails.addAll(deviceDetailsRegistry.isEnabled() ? registerDeviceDetails(buffer) : prepareDeviceDetails(buffer));
+            failedUids.add(lstFailedUid);
+        }
+        processDeviceDetailsBatch(GroupCommitCoalescer.GROUP_CONTEXT, deviceDetails);
+        return failedUids;
+    }
+
+    private void processNotificationBatch(NotificationBatchBuffer buffer, List<Integer> lstFailedUid) {
+        long startNanos = System.nanoTime();
+        BitSet written = new BitSet(buffer.size());
+        try {
+            if (notificationDataDao instanceof NotificationBatchWriter) {
+                written = ((NotificationBatchWriter) notificationDataDao).saveNotificationBatch(buffer);
+            } else {
+                List<PushNotificationData> notifications = new ArrayList<>(buffer.size());
+                for (int row = 0; row < buffer.size(); row++) {
+                    notifications.add(buffer.toPushNotificationData(row));
+                }
+                List<PushNotificationData> saved = notificationDataDao.savePushNotificationDataBatch(notifications);
+                if (saved.size() == notifications.size()) {
+                    recordNotificationBatch(buffer, startNanos, false);
+                    return;
+                }
+                List<PushNotificationData> unwritten = BisectingBatchRecovery.unwrittenRows(notifications, saved);
+                for (int row = 0, next = 0; row < notifications.size(); row++) {
+                    if (next < unwritten.size() && unwritten.get(next) == notifications.get(row)) {
+                        next++;
+                    } else {
+                        written.set(row);
+                    }
+                }
+            }
+            if (written.cardinality() == buffer.size()) {
+                recordNotificationBatch(buffer, startNanos, false);
                 return;
             }
             logger.error("Batch save incomplete: Expected {}, Actual {}",
-                    notifications.size(), saved.size());
+                    buffer.size(), written.cardinality());
         } catch (RuntimeException e) {
             logger.error("Batch save failed", e);
         }
 
-        // Fallback to individual processing
-        logger.info("Processing notifications individually");
+        recordNotificationBatch(buffer, startNanos, true);
+
+        // Recover the rows the batch did not write by bisecting them
+        logger.info("Recovering notification batch by bisection");
+        notificationMetrics.recordFallback(NotificationMetrics.STAGE_NOTIFICATION_BATCH, buffer.getContext());
+        long recoveryStartNanos = System.nanoTime();
+        int failedUidCount = lstFailedUid.size();
+        List<PushNotificationData> notifications = new ArrayList<>(buffer.size() - written.cardinality());
+        List<Integer> uidList = new ArrayList<>(buffer.size() - written.cardinality());
+        for (int row = written.nextClearBit(0); row < buffer.size(); row = written.nextClearBit(row + 1)) {
+            notifications.add(buffer.toPushNotificationData(row));
+            uidList.add(buffer.getUid(row));
+        }
+        Set<PushNotificationData> failedNotifications = recoverNotifications(notifications);
         for (int notification = 0; notification < notifications.size(); notification++) {
-            processIndividualNotification(notifications.get(notification), uidList.get(notification), lstFailedUid);
+            if (failedNotifications.contains(notifications.get(notification))) {
+                lstFailedUid.add(uidList.get(notification));
+            }
         }
+        notificationMetrics.recordStage(NotificationMetrics.STAGE_NOTIFICATION_RECOVERY, buffer.getContext(), recoveryStartNanos);
+        notificationMetrics.recordFailedUids(buffer.getContext(), lstFailedUid.size() - failedUidCount);
+    }
+
+    private Set<PushNotificationData> recoverNotifications(List<PushNotificationData> notifications) {
+        return batchRecovery.recover(notifications,
+                new BisectingBatchRecovery.BatchWriter<PushNotificationData>() {
+                    @Override
+                    public List<PushNotificationData> writeBatch(List<PushNotificationData> rows) {
+                        return notificationDataDao.savePushNotificationDataBatch(rows);
+                    }
+
+                    @Override
+                    public boolean writeOne(PushNotificationData row) {
+                        return notificationDataDao.savePushNotificationData(row) != null;
+                    }
+                });
+    }
+
+    private void recordNotificationBatch(NotificationBatchBuffer buffer, long startNanos, boolean failed) {
+        notificationMetrics.recordStage(NotificationMetrics.STAGE_NOTIFICATION_BATCH, buffer.getContext(), startNanos);
+        adaptiveBatchSizer.recordBatch(AdaptiveBatchSizer.Writes.NOTIFICATION, buffer.size(), System.nanoTime() - startNanos, failed);
     }
 
     private void processIndividualNotification(PushNotificationData notification, int uid, List<Integer> lstFailedUid) {
@@ -208,59 +931,134 @@ public class NotificationServiceImpl implements NotificationService {
         }
     }
 
-    private void processDeviceDetailsBatch(List<DeviceDetails> deviceDetails) {
+    private void processDeviceDetailsBatch(String context, List<DeviceDetails> deviceDetails) {
+        int batchSize = adaptiveBatchSizer.getBatchSize(AdaptiveBatchSizer.Writes.DEVICE, notificationDataDao.getBatchSize());
+        for (int from = 0; from < deviceDetails.size(); from += batchSize) {
+            processDeviceDetailsChunk(context, deviceDetails.subList(from, Math.min(from + batchSize, deviceDetails.size())));
+        }
+    }
+
+    private void processDeviceDetailsChunk(String context, List<DeviceDetails> deviceDetails) {
+        long startNanos = System.nanoTime();
         try {
             deviceDetailsDao.saveDeviceDetailsBatch(deviceDetails);
+            recordDeviceBatch(context, deviceDetails.size(), startNanos, false);
         } catch (RuntimeException e) {
+            recordDeviceBatch(context, deviceDetails.size(), startNanos, true);
             logger.error("Batch device details save failed", e);
-            logger.info("Processing device details individually");
+            logger.info("Recovering device details batch by bisection");
+            notificationMetrics.recordFallback(NotificationMetrics.STAGE_DEVICE_BATCH, context);
+            long recoveryStartNanos = System.nanoTime();
+
+            Set<DeviceDetails> failedDevices = batchRecovery.recover(deviceDetails,
+                    new BisectingBatchRecovery.BatchWriter<DeviceDetails>() {
+                        @Override
+                        public List<DeviceDetails> writeBatch(List<DeviceDetails> rows) {
+                            return deviceDetailsDao.saveDeviceDetailsBatch(rows);
+                        }
+
+                        @Override
+                        public boolean writeOne(DeviceDetails row) {
+                            return deviceDetailsDao.saveDeviceDetails(row) != null;
+                        }
+
+                        @Override
+                        public Object keyOf(DeviceDetails row) {
+                            return DeviceDetailsRegistry.DeviceKey.of(row);
+                        }
+                    });
+            for (DeviceDetails device : failedDevices) {
+                logger.error("Failed to save device details: {}", device.getUid());
+            }
+            notificationMetrics.recordStage(NotificationMetrics.STAGE_DEVICE_RECOVERY, context, recoveryStartNanos);
+        }
+    }
 
-            for (DeviceDetails device : deviceDetails) {
-                try {
-                    deviceDetailsDao.saveDeviceDetails(device);
-                } catch (RuntimeException ex) {
-                    logger.error("Failed to save device details: {}", device.getUid(), ex);
-                }
+    private void recordDeviceBatch(String context, int rows, long startNanos, boolean failed) {
+        notificationMetrics.recordStage(NotificationMetrics.STAGE_DEVICE_BATCH, context, startNanos);
+        adaptiveBatchSizer.recordBatch(AdaptiveBatchSizer.Writes.DEVICE, rows, System.nanoTime() - startNanos, failed);
+    }
+
+    /**
+     * Batch size of the push-notification writes, adapted to the observed write latency when enabled.
+     *
+     * @return int value of the batch size
+     */
+    private int getNotificationBatchSize() {
+        return adaptiveBatchSizer.getBatchSize(AdaptiveBatchSizer.Writes.NOTIFICATION, notificationDataDao.getBatchSize());
+    }
+
+    /**
+     * Prepare device details objects of a batch.
+     * @param buffer Instance of NotificationBatchBuffer holding the rows of the batch
+     * @return Instance of List
+     */
+    private List<DeviceDetails> prepareDeviceDetails(NotificationBatchBuffer buffer) {
+        // An upsert writes platform and token keyed on (uid, context), so nothing has to be read first
+        Map<Integer, DeviceDetails> deviceDetailsByUid = DEVICE_WRITE_MODE_UPSERT.equals(deviceWriteMode)
+                ? new HashMap<>()
+                : loadDeviceDetails(buffer);
+
+        List<DeviceDetails> deviceDetailsList = new ArrayList<>(buffer.size());
+        for (int row = 0; row < buffer.size(); row++) {
+            int uid = buffer.getUid(row);
+            DeviceDetails deviceDetails = deviceDetailsByUid.get(uid);
+            if (deviceDetails == null) {
+                deviceDetails = new DeviceDetails();
+                deviceDetails.setUid(uid);
+                deviceDetails.setContext(buffer.getContext());
+                deviceDetailsByUid.put(uid, deviceDetails);
             }
+            deviceDetails.setDevicePlatform(buffer.getDevicePlatform(row));
+            deviceDetails.setDeviceToken(buffer.getDeviceToken(row));
+            deviceDetailsList.add(deviceDetails);
         }
+        return deviceDetailsList;
+    }
+
+    private boolean isSuccessfulResponse(NotificationResponse notificationResponse) {
+        return notificationResponse.getNotificationDataResponse() != null
+                && Objects.equals(Status.SUCCESS.getStatusValue(), notificationResponse.getNotificationDataResponse().getStatus());
     }
 
     /**
-     * Prepare push notification data object.
+     * Take the row tokens of the next batch of a streamed request. A throttled stream stops there; the
+     * batches written before it stay written.
      *
-     * @param context             String value contains context-name
-     * @param notificationData    Instance of NotificationData
-     * @param notificationRequest Instance of NotificationRequest
-     * @return Object of PushNotificationData
+     * @param mobileContextRequest String value contains context-name
+     * @param rows                 int value of the rows of the batch
+     * @param writtenRows          int value of the rows of the request already written
+     * @return Instance of NotificationDataResponse failed with "Throttled" and a retry-after hint, or null when admitted
      */
-    private PushNotificationData preparePushNotificationData(String context, NotificationData notificationData, NotificationRequest notificationRequest) {
-        PushNotificationData pushNotificationData = new PushNotificationData();
-        pushNotificationData.setUid(Integer.parseInt(notificationData.getUid()));
-        pushNotificationData.setContext(context);
-        pushNotificationData.setMessageCount(Integer.parseInt(notificationData.getMessageCount()));
-        pushNotificationData.setMessageType(notificationData.getMessageType());
-        pushNotificationData.setCreatedTsUTC(DateUtil.getCurrentDateTimeInUTC("yyyy-MM-dd HH:mm:ss"));
-        pushNotificationData.setPracticeIp(StringUtils.trimToEmpty(notificationRequest.getHostAddress()));
-        pushNotificationData.setHostName(StringUtils.trimToEmpty(notificationRequest.getHostName()));
-        pushNotificationData.setTomcatPath(StringUtils.trimToEmpty(notificationRequest.getTomcatHome()));
-        return pushNotificationData;
+    private NotificationDataResponse throttleStreamedBatch(String mobileContextRequest, int rows, int writtenRows) {
+        long retryAfterMillis = contextRateLimiter.tryAcquireRows(mobileContextRequest, rows);
+        if (retryAfterMillis == 0) {
+            return null;
+        }
+        logger.warn("Throttled streamed request of context {} after {} rows, retry after {} ms", mobileContextRequest, writtenRows, retryAfterMillis);
+        return prepareThrottledResponse(retryAfterMillis);
     }
 
     /**
-     * Prepare device details object.
-     * @param context          String value contains context-name
-     * @param notificationData Instance of NotificationData
-     * @return Object of DeviceDetails
+     * Check the rate limit of a context before any database work.
+     *
+     * @param mobileContextRequest String value contains context-name
+     * @param rows                 int value of the notification rows of the request
+     * @return Instance of NotificationDataResponse failed with "Throttled" and a retry-after hint, or null when admitted
      */
-    private DeviceDetails prepareDeviceDetails(String context, NotificationData notificationData) {
-        DeviceDetails deviceDetails = deviceDetailsDao.findByUidAndContext(Integer.parseInt(notificationData.getUid()), context);
-        if (StringUtils.isBlank(deviceDetails.getContext())) {
-            deviceDetails.setUid(Integer.parseInt(notificationData.getUid()));
-            deviceDetails.setContext(context);
+    private NotificationDataResponse throttleNotificationRequest(String mobileContextRequest, int rows) {
+        long retryAfterMillis = contextRateLimiter.tryAcquire(mobileContextRequest, rows);
+        if (retryAfterMillis == 0) {
+            return null;
         }
-        deviceDetails.setDevicePlatform(notificationData.getDevicePlatform());
-        deviceDetails.setDeviceToken(notificationData.getDeviceToken());
-        return deviceDetails;
+        logger.warn("Throttled request of context {} with {} rows, retry after {} ms", mobileContextRequest, rows, retryAfterMillis);
+        return prepareThrottledResponse(retryAfterMillis);
+    }
+
+    private NotificationDataResponse prepareThrottledResponse(long retryAfterMillis) {
+        NotificationDataResponse response = prepareNotificationFailedResponse("Throttled");
+        response.setRetryAfterSeconds(TimeUnit.MILLISECONDS.toSeconds(retryAfterMillis + 999));
+        return response;
     }
 
     /**
@@ -360,9 +1158,7 @@ public class NotificationServiceImpl implements NotificationService {
 
                 // Create service instance and set dependencies
                 System.out.println("Setting up service instance...");
-                NotificationServiceImpl service = new NotificationServiceImpl();
-                setPrivateField(service, "notificationDataDao", notificationDataDao);
-                setPrivateField(service, "deviceDetailsDao", deviceDetailsDao);
+                NotificationServiceImpl service = fromContext(context);
 
                 // Execute test
                 System.out.println("\nExecuting insertNotificationDetails with:");
@@ -431,7 +1227,6 @@ public class NotificationServiceImpl implements NotificationService {
 
             // --- Test fallback to individual insert when batch insert fails ---
             System.out.println("\nTesting fallback to individual insert when batch insert fails...");
-            NotificationServiceImpl fallbackTestService = new NotificationServiceImpl();
             NotificationDataDao batchFailDao = new NotificationDataDao() {
                 @Override
                 public int getBatchSize() { return 3; }
@@ -456,9 +1251,8 @@ public class NotificationServiceImpl implements NotificationService {
                     throw new RuntimeException("Simulated batch failure");
                 }
             };
-            setPrivateField(fallbackTestService, "notificationDataDao", batchFailDao);
             // DeviceDetailsDao can be a dummy, not used in this test
-            setPrivateField(fallbackTestService, "deviceDetailsDao", createMockDeviceDetailsDao());
+            NotificationServiceImpl fallbackTestService = standalone(batchFailDao, createMockDeviceDetailsDao());
 
             // Prepare test data: 3 notifications, one will fail individual insert
             List<NotificationData> fallbackTestData = new ArrayList<>();
@@ -481,6 +1275,8 @@ public class NotificationServiceImpl implements NotificationService {
                     fallbackTestData, "CTX", dummyReq
             );
             System.out.println("Failed UIDs after fallback test: " + failedUid);
+            System.out.println("Recovery depth counts: " + java.util.Arrays.toString(
+                    ((BisectingBatchRecovery) getFieldValue(fallbackTestService, "batchRecovery")).getDepthCounts()));
             // --- End fallback test block ---
 
 
@@ -627,6 +1423,11 @@ public class NotificationServiceImpl implements NotificationService {
                 return details;
             }
 
+            @Override
+            public List<DeviceDetails> findByUidsAndContext(List<Integer> uids, String context) {
+                return new ArrayList<>();
+            }
+
             @Override
             public DeviceDetails saveDeviceDetails(DeviceDetails details) {
                 System.out.println("[DAO] Saving device details for UID: " + details.getUid());
@@ -684,6 +1485,50 @@ public class NotificationServiceImpl implements NotificationService {
         return token.toString();
     }
 
+    /**
+     * Service wired with standalone collaborators around the given DAOs, for the offline checks and
+     * the benchmarks.
+     */
+    static NotificationServiceImpl standalone(NotificationDataDao notificationDataDao, DeviceDetailsDao deviceDetailsDao) {
+        NotificationServiceImpl service = new NotificationServiceImpl();
+        service.notificationDataDao = notificationDataDao;
+        service.deviceDetailsDao = deviceDetailsDao;
+        service.batchRecovery = new BisectingBatchRecovery();
+        service.deviceDetailsRegistry = new DeviceDetailsRegistry();
+        service.notificationMetrics = new NotificationMetrics(new SimpleMeterRegistry());
+        service.adaptiveBatchSizer = new AdaptiveBatchSizer();
+        service.notificationAggregator = new NotificationAggregator();
+        service.virtualThreadExecution = new VirtualThreadExecution();
+        service.contextFairScheduler = new ContextFairScheduler();
+        service.contextRateLimiter = new ContextRateLimiter();
+        service.idempotencyStore = new IdempotencyStore();
+        service.groupCommitCoalescer = new GroupCommitCoalescer();
+        service.contextShardRouter = new ContextShardRouter();
+        return service;
+    }
+
+    /**
+     * Service wired with the beans of a running application context, for the offline checks and
+     * the benchmarks.
+     */
+    static NotificationServiceImpl fromContext(ApplicationContext context) {
+        NotificationServiceImpl service = new NotificationServiceImpl();
+        service.notificationDataDao = context.getBean(NotificationDataDao.class);
+        service.deviceDetailsDao = context.getBean(DeviceDetailsDao.class);
+        service.batchRecovery = context.getBean(BisectingBatchRecovery.class);
+        service.deviceDetailsRegistry = context.getBean(DeviceDetailsRegistry.class);
+        service.notificationMetrics = context.getBean(NotificationMetrics.class);
+        service.adaptiveBatchSizer = context.getBean(AdaptiveBatchSizer.class);
+        service.notificationAggregator = context.getBean(NotificationAggregator.class);
+        service.virtualThreadExecution = context.getBean(VirtualThreadExecution.class);
+        service.contextFairScheduler = context.getBean(ContextFairScheduler.class);
+        service.contextRateLimiter = context.getBean(ContextRateLimiter.class);
+        service.idempotencyStore = context.getBean(IdempotencyStore.class);
+        service.groupCommitCoalescer = context.getBean(GroupCommitCoalescer.class);
+        service.contextShardRouter = context.getBean(ContextShardRouter.class);
+        return service;
+    }
+
     private static void setPrivateField(Object object, String fieldName, Object value) {
         try {
             java.lang.reflect.Field field = object.getClass().getDeclaredField(fieldName);
@@ -694,14 +1539,6 @@ public class NotificationServiceImpl implements NotificationService {
         }
     }
 
-    // Helper class to simulate DateUtil if not available
-    private static class DateUtil {
-        public static String getCurrentDateTimeInUTC(String format) {
-            SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
-            return sdf.format(new Date());
-        }
-    }
-
 
 @Transactional
 public void savePushNotificationsInBatch(List<PushNotificationData> notifications,
@@ -0,0 +1,89 @@
+package mobileoda.notification.mapper;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import org.apache.commons.lang3.StringUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Locale;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Encodings of a NotificationRequestDto request body, chosen by its Content-Type, and the compressions
+ * of the body, chosen by its Content-Encoding. Both encodings carry the same document, so
+ * NotificationRequestStreamParser reads either straight into a NotificationRequest.
+ *
+ * <p>CBOR writes numbers and strings without quoting or escaping, and gzip removes most of the cost of the
+ * messageType, devicePlatform and field names repeated in every row.
+ */
+public enum NotificationWireFormat {
+    JSON("application/json"),
+    CBOR("application/cbor");
+
+    public static final String CONTENT_ENCODING_GZIP = "gzip";
+
+    private static final CBORFactory CBOR_FACTORY = new CBORFactory();
+    private static final int GZIP_BUFFER_SIZE = 16 * 1024;
+
+    private final String mediaType;
+
+    NotificationWireFormat(String mediaType) {
+        this.mediaType = mediaType;
+    }
+
+    public String getMediaType() {
+        return mediaType;
+    }
+
+    /**
+     * Wire format of a Content-Type; a missing Content-Type is read as JSON.
+     *
+     * @param contentType String value of the Content-Type header, parameters included
+     * @return Instance of NotificationWireFormat, or null when the Content-Type is not supported
+     */
+    public static NotificationWireFormat forContentType(String contentType) {
+        if (StringUtils.isBlank(contentType)) {
+            return JSON;
+        }
+        String mediaType = StringUtils.substringBefore(contentType, ";").trim().toLowerCase(Locale.ROOT);
+        for (NotificationWireFormat wireFormat : values()) {
+            if (wireFormat.mediaType.equals(mediaType)) {
+                return wireFormat;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Parser factory of this wire format.
+     *
+     * @param jsonFactory Instance of JsonFactory used for JSON, usually the one of the application's ObjectMapper
+     * @return Instance of JsonFactory
+     */
+    public JsonFactory getJsonFactory(JsonFactory jsonFactory) {
+        return this == CBOR ? CBOR_FACTORY : jsonFactory;
+    }
+
+    /**
+     * Undo the Content-Encoding of a request body.
+     *
+     * @param requestBody     InputStream of the request body as received
+     * @param contentEncoding String value of the Content-Encoding header
+     * @return InputStream of the decompressed body, or null when the Content-Encoding is not supported
+     * @throws IOException when a gzip body has no valid header
+     */
+    public static InputStream decompress(InputStream requestBody, String contentEncoding) throws IOException {
+        String encoding = StringUtils.trimToEmpty(contentEncoding).toLowerCase(Locale.ROOT);
+        switch (encoding) {
+            case "":
+            case "identity":
+                return requestBody;
+            case CONTENT_ENCODING_GZIP:
+            case "x-gzip":
+                return new GZIPInputStream(requestBody, GZIP_BUFFER_SIZE);
+            default:
+                return null;
+        }
+    }
+}
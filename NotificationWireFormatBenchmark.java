@@ -0,0 +1,159 @@
+package mobileoda.notification.mapper;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.cbor.CBORGenerator;
+import mobileoda.notification.model.NotificationData;
+import mobileoda.notification.model.NotificationRequest;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * JMH benchmark of decoding a NotificationRequestDto body into a NotificationRequest and its rows with
+ * NotificationRequestStreamParser, per wire format and compression. The setup prints the bytes on the
+ * wire of every combination; divide the time per operation by {@code rows} for the decode cost per row.
+ *
+ * Run with {@code java -jar benchmarks.jar NotificationWireFormatBenchmark}, or run {@link #main} for a
+ * quick size and decode comparison without JMH.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class NotificationWireFormatBenchmark {
+    private static final String[] MESSAGE_TYPES = {"APPOINTMENT", "LAB_RESULT", "MESSAGE", "REFILL"};
+    private static final String[] DEVICE_PLATFORMS = {"Android", "iOS"};
+    private static final char[] TOKEN_CHARS = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_:".toCharArray();
+    /** A CBOR client writes field names and repeated values once, then refers to them. */
+    private static final CBORFactory CBOR_ENCODER = CBORFactory.builder().enable(CBORGenerator.Feature.STRINGREF).build();
+
+    @State(Scope.Benchmark)
+    public static class PayloadState {
+        @Param({"JSON", "CBOR"})
+        public NotificationWireFormat wireFormat;
+
+        @Param({"", "gzip"})
+        public String contentEncoding;
+
+        @Param({"100", "5000", "50000"})
+        public int rows;
+
+        private final JsonFactory jsonFactory = new JsonFactory();
+        private byte[] payload;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            payload = encode(wireFormat, contentEncoding, rows);
+            System.out.printf("%n%s %s, %d rows: %d bytes, %.1f bytes/row%n",
+                    wireFormat, contentEncoding.isEmpty() ? "uncompressed" : contentEncoding, rows, payload.length, (double) payload.length / rows);
+        }
+    }
+
+    @Benchmark
+    public int decode(PayloadState state) throws IOException {
+        return decode(state.wireFormat.getJsonFactory(state.jsonFactory), state.contentEncoding, state.payload);
+    }
+
+    private static int decode(JsonFactory jsonFactory, String contentEncoding, byte[] payload) throws IOException {
+        InputStream requestBody = NotificationWireFormat.decompress(new ByteArrayInputStream(payload), contentEncoding);
+        try (NotificationRequestStreamParser parser = new NotificationRequestStreamParser(jsonFactory, requestBody)) {
+            NotificationRequest notificationRequest = parser.readHeader();
+            int rows = notificationRequest.getMobileContext().length();
+            NotificationData notificationData;
+            while ((notificationData = parser.nextNotificationData()) != null) {
+                rows += notificationData.getDeviceToken().length() > 0 ? 1 : 0;
+            }
+            return rows;
+        }
+    }
+
+    /**
+     * Encode a request of a remote clinic's catch-up post: a 163 character device token per row and
+     * the few message types and platforms repeated. CBOR carries uid and messageCount as integers.
+     */
+    static byte[] encode(NotificationWireFormat wireFormat, String contentEncoding, int rows) throws IOException {
+        Random random = new Random(rows);
+        boolean cbor = wireFormat == NotificationWireFormat.CBOR;
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (OutputStream body = NotificationWireFormat.CONTENT_ENCODING_GZIP.equals(contentEncoding) ? new GZIPOutputStream(bytes) : bytes;
+             JsonGenerator generator = (cbor ? CBOR_ENCODER : new JsonFactory()).createGenerator(body)) {
+            generator.writeStartObject();
+            generator.writeStringField("commAuthToken", "6f1c2a3e-9b7d-4e5f-8a0b-1c2d3e4f5a6b");
+            generator.writeStringField("mobileContext", "BENCH_CLINIC");
+            generator.writeStringField("hostName", "clinic-server-01");
+            generator.writeStringField("hostAddress", "10.20.30.40");
+            generator.writeStringField("tomcatHome", "/opt/tomcat");
+            generator.writeArrayFieldStart("notificationData");
+            char[] token = new char[163];
+            for (int row = 0; row < rows; row++) {
+                for (int i = 0; i < token.length; i++) {
+                    token[i] = TOKEN_CHARS[random.nextInt(TOKEN_CHARS.length)];
+                }
+                generator.writeStartObject();
+                if (cbor) {
+                    generator.writeNumberField("uid", 100000 + row);
+                    generator.writeNumberField("messageCount", 1 + random.nextInt(5));
+                } else {
+                    generator.writeStringField("uid", String.valueOf(100000 + row));
+                    generator.writeStringField("messageCount", String.valueOf(1 + random.nextInt(5)));
+                }
+                generator.writeStringField("messageType", MESSAGE_TYPES[random.nextInt(MESSAGE_TYPES.length)]);
+                generator.writeStringField("deviceToken", new String(token));
+                generator.writeStringField("devicePlatform", DEVICE_PLATFORMS[random.nextInt(DEVICE_PLATFORMS.length)]);
+                generator.writeEndObject();
+            }
+            generator.writeEndArray();
+            generator.writeEndObject();
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Quick comparison without JMH: bytes on the wire and decode time per row of every combination.
+     *
+     * @param args Command line arguments: rows (default 20000)
+     */
+    public static void main(String[] args) throws IOException {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        JsonFactory jsonFactory = new JsonFactory();
+        System.out.printf("%-6s %-13s %12s %10s %12s%n", "format", "encoding", "bytes", "bytes/row", "ns/row");
+        for (NotificationWireFormat wireFormat : NotificationWireFormat.values()) {
+            for (String contentEncoding : new String[]{"", NotificationWireFormat.CONTENT_ENCODING_GZIP}) {
+                JsonFactory factory = wireFormat.getJsonFactory(jsonFactory);
+                byte[] payload = encode(wireFormat, contentEncoding, rows);
+                for (int warmup = 0; warmup < 50; warmup++) {
+                    decode(factory, contentEncoding, payload);
+                }
+                int iterations = 50;
+                long start = System.nanoTime();
+                for (int iteration = 0; iteration < iterations; iteration++) {
+                    decode(factory, contentEncoding, payload);
+                }
+                double nanosPerRow = (double) (System.nanoTime() - start) / iterations / rows;
+                System.out.printf("%-6s %-13s %12d %10.1f %12.1f%n", wireFormat, contentEncoding.isEmpty() ? "uncompressed" : contentEncoding,
+                        payload.length, (double) payload.length / rows, nanosPerRow);
+            }
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package mobileoda.notification.service.mobileoda.impl;
+
+import com.zaxxer.hikari.HikariDataSource;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.sql.DataSource;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.ToIntFunction;
+
+/**
+ * Writes the rows of one request in parallel lanes. Rows are partitioned by uid hash, so all rows of
+ * a uid stay in one lane and keep their order, and every lane writes its batches on its own connection.
+ * The lane count ({@code notification.parallel.lanes}) is capped by the maximum size of the connection pool.
+ */
+@Component
+public class ParallelBatchExecutor {
+    private Logger logger = LogManager.getLogger(ParallelBatchExecutor.class);
+
+    @Autowired
+    private DataSource dataSource;
+
+    @Value("${notification.parallel.lanes:1}")
+    private int configuredLanes = 1;
+
+    private int lanes = 1;
+
+    private ExecutorService laneExecutor;
+
+    @PostConstruct
+    public void start() {
+        lanes = Math.max(1, configuredLanes);
+        int poolSize = primaryPoolSize();
+        if (poolSize > 0 && lanes > poolSize) {
+            logger.warn("notification.parallel.lanes={} exceeds the connection pool size, using {} lanes", lanes, poolSize);
+            lanes = poolSize;
+        }
+        if (lanes > 1) {
+            AtomicInteger threadCount = new AtomicInteger();
+            laneExecutor = Executors.newFixedThreadPool(lanes,
+                    runnable -> new Thread(runnable, "notification-lane-" + threadCount.incrementAndGet()));
+        }
+    }
+
+    /**
+     * Maximum size of the primary pool. The DataSource may be wrapped, e.g. by the context routing
+     * DataSource of sharding.
+     *
+     * @return int value of the pool size, 0 when the pool is not a HikariDataSource
+     */
+    private int primaryPoolSize() {
+        try {
+            if (dataSource != null && dataSource.isWrapperFor(HikariDataSource.class)) {
+                return dataSource.unwrap(HikariDataSource.class).getMaximumPoolSize();
+            }
+        } catch (SQLException e) {
+            logger.warn("Could not unwrap the DataSource", e);
+        }
+        return 0;
+    }
+
+    public int getLanes() {
+        return lanes;
+    }
+
+    /**
+     * Partition rows into lanes by uid hash, keeping the order of the rows within each lane.
+     *
+     * @param rows        Instance of List
+     * @param uidFunction Function returning the uid of a row
+     * @param <T>         Type of the rows
+     * @return Instance of List holding one list of rows per lane
+     */
+    public <T> List<List<T>> partitionByUid(List<T> rows, ToIntFunction<T> uidFunction) {
+        List<List<T>> partitions = new ArrayList<>(lanes);
+        for (int lane = 0; lane < lanes; lane++) {
+            partitions.add(new ArrayList<>(rows.size() / lanes + 1));
+        }
+        for (T row : rows) {
+            partitions.get(Math.floorMod(uidFunction.applyAsInt(row) * 0x9E3779B9, lanes)).add(row);
+        }
+        return partitions;
+    }
+
+    /**
+     * Write every lane on its own thread and merge the failed uids in lane order, so the result
+     * does not depend on which lane finishes first.
+     *
+     * @param partitions Instance of List holding the rows of each lane
+     * @param laneWriter Function writing the rows of a lane and returning its failed uids
+     * @param <T>        Type of the rows
+     * @return Instance of List holding the failed uids of all lanes
+     */
+    public <T> List<Integer> execute(List<List<T>> partitions, Function<List<T>, List<Integer>> laneWriter) {
+        List<Future<List<Integer>>> futures = new ArrayList<>(partitions.size());
+        for (List<T> partition : partitions) {
+            if (!partition.isEmpty()) {
+                futures.add(laneExecutor.submit(() -> laneWriter.apply(partition)));
+            }
+        }
+
+        List<Integer> lstFailedUid = new ArrayList<>();
+        RuntimeException laneFailure = null;
+        for (Future<List<Integer>> future : futures) {
+            try {
+                lstFailedUid.addAll(future.get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                laneFailure = new IllegalStateException("Interrupted while waiting for notification lanes", e);
+            } catch (ExecutionException e) {
+                logger.error("Notification lane failed", e.getCause());
+                laneFailure = new IllegalStateException("Notification lane failed: " + e.getCause().getMessage(), e.getCause());
+            }
+        }
+        if (laneFailure != null) {
+            throw laneFailure;
+        }
+        return lstFailedUid;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (laneExecutor != null) {
+            laneExecutor.shutdown();
+        }
+    }
+}
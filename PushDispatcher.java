@@ -0,0 +1,587 @@
+package mobileoda.notification.dispatch;
+
+import mobileoda.notification.dao.shard.ContextShardRouter;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Delivers persisted notifications to devices. A poller reads the pushnotificationdata rows of every shard
+ * past the shard's dispatch watermark, joined with the devicedetails of their uid; the messages are grouped
+ * by platform and sent in multicast batches through the PushSender of their platform, with at most
+ * {@code notification.dispatch.max-in-flight} batches in flight. Messages failing for a transient reason
+ * are retried with exponential backoff and full jitter, up to {@code notification.dispatch.max-attempts}.
+ *
+ * <p>The watermark of a shard is kept in {@value #WATERMARK_TABLE} on the shard and only passes a row once
+ * its message is delivered, rejected or given up, so rows queued or retrying when the instance stops or
+ * crashes are dispatched again after the restart: delivery is at least once. Rows are read once their id
+ * has been visible for {@code notification.dispatch.settle-ms}, so a row committed late with a lower id,
+ * or a device registered by a write-behind flush, is not passed over. At most
+ * {@code notification.dispatch.queue-capacity} messages are outstanding, beyond that rows wait in the
+ * table. One instance at a time dispatches a shard, holding a lease of {@code notification.dispatch.lease-ms}
+ * on its watermark row. The watermark starts at the newest row when a shard is first dispatched.
+ *
+ * <p>Rows a context move copies onto a shard are listed in {@value #MOVED_ROWS_TABLE} in the transaction
+ * that copies them and are skipped: the shard they were copied from dispatches them.
+ *
+ * <p>Senders are PushSender beans; with {@code notification.dispatch.sender=stub} in-process stub senders for
+ * Android and iOS are used instead, with {@code notification.dispatch.stub.*} latency and error rates.
+ * Enabled with {@code notification.dispatch.enabled=true}.
+ */
+@Component
+public class PushDispatcher {
+    private Logger logger = LogManager.getLogger(PushDispatcher.class);
+
+    static final String SENDER_STUB = "stub";
+    public static final String WATERMARK_TABLE = "notification_dispatch_watermark";
+    public static final String MOVED_ROWS_TABLE = "notification_dispatch_moved";
+    private static final int MAX_DRAIN = 5000;
+    private static final String SELECT_ROWS = "SELECT p.id, p.context, p.uid, p.message_type, p.message_count, d.device_platform, d.device_token, m.id"
+            + " FROM pushnotificationdata p LEFT JOIN devicedetails d ON d.uid = p.uid AND d.context = p.context"
+            + " LEFT JOIN " + MOVED_ROWS_TABLE + " m ON m.id = p.id"
+            + " WHERE p.id > ? AND p.id <= ? ORDER BY p.id";
+
+    @Autowired(required = false)
+    private List<PushSender> pushSenders = new ArrayList<>();
+
+    @Autowired
+    private ContextShardRouter contextShardRouter;
+
+    @Value("${notification.dispatch.enabled:false}")
+    private boolean enabled;
+
+    @Value("${notification.dispatch.sender:}")
+    private String sender = "";
+
+    @Value("${notification.dispatch.queue-capacity:100000}")
+    private int queueCapacity = 100000;
+
+    @Value("${notification.dispatch.max-in-flight:16}")
+    private int maxInFlight = 16;
+
+    @Value("${notification.dispatch.max-attempts:5}")
+    private int maxAttempts = 5;
+
+    @Value("${notification.dispatch.backoff-initial-ms:200}")
+    private long backoffInitialMs = 200;
+
+    @Value("${notification.dispatch.backoff-max-ms:30000}")
+    private long backoffMaxMs = 30000;
+
+    @Value("${notification.dispatch.poll-interval-ms:200}")
+    private long pollIntervalMs = 200;
+
+    @Value("${notification.dispatch.settle-ms:2000}")
+    private long settleMs = 2000;
+
+    @Value("${notification.dispatch.lease-ms:30000}")
+    private long leaseMs = 30000;
+
+    @Value("${notification.dispatch.stub.batch-size:500}")
+    private int stubBatchSize = 500;
+
+    @Value("${notification.dispatch.stub.latency-ms:50}")
+    private long stubLatencyMs = 50;
+
+    @Value("${notification.dispatch.stub.retry-rate:0.01}")
+    private double stubRetryRate = 0.01;
+
+    @Value("${notification.dispatch.stub.reject-rate:0.001}")
+    private double stubRejectRate = 0.001;
+
+    @Value("${notification.dispatch.stub.batch-failure-rate:0}")
+    private double stubBatchFailureRate;
+
+    private final String instanceId = UUID.randomUUID().toString();
+    private final Map<String, PushSender> sendersByPlatform = new LinkedHashMap<>();
+    private final Map<String, ShardCursor> cursors = new ConcurrentHashMap<>();
+    private final AtomicInteger outstanding = new AtomicInteger();
+    private BlockingQueue<PushMessage> queue;
+    private Semaphore inFlight;
+    private ScheduledExecutorService poller;
+    private ScheduledExecutorService retryScheduler;
+    private Thread dispatchThread;
+    private volatile boolean running;
+
+    private final AtomicLong delivered = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong retried = new AtomicLong();
+    private final AtomicLong exhausted = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong unroutable = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+
+    @PostConstruct
+    public void start() {
+        if (!enabled) {
+            return;
+        }
+        List<PushSender> senders = new ArrayList<>(pushSenders);
+        if (SENDER_STUB.equals(sender)) {
+            senders.clear();
+            senders.add(new StubPushSender("android", stubBatchSize, stubLatencyMs, stubRetryRate, stubRejectRate, stubBatchFailureRate));
+            senders.add(new StubPushSender("ios", stubBatchSize, stubLatencyMs, stubRetryRate, stubRejectRate, stubBatchFailureRate));
+        }
+        for (PushSender pushSender : senders) {
+            sendersByPlatform.put(pushSender.getPlatform().toLowerCase(Locale.ROOT), pushSender);
+        }
+        if (sendersByPlatform.isEmpty()) {
+            logger.warn("Push dispatch is enabled without any PushSender, notifications are not delivered");
+        }
+        queue = new ArrayBlockingQueue<>(queueCapacity);
+        inFlight = new Semaphore(maxInFlight);
+        retryScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> new Thread(runnable, "push-dispatch-retry"));
+        running = true;
+        dispatchThread = new Thread(this::dispatchLoop, "push-dispatcher");
+        dispatchThread.start();
+        poller = Executors.newSingleThreadScheduledExecutor(runnable -> new Thread(runnable, "push-dispatch-poller"));
+        poller.scheduleWithFixedDelay(this::pollQuietly, 0, pollIntervalMs, TimeUnit.MILLISECONDS);
+        logger.info("Push dispatch started for platforms {}", sendersByPlatform.keySet());
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    private void pollQuietly() {
+        for (String shard : contextShardRouter.getShardNames()) {
+            try {
+                poll(shard);
+            } catch (SQLException | RuntimeException e) {
+                logger.error("Push dispatch poll of shard {} failed", shard, e);
+            }
+        }
+    }
+
+    /**
+     * Save the watermark of a shard and queue its settled rows past the rows already read, as many as
+     * the outstanding messages leave room for.
+     */
+    private void poll(String shard) throws SQLException {
+        DataSource dataSource = contextShardRouter.getDataSource(shard);
+        try (Connection connection = dataSource.getConnection()) {
+            ShardCursor cursor = cursors.get(shard);
+            if (cursor == null) {
+                createTables(connection);
+            }
+            long now = System.currentTimeMillis();
+            if (!claimLease(connection, shard, now)) {
+                if (cursor != null) {
+                    logger.warn("Lost the push dispatch lease of shard {}, {} messages may be dispatched twice", shard, cursor.outstandingIds.size());
+                    cursors.remove(shard);
+                }
+                return;
+            }
+            if (cursor == null) {
+                cursor = new ShardCursor(shard, readWatermark(connection, shard));
+                cursors.put(shard, cursor);
+            }
+            saveWatermark(connection, cursor);
+
+            try (Statement statement = connection.createStatement();
+                 ResultSet resultSet = statement.executeQuery("SELECT MAX(id) FROM pushnotificationdata")) {
+                resultSet.next();
+                cursor.visibleIds.addLast(new long[]{now, resultSet.getLong(1)});
+            }
+            while (!cursor.visibleIds.isEmpty() && cursor.visibleIds.peekFirst()[0] <= now - settleMs) {
+                cursor.settledId = cursor.visibleIds.pollFirst()[1];
+            }
+            int room = Math.min(MAX_DRAIN, queueCapacity - outstanding.get());
+            if (room <= 0 || cursor.settledId <= cursor.readId) {
+                return;
+            }
+            try (PreparedStatement select = connection.prepareStatement(SELECT_ROWS)) {
+                select.setLong(1, cursor.readId);
+                select.setLong(2, cursor.settledId);
+                select.setMaxRows(room);
+                try (ResultSet resultSet = select.executeQuery()) {
+                    while (resultSet.next()) {
+                        long id = resultSet.getLong(1);
+                        cursor.readId = id;
+                        String deviceToken = resultSet.getString(7);
+                        if (StringUtils.isBlank(deviceToken) || resultSet.getObject(8) != null) {
+                            continue;
+                        }
+                        PushMessage message = new PushMessage(cursor, id, resultSet.getString(2), resultSet.getInt(3),
+                                resultSet.getString(6), deviceToken, resultSet.getString(4), resultSet.getInt(5));
+                        cursor.outstandingIds.add(id);
+                        outstanding.incrementAndGet();
+                        if (!queue.offer(message)) {
+                            dropped.incrementAndGet();
+                            complete(message);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Create the dispatch tables of a shard, if missing.
+     *
+     * @param connection Instance of Connection to the shard
+     * @throws SQLException when the tables cannot be created
+     */
+    public static void createTables(Connection connection) throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("CREATE TABLE IF NOT EXISTS " + WATERMARK_TABLE + " (shard VARCHAR(64) NOT NULL PRIMARY KEY,"
+                    + " dispatched_id BIGINT NOT NULL, owner VARCHAR(64), lease_until BIGINT NOT NULL)");
+            statement.execute("CREATE TABLE IF NOT EXISTS " + MOVED_ROWS_TABLE + " (id BIGINT NOT NULL PRIMARY KEY)");
+        }
+    }
+
+    /**
+     * Take or renew the dispatch lease of a shard; the first instance to dispatch a shard creates its
+     * watermark at the newest row.
+     *
+     * @return true when this instance holds the lease
+     */
+    private boolean claimLease(Connection connection, String shard, long now) throws SQLException {
+        try (PreparedStatement update = connection.prepareStatement("UPDATE " + WATERMARK_TABLE
+                + " SET owner = ?, lease_until = ? WHERE shard = ? AND (owner = ? OR lease_until < ?)")) {
+            update.setString(1, instanceId);
+            update.setLong(2, now + leaseMs);
+            update.setString(3, shard);
+            update.setString(4, instanceId);
+            update.setLong(5, now);
+            if (update.executeUpdate() == 1) {
+                return true;
+            }
+        }
+        try (PreparedStatement insert = connection.prepareStatement("INSERT INTO " + WATERMARK_TABLE
+                + " (shard, dispatched_id, owner, lease_until) SELECT ?, COALESCE(MAX(id), 0), ?, ? FROM pushnotificationdata")) {
+            insert.setString(1, shard);
+            insert.setString(2, instanceId);
+            insert.setLong(3, now + leaseMs);
+            return insert.executeUpdate() == 1;
+        } catch (SQLException e) {
+            // The row exists and another instance holds the lease
+            return false;
+        }
+    }
+
+    private long readWatermark(Connection connection, String shard) throws SQLException {
+        try (PreparedStatement select = connection.prepareStatement("SELECT dispatched_id FROM " + WATERMARK_TABLE + " WHERE shard = ?")) {
+            select.setString(1, shard);
+            try (ResultSet resultSet = select.executeQuery()) {
+                if (!resultSet.next()) {
+                    throw new IllegalStateException("No push dispatch watermark of shard " + shard);
+                }
+                return resultSet.getLong(1);
+            }
+        }
+    }
+
+    /**
+     * Save the watermark of a shard: the last row read with no outstanding message at or before it.
+     */
+    private void saveWatermark(Connection connection, ShardCursor cursor) throws SQLException {
+        long watermark = cursor.getWatermark();
+        if (watermark == cursor.savedWatermark) {
+            return;
+        }
+        try (PreparedStatement update = connection.prepareStatement("UPDATE " + WATERMARK_TABLE
+                + " SET dispatched_id = ? WHERE shard = ? AND owner = ?")) {
+            update.setLong(1, watermark);
+            update.setString(2, cursor.shard);
+            update.setString(3, instanceId);
+            if (update.executeUpdate() != 1) {
+                return;
+            }
+        }
+        cursor.savedWatermark = watermark;
+        try (PreparedStatement delete = connection.prepareStatement("DELETE FROM " + MOVED_ROWS_TABLE + " WHERE id <= ?")) {
+            delete.setLong(1, watermark);
+            delete.executeUpdate();
+        }
+    }
+
+    private void complete(PushMessage message) {
+        message.getCursor().outstandingIds.remove(message.getId());
+        outstanding.decrementAndGet();
+    }
+
+    private void dispatchLoop() {
+        List<PushMessage> drained = new ArrayList<>();
+        while (running || !queue.isEmpty()) {
+            try {
+                PushMessage first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                drained.add(first);
+                queue.drainTo(drained, MAX_DRAIN - 1);
+                dispatch(drained);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } finally {
+                drained.clear();
+            }
+        }
+    }
+
+    private void dispatch(List<PushMessage> messages) throws InterruptedException {
+        Map<PushSender, List<PushMessage>> messagesBySender = new LinkedHashMap<>();
+        for (PushMessage message : messages) {
+            PushSender pushSender = sendersByPlatform.get(StringUtils.defaultString(message.getDevicePlatform()).toLowerCase(Locale.ROOT));
+            if (pushSender == null) {
+                unroutable.incrementAndGet();
+                complete(message);
+                continue;
+            }
+            messagesBySender.computeIfAbsent(pushSender, key -> new ArrayList<>()).add(message);
+        }
+        for (Map.Entry<PushSender, List<PushMessage>> senderMessages : messagesBySender.entrySet()) {
+            PushSender pushSender = senderMessages.getKey();
+            List<PushMessage> platformMessages = senderMessages.getValue();
+            for (int from = 0; from < platformMessages.size(); from += pushSender.getMaxBatchSize()) {
+                List<PushMessage> batch = new ArrayList<>(platformMessages.subList(from,
+                        Math.min(from + pushSender.getMaxBatchSize(), platformMessages.size())));
+                inFlight.acquire();
+                batches.incrementAndGet();
+                try {
+                    pushSender.send(batch).whenComplete((outcomes, error) -> {
+                        inFlight.release();
+                        handleOutcomes(pushSender, batch, outcomes, error);
+                    });
+                } catch (RuntimeException e) {
+                    inFlight.release();
+                    handleOutcomes(pushSender, batch, null, e);
+                }
+            }
+        }
+    }
+
+    private void handleOutcomes(PushSender pushSender, List<PushMessage> batch, List<PushSender.Outcome> outcomes, Throwable error) {
+        if (error != null) {
+            logger.warn("{} push batch of {} messages failed: {}", pushSender.getPlatform(), batch.size(), error.toString());
+        }
+        for (int i = 0; i < batch.size(); i++) {
+            PushMessage message = batch.get(i);
+            PushSender.Outcome outcome = error != null || outcomes == null || i >= outcomes.size() ? PushSender.Outcome.RETRY : outcomes.get(i);
+            switch (outcome) {
+                case DELIVERED:
+                    delivered.incrementAndGet();
+                    complete(message);
+                    break;
+                case REJECTED:
+                    rejected.incrementAndGet();
+                    logger.debug("Push to uid {} of context {} rejected by {}", message.getUid(), message.getContext(), pushSender.getPlatform());
+                    complete(message);
+                    break;
+                default:
+                    scheduleRetry(message);
+            }
+        }
+    }
+
+    private void scheduleRetry(PushMessage message) {
+        int attempt = message.incrementAttempts();
+        if (attempt >= maxAttempts) {
+            exhausted.incrementAndGet();
+            logger.error("Giving up push to uid {} of context {} after {} attempts", message.getUid(), message.getContext(), attempt);
+            complete(message);
+            return;
+        }
+        retried.incrementAndGet();
+        long backoffMs = Math.min(backoffMaxMs, backoffInitialMs << Math.min(attempt - 1, 20));
+        // Full jitter spreads the retries of a failed batch instead of sending them again together
+        long delayMs = ThreadLocalRandom.current().nextLong(0, backoffMs + 1);
+        try {
+            // Outstanding messages have room in the queue, the offer only fails once stopped
+            retryScheduler.schedule(() -> {
+                if (!queue.offer(message)) {
+                    dropped.incrementAndGet();
+                }
+            }, delayMs, TimeUnit.MILLISECONDS);
+        } catch (RuntimeException e) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    public long getDelivered() {
+        return delivered.get();
+    }
+
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    public long getRetried() {
+        return retried.get();
+    }
+
+    public long getExhausted() {
+        return exhausted.get();
+    }
+
+    /**
+     * Messages this instance gave up without an outcome, e.g. retries pending on shutdown. Their rows
+     * stay past the watermark and are dispatched again after the restart.
+     *
+     * @return long value of the messages dropped
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    public long getUnroutable() {
+        return unroutable.get();
+    }
+
+    public long getBatches() {
+        return batches.get();
+    }
+
+    public int getQueueDepth() {
+        return queue == null ? 0 : queue.size();
+    }
+
+    /**
+     * Messages read and not yet delivered, rejected or given up, queued or retrying.
+     *
+     * @return int value of the outstanding messages
+     */
+    public int getOutstanding() {
+        return outstanding.get();
+    }
+
+    public int getInFlight() {
+        return inFlight == null ? 0 : maxInFlight - inFlight.availablePermits();
+    }
+
+    void setContextShardRouter(ContextShardRouter contextShardRouter) {
+        this.contextShardRouter = contextShardRouter;
+    }
+
+    void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    void setSender(String sender) {
+        this.sender = sender;
+    }
+
+    void setQueueCapacity(int queueCapacity) {
+        this.queueCapacity = queueCapacity;
+    }
+
+    void setBackoffInitialMs(long backoffInitialMs) {
+        this.backoffInitialMs = backoffInitialMs;
+    }
+
+    void setPollIntervalMs(long pollIntervalMs) {
+        this.pollIntervalMs = pollIntervalMs;
+    }
+
+    void setSettleMs(long settleMs) {
+        this.settleMs = settleMs;
+    }
+
+    void setStubLatencyMs(long stubLatencyMs) {
+        this.stubLatencyMs = stubLatencyMs;
+    }
+
+    void setStubRetryRate(double stubRetryRate) {
+        this.stubRetryRate = stubRetryRate;
+    }
+
+    void setStubBatchFailureRate(double stubBatchFailureRate) {
+        this.stubBatchFailureRate = stubBatchFailureRate;
+    }
+
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        if (!running) {
+            return;
+        }
+        poller.shutdown();
+        poller.awaitTermination(30, TimeUnit.SECONDS);
+        running = false;
+        dispatchThread.join(TimeUnit.SECONDS.toMillis(30));
+        inFlight.tryAcquire(maxInFlight, 30, TimeUnit.SECONDS);
+        int pendingRetries = retryScheduler.shutdownNow().size();
+        dropped.addAndGet(pendingRetries + queue.size());
+        if (pendingRetries + queue.size() > 0) {
+            logger.warn("{} push notifications were not dispatched on shutdown, {} of them retrying; they are dispatched again after the restart",
+                    pendingRetries + queue.size(), pendingRetries);
+        }
+        releaseLeases();
+    }
+
+    /**
+     * Save the final watermarks and hand the shards over to the next instance right away.
+     */
+    private void releaseLeases() {
+        for (ShardCursor cursor : cursors.values()) {
+            try (Connection connection = contextShardRouter.getDataSource(cursor.shard).getConnection()) {
+                saveWatermark(connection, cursor);
+                try (PreparedStatement update = connection.prepareStatement("UPDATE " + WATERMARK_TABLE
+                        + " SET owner = NULL, lease_until = 0 WHERE shard = ? AND owner = ?")) {
+                    update.setString(1, cursor.shard);
+                    update.setString(2, instanceId);
+                    update.executeUpdate();
+                }
+            } catch (SQLException | RuntimeException e) {
+                logger.error("Failed to release the push dispatch lease of shard {}", cursor.shard, e);
+            }
+        }
+        cursors.clear();
+    }
+
+    /**
+     * Read position of a shard: the rows read, the rows settled and the messages still outstanding.
+     */
+    static final class ShardCursor {
+        private final String shard;
+        private final ConcurrentSkipListSet<Long> outstandingIds = new ConcurrentSkipListSet<>();
+        private final ArrayDeque<long[]> visibleIds = new ArrayDeque<>();
+        private volatile long readId;
+        private long settledId;
+        private long savedWatermark;
+
+        private ShardCursor(String shard, long watermark) {
+            this.shard = shard;
+            this.readId = watermark;
+            this.settledId = watermark;
+            this.savedWatermark = watermark;
+        }
+
+        private long getWatermark() {
+            long readUpTo = readId;
+            Long firstOutstanding = outstandingIds.isEmpty() ? null : outstandingIds.first();
+            return firstOutstanding == null ? readUpTo : Math.min(readUpTo, firstOutstanding - 1);
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package mobileoda.notification.dispatch;
+
+import mobileoda.notification.dao.shard.ContextShardRouter;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * Dispatches {@code messages} rows of an embedded H2 database through PushDispatcher with stub senders of
+ * {@code latency} ms that ask for a retry at {@code retry rate} and fail 1% of batches, and reports the
+ * throughput. The first dispatcher is stopped halfway and a second one resumes from the watermark it saved:
+ * together they must give every row an outcome, the watermark must reach the last row, and the second one
+ * must drop nothing. Arguments: [messages] [latency ms] [retry rate], by default 200000, 20 and 0.05.
+ */
+public class PushDispatcherHarness {
+
+    public static void main(String[] args) throws Exception {
+        int messages = args.length > 0 ? Integer.parseInt(args[0]) : 200_000;
+        long latencyMs = args.length > 1 ? Long.parseLong(args[1]) : 20;
+        double retryRate = args.length > 2 ? Double.parseDouble(args[2]) : 0.05;
+
+        org.h2.jdbcx.JdbcDataSource dataSource = new org.h2.jdbcx.JdbcDataSource();
+        dataSource.setURL("jdbc:h2:mem:dispatch;DB_CLOSE_DELAY=-1");
+        // Sharding is off by default, so the router sends every context to the one database
+        AnnotationConfigApplicationContext routerContext = new AnnotationConfigApplicationContext();
+        routerContext.registerBean(DataSource.class, () -> dataSource);
+        routerContext.register(ContextShardRouter.class);
+        routerContext.refresh();
+        ContextShardRouter router = routerContext.getBean(ContextShardRouter.class);
+        try (Connection connection = dataSource.getConnection(); Statement statement = connection.createStatement()) {
+            statement.execute("CREATE TABLE pushnotificationdata (id BIGINT AUTO_INCREMENT PRIMARY KEY, uid INT, context VARCHAR(64),"
+                    + " message_count INT, message_type VARCHAR(64))");
+            statement.execute("CREATE TABLE devicedetails (uid INT, context VARCHAR(64), device_platform VARCHAR(32),"
+                    + " device_token VARCHAR(256), PRIMARY KEY (uid, context))");
+            statement.execute("INSERT INTO devicedetails SELECT x, 'CTX', CASE WHEN MOD(x, 2) = 0 THEN 'Android' ELSE 'iOS' END,"
+                    + " CONCAT('token_', x) FROM SYSTEM_RANGE(0, 9999)");
+            // Rows written before dispatch is first enabled are not dispatched
+            statement.execute("INSERT INTO pushnotificationdata (uid, context, message_count, message_type) VALUES (1, 'CTX', 1, 'OLD')");
+        }
+
+        PushDispatcher first = dispatcher(router, messages, latencyMs, retryRate);
+        long start = System.nanoTime();
+        try (Connection connection = dataSource.getConnection();
+             PreparedStatement insert = connection.prepareStatement("INSERT INTO pushnotificationdata (uid, context, message_count, message_type) VALUES (?, 'CTX', 1, 'APPOINTMENT')")) {
+            for (int i = 0; i < messages; i++) {
+                insert.setInt(1, i % 10000);
+                insert.addBatch();
+                if (i % 1000 == 999) {
+                    insert.executeBatch();
+                }
+            }
+            insert.executeBatch();
+        }
+        while (first.getDelivered() + first.getRejected() + first.getExhausted() < messages / 2) {
+            Thread.sleep(10);
+        }
+        first.shutdown();
+        long firstOutcomes = first.getDelivered() + first.getRejected() + first.getExhausted();
+
+        PushDispatcher second = dispatcher(router, messages, latencyMs, retryRate);
+        long deadline = System.currentTimeMillis() + 120_000;
+        while (System.currentTimeMillis() < deadline
+                && (second.getOutstanding() > 0 || watermark(dataSource) < messages + 1)) {
+            Thread.sleep(10);
+        }
+        second.shutdown();
+        double seconds = (System.nanoTime() - start) / 1e9;
+        long secondOutcomes = second.getDelivered() + second.getRejected() + second.getExhausted();
+
+        System.out.printf("Messages: %d, stub latency %d ms, retry rate %.2f, batch failure rate 0.01%n", messages, latencyMs, retryRate);
+        System.out.printf("Dispatched in %.2f s: %.0f messages/s in %d batches%n", seconds, messages / seconds, first.getBatches() + second.getBatches());
+        System.out.printf("First dispatcher: %d outcomes, %d dropped on shutdown; second dispatcher: %d outcomes, %d retried, gave up %d%n",
+                firstOutcomes, first.getDropped(), secondOutcomes, second.getRetried(), second.getExhausted());
+        long watermark = watermark(dataSource);
+        System.out.printf("Watermark %d of %d rows%n", watermark, messages + 1);
+        if (watermark != messages + 1 || firstOutcomes + secondOutcomes < messages || second.getDropped() != 0) {
+            System.out.println("Push dispatch check FAILED");
+            System.exit(1);
+        }
+        System.out.println("Push dispatch check passed: every row dispatched at least once across the restart");
+    }
+
+    private static PushDispatcher dispatcher(ContextShardRouter router, int messages, long latencyMs, double retryRate) {
+        PushDispatcher dispatcher = new PushDispatcher();
+        dispatcher.setContextShardRouter(router);
+        dispatcher.setEnabled(true);
+        dispatcher.setSender(PushDispatcher.SENDER_STUB);
+        dispatcher.setQueueCapacity(Math.max(1000, messages / 4));
+        dispatcher.setPollIntervalMs(20L);
+        dispatcher.setSettleMs(100L);
+        dispatcher.setStubLatencyMs(latencyMs);
+        dispatcher.setStubRetryRate(retryRate);
+        dispatcher.setStubBatchFailureRate(0.01);
+        dispatcher.setBackoffInitialMs(20L);
+        dispatcher.start();
+        return dispatcher;
+    }
+
+    private static long watermark(DataSource dataSource) throws SQLException {
+        try (Connection connection = dataSource.getConnection(); Statement statement = connection.createStatement();
+             ResultSet resultSet = statement.executeQuery("SELECT MAX(dispatched_id) FROM " + PushDispatcher.WATERMARK_TABLE)) {
+            return resultSet.next() ? resultSet.getLong(1) : 0;
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package mobileoda.notification.dispatch;
+
+/**
+ * One push notification to deliver to a device, read from a persisted pushnotificationdata row.
+ */
+public class PushMessage {
+    private final PushDispatcher.ShardCursor cursor;
+    private final long id;
+    private final String context;
+    private final int uid;
+    private final String devicePlatform;
+    private final String deviceToken;
+    private final String messageType;
+    private final int messageCount;
+    private int attempts;
+
+    PushMessage(PushDispatcher.ShardCursor cursor, long id, String context, int uid, String devicePlatform, String deviceToken,
+                String messageType, int messageCount) {
+        this.cursor = cursor;
+        this.id = id;
+        this.context = context;
+        this.uid = uid;
+        this.devicePlatform = devicePlatform;
+        this.deviceToken = deviceToken;
+        this.messageType = messageType;
+        this.messageCount = messageCount;
+    }
+
+    PushDispatcher.ShardCursor getCursor() {
+        return cursor;
+    }
+
+    /**
+     * Id of the pushnotificationdata row on its shard.
+     *
+     * @return long value of the id
+     */
+    public long getId() {
+        return id;
+    }
+
+    public String getContext() {
+        return context;
+    }
+
+    public int getUid() {
+        return uid;
+    }
+
+    public String getDevicePlatform() {
+        return devicePlatform;
+    }
+
+    public String getDeviceToken() {
+        return deviceToken;
+    }
+
+    public String getMessageType() {
+        return messageType;
+    }
+
+    public int getMessageCount() {
+        return messageCount;
+    }
+
+    public int getAttempts() {
+        return attempts;
+    }
+
+    int incrementAttempts() {
+        return ++attempts;
+    }
+}
@@ -0,0 +1,321 @@
+package mobileoda.notification.dao.impl;
+
+import mobileoda.notification.dao.shard.ContextShardRouter;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.TemporalAdjusters;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Maintains daily or weekly range partitions of pushnotificationdata on created_ts_utc. Partitions are
+ * created {@code notification.partition.precreate} intervals ahead, so inserts always land in an existing
+ * partition, and retention is enforced by dropping whole partitions older than
+ * {@code notification.partition.retention-days} instead of deleting rows.
+ * Enabled with {@code notification.partition.enabled=true}.
+ *
+ * <p>The table must already be range partitioned on created_ts_utc: on MySQL with
+ * {@code PARTITION BY RANGE COLUMNS(created_ts_utc)} and a catch-all {@code pmax} partition, on PostgreSQL
+ * declaratively. MySQL requires every unique key, the primary key included, to contain the partitioning
+ * column, so the primary key has to become (id, created_ts_utc). New partitions are split off pmax, which
+ * only avoids copying rows while pmax is empty: the initial layout needs a bounded partition above the
+ * newest existing row, and maintenance refuses to split a pmax that holds rows. H2 has no partitioning;
+ * there partitions are recorded in notification_partition and dropping one deletes its range, which is
+ * enough to exercise the manager locally.
+ */
+@Component
+public class PushNotificationPartitionManager {
+    private Logger logger = LogManager.getLogger(PushNotificationPartitionManager.class);
+
+    static final String INTERVAL_DAILY = "daily";
+    static final String INTERVAL_WEEKLY = "weekly";
+    static final String TABLE = "pushnotificationdata";
+    private static final String PARTITION_PREFIX = "p";
+    private static final DateTimeFormatter PARTITION_NAME_FORMAT = DateTimeFormatter.ofPattern("yyyyMMdd");
+    private static final DateTimeFormatter BOUND_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd 00:00:00");
+
+    enum Dialect {
+        MYSQL, POSTGRES, H2;
+
+        static Dialect of(String databaseProductName) {
+            String name = databaseProductName.toLowerCase(Locale.ROOT);
+            if (name.contains("mysql") || name.contains("mariadb")) {
+                return MYSQL;
+            } else if (name.contains("postgres")) {
+                return POSTGRES;
+            } else if (name.contains("h2")) {
+                return H2;
+            }
+            throw new IllegalStateException("No pushnotificationdata partitioning for database " + databaseProductName);
+        }
+    }
+
+    @Autowired
+    private DataSource dataSource;
+
+    @Autowired(required = false)
+    private ContextShardRouter contextShardRouter;
+
+    @Value("${notification.partition.enabled:false}")
+    private boolean enabled;
+
+    @Value("${notification.partition.interval:daily}")
+    private String interval = INTERVAL_DAILY;
+
+    @Value("${notification.partition.precreate:7}")
+    private int precreate = 7;
+
+    @Value("${notification.partition.retention-days:90}")
+    private int retentionDays = 90;
+
+    @Value("${notification.partition.maintenance-interval-minutes:60}")
+    private long maintenanceIntervalMinutes = 60;
+
+    private ScheduledExecutorService scheduler;
+
+    @PostConstruct
+    public void start() {
+        if (!enabled) {
+            return;
+        }
+        // Create the partitions of the coming intervals before the first insert
+        maintainShards(LocalDate.now(ZoneOffset.UTC));
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> new Thread(runnable, "notification-partition-manager"));
+        scheduler.scheduleWithFixedDelay(this::maintainQuietly, maintenanceIntervalMinutes, maintenanceIntervalMinutes, TimeUnit.MINUTES);
+    }
+
+    /**
+     * Create the partitions of the current and the next intervals and drop the expired ones.
+     *
+     * @param today LocalDate of the current UTC day
+     */
+    public void maintain(LocalDate today) {
+        try (Connection connection = dataSource.getConnection()) {
+            Dialect dialect = Dialect.of(connection.getMetaData().getDatabaseProductName());
+            TreeSet<LocalDate> existing = new TreeSet<>(listPartitionStarts(connection, dialect));
+
+            LocalDate start = intervalStart(today);
+            for (int i = 0; i <= precreate; i++) {
+                if (!existing.contains(start)) {
+                    createPartition(connection, dialect, start, next(start));
+                    existing.add(start);
+                }
+                start = next(start);
+            }
+
+            LocalDate cutoff = today.minusDays(retentionDays);
+            for (LocalDate partitionStart : existing) {
+                // Only drop a partition once every row it may hold is past retention
+                if (!next(partitionStart).isAfter(cutoff)) {
+                    dropPartition(connection, dialect, partitionStart);
+                }
+            }
+        } catch (SQLException e) {
+            throw new IllegalStateException("Failed to maintain pushnotificationdata partitions", e);
+        }
+    }
+
+    /**
+     * Maintain the partitions of every context shard, or of the DataSource alone without sharding.
+     *
+     * @param today LocalDate of the current UTC day
+     */
+    private void maintainShards(LocalDate today) {
+        if (contextShardRouter == null || !contextShardRouter.isEnabled()) {
+            maintain(today);
+            return;
+        }
+        for (String shard : contextShardRouter.getShardNames()) {
+            contextShardRouter.callOnShard(shard, () -> {
+                maintain(today);
+                return null;
+            });
+        }
+    }
+
+    private void maintainQuietly() {
+        try {
+            maintainShards(LocalDate.now(ZoneOffset.UTC));
+        } catch (RuntimeException e) {
+            logger.error("pushnotificationdata partition maintenance failed", e);
+        }
+    }
+
+    /**
+     * Start dates of the existing partitions, oldest first.
+     *
+     * @return Instance of List
+     */
+    public List<LocalDate> listPartitions() {
+        try (Connection connection = dataSource.getConnection()) {
+            return new ArrayList<>(new TreeSet<>(listPartitionStarts(connection, Dialect.of(connection.getMetaData().getDatabaseProductName()))));
+        } catch (SQLException e) {
+            throw new IllegalStateException("Failed to list pushnotificationdata partitions", e);
+        }
+    }
+
+    private List<LocalDate> listPartitionStarts(Connection connection, Dialect dialect) throws SQLException {
+        String sql;
+        switch (dialect) {
+            case MYSQL:
+                sql = "SELECT partition_name FROM information_schema.partitions"
+                        + " WHERE table_schema = DATABASE() AND table_name = '" + TABLE + "' AND partition_name IS NOT NULL";
+                break;
+            case POSTGRES:
+                sql = "SELECT child.relname FROM pg_inherits JOIN pg_class child ON child.oid = pg_inherits.inhrelid"
+                        + " WHERE pg_inherits.inhparent = '" + TABLE + "'::regclass";
+                break;
+            default:
+                try (Statement statement = connection.createStatement()) {
+                    statement.execute("CREATE TABLE IF NOT EXISTS notification_partition"
+                            + " (partition_name VARCHAR(32) PRIMARY KEY, range_from VARCHAR(19), range_to VARCHAR(19))");
+                }
+                sql = "SELECT partition_name FROM notification_partition";
+        }
+        List<LocalDate> starts = new ArrayList<>();
+        try (Statement statement = connection.createStatement();
+             ResultSet resultSet = statement.executeQuery(sql)) {
+            while (resultSet.next()) {
+                LocalDate partitionStart = parsePartitionStart(resultSet.getString(1));
+                if (partitionStart != null) {
+                    starts.add(partitionStart);
+                }
+            }
+        }
+        return starts;
+    }
+
+    private void createPartition(Connection connection, Dialect dialect, LocalDate from, LocalDate to) throws SQLException {
+        String name = partitionName(from);
+        String sql;
+        switch (dialect) {
+            case MYSQL:
+                requireEmptyCatchAll(connection);
+                // Splitting the empty catch-all partition is a metadata change; it does not copy rows
+                sql = "ALTER TABLE " + TABLE + " REORGANIZE PARTITION pmax INTO (PARTITION " + name
+                        + " VALUES LESS THAN ('" + BOUND_FORMAT.format(to) + "'), PARTITION pmax VALUES LESS THAN (MAXVALUE))";
+                break;
+            case POSTGRES:
+                sql = "CREATE TABLE IF NOT EXISTS " + TABLE + "_" + name + " PARTITION OF " + TABLE
+                        + " FOR VALUES FROM ('" + BOUND_FORMAT.format(from) + "') TO ('" + BOUND_FORMAT.format(to) + "')";
+                break;
+            default:
+                sql = "INSERT INTO notification_partition (partition_name, range_from, range_to) VALUES ('" + name
+                        + "', '" + BOUND_FORMAT.format(from) + "', '" + BOUND_FORMAT.format(to) + "')";
+        }
+        try (Statement statement = connection.createStatement()) {
+            statement.execute(sql);
+        }
+        logger.info("Created pushnotificationdata partition {} [{}, {})", name, from, to);
+    }
+
+    /**
+     * REORGANIZE PARTITION rewrites every row of pmax into the new partitions while the table is locked,
+     * so pmax is only split while it is empty.
+     */
+    private void requireEmptyCatchAll(Connection connection) throws SQLException {
+        try (Statement statement = connection.createStatement();
+             ResultSet resultSet = statement.executeQuery("SELECT 1 FROM " + TABLE + " PARTITION (pmax) LIMIT 1")) {
+            if (resultSet.next()) {
+                throw new IllegalStateException("Partition pmax of " + TABLE + " holds rows, splitting it would copy them;"
+                        + " move them into a bounded partition first");
+            }
+        }
+    }
+
+    private void dropPartition(Connection connection, Dialect dialect, LocalDate from) throws SQLException {
+        String name = partitionName(from);
+        switch (dialect) {
+            case MYSQL:
+                execute(connection, "ALTER TABLE " + TABLE + " DROP PARTITION " + name);
+                break;
+            case POSTGRES:
+                execute(connection, "DROP TABLE IF EXISTS " + TABLE + "_" + name);
+                break;
+            default:
+                try (PreparedStatement statement = connection.prepareStatement(
+                        "DELETE FROM " + TABLE + " WHERE created_ts_utc >= ? AND created_ts_utc < ?")) {
+                    statement.setString(1, BOUND_FORMAT.format(from));
+                    statement.setString(2, BOUND_FORMAT.format(next(from)));
+                    statement.executeUpdate();
+                }
+                try (PreparedStatement statement = connection.prepareStatement("DELETE FROM notification_partition WHERE partition_name = ?")) {
+                    statement.setString(1, name);
+                    statement.executeUpdate();
+                }
+        }
+        logger.info("Dropped expired pushnotificationdata partition {}", name);
+    }
+
+    private void execute(Connection connection, String sql) throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            statement.execute(sql);
+        }
+    }
+
+    LocalDate intervalStart(LocalDate day) {
+        return INTERVAL_WEEKLY.equals(interval) ? day.with(TemporalAdjusters.previousOrSame(DayOfWeek.MONDAY)) : day;
+    }
+
+    LocalDate next(LocalDate partitionStart) {
+        return INTERVAL_WEEKLY.equals(interval) ? partitionStart.plusWeeks(1) : partitionStart.plusDays(1);
+    }
+
+    static String partitionName(LocalDate from) {
+        return PARTITION_PREFIX + PARTITION_NAME_FORMAT.format(from);
+    }
+
+    static LocalDate parsePartitionStart(String name) {
+        String digits = name.toLowerCase(Locale.ROOT);
+        int prefix = digits.lastIndexOf('_') + 1;
+        if (!digits.startsWith(PARTITION_PREFIX, prefix) || digits.length() - prefix != 9) {
+            // The catch-all pmax partition and partitions not created here are left alone
+            return null;
+        }
+        try {
+            return LocalDate.parse(digits.substring(prefix + 1), PARTITION_NAME_FORMAT);
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    void setDataSource(DataSource dataSource) {
+        this.dataSource = dataSource;
+    }
+
+    void setPrecreate(int precreate) {
+        this.precreate = precreate;
+    }
+
+    void setRetentionDays(int retentionDays) {
+        this.retentionDays = retentionDays;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package mobileoda.notification.dao.impl;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDate;
+import java.util.List;
+
+/**
+ * Runs PushNotificationPartitionManager over ten days on an in-memory H2 database, with partitions created
+ * three days ahead and kept for five. Every day must have its partition before its row is inserted; at the
+ * end the partitions must span the retention window up to the days created ahead, and no row of a dropped
+ * partition may remain.
+ */
+public class PushNotificationPartitionManagerHarness {
+    private static final int PRECREATE = 3;
+    private static final int RETENTION_DAYS = 5;
+
+    public static void main(String[] args) throws Exception {
+        org.h2.jdbcx.JdbcDataSource h2DataSource = new org.h2.jdbcx.JdbcDataSource();
+        h2DataSource.setURL("jdbc:h2:mem:notification_partition;DB_CLOSE_DELAY=-1");
+        try (Connection connection = h2DataSource.getConnection()) {
+            execute(connection, new String[]{
+                    "CREATE TABLE " + PushNotificationPartitionManager.TABLE + " (id BIGINT AUTO_INCREMENT PRIMARY KEY, uid INT, context VARCHAR(64),"
+                            + " message_count INT, message_type VARCHAR(64), created_ts_utc VARCHAR(19),"
+                            + " practice_ip VARCHAR(64), host_name VARCHAR(128), tomcat_path VARCHAR(256))"});
+        }
+
+        PushNotificationPartitionManager manager = new PushNotificationPartitionManager();
+        manager.setDataSource(h2DataSource);
+        manager.setPrecreate(PRECREATE);
+        manager.setRetentionDays(RETENTION_DAYS);
+
+        LocalDate day = LocalDate.of(2024, 1, 1);
+        for (int i = 0; i < 10; i++, day = day.plusDays(1)) {
+            manager.maintain(day);
+            try (Connection connection = h2DataSource.getConnection()) {
+                // An insert of the current day must always find its partition
+                if (!manager.listPartitions().contains(day)) {
+                    throw new IllegalStateException("No partition for " + day);
+                }
+                execute(connection, new String[]{
+                        "INSERT INTO " + PushNotificationPartitionManager.TABLE + " (uid, context, message_count, message_type, created_ts_utc)"
+                                + " VALUES (" + i + ", 'CTX', 1, 'APPOINTMENT', '" + day + " 12:00:00')"});
+            }
+        }
+        LocalDate lastDay = day.minusDays(1);
+        List<LocalDate> partitions = manager.listPartitions();
+        System.out.println("Last maintained day: " + lastDay);
+        System.out.println("Partitions: " + partitions);
+
+        LocalDate oldestKept = lastDay.minusDays(RETENTION_DAYS);
+        if (!partitions.get(0).equals(oldestKept) || !partitions.get(partitions.size() - 1).equals(lastDay.plusDays(PRECREATE))) {
+            throw new IllegalStateException("Unexpected partitions " + partitions);
+        }
+        try (Connection connection = h2DataSource.getConnection();
+             Statement statement = connection.createStatement();
+             ResultSet resultSet = statement.executeQuery("SELECT MIN(created_ts_utc), COUNT(*) FROM " + PushNotificationPartitionManager.TABLE)) {
+            resultSet.next();
+            System.out.println("Oldest row: " + resultSet.getString(1) + ", rows: " + resultSet.getInt(2));
+            if (!resultSet.getString(1).startsWith(oldestKept.toString())) {
+                throw new IllegalStateException("Rows of dropped partitions remain");
+            }
+        }
+        System.out.println("Partition maintenance OK");
+    }
+
+    private static void execute(Connection connection, String[] statements) throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            for (String sql : statements) {
+                statement.execute(sql);
+            }
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package mobileoda.notification.dispatch;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Delivers push notifications of one platform, e.g. FCM for Android or APNs for iOS.
+ *
+ * <p>A send call carries a multicast batch of up to {@link #getMaxBatchSize()} messages and completes
+ * asynchronously, so an implementation can multiplex the batches of concurrent calls over one HTTP/2
+ * connection. The dispatcher bounds the number of calls in flight.
+ */
+public interface PushSender {
+    /**
+     * Outcome of delivering one message.
+     */
+    enum Outcome {
+        /** Accepted by the push service. */
+        DELIVERED,
+        /** Failed for a transient reason, e.g. throttling or an unavailable push service; worth retrying. */
+        RETRY,
+        /** Rejected for good, e.g. an unregistered or malformed device token. */
+        REJECTED
+    }
+
+    /**
+     * Platform served by this sender, matched against devicePlatform ignoring case.
+     *
+     * @return String value contains platform-name
+     */
+    String getPlatform();
+
+    /**
+     * Maximum number of messages of a multicast batch.
+     *
+     * @return int value of the batch size
+     */
+    int getMaxBatchSize();
+
+    /**
+     * Send a multicast batch.
+     *
+     * @param messages Instance of List holding the messages, all of this sender's platform
+     * @return CompletableFuture of the outcomes, one per message in the order of the messages;
+     * completed exceptionally when the whole batch failed
+     */
+    CompletableFuture<List<Outcome>> send(List<PushMessage> messages);
+}
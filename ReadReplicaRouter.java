@@ -0,0 +1,397 @@
+package mobileoda.notification.dao.shard;
+
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.core.env.Environment;
+import org.springframework.dao.DataAccessException;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Sends lookups of the ingest path to a read replica of the shard they run on, through
+ * ContextRoutingDataSource. Only lookups that validate a request, such as the redirection lookup, belong
+ * here; a read that decides a write, e.g. insert or update, has to run on the primary.
+ *
+ * <p>Replicas are listed by shard in {@code notification.replica.shards} and get their own connection
+ * pool from {@code notification.replica.<shard>.url}, {@code .username}, {@code .password} and
+ * {@code .maximum-pool-size}. Every {@code notification.replica.heartbeat-ms} the router writes the time
+ * into the notification_replica_heartbeat table of the shard and reads it back from the replica; the age
+ * of the replica's copy bounds its staleness from above, assuming the instances' clocks are in sync.
+ *
+ * <p>A lookup falls back to the primary when the replica lags more than
+ * {@code notification.replica.max-staleness-ms}, failed its last heartbeat or fails the lookup itself,
+ * and when the caller forces the primary with {@link #readFromPrimary}. Enabled with
+ * {@code notification.replica.enabled=true}.
+ */
+@Component
+public class ReadReplicaRouter {
+    private Logger logger = LogManager.getLogger(ReadReplicaRouter.class);
+
+    static final String HEARTBEAT_TABLE = "notification_replica_heartbeat";
+
+    /** Why a lookup was served by the primary. */
+    public enum PrimaryReason {
+        FORCED, LAGGING, UNAVAILABLE, FAILED;
+
+        public String tag() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+    }
+
+    @Value("${notification.replica.enabled:false}")
+    private boolean enabled;
+
+    @Value("${notification.replica.shards:primary}")
+    private String configuredShards = ContextShardRouter.PRIMARY;
+
+    @Value("${notification.replica.max-staleness-ms:1000}")
+    private long maxStalenessMs = 1000;
+
+    @Value("${notification.replica.heartbeat-ms:200}")
+    private long heartbeatMs = 200;
+
+    @Autowired
+    @Lazy
+    private DataSource dataSource;
+
+    @Autowired(required = false)
+    private ContextShardRouter contextShardRouter;
+
+    @Autowired(required = false)
+    private Environment environment;
+
+    private final Map<String, Replica> replicas = new LinkedHashMap<>();
+    private final ThreadLocal<DataSource> currentReplica = new ThreadLocal<>();
+    private final ThreadLocal<Integer> forcedPrimary = new ThreadLocal<>();
+
+    private final AtomicLong replicaReads = new AtomicLong();
+    private final AtomicLong[] primaryReads = new AtomicLong[PrimaryReason.values().length];
+    private ScheduledExecutorService heartbeat;
+
+    public ReadReplicaRouter() {
+        for (int reason = 0; reason < primaryReads.length; reason++) {
+            primaryReads[reason] = new AtomicLong();
+        }
+    }
+
+    @PostConstruct
+    public void start() {
+        if (!enabled) {
+            return;
+        }
+        if (replicas.isEmpty()) {
+            for (String shard : StringUtils.split(configuredShards, ',')) {
+                shard = shard.trim();
+                addReplica(shard, createPool(shard));
+            }
+        }
+        for (String shard : replicas.keySet()) {
+            createHeartbeatTable(shard);
+        }
+        beat();
+        heartbeat = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "read-replica-heartbeat");
+            thread.setDaemon(true);
+            return thread;
+        });
+        heartbeat.scheduleWithFixedDelay(this::beat, heartbeatMs, heartbeatMs, TimeUnit.MILLISECONDS);
+        logger.info("Routing lookups to the read replicas of shards {}, at most {} ms stale", replicas.keySet(), maxStalenessMs);
+    }
+
+    private DataSource createPool(String shard) {
+        String prefix = "notification.replica." + shard + ".";
+        HikariConfig config = new HikariConfig();
+        config.setPoolName("notification-replica-" + shard);
+        config.setJdbcUrl(environment.getRequiredProperty(prefix + "url"));
+        config.setUsername(environment.getProperty(prefix + "username"));
+        config.setPassword(environment.getProperty(prefix + "password"));
+        config.setMaximumPoolSize(environment.getProperty(prefix + "maximum-pool-size", Integer.class, 10));
+        config.setReadOnly(true);
+        return new HikariDataSource(config);
+    }
+
+    /**
+     * Add the read replica of a shard; replicas added before {@link #start} replace the configured ones.
+     *
+     * @param shard      String value contains shard-name
+     * @param dataSource Instance of DataSource of the replica
+     */
+    public void addReplica(String shard, DataSource dataSource) {
+        replicas.put(shard, new Replica(dataSource));
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Run a lookup on the read replica of the current shard, or on the primary when the replica may not
+     * answer it correctly. A data access failure on the replica marks it unavailable
+     * until the next heartbeat and repeats the lookup on the primary; other exceptions are rethrown.
+     *
+     * @param read Supplier doing the lookup
+     * @param <T>  Type of the result
+     * @return result of the lookup
+     */
+    public <T> T callOnReplica(Supplier<T> read) {
+        if (!enabled) {
+            return read.get();
+        }
+        Replica replica = replicas.get(currentShard());
+        PrimaryReason reason = primaryReason(replica);
+        if (reason != null) {
+            primaryReads[reason.ordinal()].incrementAndGet();
+            return read.get();
+        }
+
+        DataSource previous = currentReplica.get();
+        currentReplica.set(replica.dataSource);
+        try {
+            T result = read.get();
+            replicaReads.incrementAndGet();
+            return result;
+        } catch (RuntimeException e) {
+            if (!isReplicaFailure(e)) {
+                throw e;
+            }
+            replica.available = false;
+            logger.warn("Lookup on the read replica of shard {} failed, reading from the primary", currentShard(), e);
+        } finally {
+            if (previous == null) {
+                currentReplica.remove();
+            } else {
+                currentReplica.set(previous);
+            }
+        }
+        primaryReads[PrimaryReason.FAILED.ordinal()].incrementAndGet();
+        return read.get();
+    }
+
+    /**
+     * Whether a failed lookup says something about the replica: a data access or connection failure.
+     * Any other exception comes from the lookup itself and would fail on the primary too.
+     */
+    private static boolean isReplicaFailure(Throwable failure) {
+        for (Throwable cause = failure; cause != null; cause = cause.getCause()) {
+            if (cause instanceof DataAccessException || cause instanceof SQLException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private PrimaryReason primaryReason(Replica replica) {
+        if (forcedPrimary.get() != null) {
+            return PrimaryReason.FORCED;
+        }
+        if (replica == null || !replica.available) {
+            return PrimaryReason.UNAVAILABLE;
+        }
+        if (replica.lagMs > maxStalenessMs) {
+            return PrimaryReason.LAGGING;
+        }
+        return null;
+    }
+
+    /**
+     * Run lookups on the primary, e.g. right after a write they must see.
+     *
+     * @param read Supplier doing the lookups
+     * @param <T>  Type of the result
+     * @return result of the lookups
+     */
+    public <T> T readFromPrimary(Supplier<T> read) {
+        Integer depth = forcedPrimary.get();
+        forcedPrimary.set(depth == null ? 1 : depth + 1);
+        try {
+            return read.get();
+        } finally {
+            if (depth == null) {
+                forcedPrimary.remove();
+            } else {
+                forcedPrimary.set(depth);
+            }
+        }
+    }
+
+    /**
+     * Replica the current thread reads from, null for the primary of the shard.
+     *
+     * @return Instance of DataSource
+     */
+    DataSource getCurrentReplica() {
+        return currentReplica.get();
+    }
+
+    private String currentShard() {
+        String shard = contextShardRouter == null ? null : contextShardRouter.getCurrentShard();
+        return shard == null ? ContextShardRouter.PRIMARY : shard;
+    }
+
+    private DataSource primaryOf(String shard) {
+        return contextShardRouter != null ? contextShardRouter.getDataSource(shard) : dataSource;
+    }
+
+    private void createHeartbeatTable(String shard) {
+        try (Connection connection = primaryOf(shard).getConnection();
+             Statement statement = connection.createStatement()) {
+            statement.execute("CREATE TABLE IF NOT EXISTS " + HEARTBEAT_TABLE + " (id INT NOT NULL PRIMARY KEY, beat_ms BIGINT NOT NULL)");
+            try (ResultSet resultSet = statement.executeQuery("SELECT COUNT(*) FROM " + HEARTBEAT_TABLE + " WHERE id = 1")) {
+                resultSet.next();
+                if (resultSet.getInt(1) == 0) {
+                    statement.executeUpdate("INSERT INTO " + HEARTBEAT_TABLE + " (id, beat_ms) VALUES (1, 0)");
+                }
+            }
+        } catch (SQLException e) {
+            // Another instance may have inserted the row first
+            logger.warn("Preparing {} on shard {} failed", HEARTBEAT_TABLE, shard, e);
+        }
+    }
+
+    /**
+     * Measure the lag of every replica: read the replica's heartbeat, then write a new one on its shard.
+     */
+    void beat() {
+        for (Map.Entry<String, Replica> shardReplica : replicas.entrySet()) {
+            Replica replica = shardReplica.getValue();
+            try {
+                replica.lagMs = Math.max(0, System.currentTimeMillis() - readHeartbeat(replica.dataSource));
+                if (!replica.available) {
+                    logger.info("Read replica of shard {} is available, {} ms behind", shardReplica.getKey(), replica.lagMs);
+                }
+                replica.available = true;
+            } catch (SQLException | RuntimeException e) {
+                if (replica.available) {
+                    logger.warn("Read replica of shard {} is unavailable", shardReplica.getKey(), e);
+                }
+                replica.available = false;
+            }
+            try {
+                writeHeartbeat(primaryOf(shardReplica.getKey()));
+            } catch (SQLException | RuntimeException e) {
+                logger.warn("Writing the replica heartbeat of shard {} failed", shardReplica.getKey(), e);
+            }
+        }
+    }
+
+    private static long readHeartbeat(DataSource replica) throws SQLException {
+        try (Connection connection = replica.getConnection();
+             Statement statement = connection.createStatement();
+             ResultSet resultSet = statement.executeQuery("SELECT beat_ms FROM " + HEARTBEAT_TABLE + " WHERE id = 1")) {
+            if (!resultSet.next()) {
+                throw new SQLException("No heartbeat on the replica");
+            }
+            return resultSet.getLong(1);
+        }
+    }
+
+    private static void writeHeartbeat(DataSource primary) throws SQLException {
+        long now = System.currentTimeMillis();
+        try (Connection connection = primary.getConnection();
+             PreparedStatement statement = connection.prepareStatement(
+                     "UPDATE " + HEARTBEAT_TABLE + " SET beat_ms = ? WHERE id = 1 AND beat_ms < ?")) {
+            statement.setLong(1, now);
+            statement.setLong(2, now);
+            statement.executeUpdate();
+        }
+    }
+
+    public List<String> getShardNames() {
+        return new ArrayList<>(replicas.keySet());
+    }
+
+    /**
+     * Last measured lag of the replica of a shard, -1 while it is unavailable.
+     *
+     * @param shard String value contains shard-name
+     * @return long value of the lag in milliseconds
+     */
+    public long getLagMs(String shard) {
+        Replica replica = replicas.get(shard);
+        return replica != null && replica.available ? replica.lagMs : -1;
+    }
+
+    public long getReplicaReads() {
+        return replicaReads.get();
+    }
+
+    public long getPrimaryReads(PrimaryReason reason) {
+        return primaryReads[reason.ordinal()].get();
+    }
+
+    /**
+     * Share of the routed lookups served by a replica.
+     *
+     * @return double value between 0 and 1
+     */
+    public double getReplicaReadShare() {
+        long replica = replicaReads.get();
+        long total = replica;
+        for (AtomicLong reads : primaryReads) {
+            total += reads.get();
+        }
+        return total == 0 ? 0 : (double) replica / total;
+    }
+
+    void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    void setMaxStalenessMs(long maxStalenessMs) {
+        this.maxStalenessMs = maxStalenessMs;
+    }
+
+    void setHeartbeatMs(long heartbeatMs) {
+        this.heartbeatMs = heartbeatMs;
+    }
+
+    void setDataSource(DataSource dataSource) {
+        this.dataSource = dataSource;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (heartbeat != null) {
+            heartbeat.shutdownNow();
+        }
+        for (Replica replica : replicas.values()) {
+            if (replica.dataSource instanceof HikariDataSource) {
+                ((HikariDataSource) replica.dataSource).close();
+            }
+        }
+    }
+
+    private static final class Replica {
+        private final DataSource dataSource;
+        private volatile boolean available;
+        private volatile long lagMs = Long.MAX_VALUE;
+
+        private Replica(DataSource dataSource) {
+            this.dataSource = dataSource;
+        }
+    }
+}
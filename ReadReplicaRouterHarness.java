@@ -0,0 +1,153 @@
+package mobileoda.notification.dao.shard;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+
+/**
+ * Routes lookups through ReadReplicaRouter over two H2 databases, a primary and a replica that a thread
+ * copies the primary into every 20 ms. A lookup must read the replica once it has caught up, and the
+ * primary when forced, while replication is paused past the staleness bound, and when the replica fails
+ * the lookup; each step checks the reason counted and the token read.
+ */
+public class ReadReplicaRouterHarness {
+
+    public static void main(String[] args) throws Exception {
+        DataSource primary = h2("replica_check_primary");
+        DataSource replicaDataSource = h2("replica_check_replica");
+        for (DataSource database : new DataSource[]{primary, replicaDataSource}) {
+            try (Connection connection = database.getConnection(); Statement statement = connection.createStatement()) {
+                statement.execute("CREATE TABLE devicedetails (uid INT, context VARCHAR(64), device_platform VARCHAR(32),"
+                        + " device_token VARCHAR(256), PRIMARY KEY (uid, context))");
+            }
+        }
+        ReadReplicaRouter router = new ReadReplicaRouter();
+        router.setEnabled(true);
+        router.setHeartbeatMs(50);
+        router.setMaxStalenessMs(500);
+        router.setDataSource(primary);
+        router.addReplica(ContextShardRouter.PRIMARY, replicaDataSource);
+        try (Connection connection = replicaDataSource.getConnection(); Statement statement = connection.createStatement()) {
+            statement.execute("CREATE TABLE " + ReadReplicaRouter.HEARTBEAT_TABLE + " (id INT NOT NULL PRIMARY KEY, beat_ms BIGINT NOT NULL)");
+            statement.execute("INSERT INTO " + ReadReplicaRouter.HEARTBEAT_TABLE + " (id, beat_ms) VALUES (1, 0)");
+        }
+        ContextRoutingDataSource routingDataSource = new ContextRoutingDataSource(primary, ContextShardRouter::new, () -> router);
+
+        // Replication: copy the heartbeat and the devices every 20 ms unless paused
+        AtomicBoolean replicating = new AtomicBoolean(true);
+        ScheduledExecutorService replication = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "replica-check-replication");
+            thread.setDaemon(true);
+            return thread;
+        });
+        replication.scheduleWithFixedDelay(() -> {
+            if (replicating.get()) {
+                replicate(primary, replicaDataSource);
+            }
+        }, 0, 20, TimeUnit.MILLISECONDS);
+        router.start();
+        Thread.sleep(200);
+
+        String context = "CLINIC_A";
+        execute(primary, "INSERT INTO devicedetails VALUES (1, '" + context + "', 'Android', 'token_1')");
+        Thread.sleep(400);
+        boolean passed = check("caught up", router, null, () -> token(routingDataSource, router, context), "token_1");
+        passed &= check("forced", router, ReadReplicaRouter.PrimaryReason.FORCED, () -> router.readFromPrimary(() -> token(routingDataSource, router, context)), "token_1");
+
+        replicating.set(false);
+        execute(primary, "UPDATE devicedetails SET device_token = 'token_2' WHERE uid = 1");
+        Thread.sleep(800);
+        System.out.printf("Replica lag with replication paused: %d ms%n", router.getLagMs(ContextShardRouter.PRIMARY));
+        passed &= check("lagging", router, ReadReplicaRouter.PrimaryReason.LAGGING, () -> token(routingDataSource, router, context), "token_2");
+        replicating.set(true);
+        Thread.sleep(300);
+        passed &= check("resumed", router, null, () -> token(routingDataSource, router, context), "token_2");
+
+        replicating.set(false);
+        execute(replicaDataSource, "DROP TABLE devicedetails");
+        passed &= check("replica failure", router, ReadReplicaRouter.PrimaryReason.FAILED, () -> token(routingDataSource, router, context), "token_2");
+        System.out.printf("Replica read share: %.2f%n", router.getReplicaReadShare());
+
+        replication.shutdownNow();
+        router.shutdown();
+        if (!passed) {
+            System.out.println("Read replica routing check FAILED");
+            System.exit(1);
+        }
+        System.out.println("Read replica routing OK");
+    }
+
+    private static boolean check(String step, ReadReplicaRouter router, ReadReplicaRouter.PrimaryReason expectedReason, Supplier<String> lookup, String expectedToken) {
+        long replicaReads = router.getReplicaReads();
+        long primaryReads = expectedReason == null ? 0 : router.getPrimaryReads(expectedReason);
+        String token = lookup.get();
+        boolean routed = expectedReason == null
+                ? router.getReplicaReads() == replicaReads + 1
+                : router.getPrimaryReads(expectedReason) == primaryReads + 1;
+        if (!routed || !expectedToken.equals(token)) {
+            System.out.println(step + ": read " + token + ", expected " + expectedToken + " from "
+                    + (expectedReason == null ? "the replica" : "the primary (" + expectedReason.tag() + ")"));
+            return false;
+        }
+        System.out.printf("%-16s %-8s %s%n", step, expectedReason == null ? "replica" : "primary", token);
+        return true;
+    }
+
+    private static String token(DataSource routingDataSource, ReadReplicaRouter router, String context) {
+        return router.callOnReplica(() -> {
+            try (Connection connection = routingDataSource.getConnection();
+                 PreparedStatement statement = connection.prepareStatement("SELECT device_token FROM devicedetails WHERE context = ? AND uid = 1")) {
+                statement.setString(1, context);
+                try (ResultSet resultSet = statement.executeQuery()) {
+                    return resultSet.next() ? resultSet.getString(1) : null;
+                }
+            } catch (SQLException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+    }
+
+    private static void replicate(DataSource primary, DataSource replica) {
+        try (Connection source = primary.getConnection(); Connection target = replica.getConnection();
+             Statement query = source.createStatement();
+             PreparedStatement devices = target.prepareStatement("MERGE INTO devicedetails KEY (uid, context) VALUES (?, ?, ?, ?)");
+             PreparedStatement beat = target.prepareStatement("UPDATE " + ReadReplicaRouter.HEARTBEAT_TABLE + " SET beat_ms = ? WHERE id = 1")) {
+            try (ResultSet resultSet = query.executeQuery("SELECT uid, context, device_platform, device_token FROM devicedetails")) {
+                while (resultSet.next()) {
+                    for (int column = 1; column <= 4; column++) {
+                        devices.setObject(column, resultSet.getObject(column));
+                    }
+                    devices.executeUpdate();
+                }
+            }
+            try (ResultSet resultSet = query.executeQuery("SELECT beat_ms FROM " + ReadReplicaRouter.HEARTBEAT_TABLE + " WHERE id = 1")) {
+                if (resultSet.next()) {
+                    beat.setLong(1, resultSet.getLong(1));
+                    beat.executeUpdate();
+                }
+            }
+        } catch (SQLException e) {
+            // The replica check drops the replica's table on purpose
+        }
+    }
+
+    private static void execute(DataSource database, String sql) throws SQLException {
+        try (Connection connection = database.getConnection(); Statement statement = connection.createStatement()) {
+            statement.execute(sql);
+        }
+    }
+
+    private static DataSource h2(String name) {
+        org.h2.jdbcx.JdbcDataSource h2DataSource = new org.h2.jdbcx.JdbcDataSource();
+        h2DataSource.setURL("jdbc:h2:mem:" + name + ";DB_CLOSE_DELAY=-1");
+        return h2DataSource;
+    }
+}
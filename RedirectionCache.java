@@ -0,0 +1,219 @@
+package mobileoda.registration.cache;
+
+import mobileoda.notification.dao.shard.ReadReplicaRouter;
+import mobileoda.registration.dao.RedirectionDao;
+import mobileoda.registration.model.Redirection;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded, TTL based in-memory cache of Redirection records keyed by context.
+ * Unknown contexts are cached as well (negative entries) with their own, shorter TTL.
+ * Misses are loaded from the read replica when replica routing is enabled. A comm auth token mismatch
+ * reloads the context from the primary at most once per token-reload-interval-seconds.
+ */
+@Component
+public class RedirectionCache {
+    private Logger logger = LogManager.getLogger(RedirectionCache.class);
+
+    @Autowired
+    private RedirectionDao redirectionDao;
+
+    @Autowired(required = false)
+    private ReadReplicaRouter readReplicaRouter;
+
+    @Value("${redirection.cache.max-size:2000}")
+    private int maxSize = 2000;
+
+    @Value("${redirection.cache.ttl-seconds:300}")
+    private long ttlSeconds = 300;
+
+    @Value("${redirection.cache.negative-ttl-seconds:30}")
+    private long negativeTtlSeconds = 30;
+
+    @Value("${redirection.cache.token-reload-interval-seconds:5}")
+    private long tokenReloadIntervalSeconds = 5;
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong evictionCount = new AtomicLong();
+    private final AtomicLong limitedReloadCount = new AtomicLong();
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Map<String, CacheEntry> entries = new LinkedHashMap<String, CacheEntry>(64, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CacheEntry> eldest) {
+            if (size() > maxSize) {
+                evictionCount.incrementAndGet();
+                return true;
+            }
+            return false;
+        }
+    };
+
+    /**
+     * Find redirection details of a context, from the cache when a live entry exists.
+     *
+     * @param context String value contains context-name
+     * @return Instance of Redirection, with a blank context when the context does not exist
+     */
+    public Redirection findByContext(String context) {
+        long now = System.nanoTime();
+        lock.lock();
+        try {
+            CacheEntry entry = entries.get(context);
+            if (entry != null && entry.expiresAt - now > 0) {
+                hitCount.incrementAndGet();
+                return entry.redirection;
+            }
+        } finally {
+            lock.unlock();
+        }
+        missCount.incrementAndGet();
+        return load(context, now, now);
+    }
+
+    /**
+     * Validate a comm auth token against the redirection the caller already found with
+     * {@link #findByContext}, so a request takes one cache lookup. A mismatch reloads the
+     * context once from the primary so a freshly rotated token is accepted without waiting for the TTL
+     * or the replica. Within the reload interval of a context further mismatches are rejected against
+     * the cached token, so requests with a wrong token cannot turn every call into a primary read.
+     *
+     * @param context       String value contains context-name
+     * @param redirection   Instance of Redirection found for the context
+     * @param commAuthToken String value contains comm-auth-token of the request
+     * @return true when the token matches the token of the context
+     */
+    public boolean isValidToken(String context, Redirection redirection, String commAuthToken) {
+        if (commAuthToken.equals(redirection.getToken())) {
+            return true;
+        }
+        long now = System.nanoTime();
+        if (!claimTokenReload(context, now)) {
+            limitedReloadCount.incrementAndGet();
+            return false;
+        }
+        long reloadAllowedAt = now + TimeUnit.SECONDS.toNanos(tokenReloadIntervalSeconds);
+        Redirection reloaded = readReplicaRouter == null
+                ? load(context, now, reloadAllowedAt)
+                : readReplicaRouter.readFromPrimary(() -> load(context, now, reloadAllowedAt));
+        return commAuthToken.equals(reloaded.getToken());
+    }
+
+    /**
+     * Claim the primary reload of a context; concurrent mismatches see the claim and do not reload.
+     *
+     * @param context String value contains context-name
+     * @param now     long value of System.nanoTime()
+     * @return true when no reload of the context happened within the reload interval
+     */
+    private boolean claimTokenReload(String context, long now) {
+        lock.lock();
+        try {
+            CacheEntry entry = entries.get(context);
+            if (entry == null) {
+                return true;
+            }
+            if (entry.reloadAllowedAt - now > 0) {
+                return false;
+            }
+            entries.put(context, new CacheEntry(entry.redirection, entry.expiresAt,
+                    now + TimeUnit.SECONDS.toNanos(tokenReloadIntervalSeconds)));
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Drop the cached entry of a context, e.g. after its comm auth token was rotated.
+     *
+     * @param context String value contains context-name
+     */
+    public void invalidate(String context) {
+        lock.lock();
+        try {
+            entries.remove(context);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Drop every cached entry.
+     */
+    public void invalidateAll() {
+        lock.lock();
+        try {
+            entries.clear();
+        } finally {
+            lock.unlock();
+        }
+        logger.info("Redirection cache cleared");
+    }
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    public long getEvictionCount() {
+        return evictionCount.get();
+    }
+
+    public long getLimitedReloadCount() {
+        return limitedReloadCount.get();
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return entries.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Redirection load(String context, long now, long reloadAllowedAt) {
+        Redirection redirection = readReplicaRouter == null
+                ? redirectionDao.findByContext(context)
+                : readReplicaRouter.callOnReplica(() -> redirectionDao.findByContext(context));
+        if (redirection == null) {
+            redirection = new Redirection();
+        }
+        long ttl = StringUtils.isBlank(redirection.getContext()) ? negativeTtlSeconds : ttlSeconds;
+        lock.lock();
+        try {
+            entries.put(context, new CacheEntry(redirection, now + TimeUnit.SECONDS.toNanos(ttl), reloadAllowedAt));
+        } finally {
+            lock.unlock();
+        }
+        return redirection;
+    }
+
+    private static final class CacheEntry {
+        private final Redirection redirection;
+        private final long expiresAt;
+        private final long reloadAllowedAt;
+
+        private CacheEntry(Redirection redirection, long expiresAt, long reloadAllowedAt) {
+            this.redirection = redirection;
+            this.expiresAt = expiresAt;
+            this.reloadAllowedAt = reloadAllowedAt;
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package mobileoda.config;
+
+import mobileoda.notification.dao.shard.ContextRoutingDataSource;
+import mobileoda.notification.dao.shard.ContextShardRouter;
+import mobileoda.notification.dao.shard.ReadReplicaRouter;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import javax.sql.DataSource;
+
+/**
+ * Wraps the application's DataSource into a ContextRoutingDataSource when
+ * {@code notification.sharding.enabled=true} or {@code notification.replica.enabled=true}, so the
+ * notification DAOs and repositories write to the shard of the context they work for and run routed
+ * lookups on its read replica.
+ */
+@Configuration
+@ConditionalOnExpression("${notification.sharding.enabled:false} or ${notification.replica.enabled:false}")
+public class ShardingDataSourceConfig {
+
+    @Bean
+    public static BeanPostProcessor contextRoutingDataSourcePostProcessor(ObjectProvider<ContextShardRouter> contextShardRouter,
+                                                                          ObjectProvider<ReadReplicaRouter> readReplicaRouter) {
+        return new BeanPostProcessor() {
+            @Override
+            public Object postProcessAfterInitialization(Object bean, String beanName) {
+                if (bean instanceof DataSource && !(bean instanceof ContextRoutingDataSource)) {
+                    return new ContextRoutingDataSource((DataSource) bean, contextShardRouter::getObject, readReplicaRouter::getIfAvailable);
+                }
+                return bean;
+            }
+        };
+    }
+}
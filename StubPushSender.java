@@ -0,0 +1,89 @@
+package mobileoda.notification.dispatch;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-process PushSender for offline tests. A batch completes after a configurable latency, and messages
+ * fail with configurable rates of transient and permanent errors; whole batches can fail as well.
+ * Enabled with {@code notification.dispatch.sender=stub}, see {@link PushDispatcher}.
+ */
+public class StubPushSender implements PushSender {
+    private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "stub-push-sender");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final String platform;
+    private final int maxBatchSize;
+    private final long latencyMs;
+    private final double retryRate;
+    private final double rejectRate;
+    private final double batchFailureRate;
+
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong messages = new AtomicLong();
+
+    /**
+     * @param platform         String value contains platform-name
+     * @param maxBatchSize     int value of the multicast batch size
+     * @param latencyMs        long value of the latency of a batch
+     * @param retryRate        share of messages failing with a transient error
+     * @param rejectRate       share of messages rejected for good
+     * @param batchFailureRate share of batches failing as a whole
+     */
+    public StubPushSender(String platform, int maxBatchSize, long latencyMs, double retryRate, double rejectRate, double batchFailureRate) {
+        this.platform = platform;
+        this.maxBatchSize = maxBatchSize;
+        this.latencyMs = latencyMs;
+        this.retryRate = retryRate;
+        this.rejectRate = rejectRate;
+        this.batchFailureRate = batchFailureRate;
+    }
+
+    @Override
+    public String getPlatform() {
+        return platform;
+    }
+
+    @Override
+    public int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    @Override
+    public CompletableFuture<List<Outcome>> send(List<PushMessage> batch) {
+        batches.incrementAndGet();
+        messages.addAndGet(batch.size());
+        CompletableFuture<List<Outcome>> result = new CompletableFuture<>();
+        TIMER.schedule(() -> {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            if (random.nextDouble() < batchFailureRate) {
+                result.completeExceptionally(new IllegalStateException("Simulated " + platform + " batch failure"));
+                return;
+            }
+            List<Outcome> outcomes = new ArrayList<>(batch.size());
+            for (int i = 0; i < batch.size(); i++) {
+                double draw = random.nextDouble();
+                outcomes.add(draw < rejectRate ? Outcome.REJECTED : draw < rejectRate + retryRate ? Outcome.RETRY : Outcome.DELIVERED);
+            }
+            result.complete(outcomes);
+        }, latencyMs, TimeUnit.MILLISECONDS);
+        return result;
+    }
+
+    public long getBatches() {
+        return batches.get();
+    }
+
+    public long getMessages() {
+        return messages.get();
+    }
+}
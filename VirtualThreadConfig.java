@@ -0,0 +1,25 @@
+package mobileoda.config;
+
+import mobileoda.notification.service.mobileoda.impl.VirtualThreadExecution;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.web.embedded.tomcat.TomcatProtocolHandlerCustomizer;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * Hands request processing of the embedded Tomcat to virtual threads when
+ * {@code notification.execution.mode=virtual}.
+ */
+@Configuration
+@ConditionalOnProperty(name = "notification.execution.mode", havingValue = "virtual")
+public class VirtualThreadConfig {
+
+    @Bean
+    public TomcatProtocolHandlerCustomizer<?> virtualThreadProtocolHandlerCustomizer(VirtualThreadExecution virtualThreadExecution) {
+        return protocolHandler -> {
+            if (virtualThreadExecution.isVirtual()) {
+                protocolHandler.setExecutor(virtualThreadExecution.getVirtualExecutor());
+            }
+        };
+    }
+}
@@ -0,0 +1,164 @@
+package mobileoda.notification.service.mobileoda.impl;
+
+import com.zaxxer.hikari.HikariDataSource;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.sql.DataSource;
+import java.sql.SQLException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Runs request handling on Java 21 virtual threads when {@code notification.execution.mode=virtual}.
+ *
+ * <p>A virtual thread is cheap to block on JDBC, so the servlet thread pool no longer caps concurrency;
+ * the connection pool does instead. Work that holds a connection is therefore admitted through a fair
+ * semaphore sized to the maximum size of the connection pool
+ * ({@code notification.execution.max-concurrent-writes} overrides it), so waiting requests queue here,
+ * on parked virtual threads, rather than inside HikariCP with its connection timeout.
+ *
+ * <p>Virtual threads are looked up reflectively, so the service still runs on an older JVM; there the
+ * mode falls back to platform threads.
+ */
+@Component
+public class VirtualThreadExecution {
+    private Logger logger = LogManager.getLogger(VirtualThreadExecution.class);
+
+    static final String MODE_VIRTUAL = "virtual";
+
+    @Autowired(required = false)
+    private DataSource dataSource;
+
+    @Value("${notification.execution.mode:platform}")
+    private String mode = "platform";
+
+    @Value("${notification.execution.max-concurrent-writes:0}")
+    private int maxConcurrentWrites;
+
+    private ExecutorService virtualExecutor;
+    private Semaphore writePermits;
+
+    private final AtomicLong permitWaits = new AtomicLong();
+    private final AtomicLong permitWaitNanos = new AtomicLong();
+
+    @PostConstruct
+    public void start() {
+        if (!MODE_VIRTUAL.equals(mode)) {
+            return;
+        }
+        virtualExecutor = newVirtualThreadPerTaskExecutor();
+        if (virtualExecutor == null) {
+            logger.warn("notification.execution.mode=virtual needs Java 21, running on platform threads");
+            return;
+        }
+        int permits = maxConcurrentWrites;
+        if (permits <= 0) {
+            permits = primaryPoolSize();
+        }
+        writePermits = new Semaphore(permits, true);
+        logger.info("Running notification requests on virtual threads, {} concurrent writes", permits);
+    }
+
+    public boolean isVirtual() {
+        return virtualExecutor != null;
+    }
+
+    /**
+     * Executor running every task on a new virtual thread, for the servlet container.
+     *
+     * @return Instance of ExecutorService, or null when not in virtual mode
+     */
+    public ExecutorService getVirtualExecutor() {
+        return virtualExecutor;
+    }
+
+    /**
+     * Run work that holds a database connection, admitted by the write semaphore in virtual mode.
+     *
+     * @param work Supplier doing the database work
+     * @param <T>  Type of the result
+     * @return result of the work
+     */
+    public <T> T withConnectionPermit(Supplier<T> work) {
+        if (writePermits == null) {
+            return work.get();
+        }
+        if (!writePermits.tryAcquire()) {
+            long startNanos = System.nanoTime();
+            writePermits.acquireUninterruptibly();
+            permitWaits.incrementAndGet();
+            permitWaitNanos.addAndGet(System.nanoTime() - startNanos);
+        }
+        try {
+            return work.get();
+        } finally {
+            writePermits.release();
+        }
+    }
+
+    public int getAvailablePermits() {
+        return writePermits == null ? 0 : writePermits.availablePermits();
+    }
+
+    public int getQueuedForPermit() {
+        return writePermits == null ? 0 : writePermits.getQueueLength();
+    }
+
+    public long getPermitWaits() {
+        return permitWaits.get();
+    }
+
+    public long getPermitWaitNanos() {
+        return permitWaitNanos.get();
+    }
+
+    void setDataSource(DataSource dataSource) {
+        this.dataSource = dataSource;
+    }
+
+    void setMode(String mode) {
+        this.mode = mode;
+    }
+
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        if (virtualExecutor != null) {
+            virtualExecutor.shutdown();
+            virtualExecutor.awaitTermination(30, TimeUnit.SECONDS);
+        }
+    }
+
+    static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) method.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Maximum pool size of the HikariDataSource behind the DataSource, which may be a routing wrapper.
+     */
+    private int primaryPoolSize() {
+        try {
+            if (dataSource != null && dataSource.isWrapperFor(HikariDataSource.class)) {
+                return dataSource.unwrap(HikariDataSource.class).getMaximumPoolSize();
+            }
+        } catch (SQLException e) {
+            logger.warn("Could not unwrap the DataSource", e);
+        }
+        return 10;
+    }
+}
@@ -0,0 +1,143 @@
+package mobileoda.notification.service.mobileoda.impl;
+
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Load comparison of platform threads and VirtualThreadExecution: {@code requests} concurrent requests,
+ * each running a query that sleeps {@code dbMillis} ms inside an embedded H2 database, through a HikariCP
+ * pool of {@code connections} connections with a 1 s connection timeout.
+ *
+ * <ul>
+ *     <li>Platform: a pool of 200 threads, the Tomcat default.</li>
+ *     <li>Virtual, no permits: every request on its own virtual thread, all waiting inside HikariCP, so
+ *     requests time out once the queue is longer than the connection timeout.</li>
+ *     <li>Virtual: VirtualThreadExecution in virtual mode, whose executor comes from the reflective lookup
+ *     and whose permits are sized from the pool. No request may fail, and every permit must be back.</li>
+ * </ul>
+ *
+ * Arguments: [requests] [connections] [dbMillis], by default 5000, 20 and 10. Needs Java 21 for the
+ * virtual runs.
+ */
+public class VirtualThreadExecutionHarness {
+
+    public static void main(String[] args) throws Exception {
+        int requests = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+        int connections = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        long dbMillis = args.length > 2 ? Long.parseLong(args[2]) : 10;
+        int tomcatThreads = 200;
+
+        HikariConfig config = new HikariConfig();
+        config.setPoolName("virtual-thread-harness");
+        config.setJdbcUrl("jdbc:h2:mem:virtual_thread_harness;DB_CLOSE_DELAY=-1");
+        config.setMaximumPoolSize(connections);
+        config.setConnectionTimeout(1000);
+        try (HikariDataSource dataSource = new HikariDataSource(config)) {
+            try (Connection connection = dataSource.getConnection(); Statement statement = connection.createStatement()) {
+                statement.execute("CREATE ALIAS IF NOT EXISTS SLEEP_MS FOR '" + VirtualThreadExecutionHarness.class.getName() + ".sleep'");
+            }
+            System.out.println("Requests: " + requests + ", connections: " + connections + ", JDBC time: " + dbMillis + " ms");
+            run("platform, " + tomcatThreads + " threads", Executors.newFixedThreadPool(tomcatThreads), dataSource, Supplier::get, requests, dbMillis);
+
+            ExecutorService unlimited = VirtualThreadExecution.newVirtualThreadPerTaskExecutor();
+            if (unlimited == null) {
+                System.out.println("virtual: not available on Java " + System.getProperty("java.version"));
+                return;
+            }
+            run("virtual, no permits", unlimited, dataSource, Supplier::get, requests, dbMillis);
+
+            VirtualThreadExecution execution = new VirtualThreadExecution();
+            execution.setMode(VirtualThreadExecution.MODE_VIRTUAL);
+            execution.setDataSource(dataSource);
+            execution.start();
+            int permits = execution.getAvailablePermits();
+            int failed = run("virtual, permits = pool", execution.getVirtualExecutor(), dataSource, execution::withConnectionPermit, requests, dbMillis);
+            System.out.printf("Permits: %d for a pool of %d, %d back after the run, %d requests waited %.1f ms on average%n",
+                    permits, connections, execution.getAvailablePermits(), execution.getPermitWaits(),
+                    execution.getPermitWaits() == 0 ? 0 : execution.getPermitWaitNanos() / 1e6 / execution.getPermitWaits());
+            boolean passed = execution.isVirtual() && permits == connections && failed == 0
+                    && execution.getAvailablePermits() == connections;
+            execution.shutdown();
+            if (!passed) {
+                System.out.println("Virtual thread execution check FAILED");
+                System.exit(1);
+            }
+            System.out.println("Virtual thread execution check passed: no request timed out waiting for a connection");
+        }
+    }
+
+    /**
+     * Called by H2 for {@code SLEEP_MS(millis)}: blocks the connection like a slow statement.
+     */
+    public static int sleep(long millis) throws InterruptedException {
+        Thread.sleep(millis);
+        return 0;
+    }
+
+    private interface Admission {
+        Integer admit(Supplier<Integer> work);
+    }
+
+    /**
+     * @return int value of the requests that failed
+     */
+    private static int run(String label, ExecutorService executor, DataSource dataSource, Admission admission,
+                           int requests, long dbMillis) throws Exception {
+        List<Long> latencies = Collections.synchronizedList(new ArrayList<>(requests));
+        AtomicInteger failed = new AtomicInteger();
+        List<Future<?>> futures = new ArrayList<>(requests);
+        int maxThreads = Thread.activeCount();
+        long start = System.nanoTime();
+        for (int request = 0; request < requests; request++) {
+            long submitted = System.nanoTime();
+            futures.add(executor.submit(() -> {
+                try {
+                    admission.admit(() -> query(dataSource, dbMillis));
+                    latencies.add(System.nanoTime() - submitted);
+                } catch (RuntimeException e) {
+                    failed.incrementAndGet();
+                }
+            }));
+            maxThreads = Math.max(maxThreads, Thread.activeCount());
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        long elapsed = System.nanoTime() - start;
+        executor.shutdown();
+
+        List<Long> sorted = new ArrayList<>(latencies);
+        Collections.sort(sorted);
+        System.out.printf("%-28s %8.0f req/s  p50 %6.1f ms  p99 %6.1f ms  failed %5d  platform threads %d%n", label,
+                requests / (elapsed / 1e9),
+                sorted.isEmpty() ? 0 : sorted.get(sorted.size() / 2) / 1e6,
+                sorted.isEmpty() ? 0 : sorted.get((int) (sorted.size() * 0.99)) / 1e6,
+                failed.get(), maxThreads);
+        return failed.get();
+    }
+
+    private static Integer query(DataSource dataSource, long dbMillis) {
+        try (Connection connection = dataSource.getConnection();
+             PreparedStatement statement = connection.prepareStatement("SELECT SLEEP_MS(?)")) {
+            statement.setLong(1, dbMillis);
+            statement.execute();
+            return 0;
+        } catch (SQLException e) {
+            throw new IllegalStateException("Query failed", e);
+        }
+    }
+}
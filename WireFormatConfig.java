@@ -0,0 +1,39 @@
+package mobileoda.config;
+
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.web.servlet.FilterRegistrationBean;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.Ordered;
+import org.springframework.http.converter.cbor.MappingJackson2CborHttpMessageConverter;
+
+/**
+ * Content negotiation of the notification endpoints: application/cbor next to application/json for
+ * request and response bodies, and gzip compressed request bodies. Gzip bodies are decompressed only on
+ * the paths of {@code notification.wire-format.gzip-url-patterns}, up to
+ * {@code notification.wire-format.max-inflated-bytes}.
+ */
+@Configuration
+public class WireFormatConfig {
+
+    @Value("${notification.wire-format.gzip-url-patterns:/notification/*}")
+    private String gzipUrlPatterns = "/notification/*";
+
+    @Value("${notification.wire-format.max-inflated-bytes:67108864}")
+    private long maxInflatedBytes = 64L * 1024 * 1024;
+
+    @Bean
+    public MappingJackson2CborHttpMessageConverter cborHttpMessageConverter() {
+        return new MappingJackson2CborHttpMessageConverter();
+    }
+
+    @Bean
+    public FilterRegistrationBean<GzipRequestFilter> gzipRequestFilter() {
+        FilterRegistrationBean<GzipRequestFilter> registration = new FilterRegistrationBean<>(new GzipRequestFilter(maxInflatedBytes));
+        registration.addUrlPatterns(StringUtils.stripAll(StringUtils.split(gzipUrlPatterns, ',')));
+        // Ahead of every filter reading the body of the notification endpoints
+        registration.setOrder(Ordered.HIGHEST_PRECEDENCE);
+        return registration;
+    }
+}